@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import xerial.jnuma.Numa;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of allocating and releasing memory with each allocation method of {@link xerial.jnuma.NumaInterface}
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AllocBenchmark {
+
+    public enum Method {
+        ALLOC {
+            ByteBuffer alloc(int size) {
+                return Numa.alloc(size);
+            }
+        },
+        ALLOC_LOCAL {
+            ByteBuffer alloc(int size) {
+                return Numa.allocLocal(size);
+            }
+        },
+        ALLOC_ON_NODE {
+            ByteBuffer alloc(int size) {
+                return Numa.allocOnNode(size, BenchmarkNodes.remoteNode());
+            }
+        },
+        ALLOC_INTERLEAVED {
+            ByteBuffer alloc(int size) {
+                return Numa.allocInterleaved(size);
+            }
+        },
+        ALLOC_MEMORY {
+            long allocMemory(long size) {
+                return Numa.allocMemory(size);
+            }
+        },
+        ALLOC_MEMORY_LOCAL {
+            long allocMemory(long size) {
+                return Numa.allocMemoryLocal(size);
+            }
+        },
+        ALLOC_MEMORY_ON_NODE {
+            long allocMemory(long size) {
+                return Numa.allocMemoryOnNode(size, BenchmarkNodes.remoteNode());
+            }
+        },
+        ALLOC_MEMORY_INTERLEAVED {
+            long allocMemory(long size) {
+                return Numa.allocMemoryInterleaved(size);
+            }
+        };
+
+        ByteBuffer alloc(int size) {
+            return null;
+        }
+
+        long allocMemory(long size) {
+            return 0;
+        }
+    }
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    @Param({"ALLOC", "ALLOC_LOCAL", "ALLOC_ON_NODE", "ALLOC_INTERLEAVED",
+        "ALLOC_MEMORY", "ALLOC_MEMORY_LOCAL", "ALLOC_MEMORY_ON_NODE", "ALLOC_MEMORY_INTERLEAVED"})
+    public Method method;
+
+    /**
+     * Touch the first byte of every page so that the page faults are included in the latency
+     */
+    @Param({"false", "true"})
+    public boolean touch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkNodes.bindCurrentThread();
+    }
+
+    @Benchmark
+    public void allocAndFree(Blackhole bh) {
+        ByteBuffer buf = method.alloc(size);
+        if(buf != null) {
+            if(touch) {
+                for(int i=0; i<size; i += 4096)
+                    buf.put(i, (byte) 1);
+            }
+            bh.consume(buf);
+            Numa.free(buf);
+        }
+        else {
+            long address = method.allocMemory(size);
+            if(touch) {
+                ByteBuffer view = Numa.directBuffer(address, size);
+                for(int i=0; i<size; i += 4096)
+                    view.put(i, (byte) 1);
+            }
+            bh.consume(address);
+            Numa.free(address, size);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import xerial.jnuma.MemoryPolicy;
+import xerial.jnuma.Numa;
+import xerial.jnuma.NumaTopology;
+
+/**
+ * Nodes used in the benchmarks. Benchmark threads are bound to the local node, and the remote node is the nearest
+ * other node. On a single-node machine, or when NUMA is not available, the remote node is simulated by the local node,
+ * so that all benchmarks still run and produce comparable output.
+ *
+ * @author Taro L. Saito
+ */
+public class BenchmarkNodes {
+
+    private static final int localNode;
+    private static final int remoteNode;
+
+    static {
+        NumaTopology topology = Numa.topology();
+        int[] nodes = topology.nodesWithCPUs();
+        localNode = nodes[0];
+        remoteNode = topology.numNodes() > 1 && Numa.isAvailable() ? topology.nearestNode(localNode, 1) : localNode;
+    }
+
+    /**
+     * @return the node where benchmark threads run
+     */
+    public static int localNode() {
+        return localNode;
+    }
+
+    /**
+     * @return the node that is remote from the benchmark threads, or the local node if the machine has a single node
+     */
+    public static int remoteNode() {
+        return remoteNode;
+    }
+
+    /**
+     * @return true if the remote node is simulated by the local node
+     */
+    public static boolean isSimulated() {
+        return remoteNode == localNode;
+    }
+
+    /**
+     * Bind the current thread to the local node
+     */
+    public static void bindCurrentThread() {
+        if(Numa.isAvailable())
+            Numa.runOnNode(localNode);
+    }
+
+    /**
+     * Bind the current thread to the CPUs and the memory of the given node
+     * @param node numa node
+     */
+    public static void bindCurrentThread(int node) {
+        if(Numa.isAvailable())
+            Numa.bindCurrentThread(node, MemoryPolicy.PREFERRED, null);
+    }
+}
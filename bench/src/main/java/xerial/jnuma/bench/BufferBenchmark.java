@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare sequential fill, random page read, radix sort and memcpy over the buffers of each {@link BufferKind}
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int NUM_READS = 4096;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"LOCAL", "REMOTE", "INTERLEAVED", "HEAP", "DIRECT"})
+    public BufferKind kind;
+
+    private ByteBuffer buf;
+    private ByteBuffer dest;
+    private byte[] chunk;
+    private int[] pageOffsets;
+    private int[] pile = new int[256];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkNodes.bindCurrentThread();
+        buf = kind.allocate(size);
+        dest = kind.allocate(size);
+        chunk = new byte[64 * 1024];
+        Random r = new Random(0);
+        r.nextBytes(chunk);
+        for(int i=0; i<size; i += chunk.length)
+            copyChunk(buf, i);
+        pageOffsets = new int[NUM_READS];
+        for(int i=0; i<NUM_READS; ++i)
+            pageOffsets[i] = r.nextInt(size / PAGE_SIZE) * PAGE_SIZE;
+    }
+
+    private void copyChunk(ByteBuffer b, int pos) {
+        b.position(pos);
+        b.put(chunk, 0, Math.min(chunk.length, size - pos));
+        b.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        kind.free(buf);
+        kind.free(dest);
+    }
+
+    @Benchmark
+    public void fill() {
+        for(int i=0; i<size; i += 8)
+            buf.putLong(i, i);
+    }
+
+    @Benchmark
+    public long randomPageRead() {
+        long sum = 0;
+        for(int offset : pageOffsets)
+            sum += buf.getLong(offset);
+        return sum;
+    }
+
+    @Benchmark
+    public void memcpy(Blackhole bh) {
+        buf.clear();
+        dest.clear();
+        dest.put(buf);
+        bh.consume(dest);
+    }
+
+    /**
+     * In-place 8-bit radix sort of the bytes (American flag sort), which performs random writes over the buffer.
+     * The time includes copying the unsorted input, which is measured separately by {@link #memcpy(Blackhole)}.
+     */
+    @Benchmark
+    public void radixSort(Blackhole bh) {
+        ByteBuffer b = dest;
+        b.clear();
+        buf.clear();
+        b.put(buf);
+        int[] pile = this.pile;
+        Arrays.fill(pile, 0);
+        for(int i=0; i<size; ++i)
+            pile[b.get(i) + 128]++;
+        for(int i=1; i<pile.length; ++i)
+            pile[i] += pile[i - 1];
+        for(int i=0; i<size; ++i) {
+            byte e = b.get(i);
+            for(;;) {
+                int p = e + 128;
+                int pileIndex = --pile[p];
+                if(pileIndex < i)
+                    break;
+                byte tmp = b.get(pileIndex);
+                b.put(pileIndex, e);
+                e = tmp;
+            }
+            b.put(i, e);
+        }
+        bh.consume(b);
+    }
+}
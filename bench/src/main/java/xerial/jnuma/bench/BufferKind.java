@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import xerial.jnuma.Numa;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The kinds of buffers compared in the benchmarks. The benchmark threads run on {@link BenchmarkNodes#localNode()}.
+ *
+ * @author Taro L. Saito
+ */
+public enum BufferKind {
+    LOCAL {
+        ByteBuffer allocate(int size) {
+            return Numa.allocOnNode(size, BenchmarkNodes.localNode());
+        }
+    },
+    REMOTE {
+        ByteBuffer allocate(int size) {
+            return Numa.allocOnNode(size, BenchmarkNodes.remoteNode());
+        }
+    },
+    INTERLEAVED {
+        ByteBuffer allocate(int size) {
+            return Numa.allocInterleaved(size);
+        }
+    },
+    HEAP {
+        ByteBuffer allocate(int size) {
+            return ByteBuffer.allocate(size);
+        }
+
+        void free(ByteBuffer buf) {
+            // collected by GC
+        }
+    },
+    DIRECT {
+        ByteBuffer allocate(int size) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        void free(ByteBuffer buf) {
+            // collected by GC
+        }
+    };
+
+    abstract ByteBuffer allocate(int size);
+
+    void free(ByteBuffer buf) {
+        Numa.free(buf);
+    }
+}
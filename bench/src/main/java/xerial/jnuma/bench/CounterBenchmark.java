@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.NumaCounter;
+import xerial.jnuma.NumaHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost of updating a counter shared by all benchmark threads. Run with many threads (e.g., -t 1,64) to see the effect of
+ * the cross-node cache line traffic.
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CounterBenchmark {
+
+    private AtomicLong atomicLong;
+    private LongAdder longAdder;
+    private NumaCounter numaCounter;
+    private NumaHistogram numaHistogram;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        atomicLong = new AtomicLong();
+        longAdder = new LongAdder();
+        numaCounter = new NumaCounter();
+        numaHistogram = new NumaHistogram();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        numaCounter.free();
+        numaHistogram.free();
+    }
+
+    @Benchmark
+    public void atomicLong() {
+        atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    public void longAdder() {
+        longAdder.increment();
+    }
+
+    @Benchmark
+    public void numaCounter() {
+        numaCounter.increment();
+    }
+
+    @Benchmark
+    public void numaHistogram() {
+        numaHistogram.record(1000);
+    }
+
+    @Benchmark
+    public long longAdderSum() {
+        return longAdder.sum();
+    }
+
+    @Benchmark
+    public long numaCounterSum() {
+        return numaCounter.sum();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.Numa;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the CPU of the current thread
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CurrentCpuBenchmark {
+
+    @Benchmark
+    public long[] affinityMask() {
+        return Numa.getAffinity();
+    }
+
+    @Benchmark
+    public int currentCpu() {
+        return Numa.currentCpu();
+    }
+
+    @Benchmark
+    public int cachedCurrentCpu() {
+        return Numa.currentCpu(1000000L);
+    }
+
+    @Benchmark
+    public int currentNode() {
+        return Numa.currentNode();
+    }
+}
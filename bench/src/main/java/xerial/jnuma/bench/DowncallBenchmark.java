@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.Numa;
+import xerial.jnuma.NumaInterface;
+import xerial.jnuma.NumaNative;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the call overhead of the JNI implementation ({@link NumaNative}) and the FFM implementation (xerial.jnuma.foreign.NumaForeign).
+ * The FFM implementation is measured only if the jnuma-foreign jar is in the classpath and the JVM is JDK 22 or later.
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DowncallBenchmark {
+
+    static final String FOREIGN = "xerial.jnuma.foreign.NumaForeign";
+
+    /**
+     * @return true if the FFM implementation can be loaded
+     */
+    static boolean isForeignAvailable() {
+        try {
+            Class.forName(FOREIGN, false, DowncallBenchmark.class.getClassLoader());
+            return true;
+        }
+        catch(ClassNotFoundException e) {
+            return false;
+        }
+        catch(UnsupportedClassVersionError e) {
+            return false;
+        }
+    }
+
+    @Param({"jni", "foreign"})
+    public String backend;
+
+    private NumaInterface numa;
+    private final long[] mask = new long[64];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if(backend.equals("jni")) {
+            // Load the JNI library through Numa
+            Numa.isAvailable();
+            if(!Numa.backend().equals(NumaNative.class.getName()))
+                throw new IllegalStateException("JNI library is not loaded: " + Numa.backend());
+            numa = new NumaNative();
+        }
+        else {
+            try {
+                numa = (NumaInterface) Class.forName(FOREIGN).getDeclaredConstructor().newInstance();
+            }
+            catch(InvocationTargetException e) {
+                throw new IllegalStateException("failed to initialize " + FOREIGN, e.getCause());
+            }
+            catch(Exception e) {
+                throw new IllegalStateException(FOREIGN + " is not available. Add the jnuma-foreign jar to the classpath and use JDK 22 or later", e);
+            }
+            catch(LinkageError e) {
+                throw new IllegalStateException(FOREIGN + " is not available. Add the jnuma-foreign jar to the classpath and use JDK 22 or later", e);
+            }
+        }
+    }
+
+    @Benchmark
+    public int currentCpu() {
+        return numa.currentCpu();
+    }
+
+    @Benchmark
+    public int distance() {
+        return numa.distance(0, 0);
+    }
+
+    @Benchmark
+    public long[] getAffinity() {
+        numa.getAffinity(0, mask, 64 * mask.length);
+        return mask;
+    }
+
+    @Benchmark
+    public long[] nodeToCpus() {
+        numa.nodeToCpus(0, mask);
+        return mask;
+    }
+
+    @Benchmark
+    public long allocAndFree() {
+        long address = numa.allocMemoryOnNode(4096, 0);
+        numa.free(address, 4096);
+        return address;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.NumaMemorySegment;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random page reads over memory backed by base (4KB) pages and by huge pages on the local and the remote node.
+ * The segment is larger than the reach of the TLB for base pages, so the reads with base pages include TLB misses.
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HugePageBenchmark {
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int NUM_READS = 65536;
+
+    public enum Pages {
+        BASE {
+            NumaMemorySegment allocate(long size, int node) {
+                return NumaMemorySegment.allocOnNode(size, node);
+            }
+        },
+        HUGE {
+            NumaMemorySegment allocate(long size, int node) {
+                return NumaMemorySegment.allocHugeOnNode(size, node);
+            }
+        };
+
+        abstract NumaMemorySegment allocate(long size, int node);
+    }
+
+    @Param({"268435456"})
+    public long size;
+
+    @Param({"BASE", "HUGE"})
+    public Pages pages;
+
+    @Param({"LOCAL", "REMOTE"})
+    public String node;
+
+    private NumaMemorySegment segment;
+    private long[] pageOffsets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkNodes.bindCurrentThread();
+        int n = node.equals("LOCAL") ? BenchmarkNodes.localNode() : BenchmarkNodes.remoteNode();
+        segment = pages.allocate(size, n);
+        // Touch all pages so that the reads do not measure page faults
+        segment.fill(0, size, (byte) 1);
+        System.err.println(segment);
+        Random r = new Random(0);
+        pageOffsets = new long[NUM_READS];
+        for(int i=0; i<NUM_READS; ++i)
+            pageOffsets[i] = (long) r.nextInt((int) (size / PAGE_SIZE)) * PAGE_SIZE;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        segment.free();
+    }
+
+    @Benchmark
+    public long randomPageRead() {
+        long sum = 0;
+        for(long offset : pageOffsets)
+            sum += segment.getLongUnchecked(offset);
+        return sum;
+    }
+}
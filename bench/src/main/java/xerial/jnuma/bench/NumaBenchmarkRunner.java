@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import xerial.jnuma.Numa;
+
+import java.io.File;
+
+/**
+ * Run the benchmarks for each thread count, and write the results in JSON format to track regressions between releases.
+ *
+ * <pre>
+ * NumaBenchmarkRunner [-o (output dir)] [-t (thread counts, comma separated)] [-s (buffer sizes, comma separated)] [benchmark regexp]
+ * </pre>
+ *
+ * @author Taro L. Saito
+ */
+public class NumaBenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        File outputDir = new File("target/jmh");
+        String[] threads = {"1", Integer.toString(Runtime.getRuntime().availableProcessors())};
+        String[] sizes = null;
+        String include = "xerial.jnuma.bench.*";
+        for(int i=0; i<args.length; ++i) {
+            String a = args[i];
+            if(a.equals("-o") && i + 1 < args.length)
+                outputDir = new File(args[++i]);
+            else if(a.equals("-t") && i + 1 < args.length)
+                threads = args[++i].split(",");
+            else if(a.equals("-s") && i + 1 < args.length)
+                sizes = args[++i].split(",");
+            else
+                include = a;
+        }
+        if(!outputDir.exists() && !outputDir.mkdirs())
+            throw new IllegalStateException("failed to create " + outputDir);
+
+        System.err.println(Numa.topology());
+        if(BenchmarkNodes.isSimulated())
+            System.err.println(String.format("single node: node %d is used as the remote node", BenchmarkNodes.localNode()));
+
+        for(String t : threads) {
+            int numThreads = Integer.parseInt(t.trim());
+            File result = new File(outputDir, String.format("jnuma-t%d.json", numThreads));
+            ChainedOptionsBuilder opt = new OptionsBuilder()
+                .include(include)
+                .threads(numThreads)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+            if(sizes != null)
+                opt = opt.param("size", sizes);
+            if(!DowncallBenchmark.isForeignAvailable())
+                opt = opt.param("backend", "jni");
+            new Runner(opt.build()).run();
+        }
+    }
+}
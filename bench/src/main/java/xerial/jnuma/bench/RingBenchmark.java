@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.NumaFanInQueue;
+import xerial.jnuma.NumaLongRing;
+import xerial.jnuma.NumaMpscRing;
+import xerial.jnuma.NumaSpscRing;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of passing values from a producer thread to a consumer thread. The queue is placed on the node of the consumer,
+ * and the producer runs on the same node or on the remote node. ArrayBlockingQueue is the baseline.
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RingBenchmark {
+
+    public enum QueueKind {
+        SPSC, MPSC, FAN_IN, ARRAY_BLOCKING_QUEUE
+    }
+
+    public enum Placement {
+        SAME_NODE, CROSS_NODE
+    }
+
+    @Param({"SPSC", "MPSC", "FAN_IN", "ARRAY_BLOCKING_QUEUE"})
+    public QueueKind queue;
+
+    @Param({"SAME_NODE", "CROSS_NODE"})
+    public Placement placement;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private NumaLongRing ring;
+    private NumaFanInQueue fanIn;
+    private ArrayBlockingQueue<Long> blockingQueue;
+
+    int consumerNode() {
+        return BenchmarkNodes.localNode();
+    }
+
+    int producerNode() {
+        return placement == Placement.SAME_NODE ? BenchmarkNodes.localNode() : BenchmarkNodes.remoteNode();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch(queue) {
+            case SPSC:
+                ring = NumaSpscRing.allocOnNode(capacity, consumerNode());
+                break;
+            case MPSC:
+                ring = NumaMpscRing.allocOnNode(capacity, consumerNode());
+                break;
+            case FAN_IN:
+                fanIn = new NumaFanInQueue(capacity, consumerNode());
+                break;
+            case ARRAY_BLOCKING_QUEUE:
+                blockingQueue = new ArrayBlockingQueue<Long>(capacity);
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(ring != null)
+            ring.free();
+        if(fanIn != null)
+            fanIn.free();
+    }
+
+    /**
+     * Counts the values actually transferred, since offer and poll fail when the queue is full or empty
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Producer {
+        public long offered;
+        long next;
+
+        @Setup(Level.Trial)
+        public void bind(RingBenchmark b) {
+            BenchmarkNodes.bindCurrentThread(b.producerNode());
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Consumer {
+        public long polled;
+
+        @Setup(Level.Trial)
+        public void bind(RingBenchmark b) {
+            BenchmarkNodes.bindCurrentThread(b.consumerNode());
+        }
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public void offer(Producer p) {
+        boolean added;
+        switch(queue) {
+            case FAN_IN:
+                added = fanIn.offer(p.next, producerNode());
+                break;
+            case ARRAY_BLOCKING_QUEUE:
+                added = blockingQueue.offer(p.next);
+                break;
+            default:
+                added = ring.offer(p.next);
+                break;
+        }
+        if(added) {
+            p.next++;
+            p.offered++;
+        }
+    }
+
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(1)
+    public long poll(Consumer c) {
+        long v;
+        switch(queue) {
+            case FAN_IN:
+                v = fanIn.poll(-1L);
+                break;
+            case ARRAY_BLOCKING_QUEUE:
+                Long boxed = blockingQueue.poll();
+                v = boxed == null ? -1L : boxed;
+                break;
+            default:
+                v = ring.poll(-1L);
+                break;
+        }
+        if(v >= 0)
+            c.polled++;
+        return v;
+    }
+}
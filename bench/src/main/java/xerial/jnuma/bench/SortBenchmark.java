@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma.bench;
+
+import org.openjdk.jmh.annotations.*;
+import xerial.jnuma.NumaLongArray;
+import xerial.jnuma.NumaSort;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare {@link NumaSort} on an interleaved off-heap array with {@link Arrays#parallelSort(long[])} on a heap array.
+ * The time includes copying the unsorted input to the array.
+ *
+ * @author Taro L. Saito
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortBenchmark {
+
+    @Param({"1000000", "100000000"})
+    public int length;
+
+    private long[] input;
+    private long[] heap;
+    private NumaLongArray numa;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        input = new long[length];
+        Random r = new Random(0);
+        for(int i=0; i<length; ++i)
+            input[i] = r.nextLong();
+        heap = new long[length];
+        numa = NumaLongArray.allocInterleaved(length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        numa.free();
+    }
+
+    @Benchmark
+    public long parallelSort() {
+        System.arraycopy(input, 0, heap, 0, length);
+        Arrays.parallelSort(heap);
+        return heap[length / 2];
+    }
+
+    @Benchmark
+    public long numaSort() {
+        numa.copyFrom(input, 0, 0, length);
+        NumaSort.shared().sort(numa);
+        return numa.get(length / 2);
+    }
+}
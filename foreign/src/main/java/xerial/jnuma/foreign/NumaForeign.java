@@ -0,0 +1,663 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma.foreign;
+
+import xerial.jnuma.NumaInterface;
+
+import java.io.IOException;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.lang.foreign.ValueLayout.*;
+
+/**
+ * NUMA API implemented with the Foreign Function and Memory API (Java 22 or later). libnuma and libc are called through downcall
+ * handles, so no JNI library is needed, and Java arrays are copied through a per-thread off-heap buffer instead of being pinned
+ * with GetPrimitiveArrayCritical.
+ *
+ * Select this implementation with -Dxerial.jnuma.backend=foreign. In addition to {@link NumaInterface}, this class allocates
+ * {@link MemorySegment}s whose lifetime is bound to an {@link Arena}.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaForeign implements NumaInterface {
+
+    private static final Linker linker = Linker.nativeLinker();
+    private static final SymbolLookup libnuma = SymbolLookup.libraryLookup("libnuma.so.1", Arena.global());
+    private static final SymbolLookup libc = linker.defaultLookup();
+
+    private static final StructLayout callState = Linker.Option.captureStateLayout();
+    private static final VarHandle errnoHandle = callState.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+
+    /**
+     * The byte size of cpu_set_t, which holds 1024 CPUs
+     */
+    private static final int CPU_SET_BYTES = 128;
+    private static final int NODE_MASK_WORDS = 16;
+    private static final int THREAD_STATE_WORDS = 2 + NODE_MASK_WORDS + CPU_SET_BYTES / 8;
+    private static final int PAGE_BATCH = 1024;
+
+    private static final int MPOL_DEFAULT = 0;
+    private static final int MPOL_LOCAL = 4;
+    private static final int MPOL_MF_MOVE = 1 << 1;
+
+    private static final int PROT_READ = 0x1;
+    private static final int PROT_WRITE = 0x2;
+    private static final int MAP_SHARED = 0x01;
+    private static final int MAP_PRIVATE = 0x02;
+    private static final int MAP_ANONYMOUS = 0x20;
+    private static final int MAP_HUGETLB = 0x40000;
+    private static final int MAP_HUGE_SHIFT = 26;
+    private static final int MADV_HUGEPAGE = 14;
+    private static final long MAP_FAILED = -1L;
+
+    private static MethodHandle numa(String name, FunctionDescriptor desc, Linker.Option... options) {
+        return linker.downcallHandle(libnuma.find(name).orElseThrow(() -> new UnsatisfiedLinkError(name)), desc, options);
+    }
+
+    private static MethodHandle c(String name, FunctionDescriptor desc, Linker.Option... options) {
+        return linker.downcallHandle(libc.find(name).orElseThrow(() -> new UnsatisfiedLinkError(name)), desc, options);
+    }
+
+    private static final Linker.Option errno = Linker.Option.captureCallState("errno");
+    // Short calls that never block can skip the thread state transition
+    private static final Linker.Option critical = Linker.Option.critical(false);
+
+    private static final MethodHandle numa_available = numa("numa_available", FunctionDescriptor.of(JAVA_INT), critical);
+    private static final MethodHandle numa_max_node = numa("numa_max_node", FunctionDescriptor.of(JAVA_INT), critical);
+    private static final MethodHandle numa_node_size = numa("numa_node_size", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS));
+    private static final MethodHandle numa_distance = numa("numa_distance", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), critical);
+    private static final MethodHandle numa_allocate_cpumask = numa("numa_allocate_cpumask", FunctionDescriptor.of(ADDRESS));
+    private static final MethodHandle numa_bitmask_free = numa("numa_bitmask_free", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle numa_node_to_cpus = numa("numa_node_to_cpus", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS), errno);
+    private static final MethodHandle numa_preferred = numa("numa_preferred", FunctionDescriptor.of(JAVA_INT));
+    private static final MethodHandle numa_set_localalloc = numa("numa_set_localalloc", FunctionDescriptor.ofVoid());
+    private static final MethodHandle numa_set_preferred = numa("numa_set_preferred", FunctionDescriptor.ofVoid(JAVA_INT));
+    private static final MethodHandle numa_run_on_node = numa("numa_run_on_node", FunctionDescriptor.of(JAVA_INT, JAVA_INT), errno);
+    private static final MethodHandle numa_tonode_memory = numa("numa_tonode_memory", FunctionDescriptor.ofVoid(ADDRESS, JAVA_LONG, JAVA_INT));
+    // Heap access pins the array only during the call
+    private static final MethodHandle numa_tonode_heap = numa("numa_tonode_memory", FunctionDescriptor.ofVoid(ADDRESS, JAVA_LONG, JAVA_INT), Linker.Option.critical(true));
+    private static final MethodHandle numa_interleave_memory = numa("numa_interleave_memory", FunctionDescriptor.ofVoid(ADDRESS, JAVA_LONG, ADDRESS));
+    private static final MethodHandle numa_pagesize = numa("numa_pagesize", FunctionDescriptor.of(JAVA_INT), critical);
+    private static final MethodHandle numa_alloc = numa("numa_alloc", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle numa_alloc_local = numa("numa_alloc_local", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle numa_alloc_onnode = numa("numa_alloc_onnode", FunctionDescriptor.of(ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle numa_alloc_interleaved = numa("numa_alloc_interleaved", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle numa_free = numa("numa_free", FunctionDescriptor.ofVoid(ADDRESS, JAVA_LONG));
+    private static final MethodHandle get_mempolicy = numa("get_mempolicy", FunctionDescriptor.of(JAVA_LONG, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, JAVA_INT), errno);
+    private static final MethodHandle set_mempolicy = numa("set_mempolicy", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), errno);
+    private static final MethodHandle mbind = numa("mbind", FunctionDescriptor.of(JAVA_LONG, ADDRESS, JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT), errno);
+    private static final MethodHandle move_pages = numa("move_pages", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, ADDRESS, ADDRESS, ADDRESS, JAVA_INT), errno);
+
+    private static final MethodHandle sched_getcpu = c("sched_getcpu", FunctionDescriptor.of(JAVA_INT), critical);
+    private static final MethodHandle sched_getaffinity = c("sched_getaffinity", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS), errno);
+    private static final MethodHandle sched_setaffinity = c("sched_setaffinity", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS), errno);
+    private static final MethodHandle mmap = c("mmap", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG));
+    private static final MethodHandle munmap = c("munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG));
+    private static final MethodHandle munmap_errno = c("munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG), errno);
+    private static final MethodHandle madvise = c("madvise", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle madvise_errno = c("madvise", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT), errno);
+    // open is variadic. The mode argument is passed through the variadic calling convention
+    private static final MethodHandle open = c("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), Linker.Option.firstVariadicArg(2));
+    private static final MethodHandle close = c("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+
+    private static final MemorySegment numa_all_nodes_ptr = libnuma.find("numa_all_nodes_ptr").orElseThrow().reinterpret(ADDRESS.byteSize());
+
+    /**
+     * Off-heap buffers of each thread for passing arrays and receiving errno
+     */
+    private static class Scratch {
+        final MemorySegment state = Arena.ofAuto().allocate(callState);
+        final MemorySegment buf = Arena.ofAuto().allocate(PAGE_BATCH * 16L, 8);
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static RuntimeException error(MemorySegment state) {
+        return new IllegalStateException(String.format("NUMA error occurred %d", (int) errnoHandle.get(state, 0L)));
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if(e instanceof RuntimeException)
+            return (RuntimeException) e;
+        if(e instanceof Error)
+            throw (Error) e;
+        return new IllegalStateException(e);
+    }
+
+    private static MemorySegment ptr(long address) {
+        return MemorySegment.ofAddress(address);
+    }
+
+    private static int unmap(MemorySegment address, long length) throws Throwable {
+        return (int) munmap.invokeExact(address, length);
+    }
+
+    /**
+     * @return true if the kernel backs the regions advised with MADV_HUGEPAGE by transparent huge pages.
+     * madvise succeeds even if transparent huge pages are disabled.
+     */
+    private static boolean thpEnabled() {
+        try {
+            String mode = Files.readString(Path.of("/sys/kernel/mm/transparent_hugepage/enabled"));
+            return mode.contains("[always]") || mode.contains("[madvise]");
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    public boolean isAvailable() {
+        try {
+            return (int) numa_available.invokeExact() != -1;
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int maxNode() {
+        try {
+            return (int) numa_max_node.invokeExact();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public long nodeSize(int node) {
+        try {
+            return (long) numa_node_size.invokeExact(node, MemorySegment.NULL);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public long freeSize(int node) {
+        MemorySegment free = scratch.get().buf;
+        try {
+            if((long) numa_node_size.invokeExact(node, free) < 0)
+                return 0;
+            return free.get(JAVA_LONG, 0);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int distance(int node1, int node2) {
+        try {
+            return (int) numa_distance.invokeExact(node1, node2);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void nodeToCpus(int node, long[] buffer) {
+        Scratch s = scratch.get();
+        try {
+            MemorySegment mask = ((MemorySegment) numa_allocate_cpumask.invokeExact()).reinterpret(16);
+            try {
+                if((int) numa_node_to_cpus.invokeExact(s.state, node, mask) != 0)
+                    throw error(s.state);
+                // struct bitmask { unsigned long size; unsigned long *maskp; }
+                long bits = mask.get(JAVA_LONG, 0);
+                MemorySegment words = mask.get(ADDRESS, 8).reinterpret((bits + 63) / 64 * 8);
+                int n = (int) Math.min(buffer.length, words.byteSize() / 8);
+                MemorySegment.copy(words, JAVA_LONG, 0, buffer, 0, n);
+            }
+            finally {
+                numa_bitmask_free.invokeExact(mask);
+            }
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void getAffinity(int pid, long[] cpuBitMask, int numCPUs) {
+        Scratch s = scratch.get();
+        MemorySegment set = s.buf.asSlice(0, CPU_SET_BYTES);
+        set.fill((byte) 0);
+        try {
+            if((int) sched_getaffinity.invokeExact(s.state, 0, (long) CPU_SET_BYTES, set) < 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+        int n = Math.min(cpuBitMask.length, Math.min((numCPUs + 63) / 64, CPU_SET_BYTES / 8));
+        for(int i=0; i<n; ++i)
+            cpuBitMask[i] |= set.getAtIndex(JAVA_LONG, i);
+    }
+
+    public void setAffinity(int pid, long[] cpuBitMask, int numCPUs) {
+        Scratch s = scratch.get();
+        MemorySegment set = toCpuSet(s, cpuBitMask, 0, numCPUs);
+        try {
+            if((int) sched_setaffinity.invokeExact(s.state, 0, (long) CPU_SET_BYTES, set) < 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MemorySegment toCpuSet(Scratch s, long[] cpuBitMask, int offset, int numCPUs) {
+        MemorySegment set = s.buf.asSlice(0, CPU_SET_BYTES);
+        set.fill((byte) 0);
+        int n = Math.min(cpuBitMask.length - offset, CPU_SET_BYTES / 8);
+        MemorySegment.copy(cpuBitMask, offset, set, JAVA_LONG, 0, n);
+        // Clear the bits beyond numCPUs
+        for(int i=numCPUs; i<n * 64; ++i) {
+            long w = set.getAtIndex(JAVA_LONG, i / 64);
+            set.setAtIndex(JAVA_LONG, i / 64, w & ~(1L << (i % 64)));
+        }
+        return set;
+    }
+
+    public int preferredNode() {
+        try {
+            return (int) numa_preferred.invokeExact();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int currentCpu() {
+        try {
+            int cpu = (int) sched_getcpu.invokeExact();
+            return cpu < 0 ? 0 : cpu;
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void setLocalAlloc() {
+        try {
+            numa_set_localalloc.invokeExact();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void setPreferred(int node) {
+        try {
+            numa_set_preferred.invokeExact(node);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void runOnNode(int node) {
+        Scratch s = scratch.get();
+        try {
+            if((int) numa_run_on_node.invokeExact(s.state, node) != 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void bindThread(long[] cpuMask, int mode, long[] nodeMask, long[] previous) {
+        Scratch s = scratch.get();
+        try {
+            if(previous != null) {
+                // Layout: {saved flag, policy mode, node mask, cpu mask}
+                MemorySegment modeOut = s.buf.asSlice(CPU_SET_BYTES, 8);
+                MemorySegment nodes = s.buf.asSlice(CPU_SET_BYTES + 8, NODE_MASK_WORDS * 8);
+                nodes.fill((byte) 0);
+                if((long) get_mempolicy.invokeExact(s.state, modeOut, nodes, (long) NODE_MASK_WORDS * 64, MemorySegment.NULL, 0) != 0)
+                    throw error(s.state);
+                MemorySegment set = s.buf.asSlice(0, CPU_SET_BYTES);
+                set.fill((byte) 0);
+                if((int) sched_getaffinity.invokeExact(s.state, 0, (long) CPU_SET_BYTES, set) < 0)
+                    throw error(s.state);
+                previous[0] = 1;
+                previous[1] = modeOut.get(JAVA_INT, 0);
+                MemorySegment.copy(nodes, JAVA_LONG, 0, previous, 2, NODE_MASK_WORDS);
+                MemorySegment.copy(set, JAVA_LONG, 0, previous, 2 + NODE_MASK_WORDS, CPU_SET_BYTES / 8);
+            }
+            MemorySegment set = toCpuSet(s, cpuMask, 0, CPU_SET_BYTES * 8);
+            if((int) sched_setaffinity.invokeExact(s.state, 0, (long) CPU_SET_BYTES, set) < 0)
+                throw error(s.state);
+            setPolicy(s, mode, nodeMask, 0, nodeMask.length);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static void setPolicy(Scratch s, int mode, long[] nodeMask, int offset, int length) throws Throwable {
+        MemorySegment nodes = s.buf.asSlice(CPU_SET_BYTES, NODE_MASK_WORDS * 8);
+        nodes.fill((byte) 0);
+        int n = Math.min(length, NODE_MASK_WORDS);
+        MemorySegment.copy(nodeMask, offset, nodes, JAVA_LONG, 0, n);
+        if((long) set_mempolicy.invokeExact(s.state, mode, n > 0 ? nodes : MemorySegment.NULL, n > 0 ? (long) NODE_MASK_WORDS * 64 + 1 : 0L) != 0)
+            throw error(s.state);
+    }
+
+    public void restoreThread(long[] previous) {
+        if(previous[0] == 0)
+            return;
+        Scratch s = scratch.get();
+        try {
+            MemorySegment set = toCpuSet(s, previous, 2 + NODE_MASK_WORDS, CPU_SET_BYTES * 8);
+            if((int) sched_setaffinity.invokeExact(s.state, 0, (long) CPU_SET_BYTES, set) < 0)
+                throw error(s.state);
+            int mode = (int) previous[1];
+            setPolicy(s, mode, previous, 2, (mode == MPOL_DEFAULT || mode == MPOL_LOCAL) ? 0 : NODE_MASK_WORDS);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MemorySegment heapSegment(Object array) {
+        if(array instanceof byte[])
+            return MemorySegment.ofArray((byte[]) array);
+        if(array instanceof short[])
+            return MemorySegment.ofArray((short[]) array);
+        if(array instanceof char[])
+            return MemorySegment.ofArray((char[]) array);
+        if(array instanceof int[])
+            return MemorySegment.ofArray((int[]) array);
+        if(array instanceof long[])
+            return MemorySegment.ofArray((long[]) array);
+        if(array instanceof float[])
+            return MemorySegment.ofArray((float[]) array);
+        if(array instanceof double[])
+            return MemorySegment.ofArray((double[]) array);
+        throw new IllegalArgumentException("not a primitive array: " + array);
+    }
+
+    public void toNodeMemory(Object array, int length, int node) {
+        // As with the JNI implementation, GC may move the array later, so this is only a hint
+        try {
+            numa_tonode_heap.invokeExact(heapSegment(array), (long) length, node);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int pageSize() {
+        try {
+            return (int) numa_pagesize.invokeExact();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private void pageStatus(long address, int node, int[] status) {
+        Scratch s = scratch.get();
+        long pageSize = pageSize();
+        MemorySegment pages = s.buf.asSlice(0, PAGE_BATCH * 8L);
+        MemorySegment nodes = s.buf.asSlice(PAGE_BATCH * 8L, PAGE_BATCH * 4L);
+        MemorySegment st = s.buf.asSlice(PAGE_BATCH * 12L, PAGE_BATCH * 4L);
+        try {
+            for(int i=0; i<status.length; i += PAGE_BATCH) {
+                int n = Math.min(PAGE_BATCH, status.length - i);
+                for(int j=0; j<n; ++j) {
+                    pages.setAtIndex(JAVA_LONG, j, address + (long) (i + j) * pageSize);
+                    nodes.setAtIndex(JAVA_INT, j, node);
+                }
+                long ret = (long) move_pages.invokeExact(s.state, 0, (long) n, pages, node < 0 ? MemorySegment.NULL : nodes, st, node < 0 ? 0 : MPOL_MF_MOVE);
+                if(ret < 0)
+                    throw error(s.state);
+                MemorySegment.copy(st, JAVA_INT, 0, status, i, n);
+            }
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void getPageNodes(long address, int[] status) {
+        pageStatus(address, -1, status);
+    }
+
+    public void movePages(long address, int node, int[] status) {
+        pageStatus(address, node, status);
+    }
+
+    public void mbind(long address, long length, int mode, long[] nodeMask, int flags) {
+        Scratch s = scratch.get();
+        int n = Math.min(nodeMask.length, PAGE_BATCH);
+        MemorySegment mask = s.buf.asSlice(0, Math.max(n, 1) * 8L);
+        MemorySegment.copy(nodeMask, 0, mask, JAVA_LONG, 0, n);
+        try {
+            if((long) mbind.invokeExact(s.state, ptr(address), length, mode, n > 0 ? mask : MemorySegment.NULL, (long) n * 64 + 1, flags) != 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static long address(MethodHandle alloc, long capacity) {
+        try {
+            return ((MemorySegment) alloc.invokeExact(capacity)).address();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public ByteBuffer alloc(int capacity) {
+        return buffer(allocMemory(capacity), capacity);
+    }
+
+    public ByteBuffer allocLocal(int capacity) {
+        return buffer(allocMemoryLocal(capacity), capacity);
+    }
+
+    public ByteBuffer allocOnNode(int capacity, int node) {
+        return buffer(allocMemoryOnNode(capacity, node), capacity);
+    }
+
+    public ByteBuffer allocInterleaved(int capacity) {
+        return buffer(allocMemoryInterleaved(capacity), capacity);
+    }
+
+    public long allocMemory(long capacity) {
+        return address(numa_alloc, capacity);
+    }
+
+    public long allocMemoryLocal(long capacity) {
+        return address(numa_alloc_local, capacity);
+    }
+
+    public long allocMemoryOnNode(long capacity, int node) {
+        try {
+            return ((MemorySegment) numa_alloc_onnode.invokeExact(capacity, node)).address();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public long allocMemoryInterleaved(long capacity) {
+        return address(numa_alloc_interleaved, capacity);
+    }
+
+    public long allocHugePages(long capacity, int node, long hugePageSize, int[] backing) {
+        try {
+            int flags = MAP_PRIVATE | MAP_ANONYMOUS;
+            int hugeFlags = flags | MAP_HUGETLB | (Long.numberOfTrailingZeros(hugePageSize) << MAP_HUGE_SHIFT);
+            MemorySegment mem = (MemorySegment) mmap.invokeExact(MemorySegment.NULL, capacity, PROT_READ | PROT_WRITE, hugeFlags, -1, 0L);
+            if(mem.address() != MAP_FAILED) {
+                backing[0] = (int) hugePageSize;
+                backing[1] = 2;
+            }
+            else {
+                // Fall back to transparent huge pages. Map an extra huge page to align the start address
+                MemorySegment raw = (MemorySegment) mmap.invokeExact(MemorySegment.NULL, capacity + hugePageSize, PROT_READ | PROT_WRITE, flags, -1, 0L);
+                if(raw.address() == MAP_FAILED)
+                    return 0;
+                long start = (raw.address() + hugePageSize - 1) & ~(hugePageSize - 1);
+                long head = start - raw.address();
+                if((head > 0 && unmap(raw, head) != 0) || unmap(ptr(start + capacity), hugePageSize - head) != 0) {
+                    // Release the pages that are still mapped
+                    unmap(raw, capacity + hugePageSize);
+                    return 0;
+                }
+                mem = ptr(start);
+                if((int) madvise.invokeExact(mem, capacity, MADV_HUGEPAGE) == 0 && thpEnabled()) {
+                    backing[0] = (int) hugePageSize;
+                    backing[1] = 1;
+                }
+                else {
+                    backing[0] = pageSize();
+                    backing[1] = 0;
+                }
+            }
+            // Pages are not touched yet, so the policy applies to all of the pages
+            if(node >= 0)
+                numa_tonode_memory.invokeExact(mem, capacity, node);
+            else
+                numa_interleave_memory.invokeExact(mem, capacity, numa_all_nodes_ptr.get(ADDRESS, 0));
+            return mem.address();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private ByteBuffer buffer(long address, int capacity) {
+        return address == 0 ? null : directBuffer(address, capacity);
+    }
+
+    public ByteBuffer directBuffer(long address, int capacity) {
+        return ptr(address).reinterpret(capacity).asByteBuffer();
+    }
+
+    public void free(long address, long capacity) {
+        if(address == 0)
+            return;
+        try {
+            numa_free.invokeExact(ptr(address), capacity);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void free(ByteBuffer buf) {
+        MemorySegment segment = MemorySegment.ofBuffer(buf);
+        free(segment.address(), buf.capacity());
+    }
+
+    public long mapFile(String path, long offset, long length) {
+        try(Arena arena = Arena.ofConfined()) {
+            int fd = (int) open.invokeExact(arena.allocateFrom(path), 0, 0);
+            if(fd < 0)
+                return 0;
+            MemorySegment mem = (MemorySegment) mmap.invokeExact(MemorySegment.NULL, length, PROT_READ, MAP_SHARED, fd, offset);
+            // The mapping keeps a reference to the file
+            if((int) close.invokeExact(fd) != 0) {
+                if(mem.address() != MAP_FAILED)
+                    unmap(mem, length);
+                return 0;
+            }
+            return mem.address() == MAP_FAILED ? 0 : mem.address();
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void unmapFile(long address, long length) {
+        if(address == 0)
+            return;
+        try {
+            Scratch s = scratch.get();
+            if((int) munmap_errno.invokeExact(s.state, ptr(address), length) != 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public void madvise(long address, long length, int advice) {
+        Scratch s = scratch.get();
+        try {
+            if((int) madvise_errno.invokeExact(s.state, ptr(address), length, advice) != 0)
+                throw error(s.state);
+        }
+        catch(Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MemorySegment segment(long address, long size, Arena arena) {
+        if(address == 0)
+            throw new OutOfMemoryError(String.format("failed to allocate %,d bytes", size));
+        return ptr(address).reinterpret(size, arena, s -> {
+            try {
+                numa_free.invokeExact(s, size);
+            }
+            catch(Throwable e) {
+                throw rethrow(e);
+            }
+        });
+    }
+
+    /**
+     * Allocate a memory segment on the specified node. The memory is released when the arena is closed.
+     * @param size byte size
+     * @param node numa node
+     * @param arena arena that controls the lifetime of the segment
+     * @return memory segment
+     */
+    public MemorySegment allocateOnNode(long size, int node, Arena arena) {
+        return segment(allocMemoryOnNode(size, node), size, arena);
+    }
+
+    /**
+     * Allocate a memory segment on the local node. The memory is released when the arena is closed.
+     * @param size byte size
+     * @param arena arena that controls the lifetime of the segment
+     * @return memory segment
+     */
+    public MemorySegment allocateLocal(long size, Arena arena) {
+        return segment(allocMemoryLocal(size), size, arena);
+    }
+
+    /**
+     * Allocate a memory segment interleaved on all nodes. The memory is released when the arena is closed.
+     * @param size byte size
+     * @param arena arena that controls the lifetime of the segment
+     * @return memory segment
+     */
+    public MemorySegment allocateInterleaved(long size, Arena arena) {
+        return segment(allocMemoryInterleaved(size), size, arena);
+    }
+}
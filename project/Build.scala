@@ -23,8 +23,11 @@ object Build extends sbt.Build {
   }
 
   val SCALA_VERSION = "2.9.2"
+  val JMH_VERSION = "1.37"
 
-  lazy val defaultJavacOptions = Seq("-encoding", "UTF-8", "-source", "1.6")
+  private def jdk22Home: Option[File] = sys.env.get("JAVA22_HOME").map(file(_))
+
+  lazy val defaultJavacOptions = Seq("-encoding", "UTF-8", "-source", "1.7")
   lazy val defaultScalacOptions = Seq("-encoding", "UTF-8", "-deprecation", "-unchecked", "-target:jvm-1.6")
 
   lazy val root = Project(
@@ -48,8 +51,8 @@ object Build extends sbt.Build {
           "org.xerial" % "xerial-core" % "3.0" % "test",
           "org.scalatest" %% "scalatest" % "1.8" % "test"
         ),
-        javacOptions in Compile := defaultJavacOptions ++ Seq("-target", "1.6"),
-        javacOptions in Compile in doc := defaultJavacOptions ++ Seq("-windowtitle", "xerial.jnuma API", "-linkoffline", "http://docs.oracle.com/javase/6/docs/api/", "http://docs.oracle.com/javase/6/docs/api/"),
+        javacOptions in Compile := defaultJavacOptions ++ Seq("-target", "1.7"),
+        javacOptions in Compile in doc := defaultJavacOptions ++ Seq("-windowtitle", "xerial.jnuma API", "-linkoffline", "http://docs.oracle.com/javase/7/docs/api/", "http://docs.oracle.com/javase/7/docs/api/"),
 //        scalacOptions in Compile := defaultScalacOptions,
 //        scalacOptions in doc <++= (baseDirectory in LocalProject("jnuma"), version) map { (bd, v) =>
 //          val tree = if(v.endsWith("-SNAPSHOT")) "develop" else "master"
@@ -88,4 +91,57 @@ object Build extends sbt.Build {
 
       )
   )
+
+  /**
+   * JMH benchmarks. Run with `bin/sbt "jnuma-bench/run [options]"`. See xerial.jnuma.bench.NumaBenchmarkRunner for the options.
+   */
+  lazy val bench = Project(
+    id = "jnuma-bench",
+    base = file("bench"),
+    settings = Defaults.defaultSettings ++
+      Seq(
+        description := "JMH benchmarks of jnuma",
+        scalaVersion := SCALA_VERSION,
+        crossPaths := false,
+        autoScalaLibrary := false,
+        publishArtifact := false,
+        libraryDependencies ++= Seq(
+          "org.openjdk.jmh" % "jmh-core" % JMH_VERSION,
+          "org.openjdk.jmh" % "jmh-generator-annprocess" % JMH_VERSION
+        ),
+        // JMH requires Java 8 or later
+        javacOptions in Compile := Seq("-encoding", "UTF-8", "-source", "1.8", "-target", "1.8"),
+        mainClass in (Compile, run) := Some("xerial.jnuma.bench.NumaBenchmarkRunner"),
+        fork in run := true,
+        // DowncallBenchmark measures the FFM backend if jnuma-foreign/package has been run
+        unmanagedJars in Runtime <++= (artifactPath in (foreign, Compile, packageBin)) map { jar =>
+          if(jar.exists) Seq(Attributed.blank(jar)) else Seq.empty
+        },
+        javaHome in run := jdk22Home
+      )
+  ) dependsOn(root)
+
+  /**
+   * NUMA implementation using the Foreign Function and Memory API. Requires JDK 22 or later to build and run.
+   * Select it at runtime with -Dxerial.jnuma.backend=foreign.
+   */
+  lazy val foreign = Project(
+    id = "jnuma-foreign",
+    base = file("foreign"),
+    settings = Defaults.defaultSettings ++
+      Seq(
+        organization := "org.xerial",
+        description := "Foreign Function and Memory API backend of jnuma",
+        scalaVersion := SCALA_VERSION,
+        crossPaths := false,
+        autoScalaLibrary := false,
+        publishMavenStyle := true,
+        publishTo <<= version { (v) => releaseResolver(v) },
+        // sbt itself runs on an older JDK, so javac and java of JDK 22 are forked from JAVA22_HOME
+        javaHome := jdk22Home,
+        javacOptions in Compile := Seq("-encoding", "UTF-8", "--release", "22"),
+        fork in run := true,
+        javaOptions in run += "--enable-native-access=ALL-UNNAMED"
+      )
+  ) dependsOn(root)
 }
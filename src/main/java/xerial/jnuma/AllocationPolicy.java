@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * What to do when the memory requested on a node cannot be allocated there. A node cannot be used if the allocation fails,
+ * or if the free memory of the node after the allocation falls below the watermark given by {@link Numa#setAllocationPolicy(AllocationPolicy, long)}.
+ *
+ * @author Taro L. Saito
+ */
+public enum AllocationPolicy {
+    /** Allocate only on the requested node, and throw {@link NumaAllocationException} if the node cannot be used */
+    STRICT,
+    /** Fall back to the nearest node in terms of {@link Numa#distance(int, int)} that can be used */
+    NEAREST,
+    /** Fall back to interleaving the memory on all nodes */
+    INTERLEAVE;
+
+    /**
+     * Parse the policy name given by a system property
+     * @param name policy name (case insensitive)
+     * @param defaultPolicy the policy to return if the name is null or unknown
+     */
+    static AllocationPolicy parse(String name, AllocationPolicy defaultPolicy) {
+        if(name != null) {
+            for(AllocationPolicy p : values())
+                if(p.name().equalsIgnoreCase(name.trim()))
+                    return p;
+        }
+        return defaultPolicy;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * A shard of {@link NumaLongBytesMap}. Values are appended to a data segment as {length (int), bytes}, and the index maps a key
+ * to the offset of its value. Overwritten and removed values are left as garbage until the data segment becomes full, when the live values
+ * are compacted into a new segment.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Taro L. Saito
+ */
+final class BytesHashShard implements NumaResident {
+
+    private static final long MIN_DATA_BYTES = 4096;
+
+    private final LongHashTable index;
+    private NumaMemorySegment data;
+    private long dataEnd;
+    private long garbage;
+
+    BytesHashShard(long expectedSize, long expectedBytes, int node) {
+        this.index = new LongHashTable(expectedSize, node);
+        try {
+            this.data = NumaMemorySegment.allocOnNode(Math.max(MIN_DATA_BYTES, expectedBytes + expectedSize * 4), node);
+        }
+        catch(RuntimeException e) {
+            index.free();
+            throw e;
+        }
+    }
+
+    private BytesHashShard(LongHashTable index, NumaMemorySegment data, long dataEnd) {
+        this.index = index;
+        this.data = data;
+        this.dataEnd = dataEnd;
+    }
+
+    /**
+     * Records are aligned to 4 bytes so that the length can be read as an int
+     */
+    private static long recordSize(int length) {
+        return (4L + length + 3) & ~3L;
+    }
+
+    int valueLength(long key, long hash) {
+        long offset = index.get(key, hash, -1);
+        return offset < 0 ? -1 : data.getIntUnchecked(offset);
+    }
+
+    int get(long key, long hash, byte[] dest, int destOffset) {
+        long offset = index.get(key, hash, -1);
+        if(offset < 0)
+            return -1;
+        int length = data.getIntUnchecked(offset);
+        data.copyTo(offset + 4, dest, destOffset, length);
+        return length;
+    }
+
+    byte[] get(long key, long hash) {
+        long offset = index.get(key, hash, -1);
+        if(offset < 0)
+            return null;
+        byte[] value = new byte[data.getIntUnchecked(offset)];
+        data.copyTo(offset + 4, value, 0, value.length);
+        return value;
+    }
+
+    boolean containsKey(long key, long hash) {
+        return index.containsKey(key, hash);
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    boolean put(long key, long hash, byte[] src, int srcOffset, int length) {
+        NumaArray.checkArrayRange(src.length, srcOffset, length);
+        long size = recordSize(length);
+        if(dataEnd + size > data.size())
+            compact(size);
+        data.putIntUnchecked(dataEnd, length);
+        data.copyFrom(src, srcOffset, dataEnd + 4, length);
+        long prev = index.put(key, hash, dataEnd, -1);
+        dataEnd += size;
+        if(prev >= 0)
+            garbage += recordSize(data.getIntUnchecked(prev));
+        return prev >= 0;
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    boolean remove(long key, long hash) {
+        long prev = index.remove(key, hash, -1);
+        if(prev < 0)
+            return false;
+        garbage += recordSize(data.getIntUnchecked(prev));
+        return true;
+    }
+
+    /**
+     * Move the live values to a new data segment that has room for the given bytes
+     */
+    private void compact(long room) {
+        long live = dataEnd - garbage;
+        long capacity = Math.max(data.size(), 2 * (live + room));
+        NumaMemorySegment old = data;
+        NumaMemorySegment next = NumaMemorySegment.allocOnNode(capacity, old.node() >= 0 ? old.node() : index.node());
+        long end = 0;
+        for(long i=0; i<index.capacity(); ++i) {
+            if(index.keyAt(i) != 0) {
+                long offset = index.valueAt(i);
+                index.setValueAt(i, end);
+                end = move(old, offset, next, end);
+            }
+        }
+        if(index.hasZeroKey()) {
+            long offset = index.zeroValue();
+            index.setZeroValue(end);
+            end = move(old, offset, next, end);
+        }
+        this.data = next;
+        this.dataEnd = end;
+        this.garbage = 0;
+        old.free();
+    }
+
+    /**
+     * Copy the record at the offset to the end of the destination
+     * @return the new end of the destination
+     */
+    private static long move(NumaMemorySegment from, long offset, NumaMemorySegment to, long end) {
+        long size = recordSize(from.getIntUnchecked(offset));
+        from.copyTo(offset, to, end, size);
+        return end + size;
+    }
+
+    long size() {
+        return index.size();
+    }
+
+    /**
+     * @return the bytes of the index and the data segment
+     */
+    long byteSize() {
+        return index.byteSize() + data.size();
+    }
+
+    public int node() {
+        return index.node();
+    }
+
+    BytesHashShard copyTo(int node) {
+        LongHashTable i = index.copyTo(node);
+        try {
+            NumaMemorySegment d = NumaMemorySegment.allocOnNode(Math.max(dataEnd, 8), node);
+            data.copyTo(0, d, 0, dataEnd);
+            return new BytesHashShard(i, d, dataEnd);
+        }
+        catch(RuntimeException e) {
+            i.free();
+            throw e;
+        }
+    }
+
+    void free() {
+        index.free();
+        data.free();
+    }
+}
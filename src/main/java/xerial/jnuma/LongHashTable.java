@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * An open-addressing hash table of long keys and long values in a {@link NumaMemorySegment}. Collisions are resolved by linear probing,
+ * and removal shifts the following entries back instead of leaving tombstones. Key 0 marks an empty slot, so the entry of key 0 is
+ * held in fields. The number of slots is a long, so a table can be larger than 2GB.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Taro L. Saito
+ */
+final class LongHashTable implements NumaResident {
+
+    /**
+     * A slot is {key, value}
+     */
+    static final int SLOT_BYTES = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75;
+
+    private NumaMemorySegment segment;
+    private long address;
+    private long capacity;
+    private long mask;
+    private long size;
+    private long threshold;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * @param expectedSize the number of entries to hold without resizing
+     * @param node numa node
+     */
+    LongHashTable(long expectedSize, int node) {
+        allocate(tableCapacity(expectedSize), node);
+    }
+
+    private LongHashTable() {
+    }
+
+    static long tableCapacity(long expectedSize) {
+        long c = Math.max(MIN_CAPACITY, (long) Math.ceil(Math.max(0, expectedSize) / LOAD_FACTOR));
+        return Long.bitCount(c) == 1 ? c : Long.highestOneBit(c) << 1;
+    }
+
+    private void allocate(long capacity, int node) {
+        NumaMemorySegment s = NumaMemorySegment.allocOnNode(capacity * SLOT_BYTES, node);
+        s.fill(0, s.size(), (byte) 0);
+        this.segment = s;
+        this.address = s.address();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = (long) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads the bits of sequential keys
+     */
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private long slot(long index) {
+        return address + index * SLOT_BYTES;
+    }
+
+    /**
+     * @return the slot index of the key, or -1 if the key is not found
+     */
+    private long find(long key, long hash) {
+        for(long i = hash & mask; ; i = (i + 1) & mask) {
+            long k = unsafe.getLong(slot(i));
+            if(k == key)
+                return i;
+            if(k == 0)
+                return -1;
+        }
+    }
+
+    long get(long key, long hash, long ifAbsent) {
+        if(key == 0)
+            return hasZeroKey ? zeroValue : ifAbsent;
+        long i = find(key, hash);
+        return i < 0 ? ifAbsent : unsafe.getLong(slot(i) + 8);
+    }
+
+    boolean containsKey(long key, long hash) {
+        return key == 0 ? hasZeroKey : find(key, hash) >= 0;
+    }
+
+    /**
+     * @return the previous value, or ifAbsent if the key was not present
+     */
+    long put(long key, long hash, long value, long ifAbsent) {
+        if(key == 0) {
+            long prev = hasZeroKey ? zeroValue : ifAbsent;
+            if(!hasZeroKey)
+                size++;
+            hasZeroKey = true;
+            zeroValue = value;
+            return prev;
+        }
+        for(long i = hash & mask; ; i = (i + 1) & mask) {
+            long s = slot(i);
+            long k = unsafe.getLong(s);
+            if(k == key) {
+                long prev = unsafe.getLong(s + 8);
+                unsafe.putLong(s + 8, value);
+                return prev;
+            }
+            if(k == 0) {
+                unsafe.putLong(s, key);
+                unsafe.putLong(s + 8, value);
+                if(++size > threshold)
+                    resize(capacity << 1);
+                return ifAbsent;
+            }
+        }
+    }
+
+    /**
+     * @return the removed value, or ifAbsent if the key was not present
+     */
+    long remove(long key, long hash, long ifAbsent) {
+        if(key == 0) {
+            if(!hasZeroKey)
+                return ifAbsent;
+            hasZeroKey = false;
+            size--;
+            return zeroValue;
+        }
+        long i = find(key, hash);
+        if(i < 0)
+            return ifAbsent;
+        long prev = unsafe.getLong(slot(i) + 8);
+        // Shift back the following entries that were displaced over the removed slot
+        long hole = i;
+        for(long j = (i + 1) & mask; ; j = (j + 1) & mask) {
+            long k = unsafe.getLong(slot(j));
+            if(k == 0)
+                break;
+            long home = hash(k) & mask;
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                unsafe.putLong(slot(hole), k);
+                unsafe.putLong(slot(hole) + 8, unsafe.getLong(slot(j) + 8));
+                hole = j;
+            }
+        }
+        unsafe.putLong(slot(hole), 0L);
+        unsafe.putLong(slot(hole) + 8, 0L);
+        size--;
+        return prev;
+    }
+
+    private void resize(long newCapacity) {
+        NumaMemorySegment old = segment;
+        long oldAddress = address;
+        long oldCapacity = capacity;
+        allocate(newCapacity, old.node() >= 0 ? old.node() : Numa.currentNode());
+        for(long i=0; i<oldCapacity; ++i) {
+            long s = oldAddress + i * SLOT_BYTES;
+            long k = unsafe.getLong(s);
+            if(k == 0)
+                continue;
+            long j = hash(k) & mask;
+            while(unsafe.getLong(slot(j)) != 0)
+                j = (j + 1) & mask;
+            unsafe.putLong(slot(j), k);
+            unsafe.putLong(slot(j) + 8, unsafe.getLong(s + 8));
+        }
+        old.free();
+    }
+
+    /**
+     * @return the number of slots. Use with {@link #keyAt(long)} and {@link #valueAt(long)} to visit the entries.
+     */
+    long capacity() {
+        return capacity;
+    }
+
+    long keyAt(long index) {
+        return unsafe.getLong(slot(index));
+    }
+
+    long valueAt(long index) {
+        return unsafe.getLong(slot(index) + 8);
+    }
+
+    void setValueAt(long index, long value) {
+        unsafe.putLong(slot(index) + 8, value);
+    }
+
+    boolean hasZeroKey() {
+        return hasZeroKey;
+    }
+
+    long zeroValue() {
+        return zeroValue;
+    }
+
+    void setZeroValue(long value) {
+        zeroValue = value;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the bytes of the slots
+     */
+    long byteSize() {
+        return segment.size();
+    }
+
+    public int node() {
+        return segment.node();
+    }
+
+    /**
+     * Copy this table to the memory of the node
+     */
+    LongHashTable copyTo(int node) {
+        LongHashTable t = new LongHashTable();
+        NumaMemorySegment s = NumaMemorySegment.allocOnNode(segment.size(), node);
+        segment.copyTo(0, s, 0, segment.size());
+        t.segment = s;
+        t.address = s.address();
+        t.capacity = capacity;
+        t.mask = mask;
+        t.size = size;
+        t.threshold = threshold;
+        t.hasZeroKey = hasZeroKey;
+        t.zeroValue = zeroValue;
+        return t;
+    }
+
+    void free() {
+        segment.free();
+    }
+}
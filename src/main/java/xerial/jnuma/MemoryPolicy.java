@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+/**
+ * NUMA memory policy modes of mbind(2) and set_mempolicy(2)
+ *
+ * @author Taro L. Saito
+ */
+public enum MemoryPolicy {
+    /** Use the default policy of the thread */
+    DEFAULT(0),
+    /** Allocate on the preferred node, and fall back to the other nodes */
+    PREFERRED(1),
+    /** Allocate only on the nodes in the node mask */
+    BIND(2),
+    /** Interleave pages over the nodes in the node mask */
+    INTERLEAVE(3),
+    /** Allocate on the node of the CPU that touches the page first */
+    LOCAL(4);
+
+    /**
+     * The mode value of the Linux API
+     */
+    public final int mode;
+
+    private MemoryPolicy(int mode) {
+        this.mode = mode;
+    }
+
+    static MemoryPolicy valueOf(int mode) {
+        for(MemoryPolicy p : values())
+            if(p.mode == mode)
+                return p;
+        throw new IllegalArgumentException("unknown memory policy mode: " + mode);
+    }
+}
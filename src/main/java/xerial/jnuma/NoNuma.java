@@ -16,8 +16,15 @@
 
 package xerial.jnuma;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A stub when accessing numa API is not supported in the system
@@ -25,17 +32,15 @@ import java.nio.ByteBuffer;
  */
 public class NoNuma implements NumaInterface {
 
-    private sun.misc.Unsafe unsafe;
+    private sun.misc.Unsafe unsafe = UnsafeAccess.unsafe;
+    private Constructor<?> directBufferConstructor;
+    private boolean directBufferConstructorResolved = false;
+    /**
+     * Mapped files are held until they are unmapped, since the GC unmaps unreachable buffers
+     */
+    private final Map<Long, MappedByteBuffer> mappedFiles = new ConcurrentHashMap<Long, MappedByteBuffer>();
 
     NoNuma() {
-        try {
-            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
-            f.setAccessible(true);
-            unsafe = (sun.misc.Unsafe) f.get(null);
-        }
-        catch(Exception e) {
-            e.printStackTrace();
-        }
     }
 
 
@@ -82,6 +87,11 @@ public class NoNuma implements NumaInterface {
         return 0;
     }
 
+    @Override
+    public int currentCpu() {
+        return 0;
+    }
+
     @Override
     public void setLocalAlloc() {
         // do nothing
@@ -97,11 +107,42 @@ public class NoNuma implements NumaInterface {
         // do nothing
     }
 
+    @Override
+    public void bindThread(long[] cpuMask, int mode, long[] nodeMask, long[] previous) {
+        // do nothing
+    }
+
+    @Override
+    public void restoreThread(long[] previous) {
+        // do nothing
+    }
+
     @Override
     public void toNodeMemory(Object array, int length, int node) {
         // do nothing
     }
 
+    @Override
+    public int pageSize() {
+        return unsafe.pageSize();
+    }
+
+    @Override
+    public void getPageNodes(long address, int[] status) {
+        // All pages are in node 0
+        Arrays.fill(status, 0);
+    }
+
+    @Override
+    public void movePages(long address, int node, int[] status) {
+        Arrays.fill(status, 0);
+    }
+
+    @Override
+    public void mbind(long address, long length, int mode, long[] nodeMask, int flags) {
+        // do nothing
+    }
+
     @Override
     public ByteBuffer alloc(int capacity) {
         return ByteBuffer.allocate(capacity);
@@ -123,7 +164,68 @@ public class NoNuma implements NumaInterface {
 
     @Override
     public long allocMemory(long capacity) {
-        return unsafe.allocateMemory(capacity);
+        try {
+            return unsafe.allocateMemory(capacity);
+        }
+        catch(OutOfMemoryError e) {
+            // Report the failure in the same manner with the native code
+            return 0;
+        }
+    }
+
+    @Override
+    public long allocMemoryLocal(long capacity) {
+        return allocMemory(capacity);
+    }
+
+    @Override
+    public long allocMemoryOnNode(long capacity, int node) {
+        return allocMemory(capacity);
+    }
+
+    @Override
+    public long allocMemoryInterleaved(long capacity) {
+        return allocMemory(capacity);
+    }
+
+    @Override
+    public long allocHugePages(long capacity, int node, long hugePageSize, int[] backing) {
+        backing[0] = unsafe.pageSize();
+        backing[1] = 0;
+        return allocMemory(capacity);
+    }
+
+    /**
+     * Uses the private constructor of DirectByteBuffer if it is accessible, i.e., before JDK 16 or with
+     * --add-opens java.base/java.nio=ALL-UNNAMED. Otherwise, sets the address and capacity of a duplicated direct buffer.
+     */
+    @Override
+    public ByteBuffer directBuffer(long address, int capacity) {
+        Constructor<?> c = directBufferConstructor();
+        if(c != null) {
+            try {
+                return (ByteBuffer) c.newInstance(address, capacity);
+            }
+            catch(Exception e) {
+                // Fall back to the duplicated buffer
+            }
+        }
+        return UnsafeAccess.wrapAddress(address, capacity);
+    }
+
+    private synchronized Constructor<?> directBufferConstructor() {
+        if(!directBufferConstructorResolved) {
+            directBufferConstructorResolved = true;
+            try {
+                Constructor<?> c = Class.forName("java.nio.DirectByteBuffer").getDeclaredConstructor(long.class, int.class);
+                c.setAccessible(true);
+                directBufferConstructor = c;
+            }
+            catch(Exception e) {
+                // JDK 21 or later has (long, long), and JDK 16 or later does not allow the access without --add-opens
+            }
+        }
+        return directBufferConstructor;
     }
 
     @Override
@@ -136,4 +238,36 @@ public class NoNuma implements NumaInterface {
         // Simply clear the buffer and let the GC collect the freed memory
         buf.clear();
     }
+
+    @Override
+    public long mapFile(String path, long offset, long length) {
+        // FileChannel can map up to 2GB at once
+        if(length > Integer.MAX_VALUE)
+            return 0;
+        try {
+            RandomAccessFile f = new RandomAccessFile(path, "r");
+            try {
+                MappedByteBuffer buf = f.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+                long address = UnsafeAccess.addressOf(buf);
+                mappedFiles.put(address, buf);
+                return address;
+            }
+            finally {
+                f.close();
+            }
+        }
+        catch(IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void unmapFile(long address, long length) {
+        mappedFiles.remove(address);
+    }
+
+    @Override
+    public void madvise(long address, long length, int advice) {
+        // do nothing
+    }
 }
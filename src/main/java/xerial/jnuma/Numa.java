@@ -17,11 +17,10 @@
 package xerial.jnuma;
 
 
-import java.io.*;
-import java.lang.reflect.Method;
+import xerial.jnuma.NumaMemoryStats.AllocationKind;
+
+import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
-import java.security.ProtectionDomain;
-import java.util.Arrays;
 
 /**
  * Numa API.
@@ -29,97 +28,153 @@ import java.util.Arrays;
  *
  * When allocating new {@link java.nio.ByteBuffer}s using this API,
  * you must release these buffers by calling {@link Numa#free(java.nio.ByteBuffer)} because
- * the allocated buffers are out of control of the GC of the JVM.
+ * the allocated buffers are out of control of the GC of the JVM. {@link NumaBufferPool} provides reference counted buffers
+ * that are returned to the pool after use.
  *
  * @author Taro L. Saito
  */
 public class Numa {
 
+    private static volatile long initTimeNanos = -1;
+
     /**
-     * This type must be Object rather than NumaInterface because some JVM implementation loads the the class
-     * specified in the field before the completion of the injection of NumaInterface and NumaNative to the root class loader.
+     * Holds the NUMA implementation, which is initialized when the holder class is first accessed
      */
-    private static Object impl = init();
+    private static class Holder {
+        static final NumaInterface impl;
+        static {
+            long start = System.nanoTime();
+            impl = init();
+            initTimeNanos = System.nanoTime() - start;
+        }
 
-    private static ClassLoader rootClassLoader() {
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        while(cl.getParent() != null) {
-            cl = cl.getParent();
+        static void initialize() {
+            // Accessing this method initializes the holder class
         }
-        return cl;
     }
 
-    private static byte[] loadByteCode(String className) throws IOException {
-        return loadResource(Numa.class.getResourceAsStream(String.format("/%s.class", className.replaceAll("\\.", "/"))));
-    }
+    private static volatile NumaTopology topology;
 
-    private static byte[] loadResource(InputStream in) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[8192];
-        for(int ret = 0; (ret = in.read(buf)) != -1;) {
-            out.write(buf, 0, ret);
-        }
-        in.close();
-        out.close();
-        return out.toByteArray();
-    }
+    /**
+     * The size of huge pages requested by {@link #allocHugePages(long, int, int[])}
+     */
+    public static final long HUGE_PAGE_SIZE = 2L * 1024 * 1024;
 
+    /**
+     * The number of elements of the thread state buffer: {saved flag, policy mode, node mask (16 words), cpu mask (16 words)}
+     */
+    static final int THREAD_STATE_WORDS = 2 + 16 + 16;
 
-    private static void inject(String[] classNames, ClassLoader cl) throws Exception {
+    private static final long[] NO_NODES = new long[0];
 
-        Class<?> clClass = Class.forName("java.lang.ClassLoader");
+    /**
+     * The staleness window of the current CPU used by the allocators of this library
+     */
+    static final long DEFAULT_STALENESS_NANOS = 1000000L;
 
-        Method m = clClass.getDeclaredMethod("defineClass", new Class[] { String.class, byte[].class, int.class, int.class, ProtectionDomain.class });
-        boolean isAccessible = m.isAccessible();
-        try {
-            if(!isAccessible)
-                m.setAccessible(true);
-            for(String c : classNames) {
-                try {
-                    cl.loadClass(c);
-                }
-                catch(ClassNotFoundException e) {
-                    byte[] byteCode = loadByteCode(c);
-                    m.invoke(cl, c, byteCode, 0, byteCode.length, System.class.getProtectionDomain());
-                }
-            }
-        }
-        finally {
-            if(!isAccessible)
-                m.setAccessible(false);
+    /**
+     * The last CPU observed by the current thread
+     */
+    private static class CpuCache {
+        int cpu;
+        long timestamp;
+        boolean valid = false;
+    }
+
+    private static final ThreadLocal<CpuCache> cpuCache = new ThreadLocal<CpuCache>() {
+        @Override
+        protected CpuCache initialValue() {
+            return new CpuCache();
         }
+    };
 
+    static {
+        if(!Boolean.parseBoolean(System.getProperty("xerial.jnuma.lazy", "true")))
+            Holder.initialize();
     }
 
+    /**
+     * The class name of the NUMA implementation using the Foreign Function and Memory API (jnuma-foreign, Java 22 or later)
+     */
+    private static final String FOREIGN_BACKEND = "xerial.jnuma.foreign.NumaForeign";
 
-    private static Object init() {
+    /**
+     * Select the NUMA implementation. The system property xerial.jnuma.backend chooses the implementation:
+     * <ul>
+     * <li>jni (default): the JNI library bundled in this jar</li>
+     * <li>foreign: {@code xerial.jnuma.foreign.NumaForeign} in jnuma-foreign. Falls back to jni if it cannot be loaded</li>
+     * <li>simulated: {@link SimulatedNuma}, a simulated multi-node machine for testing placement logic</li>
+     * <li>none: no NUMA support</li>
+     * </ul>
+     * The native library is loaded only on Linux.
+     */
+    private static NumaInterface init() {
         String osName = System.getProperty("os.name", "");
-        if(osName.contains("Windows") || osName.contains("Mac"))
+        String backend = System.getProperty("xerial.jnuma.backend", "jni");
+        if(osName.contains("Windows") || osName.contains("Mac") || backend.equals("none"))
             return new NoNuma();
-        else {
-            // Extract the native lib to temp folder
+        if(backend.equals("simulated"))
+            return new SimulatedNuma();
+        if(backend.equals("foreign")) {
             try {
-                File libFile = new File(System.getProperty("java.io.tmpdir") + "/libjnuma.so");
-                byte[] newLib = loadResource(Numa.class.getResourceAsStream("/xerial/jnuma/native/libjnuma.so"));
-                if(!libFile.exists() || (libFile.exists() && !Arrays.equals(loadResource(new FileInputStream(libFile)), newLib))) {
-                    FileOutputStream out = new FileOutputStream(libFile);
-                    out.write(newLib);
-                    out.close();
-                }
-
-                String loader = "xerial.jnuma.NumaJNILoader";
-                String nativeAPI = "xerial.jnuma.NumaNative";
-                inject(new String[]{loader, "xerial.jnuma.NumaInterface", "xerial.jnuma.NumaNative"}, rootClassLoader());
-                Class<?> loaderClass = rootClassLoader().loadClass(loader);
-                Method loadMethod = loaderClass.getDeclaredMethod("load", new Class[] {String.class});
-                loadMethod.invoke(null, libFile.getAbsolutePath());
-                return rootClassLoader().loadClass(nativeAPI).newInstance();
+                return (NumaInterface) Class.forName(FOREIGN_BACKEND).getDeclaredConstructor().newInstance();
             }
-            catch(Exception e) {
-                e.printStackTrace();
-                return new NoNuma();
+            catch(InvocationTargetException e) {
+                System.err.println(String.format("failed to load %s. Use the JNI library instead: %s", FOREIGN_BACKEND, e.getCause()));
             }
+            catch(Throwable e) {
+                System.err.println(String.format("failed to load %s. Use the JNI library instead: %s", FOREIGN_BACKEND, e));
+            }
+        }
+        try {
+            NumaJNILoader.load();
+            return new NumaNative();
         }
+        catch(Throwable e) {
+            e.printStackTrace();
+            return new NoNuma();
+        }
+    }
+
+    /**
+     * @return the NUMA implementation in use
+     */
+    static NumaInterface implementation() {
+        return Holder.impl;
+    }
+
+    /**
+     * Charge the access to the memory region to {@link SimulatedNuma}. Does nothing for the other implementations.
+     */
+    static void simulateAccess(long address, long length) {
+        NumaInterface impl = Holder.impl;
+        if(impl instanceof SimulatedNuma)
+            ((SimulatedNuma) impl).access(address, length);
+    }
+
+    /**
+     * @return the class name of the NUMA implementation in use
+     */
+    public static String backend() {
+        return Holder.impl.getClass().getName();
+    }
+
+    /**
+     * Returns true if the NUMA implementation has been initialized. Unless the system property xerial.jnuma.lazy is set to false,
+     * the native library is loaded at the first call of the NUMA API, so applications that never use NUMA do not pay the cost of loading it.
+     * @return true if initialized
+     */
+    public static boolean isInitialized() {
+        return initTimeNanos >= 0;
+    }
+
+    /**
+     * Returns the time spent to initialize the NUMA implementation, including the extraction and loading of the native library.
+     * This method does not trigger the initialization.
+     * @return initialization time in nanoseconds, or -1 if not initialized yet
+     */
+    public static long initTimeNanos() {
+        return initTimeNanos;
     }
 
     /**
@@ -127,7 +182,7 @@ public class Numa {
      * @return
      */
     public static boolean isAvailable() {
-        return ((NumaInterface) impl).isAvailable();
+        return Holder.impl.isAvailable();
     }
 
     /**
@@ -135,7 +190,34 @@ public class Numa {
      * @return
      */
     public static int numNodes() {
-        return ((NumaInterface) impl).maxNode()+1;
+        return topology().numNodes();
+    }
+
+    /**
+     * Returns the snapshot of the NUMA topology. The snapshot is loaded at the first call.
+     * @return topology
+     */
+    public static NumaTopology topology() {
+        NumaTopology t = topology;
+        if(t == null) {
+            synchronized(Numa.class) {
+                t = topology;
+                if(t == null)
+                    t = refreshTopology();
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Reload the NUMA topology. Call this method after CPUs or memories are added to or removed from the system.
+     * @return the new topology
+     */
+    public static NumaTopology refreshTopology() {
+        synchronized(Numa.class) {
+            topology = NumaTopology.load(Holder.impl);
+            return topology;
+        }
     }
 
     /**
@@ -144,7 +226,7 @@ public class Numa {
      * @return memory byte size
      */
     public static long nodeSize(int node) {
-        return ((NumaInterface) impl).nodeSize(node);
+        return Holder.impl.nodeSize(node);
     }
 
     /**
@@ -153,7 +235,7 @@ public class Numa {
      * @return free memory byte size
      */
     public static long freeSize(int node) {
-        return ((NumaInterface) impl).freeSize(node);
+        return Holder.impl.freeSize(node);
     }
 
     /**
@@ -163,7 +245,7 @@ public class Numa {
      * @return node distance
      */
     public static int distance(int node1, int node2) {
-        return ((NumaInterface) impl).distance(node1, node2);
+        return topology().distance(node1, node2);
     }
 
     /**
@@ -171,7 +253,7 @@ public class Numa {
      * @return
      */
     public static int numCPUs() {
-        return Runtime.getRuntime().availableProcessors();
+        return topology().numCPUs();
     }
 
     /**
@@ -199,11 +281,7 @@ public class Numa {
      * @return
      */
     public static long[] newCPUBitMaskForAllCPUs() {
-        long[] cpuMask = newCPUBitMask();
-        int M = numCPUs();
-        for(int i=0; i<cpuMask.length; ++i)
-            cpuMask[i] |= (i*64 > M) ? ~0L : ~(~0L << (M % 64));
-        return cpuMask;
+        return topology().allCPUsMask().clone();
     }
 
     /**
@@ -212,9 +290,7 @@ public class Numa {
      * @return cpu bit vector
      */
     public static long[] nodeToCpus(int node) {
-        long[] bv = new long[512/8];
-        ((NumaInterface) impl).nodeToCpus(node, bv);
-        return bv;
+        return topology().nodeToCpus(node);
     }
 
     /**
@@ -226,7 +302,7 @@ public class Numa {
      */
     public static long[] getAffinity() {
         long[] cpuMask = newCPUBitMask();
-        ((NumaInterface) impl).getAffinity(0, cpuMask, numCPUs());
+        Holder.impl.getAffinity(0, cpuMask, numCPUs());
         return cpuMask;
     }
 
@@ -243,14 +319,61 @@ public class Numa {
      * @param cpuBitMask bit vector. CPU0 corresponds to the LSB.
      */
     public static void setAffinity(long[] cpuBitMask) {
-        ((NumaInterface) impl).setAffinity(0, cpuBitMask, numCPUs());
+        Holder.impl.setAffinity(0, cpuBitMask, numCPUs());
+        cpuCache.get().valid = false;
     }
 
     /**
      * Reset the affinity of the current thread to CPUs.
      */
     public static void resetAffinity() {
-        ((NumaInterface) impl).setAffinity(0, newCPUBitMaskForAllCPUs(), numCPUs());
+        Holder.impl.setAffinity(0, topology().allCPUsMask(), numCPUs());
+        cpuCache.get().valid = false;
+    }
+
+    /**
+     * Returns the CPU on which the current thread is running. Unlike {@link #getAffinity()}, this method allocates nothing.
+     * The OS may move the thread to another CPU at any time unless the thread is bound to a single CPU.
+     * @return cpu number
+     */
+    public static int currentCpu() {
+        return Holder.impl.currentCpu();
+    }
+
+    /**
+     * Returns the CPU on which the current thread is running. The CPU observed within the staleness window is reused
+     * without calling the native API, so this method is cheap enough for hot paths.
+     * Changing the affinity of the thread through this class discards the observed CPU.
+     * @param maxStalenessNanos the max age of the observed CPU in nanoseconds
+     * @return cpu number
+     */
+    public static int currentCpu(long maxStalenessNanos) {
+        CpuCache c = cpuCache.get();
+        long now = System.nanoTime();
+        if(!c.valid || now - c.timestamp > maxStalenessNanos) {
+            c.cpu = currentCpu();
+            c.timestamp = now;
+            c.valid = true;
+        }
+        return c.cpu;
+    }
+
+    /**
+     * Returns the numa node on which the current thread is running. Unlike {@link #getPreferredNode()}, which reports
+     * the memory policy, this method reports the location of the thread.
+     * @return numa node
+     */
+    public static int currentNode() {
+        return topology().cpuToNode(currentCpu());
+    }
+
+    /**
+     * Returns the numa node on which the current thread is running, using the CPU observed within the staleness window.
+     * @param maxStalenessNanos the max age of the observed CPU in nanoseconds
+     * @return numa node
+     */
+    public static int currentNode(long maxStalenessNanos) {
+        return topology().cpuToNode(currentCpu(maxStalenessNanos));
     }
 
     /**
@@ -258,14 +381,14 @@ public class Numa {
      * @return preferred numa node
      */
     public static int getPreferredNode() {
-        return ((NumaInterface) impl).preferredNode();
+        return Holder.impl.preferredNode();
     }
 
     /**
      * Set the memory allocation policy for the calling thread to local allocation.
      */
     public static void setLocalAlloc() {
-        ((NumaInterface) impl).setLocalAlloc();
+        Holder.impl.setLocalAlloc();
     }
 
     /**
@@ -274,7 +397,7 @@ public class Numa {
      * @param node
      */
     public static void setPreferred(int node) {
-        ((NumaInterface) impl).setPreferred(node);
+        Holder.impl.setPreferred(node);
     }
 
     /**
@@ -282,22 +405,135 @@ public class Numa {
      * @param node
      */
     public static void runOnNode(int node) {
-        ((NumaInterface) impl).runOnNode(node);
+        Holder.impl.runOnNode(node);
+        cpuCache.get().valid = false;
     }
 
     public static void runOnAllNodes() {
         runOnNode(-1);
     }
 
+    /**
+     * Create a buffer to save the placement of a thread for {@link #bindCurrentThread(int, MemoryPolicy, long[])}. The buffer can be reused.
+     * @return buffer of the thread state
+     */
+    public static long[] newThreadState() {
+        return new long[THREAD_STATE_WORDS];
+    }
+
+    /**
+     * Bind the current thread to the CPUs of the node and set the memory policy of the thread to the node in a single native call.
+     * Unlike calling {@link #setAffinity(long[])}, {@link #runOnNode(int)} and {@link #setPreferred(int)} separately, this method allocates nothing.
+     * If the node has no CPU, the thread runs on the CPUs of the nearest node that has CPUs.
+     * @param node numa node
+     * @param policy memory policy of the thread. {@link MemoryPolicy#PREFERRED}, {@link MemoryPolicy#BIND} and {@link MemoryPolicy#INTERLEAVE} use the given node.
+     * @param previous the buffer created by {@link #newThreadState()} to save the previous placement, or null if the placement will not be restored
+     */
+    public static void bindCurrentThread(int node, MemoryPolicy policy, long[] previous) {
+        if(previous != null && previous.length < THREAD_STATE_WORDS)
+            throw new IllegalArgumentException("thread state buffer must have " + THREAD_STATE_WORDS + " elements");
+        NumaTopology t = topology();
+        boolean noMask = policy == MemoryPolicy.DEFAULT || policy == MemoryPolicy.LOCAL;
+        Holder.impl.bindThread(t.runnableCpuMask(node), policy.mode, noMask ? NO_NODES : t.nodeMask(node), previous);
+        cpuCache.get().valid = false;
+    }
+
+    /**
+     * Restore the placement of the current thread saved by {@link #bindCurrentThread(int, MemoryPolicy, long[])}
+     * @param previous saved thread state
+     */
+    public static void restoreCurrentThread(long[] previous) {
+        Holder.impl.restoreThread(previous);
+        cpuCache.get().valid = false;
+    }
+
+
+    private static volatile AllocationPolicy allocationPolicy =
+        AllocationPolicy.parse(System.getProperty("xerial.jnuma.allocation.policy"), AllocationPolicy.STRICT);
+    private static volatile long freeWatermark = parseBytes(System.getProperty("xerial.jnuma.allocation.watermark"));
+
+    private static long parseBytes(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        }
+        catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Set the policy applied when the memory requested on a node cannot be allocated there. The initial policy is given by
+     * -Dxerial.jnuma.allocation.policy=(strict|nearest|interleave) and -Dxerial.jnuma.allocation.watermark=(bytes). The default is
+     * {@link AllocationPolicy#STRICT} without watermark.
+     * @param policy allocation policy
+     * @param freeWatermark a node is not used if its free memory after the allocation falls below this byte size. 0 disables the check.
+     */
+    public static void setAllocationPolicy(AllocationPolicy policy, long freeWatermark) {
+        if(policy == null)
+            throw new NullPointerException("policy");
+        Numa.allocationPolicy = policy;
+        Numa.freeWatermark = freeWatermark;
+    }
+
+    /**
+     * @return the policy of the allocations on a node
+     */
+    public static AllocationPolicy allocationPolicy() {
+        return allocationPolicy;
+    }
+
+    /**
+     * @return the watermark of the free memory of each node
+     */
+    public static long freeWatermark() {
+        return freeWatermark;
+    }
+
+    /**
+     * Check the free memory of the node. The sample of a running {@link NumaMemoryMonitor} is used if available.
+     */
+    private static boolean aboveWatermark(int node, long capacity, long watermark) {
+        return watermark <= 0 || NumaMemoryMonitor.currentFreeSize(node) - capacity >= watermark;
+    }
+
+    /**
+     * The number of nodes to try for the policy. Nodes are tried in the order of {@link NumaTopology#nearestNode(int, int)}.
+     */
+    private static int nodesToTry(int node, AllocationPolicy policy) {
+        return policy == AllocationPolicy.NEAREST && node >= 0 && node < numNodes() ? numNodes() : 1;
+    }
+
+    private static int candidate(int node, int rank) {
+        return rank == 0 ? node : topology().nearestNode(node, rank);
+    }
+
+    private static NumaAllocationException allocationFailure(long capacity, int node, AllocationPolicy policy, long watermark) {
+        String free = node >= 0 && node < numNodes() ? String.format(", free:%,d, watermark:%,d", freeSize(node), watermark) : "";
+        return new NumaAllocationException(String.format("failed to allocate %,d bytes%s (policy:%s%s)", capacity, node >= 0 ? " on node " + node : "", policy, free),
+            capacity, node, policy);
+    }
+
+    private static ByteBuffer checkBuffer(ByteBuffer buf, int capacity) {
+        if(buf == null)
+            throw allocationFailure(capacity, -1, AllocationPolicy.STRICT, 0);
+        return buf;
+    }
+
+    private static long checkAddress(long address, long capacity) {
+        if(address == 0)
+            throw allocationFailure(capacity, -1, AllocationPolicy.STRICT, 0);
+        return address;
+    }
 
     /**
      * Allocate a new NUMA buffer using the current policy. You must release the acquired buffer by {@link #free(java.nio.ByteBuffer)} because
      * it is out of the control of GC.
      * @param capacity byte size of the buffer
      * @return new ByteBuffer
+     * @throws NumaAllocationException if the allocation fails
      */
     public static ByteBuffer alloc(int capacity) {
-        return ((NumaInterface) impl).alloc(capacity);
+        return track(checkBuffer(Holder.impl.alloc(capacity), capacity), -1, AllocationKind.DEFAULT);
     }
 
     /**
@@ -305,9 +541,22 @@ public class Numa {
      * it is out of the control of GC.
      * @param capacity byte size of the buffer
      * @return new ByteBuffer
+     * @throws NumaAllocationException if the allocation fails
      */
     public static ByteBuffer allocLocal(int capacity) {
-        return ((NumaInterface) impl).allocLocal(capacity);
+        return track(checkBuffer(Holder.impl.allocLocal(capacity), capacity), currentNode(DEFAULT_STALENESS_NANOS), AllocationKind.LOCAL);
+    }
+
+    /**
+     * Allocate a new NUMA buffer on a specific node with the policy set by {@link #setAllocationPolicy(AllocationPolicy, long)}.
+     * You must release the acquired buffer by {@link #free(java.nio.ByteBuffer)} because it is out of the control of GC.
+     * @param capacity byte size of the buffer
+     * @param node node number
+     * @return new ByteBuffer
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static ByteBuffer allocOnNode(int capacity, int node) {
+        return allocOnNode(capacity, node, allocationPolicy);
     }
 
     /**
@@ -315,10 +564,26 @@ public class Numa {
      * it is out of the control of GC.
      * @param capacity byte size of the buffer
      * @param node node number
+     * @param policy what to do if the node cannot be used
      * @return new ByteBuffer
+     * @throws NumaAllocationException if the allocation fails
      */
-    public static ByteBuffer allocOnNode(int capacity, int node) {
-        return ((NumaInterface) impl).allocOnNode(capacity, node);
+    public static ByteBuffer allocOnNode(int capacity, int node, AllocationPolicy policy) {
+        long watermark = freeWatermark;
+        for(int rank=0, n=nodesToTry(node, policy); rank<n; ++rank) {
+            int target = candidate(node, rank);
+            if(!aboveWatermark(target, capacity, watermark))
+                continue;
+            ByteBuffer buf = Holder.impl.allocOnNode(capacity, target);
+            if(buf != null)
+                return track(buf, target, AllocationKind.ON_NODE);
+        }
+        if(policy == AllocationPolicy.INTERLEAVE) {
+            ByteBuffer buf = Holder.impl.allocInterleaved(capacity);
+            if(buf != null)
+                return track(buf, -1, AllocationKind.INTERLEAVED);
+        }
+        throw allocationFailure(capacity, node, policy, watermark);
     }
 
     /**
@@ -326,18 +591,120 @@ public class Numa {
      * it is out of the control of GC.
      * @param capacity byte size of the buffer
      * @return new ByteBuffer
+     * @throws NumaAllocationException if the allocation fails
      */
     public static ByteBuffer allocInterleaved(int capacity) {
-        return ((NumaInterface) impl).allocInterleaved(capacity);
+        return track(checkBuffer(Holder.impl.allocInterleaved(capacity), capacity), -1, AllocationKind.INTERLEAVED);
     }
 
     /**
      * Allocate a new NUMA buffer of the specified capacity
      * @param capacity
      * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
      */
     public static long allocMemory(long capacity) {
-        return ((NumaInterface) impl).allocMemory(capacity);
+        return track(checkAddress(Holder.impl.allocMemory(capacity), capacity), capacity, -1, AllocationKind.DEFAULT);
+    }
+
+    /**
+     * Allocate a new memory of the specified capacity on the local NUMA node
+     * @param capacity
+     * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static long allocMemoryLocal(long capacity) {
+        return track(checkAddress(Holder.impl.allocMemoryLocal(capacity), capacity), capacity, currentNode(DEFAULT_STALENESS_NANOS), AllocationKind.LOCAL);
+    }
+
+    /**
+     * Allocate a new memory of the specified capacity on a specific node with the policy set by {@link #setAllocationPolicy(AllocationPolicy, long)}
+     * @param capacity
+     * @param node node number
+     * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static long allocMemoryOnNode(long capacity, int node) {
+        return allocMemoryOnNode(capacity, node, allocationPolicy);
+    }
+
+    /**
+     * Allocate a new memory of the specified capacity on a specific node
+     * @param capacity
+     * @param node node number
+     * @param policy what to do if the node cannot be used
+     * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static long allocMemoryOnNode(long capacity, int node, AllocationPolicy policy) {
+        return allocMemoryOnNode(capacity, node, policy, null);
+    }
+
+    /**
+     * @param placed if not null, the node where the memory is allocated or {@link NumaMemorySegment#INTERLEAVED} is set to the first element
+     */
+    static long allocMemoryOnNode(long capacity, int node, AllocationPolicy policy, int[] placed) {
+        long watermark = freeWatermark;
+        for(int rank=0, n=nodesToTry(node, policy); rank<n; ++rank) {
+            int target = candidate(node, rank);
+            if(!aboveWatermark(target, capacity, watermark))
+                continue;
+            long address = Holder.impl.allocMemoryOnNode(capacity, target);
+            if(address != 0) {
+                if(placed != null)
+                    placed[0] = target;
+                return track(address, capacity, target, AllocationKind.ON_NODE);
+            }
+        }
+        if(policy == AllocationPolicy.INTERLEAVE) {
+            long address = Holder.impl.allocMemoryInterleaved(capacity);
+            if(address != 0) {
+                if(placed != null)
+                    placed[0] = NumaMemorySegment.INTERLEAVED;
+                return track(address, capacity, -1, AllocationKind.INTERLEAVED);
+            }
+        }
+        throw allocationFailure(capacity, node, policy, watermark);
+    }
+
+    /**
+     * Allocate a new memory of the specified capacity interleaved on multiple NUMA nodes
+     * @param capacity
+     * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static long allocMemoryInterleaved(long capacity) {
+        return track(checkAddress(Holder.impl.allocMemoryInterleaved(capacity), capacity), capacity, -1, AllocationKind.INTERLEAVED);
+    }
+
+    /**
+     * Allocate a new memory backed by huge pages of {@link #HUGE_PAGE_SIZE}. If no huge page is reserved in the system, transparent huge pages
+     * are requested, and if they are also disabled, the memory falls back to the base pages. Use {@link NumaMemorySegment#allocHugeOnNode(long, int)}
+     * to get the obtained page size along with the memory.
+     * @param capacity byte size, which must be a multiple of {@link #HUGE_PAGE_SIZE}
+     * @param node node number, or {@link NumaMemorySegment#INTERLEAVED} to interleave the memory on all nodes
+     * @param backing the output of the obtained backing: {page size, {@link PageBacking} ordinal}
+     * @return the raw memory address
+     * @throws NumaAllocationException if the allocation fails
+     */
+    public static long allocHugePages(long capacity, int node, int[] backing) {
+        if(capacity % HUGE_PAGE_SIZE != 0)
+            throw new IllegalArgumentException(String.format("capacity %,d is not a multiple of the huge page size", capacity));
+        long address = Holder.impl.allocHugePages(capacity, node, HUGE_PAGE_SIZE, backing);
+        if(address == 0)
+            throw allocationFailure(capacity, node, AllocationPolicy.STRICT, 0);
+        return track(address, capacity, node, node >= 0 ? AllocationKind.ON_NODE : AllocationKind.INTERLEAVED);
+    }
+
+    /**
+     * Create a ByteBuffer view of the memory at the specified address. The view must not be released by {@link #free(java.nio.ByteBuffer)}.
+     * Release the memory by {@link #free(long, long)} after the view is no longer used.
+     * @param address raw memory address
+     * @param capacity byte size of the view
+     * @return ByteBuffer view
+     */
+    public static ByteBuffer directBuffer(long address, int capacity) {
+        return Holder.impl.directBuffer(address, capacity);
     }
 
     /**
@@ -346,7 +713,9 @@ public class Numa {
      * @param capacity
      */
     public static void free(long address, long capacity) {
-        ((NumaInterface) impl).free(address, capacity);
+        if(NumaMemoryTracker.enabled)
+            capacity = NumaMemoryTracker.get().freed(address, capacity);
+        Holder.impl.free(address, capacity);
     }
 
     /**
@@ -354,9 +723,172 @@ public class Numa {
      * @param buf the buffer to release
      */
     public static void free(ByteBuffer buf) {
-        ((NumaInterface) impl).free(buf);
+        if(NumaMemoryTracker.enabled)
+            NumaMemoryTracker.get().freed(buf);
+        Holder.impl.free(buf);
     }
 
+    private static ByteBuffer track(ByteBuffer buf, int node, AllocationKind kind) {
+        if(NumaMemoryTracker.enabled && buf != null)
+            NumaMemoryTracker.get().allocated(buf, node, kind);
+        return buf;
+    }
+
+    private static long track(long address, long capacity, int node, AllocationKind kind) {
+        if(NumaMemoryTracker.enabled)
+            NumaMemoryTracker.get().allocated(address, capacity, node, kind);
+        return address;
+    }
+
+    /**
+     * Take a snapshot of the memory allocated through this API. The same information is available through JMX
+     * as {@link NumaMemoryMXBean} ({@value NumaMemoryStats#OBJECT_NAME}).
+     * @return memory statistics, or null if the accounting is disabled by -Dxerial.jnuma.accounting=false
+     */
+    public static NumaMemoryStats memoryStats() {
+        return NumaMemoryTracker.enabled ? NumaMemoryTracker.get().snapshot() : null;
+    }
+
+
+    /**
+     * @return the page size of the system
+     */
+    public static int pageSize() {
+        return Holder.impl.pageSize();
+    }
+
+    /**
+     * Create a node bit mask for {@link #mbind(long, long, MemoryPolicy, long[], boolean)}
+     * @param nodes node numbers
+     * @return node bit mask
+     */
+    public static long[] newNodeMask(int... nodes) {
+        long[] mask = new long[(numNodes() + 64 - 1) / 64];
+        for(int node : nodes)
+            mask[node / 64] |= 1L << (node % 64);
+        return mask;
+    }
+
+    private static int[] pageStatusBuffer(long address, long length) {
+        long pageSize = pageSize();
+        long start = address & ~(pageSize - 1);
+        long numPages = (address + length - start + pageSize - 1) / pageSize;
+        if(numPages > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many pages: " + numPages);
+        return new int[(int) numPages];
+    }
+
+    /**
+     * Report the nodes where the pages of the memory range are placed
+     * @param address memory address
+     * @param length byte length
+     * @return the number of pages on each node
+     */
+    public static NumaPageHistogram queryPages(long address, long length) {
+        int[] status = pageStatusBuffer(address, length);
+        Holder.impl.getPageNodes(address & ~((long) pageSize() - 1), status);
+        return NumaPageHistogram.of(status, numNodes());
+    }
+
+    /**
+     * Report the nodes where the pages of the direct buffer are placed
+     * @param buf direct buffer
+     * @return the number of pages on each node
+     */
+    public static NumaPageHistogram queryPages(ByteBuffer buf) {
+        return queryPages(UnsafeAccess.addressOf(buf), buf.capacity());
+    }
+
+    /**
+     * Report the nodes where the pages of the segment are placed
+     * @param segment memory segment
+     * @return the number of pages on each node
+     */
+    public static NumaPageHistogram queryPages(NumaMemorySegment segment) {
+        return queryPages(segment.address(), segment.size());
+    }
+
+    /**
+     * Move the pages of the memory range to the specified node
+     * @param address memory address
+     * @param length byte length
+     * @param node destination node
+     * @return the number of pages on each node after the migration
+     */
+    public static NumaPageHistogram movePages(long address, long length, int node) {
+        int[] status = pageStatusBuffer(address, length);
+        Holder.impl.movePages(address & ~((long) pageSize() - 1), node, status);
+        return NumaPageHistogram.of(status, numNodes());
+    }
+
+    /**
+     * Move the pages of the direct buffer to the specified node
+     * @param buf direct buffer
+     * @param node destination node
+     * @return the number of pages on each node after the migration
+     */
+    public static NumaPageHistogram movePages(ByteBuffer buf, int node) {
+        return movePages(UnsafeAccess.addressOf(buf), buf.capacity(), node);
+    }
+
+    /**
+     * Move the pages of the segment to the specified node
+     * @param segment memory segment
+     * @param node destination node
+     * @return the number of pages on each node after the migration
+     */
+    public static NumaPageHistogram movePages(NumaMemorySegment segment, int node) {
+        return movePages(segment.address(), segment.size(), node);
+    }
+
+    /**
+     * Set the memory policy of the memory range. The range is extended to the page boundaries.
+     * @param address memory address
+     * @param length byte length
+     * @param policy memory policy
+     * @param nodeMask node bit mask created by {@link #newNodeMask(int...)}. Ignored for {@link MemoryPolicy#DEFAULT} and {@link MemoryPolicy#LOCAL}
+     * @param move if true, the existing pages are moved to follow the policy
+     */
+    public static void mbind(long address, long length, MemoryPolicy policy, long[] nodeMask, boolean move) {
+        long pageSize = pageSize();
+        long start = address & ~(pageSize - 1);
+        boolean noMask = policy == MemoryPolicy.DEFAULT || policy == MemoryPolicy.LOCAL;
+        // MPOL_MF_STRICT | MPOL_MF_MOVE
+        int flags = move ? 0x1 | 0x2 : 0;
+        Holder.impl.mbind(start, address + length - start, policy.mode, noMask ? new long[0] : nodeMask, flags);
+    }
+
+    /**
+     * Map a range of a file for reading
+     * @param offset file offset, which must be a multiple of the page size
+     * @return the mapped address, or 0 if the mapping fails
+     */
+    static long mapFile(String path, long offset, long length) {
+        return Holder.impl.mapFile(path, offset, length);
+    }
+
+    static void unmapFile(long address, long length) {
+        Holder.impl.unmapFile(address, length);
+    }
+
+    /**
+     * Give a hint of the access pattern of the memory range by madvise(2)
+     * @param address page-aligned memory address
+     */
+    static void madvise(long address, long length, int advice) {
+        Holder.impl.madvise(address, length, advice);
+    }
+
+    /**
+     * Set the memory policy of the direct buffer
+     * @param buf direct buffer
+     * @param policy memory policy
+     * @param nodeMask node bit mask created by {@link #newNodeMask(int...)}
+     * @param move if true, the existing pages are moved to follow the policy
+     */
+    public static void mbind(ByteBuffer buf, MemoryPolicy policy, long[] nodeMask, boolean move) {
+        mbind(UnsafeAccess.addressOf(buf), buf.capacity(), policy, nodeMask, move);
+    }
 
     /**
      * Send the array to a node. The array should be primitive type array. To send the array to a node correctly,
@@ -366,7 +898,7 @@ public class Numa {
      * @param node
      */
     public static void toNodeMemory(Object array, int byteLength, int node) {
-        ((NumaInterface) impl).toNodeMemory(array, byteLength, node);
+        Holder.impl.toNodeMemory(array, byteLength, node);
     }
 
 
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * An accumulator sharded over NUMA nodes. Each thread accumulates values into the cell of its CPU in the memory of the local node,
+ * and {@link #get()} combines the cells of all nodes. The function must be associative and commutative, and the identity must
+ * satisfy function(identity, x) == x.
+ *
+ * You must release the accumulator by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public final class NumaAccumulator {
+
+    /**
+     * The function combining two values
+     */
+    public interface Function {
+        long apply(long left, long right);
+    }
+
+    public static final Function SUM = new Function() {
+        public long apply(long left, long right) {
+            return left + right;
+        }
+    };
+
+    public static final Function MAX = new Function() {
+        public long apply(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    public static final Function MIN = new Function() {
+        public long apply(long left, long right) {
+            return Math.min(left, right);
+        }
+    };
+
+    private final Function function;
+    private final long identity;
+    private final NumaCells cells = new NumaCells(8);
+
+    /**
+     * @param function the function combining two values
+     * @param identity the initial value of the cells
+     */
+    public NumaAccumulator(Function function, long identity) {
+        this.function = function;
+        this.identity = identity;
+        cells.set(0, identity);
+    }
+
+    /**
+     * @return a new accumulator of the max value
+     */
+    public static NumaAccumulator max() {
+        return new NumaAccumulator(MAX, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return a new accumulator of the min value
+     */
+    public static NumaAccumulator min() {
+        return new NumaAccumulator(MIN, Long.MAX_VALUE);
+    }
+
+    /**
+     * Combine the value into the cell of the current CPU
+     * @param x
+     */
+    public void accumulate(long x) {
+        int index = cells.index();
+        for(;;) {
+            long a = cells.address(index);
+            long v = unsafe.getLongVolatile(null, a);
+            long next = function.apply(v, x);
+            if(next == v || unsafe.compareAndSwapLong(null, a, v, next))
+                return;
+            index = cells.sibling(index);
+        }
+    }
+
+    /**
+     * @return the combined value of all cells
+     */
+    public long get() {
+        long result = identity;
+        for(int i=0; i<cells.size(); ++i)
+            result = function.apply(result, unsafe.getLongVolatile(null, cells.address(i)));
+        return result;
+    }
+
+    /**
+     * @param node numa node
+     * @return the combined value of the cells of the node
+     */
+    public long get(int node) {
+        long result = identity;
+        for(int i=0; i<cells.size(); ++i)
+            if(cells.node(i) == node)
+                result = function.apply(result, unsafe.getLongVolatile(null, cells.address(i)));
+        return result;
+    }
+
+    /**
+     * Reset the cells to the identity. Concurrent updates during the reset may be lost.
+     */
+    public void reset() {
+        cells.set(0, identity);
+    }
+
+    /**
+     * Release the memory of this accumulator
+     */
+    public void free() {
+        cells.free();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * Thrown when jnuma fails to allocate memory, or the allocation policy refuses to use a node. The caller can recover from it,
+ * e.g., by retrying on another node or releasing cached memory.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaAllocationException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long capacity;
+    private final int node;
+    private final AllocationPolicy policy;
+
+    public NumaAllocationException(String message, long capacity, int node, AllocationPolicy policy) {
+        super(message);
+        this.capacity = capacity;
+        this.node = node;
+        this.policy = policy;
+    }
+
+    /**
+     * @return the requested byte size
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the requested node, or -1 if the allocation was not for a specific node
+     */
+    public int node() {
+        return node;
+    }
+
+    /**
+     * @return the policy applied to the allocation
+     */
+    public AllocationPolicy policy() {
+        return policy;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local slab allocator. Large chunks are reserved on each NUMA node through {@link Numa#allocOnNode(int, int)},
+ * and small blocks (4KB - 64KB by default) are carved out of these chunks by power-of-two size classes.
+ *
+ * Each thread keeps its own cache of free blocks for every (node, size class) pair, so {@link #allocate(int, int)} and
+ * {@link #free(xerial.jnuma.NumaArena.Block)} take no lock unless the thread cache needs to be refilled or spilled
+ * to the shared per-node pool. Blocks larger than the max size class are allocated directly with {@link Numa#allocOnNode(int, int)}.
+ *
+ * All chunks are released by {@link #close()}. Blocks held in the cache of a thread that has terminated are
+ * not returned to the shared pool, but their memory is still released when the arena is closed.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaArena {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+
+    private static final int LARGE = -1;
+
+    /**
+     * A memory block allocated from the arena. Use {@link #buffer()} to access the memory.
+     */
+    public static class Block implements NumaResident {
+        private final ByteBuffer buffer;
+        private final int node;
+        private final int sizeClass;
+        private boolean inUse;
+
+        private Block(ByteBuffer buffer, int node, int sizeClass) {
+            this.buffer = buffer;
+            this.node = node;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * The buffer of this block. Its capacity is the size class of the block, which can be larger than the requested size.
+         * @return buffer
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * @return the numa node where this block is allocated
+         */
+        public int node() {
+            return node;
+        }
+
+        /**
+         * @return byte size of this block
+         */
+        public int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * Statistics of the arena on a numa node
+     */
+    public static class Stats {
+        public final int node;
+        /** The number of chunks reserved on the node */
+        public final long chunks;
+        /** Byte size of the reserved chunks */
+        public final long reservedBytes;
+        /** Byte size of the blocks carved from the chunks */
+        public final long carvedBytes;
+        /** Byte size of the free blocks in the shared pool of the node */
+        public final long pooledBytes;
+        /** Byte size of the outstanding blocks larger than the max size class */
+        public final long largeBytes;
+        /** The number of refills of thread caches */
+        public final long refills;
+        /** The number of spills from thread caches to the shared pool */
+        public final long spills;
+
+        Stats(int node, long chunks, long reservedBytes, long carvedBytes, long pooledBytes, long largeBytes, long refills, long spills) {
+            this.node = node;
+            this.chunks = chunks;
+            this.reservedBytes = reservedBytes;
+            this.carvedBytes = carvedBytes;
+            this.pooledBytes = pooledBytes;
+            this.largeBytes = largeBytes;
+            this.refills = refills;
+            this.spills = spills;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("node:%d chunks:%,d reserved:%,d carved:%,d pooled:%,d large:%,d refills:%,d spills:%,d",
+                    node, chunks, reservedBytes, carvedBytes, pooledBytes, largeBytes, refills, spills);
+        }
+    }
+
+    /**
+     * Chunks and the shared pool of free blocks of a numa node
+     */
+    private class NodeArena {
+        private final int node;
+        private final ConcurrentLinkedQueue<Block>[] pool;
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private ByteBuffer current;
+        private int currentOffset;
+
+        private final AtomicLong carvedBytes = new AtomicLong();
+        private final AtomicLong pooledBytes = new AtomicLong();
+        private final AtomicLong largeBytes = new AtomicLong();
+        private final AtomicLong refills = new AtomicLong();
+        private final AtomicLong spills = new AtomicLong();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        NodeArena(int node) {
+            this.node = node;
+            this.pool = new ConcurrentLinkedQueue[numClasses];
+            for(int i=0; i<numClasses; ++i)
+                pool[i] = new ConcurrentLinkedQueue<Block>();
+        }
+
+        /**
+         * Fill the thread cache with blocks taken from the shared pool, or carved from the chunks.
+         */
+        void refill(Block[] stack, int[] top, int index, int sizeClass) {
+            refills.incrementAndGet();
+            int blockSize = blockSize(sizeClass);
+            int n = 0;
+            Block b;
+            while(n < batchSize && (b = pool[sizeClass].poll()) != null) {
+                stack[n++] = b;
+            }
+            pooledBytes.addAndGet(-(long) n * blockSize);
+            if(n < batchSize)
+                n = carve(stack, n, sizeClass);
+            top[index] = n;
+        }
+
+        private synchronized int carve(Block[] stack, int n, int sizeClass) {
+            if(closed)
+                throw new IllegalStateException("arena is already closed");
+            int blockSize = blockSize(sizeClass);
+            while(n < batchSize) {
+                if(current == null || current.capacity() - currentOffset < blockSize) {
+                    current = Numa.allocOnNode(chunkSize, node);
+                    currentOffset = 0;
+                    chunks.add(current);
+                }
+                ByteBuffer dup = current.duplicate();
+                dup.position(currentOffset);
+                dup.limit(currentOffset + blockSize);
+                stack[n++] = new Block(dup.slice(), node, sizeClass);
+                currentOffset += blockSize;
+            }
+            carvedBytes.addAndGet((long) n * blockSize);
+            return n;
+        }
+
+        /**
+         * Move the bottom half of the thread cache to the shared pool
+         */
+        void spill(Block[] stack, int[] top, int index, int sizeClass) {
+            spills.incrementAndGet();
+            int half = stack.length / 2;
+            for(int i=0; i<half; ++i) {
+                pool[sizeClass].offer(stack[i]);
+            }
+            System.arraycopy(stack, half, stack, 0, stack.length - half);
+            for(int i=stack.length - half; i<stack.length; ++i)
+                stack[i] = null;
+            top[index] -= half;
+            pooledBytes.addAndGet((long) half * blockSize(sizeClass));
+        }
+
+        synchronized Stats stats() {
+            return new Stats(node, chunks.size(), (long) chunks.size() * chunkSize, carvedBytes.get(), pooledBytes.get(), largeBytes.get(), refills.get(), spills.get());
+        }
+
+        synchronized void release() {
+            for(ByteBuffer chunk : chunks)
+                Numa.free(chunk);
+            chunks.clear();
+            current = null;
+            for(ConcurrentLinkedQueue<Block> q : pool)
+                q.clear();
+            pooledBytes.set(0);
+        }
+    }
+
+    /**
+     * Free blocks cached in a thread. Accessed only by the owner thread. This class does not refer to the arena, so that
+     * the thread-local caches of the threads do not keep a closed arena reachable.
+     */
+    private static class ThreadCache {
+        private final Block[][] stack;
+        private final int[] top;
+
+        ThreadCache(int numStacks) {
+            this.stack = new Block[numStacks][];
+            this.top = new int[numStacks];
+        }
+
+        Block pop(NumaArena arena, int node, int sizeClass) {
+            int index = node * arena.numClasses + sizeClass;
+            Block[] s = stack[index];
+            if(s == null) {
+                s = new Block[arena.threadCacheSize];
+                stack[index] = s;
+            }
+            if(top[index] == 0)
+                arena.nodes[node].refill(s, top, index, sizeClass);
+            int t = --top[index];
+            Block b = s[t];
+            s[t] = null;
+            return b;
+        }
+
+        void push(NumaArena arena, Block b) {
+            int index = b.node * arena.numClasses + b.sizeClass;
+            Block[] s = stack[index];
+            if(s == null) {
+                s = new Block[arena.threadCacheSize];
+                stack[index] = s;
+            }
+            if(top[index] == s.length)
+                arena.nodes[b.node].spill(s, top, index, b.sizeClass);
+            s[top[index]++] = b;
+        }
+    }
+
+    private final int chunkSize;
+    private final int minShift;
+    private final int numClasses;
+    private final int maxBlockSize;
+    private final int threadCacheSize;
+    private final int batchSize;
+    private final NodeArena[] nodes;
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache(nodes.length * numClasses);
+        }
+    };
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new arena with the default settings
+     */
+    public NumaArena() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE, DEFAULT_THREAD_CACHE_SIZE);
+    }
+
+    /**
+     * Create a new arena
+     * @param chunkSize byte size of the chunks reserved on each node
+     * @param minBlockSize the smallest size class. Must be a power of two
+     * @param maxBlockSize the largest size class. Must be a power of two and not be larger than the chunk size
+     * @param threadCacheSize the max number of free blocks cached in a thread for each (node, size class) pair
+     */
+    public NumaArena(int chunkSize, int minBlockSize, int maxBlockSize, int threadCacheSize) {
+        if(Integer.bitCount(minBlockSize) != 1 || Integer.bitCount(maxBlockSize) != 1)
+            throw new IllegalArgumentException("block sizes must be powers of two");
+        if(minBlockSize > maxBlockSize || maxBlockSize > chunkSize)
+            throw new IllegalArgumentException(String.format("invalid block sizes min:%d max:%d chunk:%d", minBlockSize, maxBlockSize, chunkSize));
+        if(threadCacheSize < 2)
+            throw new IllegalArgumentException("thread cache size must be larger than 1: " + threadCacheSize);
+
+        this.chunkSize = chunkSize;
+        this.minShift = Integer.numberOfTrailingZeros(minBlockSize);
+        this.numClasses = Integer.numberOfTrailingZeros(maxBlockSize) - minShift + 1;
+        this.maxBlockSize = maxBlockSize;
+        this.threadCacheSize = threadCacheSize;
+        this.batchSize = threadCacheSize / 2;
+        this.nodes = new NodeArena[Numa.numNodes()];
+        for(int i=0; i<nodes.length; ++i)
+            nodes[i] = new NodeArena(i);
+    }
+
+    private int sizeClass(int size) {
+        if(size <= (1 << minShift))
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    private int blockSize(int sizeClass) {
+        return 1 << (sizeClass + minShift);
+    }
+
+    private void checkNode(int node) {
+        if(node < 0 || node >= nodes.length)
+            throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", node, nodes.length));
+    }
+
+    /**
+     * Allocate a block of at least the given size on the specified node.
+     * @param size byte size. Must be positive
+     * @param node numa node
+     * @return allocated block. Release it by {@link #free(xerial.jnuma.NumaArena.Block)}
+     */
+    public Block allocate(int size, int node) {
+        checkNode(node);
+        if(size <= 0)
+            throw new IllegalArgumentException("size must be positive: " + size);
+        if(closed)
+            throw new IllegalStateException("arena is already closed");
+        Block b;
+        if(size > maxBlockSize) {
+            b = new Block(Numa.allocOnNode(size, node), node, LARGE);
+            nodes[node].largeBytes.addAndGet(size);
+        }
+        else
+            b = threadCache.get().pop(this, node, sizeClass(size));
+        b.inUse = true;
+        b.buffer.clear();
+        return b;
+    }
+
+    /**
+     * Allocate a block of at least the given size on the node where the current thread is running.
+     * @param size byte size
+     * @return allocated block. Release it by {@link #free(xerial.jnuma.NumaArena.Block)}
+     */
+    public Block allocateLocal(int size) {
+        int node = Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS);
+        return allocate(size, node < nodes.length ? node : 0);
+    }
+
+    /**
+     * Return the block to the arena. The block will be cached in the current thread.
+     * @param block block to release
+     */
+    public void free(Block block) {
+        if(!block.inUse)
+            throw new IllegalStateException("block is already freed");
+        block.inUse = false;
+        if(block.sizeClass == LARGE) {
+            nodes[block.node].largeBytes.addAndGet(-block.capacity());
+            Numa.free(block.buffer);
+        }
+        else if(!closed)
+            threadCache.get().push(this, block);
+    }
+
+    /**
+     * @return the number of numa nodes managed by this arena
+     */
+    public int numNodes() {
+        return nodes.length;
+    }
+
+    /**
+     * Statistics of the specified node
+     * @param node numa node
+     * @return stats
+     */
+    public Stats stats(int node) {
+        checkNode(node);
+        return nodes[node].stats();
+    }
+
+    /**
+     * Statistics of all nodes
+     * @return stats of each node
+     */
+    public Stats[] stats() {
+        Stats[] s = new Stats[nodes.length];
+        for(int i=0; i<nodes.length; ++i)
+            s[i] = nodes[i].stats();
+        return s;
+    }
+
+    /**
+     * Release all chunks reserved by this arena. Blocks allocated from this arena cannot be used after closing the arena.
+     */
+    public void close() {
+        closed = true;
+        for(NodeArena n : nodes)
+            n.release();
+        // The caches of the other threads are released when they access the thread locals after this arena is collected
+        threadCache.remove();
+    }
+
+}
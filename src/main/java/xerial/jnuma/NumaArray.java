@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+/**
+ * Base class of the primitive arrays placed in NUMA memory. The array is backed by a {@link NumaMemorySegment} and
+ * indexed by long, so the array can hold more than 2G elements.
+ *
+ * You must release the array by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public abstract class NumaArray implements NumaResident {
+
+    protected final NumaMemorySegment segment;
+    protected final long address;
+    protected final long length;
+
+    NumaArray(NumaMemorySegment segment, long length) {
+        this.segment = segment;
+        this.address = segment.address();
+        this.length = length;
+    }
+
+    static long byteSize(long length, int shift) {
+        if(length < 0 || length > (Long.MAX_VALUE >> shift))
+            throw new IllegalArgumentException("invalid array length: " + length);
+        return length << shift;
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the numa node where this array is placed, or {@link NumaMemorySegment#INTERLEAVED}
+     */
+    public int node() {
+        return segment.node();
+    }
+
+    /**
+     * @return the memory segment of this array
+     */
+    public NumaMemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * Release the memory of this array
+     */
+    public void free() {
+        segment.free();
+    }
+
+    protected final void checkIndex(long index) {
+        if(index < 0 || index >= length)
+            throw new IndexOutOfBoundsException(String.format("index:%d length:%d", index, length));
+    }
+
+    protected final void checkRange(long from, long to) {
+        if(from < 0 || to > length || from > to)
+            throw new IndexOutOfBoundsException(String.format("range:[%d, %d) length:%d", from, to, length));
+    }
+
+    protected static void checkArrayRange(int arrayLength, int offset, int len) {
+        if(offset < 0 || len < 0 || offset > arrayLength - len)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d array length:%d", offset, len, arrayLength));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(length:%,d, node:%d)", getClass().getSimpleName(), length, node());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted NUMA buffer acquired from {@link NumaBufferPool}. The buffer starts with the reference count 1,
+ * and goes back to the pool when the count reaches 0 by {@link #release()}. If the NumaBuffer becomes unreachable
+ * before being released, the pool reclaims the memory.
+ *
+ * The {@link java.nio.ByteBuffer} returned by {@link #buffer()} is valid only while this NumaBuffer is retained and reachable.
+ * Do not keep the ByteBuffer after releasing the NumaBuffer.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaBuffer implements NumaResident {
+
+    private final ByteBuffer buffer;
+    private final int node;
+    final NumaBufferPool.Recycler recycler;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    NumaBuffer(ByteBuffer buffer, int node, NumaBufferPool pool, ByteBuffer root, int poolIndex) {
+        this.buffer = buffer;
+        this.node = node;
+        this.recycler = pool.new Recycler(this, root, poolIndex);
+    }
+
+    /**
+     * @return the buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the numa node of this buffer, or -1 if the buffer is interleaved
+     */
+    public int node() {
+        return node;
+    }
+
+    /**
+     * @return byte size of this buffer
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the current reference count
+     */
+    public int refCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Increment the reference count
+     * @return this buffer
+     */
+    public NumaBuffer retain() {
+        for(;;) {
+            int c = refCount.get();
+            if(c <= 0)
+                throw new IllegalStateException("buffer is already released");
+            if(refCount.compareAndSet(c, c + 1))
+                return this;
+        }
+    }
+
+    /**
+     * Decrement the reference count. When the count reaches 0, the buffer is returned to the pool.
+     * @return true if the buffer is returned to the pool
+     */
+    public boolean release() {
+        for(;;) {
+            int c = refCount.get();
+            if(c <= 0)
+                throw new IllegalStateException("buffer is already released");
+            if(refCount.compareAndSet(c, c - 1)) {
+                if(c == 1) {
+                    recycler.recycle();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+}
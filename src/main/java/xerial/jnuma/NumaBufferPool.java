@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of NUMA buffers. Buffers are allocated with {@link Numa#allocOnNode(int, int)} or {@link Numa#allocInterleaved(int)},
+ * and are kept in the pool of each node after they are released, so that reusing a buffer needs no system call.
+ * Buffer capacities are rounded up to powers of two in the pool.
+ *
+ * When a {@link NumaBuffer} becomes unreachable without being released, its memory is returned to the pool
+ * through a {@link java.lang.ref.PhantomReference} queue, which is drained at every allocation or by {@link #reclaim()}.
+ *
+ * The pooled bytes of each node are bounded by the high-water mark. Buffers released over the mark are freed
+ * with {@link Numa#free(java.nio.ByteBuffer)}.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaBufferPool {
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Buffers larger than this size are not pooled
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 30;
+    private static final int NUM_CLASSES = 31;
+
+    /**
+     * Holds the memory of a NumaBuffer, and returns it to the pool when the buffer is released or collected.
+     * This reference must not refer to the NumaBuffer.
+     */
+    class Recycler extends PhantomReference<NumaBuffer> {
+        private final ByteBuffer root;
+        private final int poolIndex;
+        private final AtomicBoolean recycled = new AtomicBoolean(false);
+
+        Recycler(NumaBuffer referent, ByteBuffer root, int poolIndex) {
+            super(referent, queue);
+            this.root = root;
+            this.poolIndex = poolIndex;
+        }
+
+        void recycle() {
+            if(!recycled.compareAndSet(false, true))
+                return;
+            clear();
+            recyclers.remove(this);
+            pools[poolIndex].offer(root);
+        }
+    }
+
+    /**
+     * Free buffers of a node
+     */
+    private class NodePool {
+        private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+        private final AtomicLong pooledBytes = new AtomicLong();
+        private final AtomicLong allocated = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong reclaimed = new AtomicLong();
+        private final int node;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        NodePool(int node) {
+            this.node = node;
+            this.free = new ConcurrentLinkedQueue[NUM_CLASSES];
+            for(int i=0; i<NUM_CLASSES; ++i)
+                free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+
+        ByteBuffer poll(int capacity) {
+            if(capacity > MAX_POOLED_CAPACITY)
+                return alloc(capacity);
+            int c = sizeClass(capacity);
+            ByteBuffer b = free[c].poll();
+            if(b != null) {
+                pooledBytes.addAndGet(-b.capacity());
+                reused.incrementAndGet();
+                return b;
+            }
+            return alloc(1 << c);
+        }
+
+        private ByteBuffer alloc(int capacity) {
+            allocated.incrementAndGet();
+            return node < 0 ? Numa.allocInterleaved(capacity) : Numa.allocOnNode(capacity, node);
+        }
+
+        void offer(ByteBuffer b) {
+            int cap = b.capacity();
+            if(closed || cap > MAX_POOLED_CAPACITY) {
+                Numa.free(b);
+                return;
+            }
+            if(!reserve(cap)) {
+                Numa.free(b);
+                return;
+            }
+            b.clear();
+            free[sizeClass(cap)].offer(b);
+            // close() may have drained the queues before this buffer was added
+            if(closed)
+                release();
+        }
+
+        /**
+         * Add the bytes to the pooled bytes unless it exceeds the high-water mark
+         */
+        private boolean reserve(int cap) {
+            for(;;) {
+                long current = pooledBytes.get();
+                if(current + cap > maxPooledBytes)
+                    return false;
+                if(pooledBytes.compareAndSet(current, current + cap))
+                    return true;
+            }
+        }
+
+        void release() {
+            for(ConcurrentLinkedQueue<ByteBuffer> q : free) {
+                ByteBuffer b;
+                while((b = q.poll()) != null) {
+                    pooledBytes.addAndGet(-b.capacity());
+                    Numa.free(b);
+                }
+            }
+        }
+    }
+
+    private final ReferenceQueue<NumaBuffer> queue = new ReferenceQueue<NumaBuffer>();
+    private final Set<Recycler> recyclers = Collections.newSetFromMap(new ConcurrentHashMap<Recycler, Boolean>());
+    private final NodePool[] pools;
+    private final long maxPooledBytes;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new pool with the default high-water mark
+     */
+    public NumaBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * Create a new pool
+     * @param maxPooledBytes the high-water mark of the pooled bytes in each node
+     */
+    public NumaBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        int numNodes = Numa.numNodes();
+        // The last pool is for interleaved buffers
+        this.pools = new NodePool[numNodes + 1];
+        for(int i=0; i<numNodes; ++i)
+            pools[i] = new NodePool(i);
+        pools[numNodes] = new NodePool(-1);
+    }
+
+    private static int sizeClass(int capacity) {
+        return capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private NumaBuffer acquire(int capacity, int poolIndex) {
+        if(closed)
+            throw new IllegalStateException("pool is already closed");
+        if(capacity < 0)
+            throw new IllegalArgumentException("negative capacity: " + capacity);
+        reclaim();
+        NodePool pool = pools[poolIndex];
+        ByteBuffer root = pool.poll(capacity);
+        ByteBuffer view = root.duplicate();
+        view.limit(capacity);
+        NumaBuffer buf = new NumaBuffer(view.slice(), pool.node, this, root, poolIndex);
+        recyclers.add(buf.recycler);
+        return buf;
+    }
+
+    /**
+     * Allocate a buffer on the specified node
+     * @param capacity byte size
+     * @param node numa node
+     * @return buffer. Call {@link NumaBuffer#release()} after use
+     */
+    public NumaBuffer allocate(int capacity, int node) {
+        if(node < 0 || node >= pools.length - 1)
+            throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", node, pools.length - 1));
+        return acquire(capacity, node);
+    }
+
+    /**
+     * Allocate a buffer on the node where the current thread is running
+     * @param capacity byte size
+     * @return buffer. Call {@link NumaBuffer#release()} after use
+     */
+    public NumaBuffer allocateLocal(int capacity) {
+        int node = Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS);
+        return acquire(capacity, node < pools.length - 1 ? node : 0);
+    }
+
+    /**
+     * Allocate a buffer interleaved on all nodes
+     * @param capacity byte size
+     * @return buffer. Call {@link NumaBuffer#release()} after use
+     */
+    public NumaBuffer allocateInterleaved(int capacity) {
+        return acquire(capacity, pools.length - 1);
+    }
+
+    /**
+     * Return the memory of unreachable buffers to the pool.
+     * @return the number of reclaimed buffers
+     */
+    public int reclaim() {
+        int count = 0;
+        Reference<? extends NumaBuffer> ref;
+        while((ref = queue.poll()) != null) {
+            Recycler r = (Recycler) ref;
+            if(!r.recycled.get()) {
+                pools[r.poolIndex].reclaimed.incrementAndGet();
+                r.recycle();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param node numa node
+     * @return byte size of the free buffers pooled in the node
+     */
+    public long pooledBytes(int node) {
+        return pools[node].pooledBytes.get();
+    }
+
+    /**
+     * @return byte size of the free interleaved buffers in the pool
+     */
+    public long pooledInterleavedBytes() {
+        return pools[pools.length - 1].pooledBytes.get();
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of buffers newly allocated on the node
+     */
+    public long allocatedCount(int node) {
+        return pools[node].allocated.get();
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of allocations served from the pool of the node
+     */
+    public long reusedCount(int node) {
+        return pools[node].reused.get();
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of buffers of the node reclaimed after becoming unreachable without being released
+     */
+    public long reclaimedCount(int node) {
+        return pools[node].reclaimed.get();
+    }
+
+    /**
+     * Release all pooled buffers. Buffers still in use are freed when they are released.
+     */
+    public void close() {
+        closed = true;
+        reclaim();
+        for(NodePool p : pools)
+            p.release();
+    }
+
+}
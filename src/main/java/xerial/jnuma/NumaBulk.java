@@ -0,0 +1,332 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * Parallel prefault, fill and copy of large memory regions. The region is split into chunks, and the chunks are processed by
+ * the workers of a {@link NumaExecutorService}, which are bound to the target node. Thus the pages of a region are touched and
+ * written by the CPUs of the node where the pages are placed. For first-touch memory allocated by {@link Numa#allocMemory(long)}
+ * or {@link Numa#allocMemoryLocal(long)}, specify {@link NumaMemorySegment#INTERLEAVED} as the target node to spread consecutive
+ * ranges of the region over the nodes.
+ *
+ * A copy to another node is pulled by the workers of the destination node chunk by chunk, so that the remote reads of
+ * the workers overlap and the writes stay local.
+ *
+ * Do not call these methods from the tasks of the same executor, since the caller waits for the tasks of the workers.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaBulk {
+
+    /**
+     * Regions smaller than this size are processed by the caller thread
+     */
+    static final long PARALLEL_THRESHOLD = 4L * 1024 * 1024;
+
+    private static class Holder {
+        static final NumaExecutorService executor = new NumaExecutorService();
+        static final NumaBulk shared = new NumaBulk(executor);
+    }
+
+    /**
+     * The executor of {@link #shared()}, which is also used by the other bulk operations such as {@link NumaSort#shared()}
+     */
+    static NumaExecutorService sharedExecutor() {
+        return Holder.executor;
+    }
+
+    /**
+     * @return the instance that uses a shared executor having as many workers as the CPUs of each node. The executor is
+     * created at the first call.
+     */
+    public static NumaBulk shared() {
+        return Holder.shared;
+    }
+
+    /**
+     * The work applied to each chunk of a region
+     */
+    private static abstract class ChunkWork {
+        abstract void run(long offset, long length);
+    }
+
+    /**
+     * A part of the region processed by the workers of a node
+     */
+    private static class Range {
+        final AtomicLong cursor;
+        final long end;
+
+        Range(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private final NumaExecutorService executor;
+    private final long chunkSize;
+    private volatile int sink;
+
+    /**
+     * Create a bulk engine that processes regions in chunks of {@link Numa#HUGE_PAGE_SIZE}
+     * @param executor the executor that runs the work on each node
+     */
+    public NumaBulk(NumaExecutorService executor) {
+        this(executor, Numa.HUGE_PAGE_SIZE);
+    }
+
+    /**
+     * Create a bulk engine
+     * @param executor the executor that runs the work on each node
+     * @param chunkSize the byte size of a unit of work, rounded up to a multiple of the page size
+     */
+    public NumaBulk(NumaExecutorService executor, long chunkSize) {
+        if(chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        long page = Numa.pageSize();
+        this.executor = executor;
+        this.chunkSize = (chunkSize + page - 1) / page * page;
+    }
+
+    /**
+     * @return the byte size of a unit of work
+     */
+    public long chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Touch all pages of the segment on the node of the segment, so that the later accesses do not cause page faults
+     * @param segment
+     */
+    public void prefault(NumaMemorySegment segment) {
+        prefault(segment.address(), segment.size(), segment.node());
+    }
+
+    /**
+     * Touch all pages of the region. The contents of the region are not changed, even if other threads are writing to the region.
+     * @param address memory address
+     * @param size byte size
+     * @param node the node whose CPUs touch the pages, or {@link NumaMemorySegment#INTERLEAVED} to spread the region over the nodes
+     */
+    public void prefault(final long address, long size, int node) {
+        final long pageSize = Numa.pageSize();
+        run(size, node, new ChunkWork() {
+            void run(long offset, long length) {
+                long end = address + offset + length;
+                // An int aligned address in the first page
+                long p = (address + offset + 3) & ~3L;
+                while(p + 4 <= end) {
+                    // Write the same value atomically to cause a write fault without changing the contents
+                    int v = unsafe.getIntVolatile(null, p);
+                    unsafe.compareAndSwapInt(null, p, v, v);
+                    p = (p + pageSize) & ~(pageSize - 1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read a byte of each page of the region, so that the pages of a read-only mapping are faulted in by the CPUs of the node
+     * @param address memory address
+     * @param size byte size
+     * @param node the node whose CPUs touch the pages, or {@link NumaMemorySegment#INTERLEAVED} to spread the region over the nodes
+     */
+    public void prefaultReadOnly(long address, long size, int node) {
+        prefaultReadOnly(address, size, targetNodes(node));
+    }
+
+    /**
+     * Read a byte of each page of the region. Consecutive ranges of the region are read by the workers of the given nodes.
+     */
+    void prefaultReadOnly(final long address, long size, int[] nodes) {
+        final long pageSize = Numa.pageSize();
+        run(size, nodes, new ChunkWork() {
+            void run(long offset, long length) {
+                long end = address + offset + length;
+                int sum = 0;
+                for(long p = address + offset; p < end; p = (p + pageSize) & ~(pageSize - 1))
+                    sum += unsafe.getByte(p);
+                // Keep the reads from being eliminated
+                sink = sum;
+            }
+        });
+    }
+
+    /**
+     * Fill the region of the segment with the byte value on the node of the segment
+     * @param segment
+     * @param offset byte offset in the segment
+     * @param length byte length
+     * @param value
+     */
+    public void fill(NumaMemorySegment segment, long offset, long length, byte value) {
+        checkBounds(segment, offset, length);
+        fill(segment.address() + offset, length, value, segment.node());
+    }
+
+    /**
+     * Fill the region with the byte value
+     * @param address memory address
+     * @param length byte length
+     * @param value
+     * @param node the node whose CPUs write the region, or {@link NumaMemorySegment#INTERLEAVED} to spread the region over the nodes
+     */
+    public void fill(final long address, long length, final byte value, int node) {
+        run(length, node, new ChunkWork() {
+            void run(long offset, long length) {
+                Numa.simulateAccess(address + offset, length);
+                unsafe.setMemory(address + offset, length, value);
+            }
+        });
+    }
+
+    /**
+     * Copy the region of a segment to another segment by the CPUs of the node of the destination
+     * @param src source segment
+     * @param srcOffset byte offset in the source
+     * @param dest destination segment
+     * @param destOffset byte offset in the destination
+     * @param length byte length to copy
+     */
+    public void copy(NumaMemorySegment src, long srcOffset, NumaMemorySegment dest, long destOffset, long length) {
+        checkBounds(src, srcOffset, length);
+        checkBounds(dest, destOffset, length);
+        copy(src.address() + srcOffset, dest.address() + destOffset, length, dest.node());
+    }
+
+    /**
+     * Copy the memory region. The regions must not overlap.
+     * @param src source address
+     * @param dest destination address
+     * @param length byte length to copy
+     * @param node the node whose CPUs copy the region, usually the node of the destination. Specify
+     * {@link NumaMemorySegment#INTERLEAVED} to spread the region over the nodes.
+     */
+    public void copy(final long src, final long dest, long length, int node) {
+        if(length > 0 && src < dest + length && dest < src + length)
+            throw new IllegalArgumentException(String.format("overlapping regions: src:0x%x dest:0x%x length:%d", src, dest, length));
+        run(length, node, new ChunkWork() {
+            void run(long offset, long length) {
+                Numa.simulateAccess(src + offset, length);
+                Numa.simulateAccess(dest + offset, length);
+                UnsafeAccess.copyMemory(null, src + offset, null, dest + offset, length);
+            }
+        });
+    }
+
+    private static void checkBounds(NumaMemorySegment segment, long offset, long length) {
+        if(offset < 0 || length < 0 || offset > segment.size() - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d size:%d", offset, length, segment.size()));
+    }
+
+    /**
+     * @return the given node, or the nodes that have CPUs for {@link NumaMemorySegment#INTERLEAVED}
+     */
+    private static int[] targetNodes(int node) {
+        NumaTopology t = Numa.topology();
+        if(node >= t.numNodes())
+            throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", node, t.numNodes()));
+        return node >= 0 ? new int[] { node } : t.nodesWithCPUs();
+    }
+
+    private void run(long size, int node, ChunkWork work) {
+        run(size, targetNodes(node), work);
+    }
+
+    private void run(long size, int[] nodes, final ChunkWork work) {
+        if(size < 0)
+            throw new IllegalArgumentException("negative size: " + size);
+        if(size < PARALLEL_THRESHOLD) {
+            work.run(0, size);
+            return;
+        }
+
+        // Split the region into consecutive ranges of the nodes
+        NumaTopology t = Numa.topology();
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for(int i=0; i<nodes.length; ++i) {
+            long start = Math.min(size, chunks * i / nodes.length * chunkSize);
+            long end = Math.min(size, chunks * (i + 1) / nodes.length * chunkSize);
+            if(start == end)
+                continue;
+            final Range range = new Range(start, end);
+            long numTasks = Math.min((end - start + chunkSize - 1) / chunkSize, Math.max(1, t.cpuCount(nodes[i])));
+            for(int k=0; k<numTasks; ++k) {
+                tasks.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for(;;) {
+                            long offset = range.cursor.getAndAdd(chunkSize);
+                            if(offset >= range.end)
+                                return;
+                            work.run(offset, Math.min(chunkSize, range.end - offset));
+                        }
+                    }
+                }, nodes[i]));
+            }
+        }
+        await(tasks);
+    }
+
+    /**
+     * Wait for the completion of all tasks, and rethrow the first error of the tasks
+     */
+    static void await(List<Future<?>> tasks) {
+        boolean interrupted = false;
+        Throwable error = null;
+        for(Future<?> f : tasks) {
+            for(;;) {
+                try {
+                    f.get();
+                    break;
+                }
+                catch(InterruptedException e) {
+                    // The workers may still be writing to the region, so wait for their completion
+                    interrupted = true;
+                }
+                catch(ExecutionException e) {
+                    if(error == null)
+                        error = e.getCause();
+                    break;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        if(error instanceof Error)
+            throw (Error) error;
+        if(error != null)
+            throw new IllegalStateException(error);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaBulk(workers:%d, chunk size:%,d)", executor.numWorkers(), chunkSize);
+    }
+}
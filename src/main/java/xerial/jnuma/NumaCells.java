@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * Cells of the sharded counters. Each node has a group of cells allocated in the memory of the node, one cell for each CPU of the node,
+ * and a thread updates the cell of the CPU it runs on, so updates do not move cache lines across nodes.
+ *
+ * If the CPUs of the nodes are unknown (e.g., {@link NoNuma}), the cells are allocated on node 0 and chosen by the hash of the thread id
+ * as {@link StripedCounter} does.
+ *
+ * @author Taro L. Saito
+ */
+final class NumaCells {
+
+    /**
+     * Cells are aligned to two cache lines, since the adjacent cache line prefetch fetches lines in pairs
+     */
+    static final int LINE = 128;
+    private static final int MAX_STRIPES = 64;
+
+    private final int cellBytes;
+    private final NumaMemorySegment[] segments;
+    private final long[] address;
+    private final int[] cellNode;
+    private final int[] sibling;
+    /**
+     * The cell index of each CPU, or null if the cells are chosen by the thread id
+     */
+    private final int[] cpuCell;
+    private final int stripeMask;
+
+    /**
+     * @param dataBytes the byte size of the data of a cell, which is rounded up to {@link #LINE}
+     */
+    NumaCells(int dataBytes) {
+        this.cellBytes = (dataBytes + LINE - 1) / LINE * LINE;
+        NumaTopology t = Numa.topology();
+        int numNodes = t.numNodes();
+        boolean byCpu = false;
+        for(int n=0; n<numNodes; ++n)
+            byCpu |= t.cpuCount(n) > 0;
+
+        int[] count = new int[numNodes];
+        for(int n=0; n<numNodes; ++n) {
+            // Nodes without CPUs have no cell
+            int c = byCpu ? t.cpuCount(n) : (n == 0 ? Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES) : 0);
+            count[n] = c <= 1 ? c : Integer.highestOneBit(c - 1) << 1;
+        }
+        int total = 0;
+        int[] start = new int[numNodes];
+        for(int n=0; n<numNodes; ++n) {
+            start[n] = total;
+            total += count[n];
+        }
+
+        this.segments = new NumaMemorySegment[numNodes];
+        this.address = new long[total];
+        this.cellNode = new int[total];
+        this.sibling = new int[total];
+        try {
+            for(int n=0; n<numNodes; ++n) {
+                if(count[n] == 0)
+                    continue;
+                segments[n] = NumaMemorySegment.allocOnNode((long) count[n] * cellBytes, n);
+                segments[n].fill(0, segments[n].size(), (byte) 0);
+                for(int i=0; i<count[n]; ++i) {
+                    int c = start[n] + i;
+                    address[c] = segments[n].address() + (long) i * cellBytes;
+                    cellNode[c] = n;
+                    sibling[c] = start[n] + ((i + 1) & (count[n] - 1));
+                }
+            }
+        }
+        catch(RuntimeException e) {
+            free();
+            throw e;
+        }
+
+        if(byCpu) {
+            this.cpuCell = new int[t.numCPUs()];
+            int[] rank = new int[numNodes];
+            for(int cpu=0; cpu<cpuCell.length; ++cpu) {
+                int n = t.cpuToNode(cpu);
+                cpuCell[cpu] = t.hasCpu(n, cpu) ? start[n] + (rank[n]++ & (count[n] - 1)) : start[n];
+            }
+            this.stripeMask = 0;
+        }
+        else {
+            this.cpuCell = null;
+            this.stripeMask = count[0] - 1;
+        }
+    }
+
+    /**
+     * @return the cell index of the current thread
+     */
+    int index() {
+        if(cpuCell == null) {
+            long id = Thread.currentThread().getId();
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & stripeMask;
+        }
+        int cpu = Numa.currentCpu(Numa.DEFAULT_STALENESS_NANOS);
+        return cpu >= 0 && cpu < cpuCell.length ? cpuCell[cpu] : 0;
+    }
+
+    /**
+     * @return the next cell of the same node, used when the cell is contended
+     */
+    int sibling(int index) {
+        return sibling[index];
+    }
+
+    /**
+     * @return the memory address of the cell
+     */
+    long address(int index) {
+        return address[index];
+    }
+
+    /**
+     * @return the node of the cell
+     */
+    int node(int index) {
+        return cellNode[index];
+    }
+
+    /**
+     * @return the number of cells
+     */
+    int size() {
+        return address.length;
+    }
+
+    int numNodes() {
+        return segments.length;
+    }
+
+    int cellBytes() {
+        return cellBytes;
+    }
+
+    /**
+     * Add the delta to the long value at the address. The CAS rarely fails because threads update the cell of their own CPU.
+     * @return false if the CAS failed
+     */
+    static boolean tryAdd(long address, long delta) {
+        long v = unsafe.getLongVolatile(null, address);
+        return unsafe.compareAndSwapLong(null, address, v, v + delta);
+    }
+
+    /**
+     * Add the delta to the long value at the address, retrying on the same address until the CAS succeeds.
+     * Use this method when the delta must be taken back from the same cell later.
+     */
+    static void addAt(long address, long delta) {
+        while(!tryAdd(address, delta)) {
+            // retry
+        }
+    }
+
+    /**
+     * Add the delta to the long value at the offset of the current cell. If the cell is contended, the sibling cells are tried.
+     */
+    void add(long offset, long delta) {
+        int index = index();
+        while(!tryAdd(address[index] + offset, delta))
+            index = sibling[index];
+    }
+
+    /**
+     * @return the sum of the long values at the offset of all cells
+     */
+    long sum(long offset) {
+        long sum = 0;
+        for(long a : address)
+            sum += unsafe.getLongVolatile(null, a + offset);
+        return sum;
+    }
+
+    /**
+     * @return the sum of the long values at the offset of the cells of the node
+     */
+    long sum(long offset, int node) {
+        long sum = 0;
+        for(int i=0; i<address.length; ++i)
+            if(cellNode[i] == node)
+                sum += unsafe.getLongVolatile(null, address[i] + offset);
+        return sum;
+    }
+
+    /**
+     * Set the long value at the offset of all cells
+     */
+    void set(long offset, long value) {
+        for(long a : address)
+            unsafe.putLongVolatile(null, a + offset, value);
+    }
+
+    void free() {
+        for(NumaMemorySegment s : segments)
+            if(s != null)
+                s.free();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * A counter sharded over NUMA nodes. Unlike LongAdder, which stripes the cells by a hash, the cells of this counter are placed
+ * in the memory of each node and updated by the threads running on the CPUs of the node. Updates stay in the caches of the local node,
+ * and reads sum up the cells of all nodes.
+ *
+ * You must release the counter by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public final class NumaCounter {
+
+    private final NumaCells cells = new NumaCells(8);
+
+    public void add(long delta) {
+        cells.add(0, delta);
+    }
+
+    public void increment() {
+        cells.add(0, 1);
+    }
+
+    public void decrement() {
+        cells.add(0, -1);
+    }
+
+    /**
+     * @return the sum of the cells. Concurrent updates during the read may or may not be included.
+     */
+    public long sum() {
+        return cells.sum(0);
+    }
+
+    /**
+     * @param node numa node
+     * @return the sum of the updates from the CPUs of the node
+     */
+    public long sum(int node) {
+        return cells.sum(0, node);
+    }
+
+    /**
+     * Reset the cells to zero. Concurrent updates during the reset may be lost.
+     */
+    public void reset() {
+        cells.set(0, 0);
+    }
+
+    /**
+     * Release the memory of this counter
+     */
+    public void free() {
+        cells.free();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An executor service that has a group of worker threads for each NUMA node. Worker threads are bound to the CPUs of their node,
+ * and prefer allocating memory on the node by {@link Numa#bindCurrentThread(int, MemoryPolicy, long[])}.
+ *
+ * Tasks can be submitted to a specific node, or to the node where the data lives through {@link NumaResident}.
+ * An idle worker steals tasks from the queues of the other nodes, nearest node first in terms of {@link Numa#distance(int, int)}.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaExecutorService extends AbstractExecutorService {
+
+    /**
+     * The maximum time for an idle worker to park. Idle workers are woken up by the submitters of tasks before this timeout.
+     */
+    private static final long IDLE_PARK_NANOS = 100L * 1000 * 1000;
+
+    private class Worker extends Thread {
+        private final int node;
+        private final int index;
+        /**
+         * True while this worker is in the idle queue of its node
+         */
+        private final AtomicBoolean idle = new AtomicBoolean(false);
+
+        Worker(int node, int index) {
+            super(String.format("jnuma-node%d-worker%d", node, index));
+            this.node = node;
+            this.index = index;
+            setDaemon(true);
+        }
+
+        NumaExecutorService executor() {
+            return NumaExecutorService.this;
+        }
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            try {
+                bind(node);
+                runTasks(this);
+                completed = true;
+            }
+            finally {
+                // An Error thrown by a task terminates this thread. Start a new worker in place of it, as ThreadPoolExecutor does.
+                if(completed || shutdown || !replace(this))
+                    terminationLatch.countDown();
+            }
+        }
+    }
+
+    private final int numNodes;
+    private final BlockingQueue<Runnable>[] queues;
+    /**
+     * Parked workers of each node
+     */
+    private final ConcurrentLinkedQueue<Worker>[] idleWorkers;
+    /**
+     * Node numbers ordered by the distance from each node. The first entry is the node itself.
+     */
+    private final int[][] stealOrder;
+    /**
+     * The nearest node that has workers for each node
+     */
+    private final int[] targetNode;
+    private final int[] workerNodes;
+    private final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    private final CountDownLatch terminationLatch;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create a new executor that has as many workers as the CPUs of each node
+     */
+    public NumaExecutorService() {
+        this(0);
+    }
+
+    /**
+     * Create a new executor
+     * @param threadsPerNode the number of worker threads of each node. If 0, the number of CPUs of each node is used.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NumaExecutorService(int threadsPerNode) {
+        if(threadsPerNode < 0)
+            throw new IllegalArgumentException("negative number of threads: " + threadsPerNode);
+        this.numNodes = Numa.numNodes();
+        this.queues = new BlockingQueue[numNodes];
+        this.idleWorkers = new ConcurrentLinkedQueue[numNodes];
+        for(int i=0; i<numNodes; ++i) {
+            queues[i] = new LinkedBlockingQueue<Runnable>();
+            idleWorkers[i] = new ConcurrentLinkedQueue<Worker>();
+        }
+        NumaTopology topology = Numa.topology();
+        this.stealOrder = new int[numNodes][];
+        for(int i=0; i<numNodes; ++i)
+            stealOrder[i] = topology.nearestNodes(i);
+
+        this.workerNodes = topology.nodesWithCPUs();
+        boolean[] hasWorker = new boolean[numNodes];
+        for(int node : workerNodes)
+            hasWorker[node] = true;
+        this.targetNode = new int[numNodes];
+        for(int i=0; i<numNodes; ++i) {
+            for(int n : stealOrder[i]) {
+                if(hasWorker[n]) {
+                    targetNode[i] = n;
+                    break;
+                }
+            }
+        }
+
+        List<Worker> newWorkers = new ArrayList<Worker>();
+        for(int node : workerNodes) {
+            int n = threadsPerNode > 0 ? threadsPerNode : Math.max(1, topology.cpuCount(node));
+            for(int i=0; i<n; ++i)
+                newWorkers.add(new Worker(node, i));
+        }
+        workers.addAll(newWorkers);
+        this.terminationLatch = new CountDownLatch(workers.size());
+        for(Worker w : workers)
+            w.start();
+    }
+
+    /**
+     * Start a new worker in place of the terminated one
+     * @return true if the new worker is started
+     */
+    private boolean replace(Worker w) {
+        try {
+            Worker r = new Worker(w.node, w.index);
+            workers.set(workers.indexOf(w), r);
+            r.start();
+            return true;
+        }
+        catch(Throwable e) {
+            return false;
+        }
+    }
+
+    private static void bind(int node) {
+        try {
+            Numa.bindCurrentThread(node, MemoryPolicy.PREFERRED, null);
+        }
+        catch(Exception e) {
+            // Keep running the worker without binding
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Take a task from the queue of the node, or steal one from the nearest node
+     */
+    private Runnable nextTask(int[] order) {
+        Runnable task = null;
+        for(int i=0; task == null && i<order.length; ++i)
+            task = queues[order[i]].poll();
+        return task;
+    }
+
+    private void runTasks(Worker w) {
+        int[] order = stealOrder[w.node];
+        ConcurrentLinkedQueue<Worker> idle = idleWorkers[w.node];
+        for(;;) {
+            Runnable task = nextTask(order);
+            if(task == null) {
+                if(shutdown)
+                    return;
+                w.idle.set(true);
+                idle.offer(w);
+                // A task submitted before this worker became idle does not wake it up
+                task = nextTask(order);
+                if(task == null && !shutdown)
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                if(w.idle.compareAndSet(true, false))
+                    idle.remove(w);
+                // Clear the interrupt by shutdownNow(), otherwise parkNanos returns immediately
+                if(Thread.interrupted() && shutdown && task == null)
+                    return;
+            }
+            if(task != null) {
+                try {
+                    task.run();
+                }
+                catch(RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the numa node of the current thread if it is a worker of this executor, otherwise -1
+     */
+    private int currentWorkerNode() {
+        Thread t = Thread.currentThread();
+        if(t instanceof Worker && ((Worker) t).executor() == this)
+            return ((Worker) t).node;
+        return -1;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int numWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * Run the task on a worker of this executor. If the caller is a worker, the task is queued to the node of the caller,
+     * otherwise the nodes are chosen in a round-robin manner.
+     * @param task
+     */
+    public void execute(Runnable task) {
+        int node = currentWorkerNode();
+        if(node < 0)
+            node = workerNodes[(roundRobin.getAndIncrement() & Integer.MAX_VALUE) % workerNodes.length];
+        execute(task, node);
+    }
+
+    /**
+     * Run the task on a worker of the specified node. If the node has no CPU, the task goes to the nearest node.
+     * @param task
+     * @param node numa node
+     */
+    public void execute(Runnable task, int node) {
+        if(task == null)
+            throw new NullPointerException();
+        if(node < 0 || node >= numNodes)
+            throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", node, numNodes));
+        if(shutdown)
+            throw new RejectedExecutionException("executor is already shut down");
+        int target = targetNode[node];
+        BlockingQueue<Runnable> q = queues[target];
+        q.offer(task);
+        // Workers may have terminated after the shutdown check
+        if(shutdown && q.remove(task))
+            throw new RejectedExecutionException("executor is already shut down");
+        wakeUp(target);
+    }
+
+    /**
+     * Wake up an idle worker of the node. If all workers of the node are busy, wake up an idle worker of the nearest node
+     * to steal the task.
+     */
+    private void wakeUp(int node) {
+        for(int n : stealOrder[node]) {
+            Worker w;
+            while((w = idleWorkers[n].poll()) != null) {
+                if(w.idle.compareAndSet(true, false)) {
+                    LockSupport.unpark(w);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Submit the task to a worker of the specified node
+     * @param task
+     * @param node numa node
+     * @return future of the task result
+     */
+    public <T> Future<T> submit(Callable<T> task, int node) {
+        RunnableFuture<T> f = newTaskFor(task);
+        execute(f, node);
+        return f;
+    }
+
+    /**
+     * Submit the task to a worker of the specified node
+     * @param task
+     * @param node numa node
+     * @return future of the task
+     */
+    public Future<?> submit(Runnable task, int node) {
+        RunnableFuture<Object> f = newTaskFor(task, null);
+        execute(f, node);
+        return f;
+    }
+
+    /**
+     * Submit the task to a worker of the node where the data lives. If the data is not bound to a node, any worker runs the task.
+     * @param task
+     * @param data
+     * @return future of the task result
+     */
+    public <T> Future<T> submit(Callable<T> task, NumaResident data) {
+        int node = data.node();
+        if(node < 0 || node >= numNodes) {
+            RunnableFuture<T> f = newTaskFor(task);
+            execute(f);
+            return f;
+        }
+        return submit(task, node);
+    }
+
+    /**
+     * Submit the task to a worker of the node where the data lives. If the data is not bound to a node, any worker runs the task.
+     * @param task
+     * @param data
+     * @return future of the task
+     */
+    public Future<?> submit(Runnable task, NumaResident data) {
+        int node = data.node();
+        if(node < 0 || node >= numNodes)
+            return submit(task);
+        return submit(task, node);
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for(Worker w : workers)
+            LockSupport.unpark(w);
+    }
+
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> remaining = new ArrayList<Runnable>();
+        for(BlockingQueue<Runnable> q : queues)
+            q.drainTo(remaining);
+        for(Worker w : workers)
+            w.interrupt();
+        return remaining;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return shutdown && terminationLatch.getCount() == 0;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminationLatch.await(timeout, unit);
+    }
+}
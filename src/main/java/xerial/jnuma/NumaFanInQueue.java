@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * A queue of long values that gathers values from producers on any node into a single consumer. The queue has a
+ * {@link NumaMpscRing} for each producer node, and all of the rings are placed on the node of the consumer. Producers on the same node
+ * share a ring, so the CAS on the tail counter contends only within the node, and the consumer reads only its local memory.
+ *
+ * You must release the queue by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaFanInQueue implements NumaResident {
+
+    private final int node;
+    private final NumaMpscRing[] rings;
+    /**
+     * The ring to read first in the next poll. Only the consumer thread updates this field.
+     */
+    private int next = 0;
+    private final long[] takeBuffer = new long[1];
+
+    /**
+     * Create a new queue for the consumer running on the specified node
+     * @param capacityPerNode the number of slots of the ring of each producer node, rounded up to a power of two
+     * @param node the node of the consumer
+     */
+    public NumaFanInQueue(int capacityPerNode, int node) {
+        int numNodes = Numa.numNodes();
+        this.rings = new NumaMpscRing[numNodes];
+        try {
+            for(int i=0; i<numNodes; ++i)
+                rings[i] = NumaMpscRing.allocOnNode(capacityPerNode, node);
+        }
+        catch(RuntimeException e) {
+            free();
+            throw e;
+        }
+        this.node = rings[0].node();
+    }
+
+    /**
+     * Insert the value into the ring of the node where the current thread runs
+     * @param value
+     * @return false if the ring is full
+     */
+    public boolean offer(long value) {
+        return rings[Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS)].offer(value);
+    }
+
+    /**
+     * Insert the value into the ring of the specified producer node. Use this method if the producer knows its node.
+     * @param value
+     * @param producerNode the node of the producer
+     * @return false if the ring is full
+     */
+    public boolean offer(long value, int producerNode) {
+        return rings[producerNode].offer(value);
+    }
+
+    /**
+     * Insert the value, waiting until a slot becomes free
+     * @param value
+     * @throws InterruptedException
+     */
+    public void put(long value) throws InterruptedException {
+        NumaMpscRing ring = rings[Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS)];
+        for(int tries=0; !ring.offer(value); ++tries)
+            NumaLongRing.idle(tries);
+    }
+
+    /**
+     * Remove a value. The rings are visited in a round-robin manner, so that a busy node does not starve the others.
+     * Only the consumer thread can call this method.
+     * @param ifEmpty the value to return if all rings are empty
+     * @return a value, or ifEmpty if the queue is empty
+     */
+    public long poll(long ifEmpty) {
+        return drainTo(takeBuffer, 0, 1) == 1 ? takeBuffer[0] : ifEmpty;
+    }
+
+    /**
+     * Remove a value, waiting until a value arrives. Only the consumer thread can call this method.
+     * @return a value
+     * @throws InterruptedException
+     */
+    public long take() throws InterruptedException {
+        for(int tries=0; drainTo(takeBuffer, 0, 1) == 0; ++tries)
+            NumaLongRing.idle(tries);
+        return takeBuffer[0];
+    }
+
+    /**
+     * Remove the values of all rings. Only the consumer thread can call this method.
+     * @param dest destination array
+     * @param offset offset in the array
+     * @param length the max number of values to remove
+     * @return the number of removed values
+     */
+    public int drainTo(long[] dest, int offset, int length) {
+        NumaArray.checkArrayRange(dest.length, offset, length);
+        int n = 0;
+        for(int i=0; i<rings.length && n < length; ++i) {
+            n += rings[next].drainTo(dest, offset + n, length - n);
+            if(++next == rings.length)
+                next = 0;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of values in the queue. The value may be stale when the other threads are using the queue.
+     */
+    public int size() {
+        int size = 0;
+        for(NumaMpscRing r : rings)
+            size += r.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the node of the consumer, where the rings are placed
+     */
+    public int node() {
+        return node;
+    }
+
+    /**
+     * Release the memory of this queue
+     */
+    public void free() {
+        for(NumaMpscRing r : rings)
+            if(r != null)
+                r.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaFanInQueue(rings:%d, size:%,d, node:%d)", rings.length, size(), node);
+    }
+}
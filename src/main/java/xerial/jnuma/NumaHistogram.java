@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A histogram of long values sharded over NUMA nodes. Each thread records values into the buckets of its CPU in the memory of the
+ * local node, and reads combine the buckets of all nodes.
+ *
+ * Buckets are log-linear: values below 2^precision have a bucket for each value, and each power-of-two range above is split into
+ * 2^precision buckets, so the relative error of a bucket is at most 2^-precision. Negative values are recorded as 0.
+ *
+ * You must release the histogram by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public final class NumaHistogram {
+
+    public static final int DEFAULT_PRECISION = 3;
+    public static final int MAX_PRECISION = 8;
+
+    /**
+     * Cell layout: {count, sum, buckets...}
+     */
+    private static final long COUNT = 0;
+    private static final long SUM = 8;
+    private static final long BUCKETS = 16;
+
+    private final int precision;
+    private final int numBuckets;
+    private final NumaCells cells;
+
+    public NumaHistogram() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the number of bits to split each power-of-two range, in [0, {@link #MAX_PRECISION}]
+     */
+    public NumaHistogram(int precision) {
+        if(precision < 0 || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("precision must be in [0, " + MAX_PRECISION + "]: " + precision);
+        this.precision = precision;
+        this.numBuckets = (64 - precision) << precision;
+        this.cells = new NumaCells((int) BUCKETS + numBuckets * 8);
+    }
+
+    /**
+     * @param value
+     * @return the bucket index of the value
+     */
+    public int bucket(long value) {
+        if(value < (1L << precision))
+            return value < 0 ? 0 : (int) value;
+        int e = 63 - Long.numberOfLeadingZeros(value);
+        return ((e - precision + 1) << precision) + (int) ((value >>> (e - precision)) & ((1 << precision) - 1));
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return the smallest value of the bucket
+     */
+    public long lowerBound(int bucket) {
+        if(bucket < (1 << precision))
+            return bucket;
+        int e = (bucket >>> precision) + precision - 1;
+        long sub = bucket & ((1 << precision) - 1);
+        return ((1L << precision) + sub) << (e - precision);
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return the largest value of the bucket
+     */
+    public long upperBound(int bucket) {
+        return bucket + 1 >= numBuckets ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int numBuckets() {
+        return numBuckets;
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Record the value count times
+     * @param value
+     * @param count
+     */
+    public void record(long value, long count) {
+        long offset = BUCKETS + ((long) bucket(value) << 3);
+        int index = cells.index();
+        while(!NumaCells.tryAdd(cells.address(index) + offset, count))
+            index = cells.sibling(index);
+        while(!NumaCells.tryAdd(cells.address(index) + COUNT, count))
+            index = cells.sibling(index);
+        while(!NumaCells.tryAdd(cells.address(index) + SUM, (value < 0 ? 0 : value) * count))
+            index = cells.sibling(index);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long count() {
+        return cells.sum(COUNT);
+    }
+
+    /**
+     * @return the sum of recorded values
+     */
+    public long sum() {
+        return cells.sum(SUM);
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if no value is recorded
+     */
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0.0 : (double) sum() / count;
+    }
+
+    /**
+     * @return the counts of all buckets combined over the nodes
+     */
+    public long[] counts() {
+        return counts(-1);
+    }
+
+    /**
+     * @param node numa node, or -1 for all nodes
+     * @return the counts of the buckets recorded by the CPUs of the node
+     */
+    public long[] counts(int node) {
+        long[] result = new long[numBuckets];
+        for(int i=0; i<cells.size(); ++i) {
+            if(node >= 0 && cells.node(i) != node)
+                continue;
+            long a = cells.address(i) + BUCKETS;
+            for(int b=0; b<numBuckets; ++b)
+                result[b] += unsafe.getLongVolatile(null, a + ((long) b << 3));
+        }
+        return result;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return the upper bound of the bucket that contains the quantile, or 0 if no value is recorded
+     */
+    public long percentile(double quantile) {
+        if(quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("quantile must be in [0, 1]: " + quantile);
+        long[] counts = counts();
+        long total = 0;
+        for(long c : counts)
+            total += c;
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long cumulative = 0;
+        for(int b=0; b<numBuckets; ++b) {
+            cumulative += counts[b];
+            if(cumulative >= rank)
+                return upperBound(b);
+        }
+        return upperBound(numBuckets - 1);
+    }
+
+    /**
+     * Reset all buckets. Concurrent updates during the reset may be lost.
+     */
+    public void reset() {
+        for(int i=0; i<cells.size(); ++i)
+            unsafe.setMemory(cells.address(i), cells.cellBytes(), (byte) 0);
+    }
+
+    /**
+     * Release the memory of this histogram
+     */
+    public void free() {
+        cells.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaHistogram(count:%,d, mean:%.2f, p50:%,d, p99:%,d)", count(), mean(), percentile(0.5), percentile(0.99));
+    }
+}
@@ -19,8 +19,8 @@ package xerial.jnuma;
 import java.nio.ByteBuffer;
 
 /**
- * NUMA API Interface. This interface is used when loading native class in the root class loader, so you are not allowed to use
- * this class. If you describe this class in an import statement or source codes, loading the native class ({@link xerial.jnuma.Numa}) will fail.
+ * NUMA API Interface implemented by the native code ({@link NumaNative}) and the fallback ({@link NoNuma}).
+ * Use static methods in {@link xerial.jnuma.Numa} instead of calling this interface directly.
  * @author leo
  */
 public interface NumaInterface {
@@ -39,20 +39,80 @@ public interface NumaInterface {
     public void setAffinity(int pid, long[] cpuBitMask, int numCPUs);
 
     public int preferredNode();
+
+    /**
+     * Returns the CPU number on which the calling thread is running
+     * @return cpu number
+     */
+    public int currentCpu();
+
     public void setLocalAlloc();
 
     public void setPreferred(int node);
     public void runOnNode(int node);
 
+    /**
+     * Bind the current thread to the CPUs and set the memory policy of the thread in a single call.
+     * The previous state of the thread is saved to the given array so that {@link #restoreThread(long[])} can undo the binding.
+     * @param cpuMask CPU bit mask
+     * @param mode memory policy mode
+     * @param nodeMask node bit mask of the memory policy
+     * @param previous array of Numa.THREAD_STATE_WORDS to save the previous state, or null not to save it
+     */
+    public void bindThread(long[] cpuMask, int mode, long[] nodeMask, long[] previous);
+
+    /**
+     * Restore the CPU affinity and memory policy of the current thread saved by {@link #bindThread(long[], int, long[], long[])}
+     * @param previous saved state
+     */
+    public void restoreThread(long[] previous);
+
     public void toNodeMemory(Object array, int length, int node);
 
     //public void bind(long[] nodeMask);
 
+    /**
+     * @return the page size of the system
+     */
+    public int pageSize();
+
+    /**
+     * Query the numa nodes of the pages starting from the page-aligned address. The status of each page is stored in the status array:
+     * node number if the page is present, or a negative error code (e.g., -ENOENT if the page is not allocated yet).
+     * @param address page-aligned memory address
+     * @param status the status of status.length pages are stored
+     */
+    public void getPageNodes(long address, int[] status);
+
+    /**
+     * Move the pages starting from the page-aligned address to the specified node. The resulting node or a negative error code
+     * of each page is stored in the status array.
+     * @param address page-aligned memory address
+     * @param node destination node
+     * @param status the status of status.length pages are stored
+     */
+    public void movePages(long address, int node, int[] status);
+
+    /**
+     * Set the memory policy of the memory range
+     * @param address page-aligned memory address
+     * @param length byte length
+     * @param mode memory policy mode (MPOL_DEFAULT, MPOL_PREFERRED, MPOL_BIND, MPOL_INTERLEAVE, MPOL_LOCAL)
+     * @param nodeMask bit mask of nodes
+     * @param flags MPOL_MF_* flags
+     */
+    public void mbind(long address, long length, int mode, long[] nodeMask, int flags);
+
+    /**
+     * Allocate a new ByteBuffer using the current memory policy
+     * @param capacity
+     * @return the allocated buffer, or null if the allocation fails
+     */
     public ByteBuffer alloc(int capacity);
     /**
      * Allocate a new ByteBuffer on local NUMA node
      * @param capacity
-     * @return
+     * @return the allocated buffer, or null if the allocation fails
      */
     public ByteBuffer allocLocal(int capacity);
 
@@ -60,19 +120,66 @@ public interface NumaInterface {
      * Allocate a new ByteBuffer on the specified NUMA node
      * @param capacity
      * @param node
-     * @return
+     * @return the allocated buffer, or null if the allocation fails
      */
     public ByteBuffer allocOnNode(int capacity, int node);
+    /**
+     * Allocate a new ByteBuffer interleaved on multiple NUMA nodes
+     * @param capacity
+     * @return the allocated buffer, or null if the allocation fails
+     */
     public ByteBuffer allocInterleaved(int capacity);
 
 
     /**
      * Allocate a new memory of the size of the given capacity.
      * @param capacity
-     * @return the allocated memory address
+     * @return the allocated memory address, or 0 if the allocation fails
      */
     public long allocMemory(long capacity);
 
+    /**
+     * Allocate a new memory on the local NUMA node.
+     * @param capacity
+     * @return the allocated memory address, or 0 if the allocation fails
+     */
+    public long allocMemoryLocal(long capacity);
+
+    /**
+     * Allocate a new memory on the specified NUMA node.
+     * @param capacity
+     * @param node
+     * @return the allocated memory address, or 0 if the allocation fails
+     */
+    public long allocMemoryOnNode(long capacity, int node);
+
+    /**
+     * Allocate a new memory interleaved on multiple NUMA nodes.
+     * @param capacity
+     * @return the allocated memory address, or 0 if the allocation fails
+     */
+    public long allocMemoryInterleaved(long capacity);
+
+    /**
+     * Allocate a new memory backed by huge pages. The memory is mapped with MAP_HUGETLB if the huge page pool has enough pages,
+     * otherwise transparent huge pages are requested with madvise(MADV_HUGEPAGE). Release the memory with {@link #free(long, long)}
+     * by passing the capacity rounded up to the huge page size.
+     * @param capacity byte size, which must be a multiple of the huge page size
+     * @param node numa node to bind the memory. If negative, the memory is interleaved on all nodes.
+     * @param hugePageSize huge page size
+     * @param backing the output of the obtained backing: {page size, 0:base pages, 1:transparent huge pages, 2:hugetlb pages}
+     * @return the allocated memory address, or 0 if the allocation fails
+     */
+    public long allocHugePages(long capacity, int node, long hugePageSize, int[] backing);
+
+    /**
+     * Create a ByteBuffer that refers to the memory at the given address. The returned buffer must not be released by {@link #free(java.nio.ByteBuffer)}.
+     * @param address
+     * @param capacity
+     * @return
+     */
+    public ByteBuffer directBuffer(long address, int capacity);
+
     /**
      * Free the allocated memory
      * @param address
@@ -85,4 +192,28 @@ public interface NumaInterface {
      */
     public void free(ByteBuffer buf);
 
+    /**
+     * Map a range of a file into memory for reading
+     * @param path file path
+     * @param offset file offset, which must be a multiple of the page size
+     * @param length byte length
+     * @return the mapped memory address, or 0 if the mapping fails
+     */
+    public long mapFile(String path, long offset, long length);
+
+    /**
+     * Unmap the memory mapped by {@link #mapFile(String, long, long)}
+     * @param address
+     * @param length
+     */
+    public void unmapFile(long address, long length);
+
+    /**
+     * Give a hint of the access pattern of the memory range by madvise(2)
+     * @param address page-aligned memory address
+     * @param length byte length
+     * @param advice MADV_* value
+     */
+    public void madvise(long address, long length, int advice);
+
 }
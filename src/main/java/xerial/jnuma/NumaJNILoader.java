@@ -16,27 +16,249 @@
 
 package xerial.jnuma;
 
-import java.util.HashSet;
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
 
 /**
- * This class will be used only when loading NUMA　native library. Do not reference this class in an import statement or source codes.
+ * Loads the native library of jnuma. The bundled library is extracted to a file named after its SHA-1 hash, which is generated
+ * at build time as a resource next to the library. The extraction is skipped if the folder already has the library of the same hash.
+ * A new file is written to a temporary name and renamed, so JVMs sharing the folder never see a partially written library.
+ *
+ * The library is extracted into a folder private to the user (jnuma-&lt;user name&gt; with 0700 permissions) under the temporary folder.
+ * An extracted library is loaded only if the folder and the file are owned by the current user, are not writable by the others, and
+ * the SHA-1 hash of the file matches. If the private folder cannot be trusted, a new temporary folder is used.
+ *
+ * The following system properties change the behavior:
+ * <ul>
+ * <li>xerial.jnuma.use.systemlib=true: load libjnuma.so from java.library.path instead of the bundled one</li>
+ * <li>xerial.jnuma.tempdir: the folder to create the private folder. The default is java.io.tmpdir</li>
+ * </ul>
  *
  * @author Taro L. Saito
  */
-public class NumaJNILoader {
-    private static HashSet<String> loadedLib = new HashSet<String>();
+class NumaJNILoader {
 
-    public static synchronized void load(String libPath) {
-        if(loadedLib.contains(libPath))
+    private static final String LIBRARY_RESOURCE = "/xerial/jnuma/native/libjnuma.so";
+    private static final String HASH_RESOURCE = LIBRARY_RESOURCE + ".sha1";
+    private static final Set<PosixFilePermission> PRIVATE_DIR = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> PRIVATE_LIB = PosixFilePermissions.fromString("r-x------");
+
+    /**
+     * Load the native library
+     * @throws IOException if the bundled library cannot be extracted
+     * @throws UnsatisfiedLinkError if the library cannot be loaded
+     */
+    static void load() throws IOException {
+        if(Boolean.parseBoolean(System.getProperty("xerial.jnuma.use.systemlib", "false"))) {
+            System.loadLibrary("jnuma");
             return;
+        }
+
+        File libFile = extract(new File(System.getProperty("xerial.jnuma.tempdir", System.getProperty("java.io.tmpdir"))));
+        try {
+            System.load(libFile.getAbsolutePath());
+        }
+        catch(UnsatisfiedLinkError e) {
+            if(e.getMessage() == null || !e.getMessage().contains("already loaded in another classloader"))
+                throw e;
+            // A JVM can load a native library file in only one class loader. Load a private copy for this class loader.
+            File copy = File.createTempFile("libjnuma-", ".so", libFile.getParentFile());
+            copy.deleteOnExit();
+            copyFile(libFile, copy);
+            System.load(copy.getAbsolutePath());
+        }
+    }
+
+    private static File extract(File baseDir) throws IOException {
+        String hash = libraryHash();
+        UserPrincipal user = currentUser();
+        Path dir = privateDir(baseDir.toPath(), user);
+        Path lib = dir.resolve(String.format("libjnuma-%s.so", hash));
+        if(Files.exists(lib, LinkOption.NOFOLLOW_LINKS)) {
+            // Only this user can write to the folder, and the library is verified before it is renamed to the hash-named file
+            if(isPrivate(lib, user))
+                return lib.toFile();
+            // The folder is private, so the file is left by this user with wrong permissions
+            Files.delete(lib);
+        }
+
+        Path tmp = Files.createTempFile(dir, "libjnuma-", ".tmp");
+        try {
+            String written = writeResource(LIBRARY_RESOURCE, tmp);
+            if(!hash.equals(written))
+                throw new IOException(String.format("SHA-1 of %s is %s, but %s is expected", LIBRARY_RESOURCE, written, hash));
+            Files.setPosixFilePermissions(tmp, PRIVATE_LIB);
+            Files.move(tmp, lib, StandardCopyOption.ATOMIC_MOVE);
+            // Remove the library in a fallback folder together with the folder
+            if(!dir.equals(userDir(baseDir.toPath())))
+                lib.toFile().deleteOnExit();
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+        return lib.toFile();
+    }
+
+    /**
+     * @return jnuma-(user name) under the base folder if it is private to the user, otherwise a new temporary folder
+     */
+    private static Path userDir(Path baseDir) {
+        return baseDir.resolve("jnuma-" + System.getProperty("user.name", "unknown").replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    private static Path privateDir(Path baseDir, UserPrincipal user) throws IOException {
+        Path dir = userDir(baseDir);
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PRIVATE_DIR));
+        }
+        catch(IOException e) {
+            // The folder already exists or cannot be created. Check the existing one below.
+        }
+        if(Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) && isPrivate(dir, user))
+            return dir;
+        Path tmp = Files.createTempDirectory(baseDir, "jnuma-", PosixFilePermissions.asFileAttribute(PRIVATE_DIR));
+        tmp.toFile().deleteOnExit();
+        return tmp;
+    }
+
+    /**
+     * @return true if the path is not a symbolic link, is owned by the user, and is not writable by the others
+     */
+    private static boolean isPrivate(Path path, UserPrincipal user) {
+        try {
+            if(Files.isSymbolicLink(path) || !user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS)))
+                return false;
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            return !perms.contains(PosixFilePermission.GROUP_WRITE) && !perms.contains(PosixFilePermission.OTHERS_WRITE);
+        }
+        catch(IOException e) {
+            return false;
+        }
+        catch(UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static UserPrincipal currentUser() throws IOException {
+        // /proc/self is owned by the effective user of this process
+        Path self = Paths.get("/proc/self");
+        if(Files.exists(self))
+            return Files.getOwner(self);
+        return FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    /**
+     * @return the SHA-1 hash of the bundled library generated at build time. If it is missing, the library resource is hashed.
+     */
+    private static String libraryHash() throws IOException {
+        InputStream in = NumaJNILoader.class.getResourceAsStream(HASH_RESOURCE);
+        if(in == null)
+            return sha1(openResource(LIBRARY_RESOURCE));
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+            String line = reader.readLine();
+            // The output of sha1sum has the file name after the hash
+            String hash = line == null ? "" : line.trim().split("\\s+")[0].toLowerCase();
+            if(!hash.matches("[0-9a-f]{40}"))
+                throw new IOException(String.format("invalid SHA-1 in %s: %s", HASH_RESOURCE, line));
+            return hash;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static InputStream openResource(String path) throws IOException {
+        InputStream in = NumaJNILoader.class.getResourceAsStream(path);
+        if(in == null)
+            throw new FileNotFoundException(path);
+        return in;
+    }
 
+    /**
+     * Write the resource to the file
+     * @return the SHA-1 hash of the written contents
+     */
+    private static String writeResource(String resource, Path file) throws IOException {
+        InputStream in = openResource(resource);
         try {
-            System.load(libPath);
-            loadedLib.add(libPath);
+            MessageDigest digest = newDigest();
+            OutputStream out = new FileOutputStream(file.toFile());
+            try {
+                byte[] buf = new byte[8192];
+                for(int ret; (ret = in.read(buf)) != -1; ) {
+                    digest.update(buf, 0, ret);
+                    out.write(buf, 0, ret);
+                }
+            }
+            finally {
+                out.close();
+            }
+            return toHex(digest.digest());
         }
-        catch(Exception e) {
-            e.printStackTrace();
+        finally {
+            in.close();
         }
     }
 
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[8192];
+                for(int ret; (ret = in.read(buf)) != -1; )
+                    out.write(buf, 0, ret);
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hash the stream and close it
+     */
+    private static String sha1(InputStream in) throws IOException {
+        try {
+            MessageDigest digest = newDigest();
+            byte[] buf = new byte[8192];
+            for(int ret; (ret = in.read(buf)) != -1; )
+                digest.update(buf, 0, ret);
+            return toHex(digest.digest());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder s = new StringBuilder();
+        for(byte b : digest)
+            s.append(String.format("%02x", b & 0xff));
+        return s.toString();
+    }
 }
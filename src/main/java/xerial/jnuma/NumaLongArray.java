@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.NoSuchElementException;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * An array of long values placed in NUMA memory. Accessors read and write the memory directly without creating any object.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaLongArray extends NumaArray {
+
+    private static final int SHIFT = 3;
+
+    /**
+     * Iterates the elements without boxing
+     */
+    public class Cursor {
+        private long index;
+        private final long end;
+
+        Cursor(long from, long to) {
+            this.index = from;
+            this.end = to;
+        }
+
+        public boolean hasNext() {
+            return index < end;
+        }
+
+        public long next() {
+            if(index >= end)
+                throw new NoSuchElementException();
+            return unsafe.getLong(address + (index++ << SHIFT));
+        }
+    }
+
+    NumaLongArray(NumaMemorySegment segment, long length) {
+        super(segment, length);
+    }
+
+    /**
+     * Allocate a new array on the specified node
+     * @param length the number of elements
+     * @param node numa node
+     * @return new array
+     */
+    public static NumaLongArray allocOnNode(long length, int node) {
+        return new NumaLongArray(NumaMemorySegment.allocOnNode(byteSize(length, SHIFT), node), length);
+    }
+
+    /**
+     * Allocate a new array interleaved on multiple NUMA nodes
+     * @param length the number of elements
+     * @return new array
+     */
+    public static NumaLongArray allocInterleaved(long length) {
+        return new NumaLongArray(NumaMemorySegment.allocInterleaved(byteSize(length, SHIFT)), length);
+    }
+
+    /**
+     * Allocate a new array on the local node
+     * @param length the number of elements
+     * @return new array
+     */
+    public static NumaLongArray allocLocal(long length) {
+        return new NumaLongArray(NumaMemorySegment.allocLocal(byteSize(length, SHIFT)), length);
+    }
+
+    public long get(long index) {
+        checkIndex(index);
+        return unsafe.getLong(address + (index << SHIFT));
+    }
+
+    public void set(long index, long value) {
+        checkIndex(index);
+        unsafe.putLong(address + (index << SHIFT), value);
+    }
+
+    /**
+     * Read the element without checking the index
+     */
+    public long getUnchecked(long index) {
+        return unsafe.getLong(address + (index << SHIFT));
+    }
+
+    /**
+     * Write the element without checking the index
+     */
+    public void setUnchecked(long index, long value) {
+        unsafe.putLong(address + (index << SHIFT), value);
+    }
+
+    /**
+     * Set all elements to the given value
+     * @param value
+     */
+    public void fill(long value) {
+        fill(0, length, value);
+    }
+
+    /**
+     * Set the elements in [from, to) to the given value
+     * @param from
+     * @param to
+     * @param value
+     */
+    public void fill(long from, long to, long value) {
+        checkRange(from, to);
+        long a = address + (from << SHIFT);
+        long end = address + (to << SHIFT);
+        for(; a < end; a += 1 << SHIFT)
+            unsafe.putLong(a, value);
+    }
+
+    /**
+     * Copy elements to another array
+     * @param index start index in this array
+     * @param dest destination array
+     * @param destIndex start index in the destination
+     * @param len the number of elements to copy
+     */
+    public void copyTo(long index, NumaLongArray dest, long destIndex, long len) {
+        checkRange(index, index + len);
+        dest.checkRange(destIndex, destIndex + len);
+        UnsafeAccess.copyMemory(null, address + (index << SHIFT), null, dest.address + (destIndex << SHIFT), len << SHIFT);
+    }
+
+    /**
+     * Copy elements to a Java array
+     * @param index start index in this array
+     * @param dest destination array
+     * @param destOffset start index in the destination
+     * @param len the number of elements to copy
+     */
+    public void copyTo(long index, long[] dest, int destOffset, int len) {
+        checkRange(index, index + len);
+        checkArrayRange(dest.length, destOffset, len);
+        UnsafeAccess.copyMemory(null, address + (index << SHIFT), dest, sun.misc.Unsafe.ARRAY_LONG_BASE_OFFSET + ((long) destOffset << SHIFT), (long) len << SHIFT);
+    }
+
+    /**
+     * Copy elements from a Java array
+     * @param src source array
+     * @param srcOffset start index in the source
+     * @param index start index in this array
+     * @param len the number of elements to copy
+     */
+    public void copyFrom(long[] src, int srcOffset, long index, int len) {
+        checkRange(index, index + len);
+        checkArrayRange(src.length, srcOffset, len);
+        UnsafeAccess.copyMemory(src, sun.misc.Unsafe.ARRAY_LONG_BASE_OFFSET + ((long) srcOffset << SHIFT), null, address + (index << SHIFT), (long) len << SHIFT);
+    }
+
+    /**
+     * Search the sorted array for the key.
+     * @param key
+     * @return the index of the key if found, otherwise (-(insertion point) - 1)
+     */
+    public long binarySearch(long key) {
+        return binarySearch(0, length, key);
+    }
+
+    /**
+     * Search the range [from, to) of the sorted array for the key.
+     * @param from
+     * @param to
+     * @param key
+     * @return the index of the key if found, otherwise (-(insertion point) - 1)
+     */
+    public long binarySearch(long from, long to, long key) {
+        checkRange(from, to);
+        long low = from;
+        long high = to - 1;
+        while(low <= high) {
+            long mid = (low + high) >>> 1;
+            long v = unsafe.getLong(address + (mid << SHIFT));
+            if(v < key)
+                low = mid + 1;
+            else if(v > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return a cursor for iterating all elements
+     */
+    public Cursor cursor() {
+        return new Cursor(0, length);
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return a cursor for iterating elements in [from, to)
+     */
+    public Cursor cursor(long from, long to) {
+        checkRange(from, to);
+        return new Cursor(from, to);
+    }
+
+}
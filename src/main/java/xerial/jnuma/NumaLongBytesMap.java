@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * An off-heap hash map of long keys and byte array values sharded over NUMA nodes. Each shard has an open-addressing index and
+ * a data segment allocated on its node, and the size of a shard can exceed 2GB. {@link #get(long, byte[], int)} and
+ * {@link #put(long, byte[], int, int)} allocate no Java object; put allocates native memory only when a shard grows.
+ *
+ * Operations of a mutable map are thread-safe by locking the shard of the key. For read-mostly data, {@link #replicate()} creates
+ * a read-only copy on each node, whose get reads only the local memory without locking.
+ *
+ * You must release the map by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaLongBytesMap extends NumaShardedMap<BytesHashShard> {
+
+    /**
+     * Create a new map that has a shard on each node that has CPUs
+     * @param expectedSize the number of entries to hold without resizing
+     * @param expectedBytes the total bytes of the values to hold without resizing
+     */
+    public NumaLongBytesMap(long expectedSize, long expectedBytes) {
+        this(expectedSize, expectedBytes, defaultNodes());
+    }
+
+    /**
+     * Create a new map
+     * @param expectedSize the number of entries to hold without resizing
+     * @param expectedBytes the total bytes of the values to hold without resizing
+     * @param nodes the node of each shard. Repeat a node to have multiple shards on the node.
+     */
+    public NumaLongBytesMap(long expectedSize, long expectedBytes, int[] nodes) {
+        super(newShards(expectedSize, expectedBytes, nodes));
+    }
+
+    private NumaLongBytesMap(BytesHashShard[][] replicas, BytesHashShard[] first) {
+        super(replicas, first);
+    }
+
+    private static BytesHashShard[] newShards(long expectedSize, long expectedBytes, int[] nodes) {
+        if(nodes.length == 0)
+            throw new IllegalArgumentException("no node is specified");
+        BytesHashShard[] shards = new BytesHashShard[nodes.length];
+        try {
+            for(int i=0; i<nodes.length; ++i)
+                shards[i] = new BytesHashShard((expectedSize + nodes.length - 1) / nodes.length, (expectedBytes + nodes.length - 1) / nodes.length, nodes[i]);
+        }
+        catch(RuntimeException e) {
+            freeShards(shards);
+            throw e;
+        }
+        return shards;
+    }
+
+    private static void freeShards(BytesHashShard[] shards) {
+        for(BytesHashShard s : shards)
+            if(s != null)
+                s.free();
+    }
+
+    /**
+     * @param key
+     * @return the byte length of the value, or -1 if the key is not found
+     */
+    public int valueLength(long key) {
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        if(replicas != null)
+            return s.valueLength(key, hash);
+        synchronized(s) {
+            return s.valueLength(key, hash);
+        }
+    }
+
+    /**
+     * Copy the value of the key to the array. Use {@link #valueLength(long)} to find the required length.
+     * @param key
+     * @param dest destination array
+     * @param offset offset in the array
+     * @return the byte length of the value, or -1 if the key is not found
+     * @throws IndexOutOfBoundsException if the array does not have enough room for the value
+     */
+    public int get(long key, byte[] dest, int offset) {
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        if(replicas != null)
+            return s.get(key, hash, dest, offset);
+        synchronized(s) {
+            return s.get(key, hash, dest, offset);
+        }
+    }
+
+    /**
+     * @param key
+     * @return a copy of the value, or null if the key is not found
+     */
+    public byte[] get(long key) {
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        if(replicas != null)
+            return s.get(key, hash);
+        synchronized(s) {
+            return s.get(key, hash);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        if(replicas != null)
+            return s.containsKey(key, hash);
+        synchronized(s) {
+            return s.containsKey(key, hash);
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return true if the key was present
+     */
+    public boolean put(long key, byte[] value) {
+        return put(key, value, 0, value.length);
+    }
+
+    /**
+     * @param key
+     * @param src source array of the value
+     * @param offset offset in the array
+     * @param length byte length of the value
+     * @return true if the key was present
+     */
+    public boolean put(long key, byte[] src, int offset, int length) {
+        checkWritable();
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        synchronized(s) {
+            return s.put(key, hash, src, offset, length);
+        }
+    }
+
+    /**
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        checkWritable();
+        long hash = LongHashTable.hash(key);
+        BytesHashShard s = shard(hash);
+        synchronized(s) {
+            return s.remove(key, hash);
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public long size() {
+        long size = 0;
+        for(BytesHashShard s : shards) {
+            synchronized(s) {
+                size += s.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Create a read-only copy of this map that has a copy of all shards on each node. This map can be released after the copy.
+     * @return replicated map
+     */
+    public NumaLongBytesMap replicate() {
+        NumaTopology t = Numa.topology();
+        BytesHashShard[][] result = new BytesHashShard[t.numNodes()][];
+        BytesHashShard[][] copies = new BytesHashShard[t.nodesWithCPUs().length][shards.length];
+        replicateTo(result, copies);
+        return new NumaLongBytesMap(result, copies[0]);
+    }
+
+    @Override
+    BytesHashShard copy(BytesHashShard shard, int node) {
+        return shard.copyTo(node);
+    }
+
+    @Override
+    void freeShard(BytesHashShard shard) {
+        shard.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaLongBytesMap(size:%,d, shards:%d, replicated:%s)", size(), shards.length, isReplicated());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+/**
+ * An off-heap hash map of long keys and long values sharded over NUMA nodes. Each shard is an open-addressing table allocated on its node,
+ * and the size of a shard can exceed 2GB. get and put allocate no Java object; put allocates native memory only when a shard grows.
+ *
+ * Operations of a mutable map are thread-safe by locking the shard of the key. For read-mostly data, {@link #replicate()} creates
+ * a read-only copy on each node, whose get reads only the local memory without locking.
+ *
+ * You must release the map by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaLongLongMap extends NumaShardedMap<LongHashTable> {
+
+    /**
+     * Create a new map that has a shard on each node that has CPUs
+     * @param expectedSize the number of entries to hold without resizing
+     */
+    public NumaLongLongMap(long expectedSize) {
+        this(expectedSize, defaultNodes());
+    }
+
+    /**
+     * Create a new map
+     * @param expectedSize the number of entries to hold without resizing
+     * @param nodes the node of each shard. Repeat a node to have multiple shards on the node.
+     */
+    public NumaLongLongMap(long expectedSize, int[] nodes) {
+        super(newShards(expectedSize, nodes));
+    }
+
+    private NumaLongLongMap(LongHashTable[][] replicas, LongHashTable[] first) {
+        super(replicas, first);
+    }
+
+    private static LongHashTable[] newShards(long expectedSize, int[] nodes) {
+        if(nodes.length == 0)
+            throw new IllegalArgumentException("no node is specified");
+        LongHashTable[] shards = new LongHashTable[nodes.length];
+        try {
+            for(int i=0; i<nodes.length; ++i)
+                shards[i] = new LongHashTable((expectedSize + nodes.length - 1) / nodes.length, nodes[i]);
+        }
+        catch(RuntimeException e) {
+            freeShards(shards);
+            throw e;
+        }
+        return shards;
+    }
+
+    private static void freeShards(LongHashTable[] shards) {
+        for(LongHashTable t : shards)
+            if(t != null)
+                t.free();
+    }
+
+    /**
+     * @param key
+     * @param ifAbsent the value to return if the key is not found
+     * @return the value of the key, or ifAbsent
+     */
+    public long get(long key, long ifAbsent) {
+        long hash = LongHashTable.hash(key);
+        LongHashTable t = shard(hash);
+        if(replicas != null)
+            return t.get(key, hash, ifAbsent);
+        synchronized(t) {
+            return t.get(key, hash, ifAbsent);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        long hash = LongHashTable.hash(key);
+        LongHashTable t = shard(hash);
+        if(replicas != null)
+            return t.containsKey(key, hash);
+        synchronized(t) {
+            return t.containsKey(key, hash);
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param ifAbsent the value to return if the key was not present
+     * @return the previous value of the key, or ifAbsent
+     */
+    public long put(long key, long value, long ifAbsent) {
+        checkWritable();
+        long hash = LongHashTable.hash(key);
+        LongHashTable t = shard(hash);
+        synchronized(t) {
+            return t.put(key, hash, value, ifAbsent);
+        }
+    }
+
+    /**
+     * @param key
+     * @param ifAbsent the value to return if the key was not present
+     * @return the removed value, or ifAbsent
+     */
+    public long remove(long key, long ifAbsent) {
+        checkWritable();
+        long hash = LongHashTable.hash(key);
+        LongHashTable t = shard(hash);
+        synchronized(t) {
+            return t.remove(key, hash, ifAbsent);
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public long size() {
+        long size = 0;
+        for(LongHashTable t : shards) {
+            synchronized(t) {
+                size += t.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Create a read-only copy of this map that has a copy of all shards on each node. This map can be released after the copy.
+     * @return replicated map
+     */
+    public NumaLongLongMap replicate() {
+        NumaTopology t = Numa.topology();
+        LongHashTable[][] result = new LongHashTable[t.numNodes()][];
+        LongHashTable[][] copies = new LongHashTable[t.nodesWithCPUs().length][shards.length];
+        replicateTo(result, copies);
+        return new NumaLongLongMap(result, copies[0]);
+    }
+
+    @Override
+    LongHashTable copy(LongHashTable shard, int node) {
+        return shard.copyTo(node);
+    }
+
+    @Override
+    void freeShard(LongHashTable shard) {
+        shard.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaLongLongMap(size:%,d, shards:%d, replicated:%s)", size(), shards.length, isReplicated());
+    }
+}
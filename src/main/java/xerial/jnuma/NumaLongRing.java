@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * Base class of the bounded lock-free rings of long values. The slots and the sequence counters of a ring are placed
+ * in a {@link NumaMemorySegment}, which should be allocated on the node of the consumer. The counters written by the producers
+ * and the counters written by the consumer are in separate cache lines, so they do not bounce between the caches of the two sides.
+ *
+ * A ring has a single consumer. Pass record indexes or memory addresses to exchange larger records.
+ * You must release the ring by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public abstract class NumaLongRing implements NumaResident {
+
+    /**
+     * Padding of the counters. Two cache lines, since the adjacent cache line prefetch fetches lines in pairs.
+     */
+    static final int PAD = 128;
+    /**
+     * The line written by the producers: {tail, cached head}
+     */
+    static final long TAIL = 0;
+    static final long HEAD_CACHE = 8;
+    /**
+     * The line written by the consumer: {head, cached tail}
+     */
+    static final long HEAD = PAD;
+    static final long TAIL_CACHE = PAD + 8;
+    static final long SLOTS = 2 * PAD;
+
+    /**
+     * The max number of slots
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 1000;
+
+    protected final NumaMemorySegment segment;
+    protected final long base;
+    protected final int capacity;
+    protected final long mask;
+    /**
+     * A buffer used by {@link #take()}. Only the consumer thread uses this buffer.
+     */
+    private final long[] takeBuffer = new long[1];
+
+    NumaLongRing(NumaMemorySegment segment, int capacity) {
+        this.segment = segment;
+        this.base = segment.address();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        segment.fill(0, SLOTS, (byte) 0);
+    }
+
+    /**
+     * Round up the capacity to a power of two
+     */
+    static int ringCapacity(int capacity) {
+        if(capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("invalid ring capacity: " + capacity);
+        return Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(capacity) << 1;
+    }
+
+    static long segmentSize(int capacity, int slotBytes) {
+        return SLOTS + (long) capacity * slotBytes;
+    }
+
+    /**
+     * Insert the value if the ring has a free slot
+     * @param value
+     * @return false if the ring is full
+     */
+    public abstract boolean offer(long value);
+
+    /**
+     * Remove the oldest value. Only the consumer thread can call this method.
+     * @param ifEmpty the value to return if the ring is empty
+     * @return the oldest value, or ifEmpty if the ring is empty
+     */
+    public abstract long poll(long ifEmpty);
+
+    /**
+     * Remove the values at once. Only the consumer thread can call this method.
+     * @param dest destination array
+     * @param offset offset in the array
+     * @param length the max number of values to remove
+     * @return the number of removed values
+     */
+    public abstract int drainTo(long[] dest, int offset, int length);
+
+    /**
+     * Insert the value, waiting until a slot becomes free
+     * @param value
+     * @throws InterruptedException
+     */
+    public void put(long value) throws InterruptedException {
+        for(int tries=0; !offer(value); ++tries)
+            idle(tries);
+    }
+
+    /**
+     * Remove the oldest value, waiting until a value arrives. Only the consumer thread can call this method.
+     * @return the oldest value
+     * @throws InterruptedException
+     */
+    public long take() throws InterruptedException {
+        for(int tries=0; drainTo(takeBuffer, 0, 1) == 0; ++tries)
+            idle(tries);
+        return takeBuffer[0];
+    }
+
+    /**
+     * Back off while waiting for the other side: spin first, then yield, then park for a short time
+     */
+    static void idle(int tries) throws InterruptedException {
+        if(tries < SPIN_TRIES)
+            return;
+        if(Thread.interrupted())
+            throw new InterruptedException();
+        if(tries < YIELD_TRIES)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of values in the ring. The value may be stale when the other threads are using the ring.
+     */
+    public int size() {
+        long head = unsafe.getLongVolatile(null, base + HEAD);
+        long tail = unsafe.getLongVolatile(null, base + TAIL);
+        return (int) Math.max(0, Math.min(capacity, tail - head));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the node where the slots are placed
+     */
+    public int node() {
+        return segment.node();
+    }
+
+    /**
+     * Release the memory of this ring
+     */
+    public void free() {
+        segment.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(capacity:%,d, size:%,d, node:%d)", getClass().getSimpleName(), capacity, size(), node());
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A read-only memory mapping of a file range with NUMA placement. The page cache of a file is allocated on the node of the
+ * thread that reads the page first, so {@link #mapOnNode(File, long, long, int)} and {@link #mapInterleaved(File, long, long, int...)}
+ * fault in the pages by the workers of {@link NumaBulk#shared()}, which run on the target nodes. A node-bound mapping also moves
+ * the pages already cached on the other nodes, as long as no other process maps them. Use {@link #replicate(File, long, long)}
+ * to give each node its own copy of the file.
+ *
+ * Values are read in the native byte order. You must release the mapping by {@link #close()}.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaMappedFile implements NumaResident, Closeable {
+
+    /**
+     * Access pattern hints of madvise(2)
+     */
+    public static enum Advice {
+        NORMAL(0),
+        RANDOM(1),
+        SEQUENTIAL(2),
+        WILL_NEED(3),
+        DONT_NEED(4);
+
+        /**
+         * The MADV_* value of the Linux API
+         */
+        public final int value;
+
+        private Advice(int value) {
+            this.value = value;
+        }
+    }
+
+    private final File file;
+    private final long offset;
+    private final long size;
+    private final long address;
+    private final long mapAddress;
+    private final long mapLength;
+    private final int node;
+    private volatile boolean closed = false;
+
+    private NumaMappedFile(File file, long offset, long size, int node) throws IOException {
+        if(!file.isFile())
+            throw new FileNotFoundException(file.getPath());
+        long fileSize = file.length();
+        if(offset < 0 || size <= 0 || offset > fileSize - size)
+            throw new IllegalArgumentException(String.format("invalid range offset:%d length:%d file size:%d", offset, size, fileSize));
+        long pageSize = Numa.pageSize();
+        long head = offset & (pageSize - 1);
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+        this.node = node;
+        this.mapLength = size + head;
+        this.mapAddress = Numa.mapFile(file.getPath(), offset - head, mapLength);
+        if(mapAddress == 0)
+            throw new IOException(String.format("failed to map %s (offset:%d length:%d)", file, offset, size));
+        this.address = mapAddress + head;
+    }
+
+    /**
+     * Map the whole file. The pages are placed on the node of the thread that reads them first.
+     * @param file
+     * @return mapping
+     * @throws IOException
+     */
+    public static NumaMappedFile map(File file) throws IOException {
+        return map(file, 0, file.length());
+    }
+
+    /**
+     * Map a range of the file. The pages are placed on the node of the thread that reads them first.
+     * @param file
+     * @param offset file offset
+     * @param length byte length
+     * @return mapping
+     * @throws IOException
+     */
+    public static NumaMappedFile map(File file, long offset, long length) throws IOException {
+        return new NumaMappedFile(file, offset, length, NumaMemorySegment.INTERLEAVED);
+    }
+
+    /**
+     * Map a range of the file, and read all of its pages into the memory of the node
+     * @param file
+     * @param offset file offset
+     * @param length byte length
+     * @param node numa node
+     * @return mapping
+     * @throws IOException
+     */
+    public static NumaMappedFile mapOnNode(File file, long offset, long length, int node) throws IOException {
+        if(node < 0 || node >= Numa.numNodes())
+            throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", node, Numa.numNodes()));
+        NumaMappedFile m = new NumaMappedFile(file, offset, length, node);
+        boolean done = false;
+        try {
+            Numa.mbind(m.mapAddress, m.mapLength, MemoryPolicy.BIND, Numa.newNodeMask(node), false);
+            NumaBulk.shared().prefaultReadOnly(m.address, m.size, node);
+            Numa.movePages(m.mapAddress, m.mapLength, node);
+            done = true;
+        }
+        finally {
+            if(!done)
+                m.close();
+        }
+        return m;
+    }
+
+    /**
+     * Map a range of the file, and read its pages into the memory of the nodes. Consecutive ranges of the file are placed
+     * on each node.
+     * @param file
+     * @param offset file offset
+     * @param length byte length
+     * @param nodes numa nodes. If empty, the nodes that have CPUs are used.
+     * @return mapping
+     * @throws IOException
+     */
+    public static NumaMappedFile mapInterleaved(File file, long offset, long length, int... nodes) throws IOException {
+        if(nodes.length == 0)
+            nodes = Numa.topology().nodesWithCPUs();
+        for(int n : nodes)
+            if(n < 0 || n >= Numa.numNodes())
+                throw new IllegalArgumentException(String.format("invalid node %d (numNodes:%d)", n, Numa.numNodes()));
+        NumaMappedFile m = new NumaMappedFile(file, offset, length, NumaMemorySegment.INTERLEAVED);
+        boolean done = false;
+        try {
+            Numa.mbind(m.mapAddress, m.mapLength, MemoryPolicy.INTERLEAVE, Numa.newNodeMask(nodes), false);
+            NumaBulk.shared().prefaultReadOnly(m.address, m.size, nodes);
+            done = true;
+        }
+        finally {
+            if(!done)
+                m.close();
+        }
+        return m;
+    }
+
+    /**
+     * Copy a range of the file into the memory of each node. The file is unmapped after copying.
+     * @param file
+     * @param offset file offset
+     * @param length byte length
+     * @return the replicated contents
+     * @throws IOException
+     */
+    public static NumaReplicated replicate(File file, long offset, long length) throws IOException {
+        NumaMappedFile m = map(file, offset, length);
+        try {
+            m.advise(Advice.SEQUENTIAL);
+            return m.replicate();
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    /**
+     * @return the mapped file
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * @return the file offset of the mapping
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return byte size of the mapping
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the memory address of the file offset
+     */
+    public long address() {
+        return address;
+    }
+
+    /**
+     * @return the node of the mapping, or {@link NumaMemorySegment#INTERLEAVED} if the pages are not bound to a node
+     */
+    public int node() {
+        return node;
+    }
+
+    private void checkBounds(long offset, long length) {
+        if(closed)
+            throw new IllegalStateException("mapping is already closed");
+        if(offset < 0 || length < 0 || offset > size - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d size:%d", offset, length, size));
+    }
+
+    public byte getByte(long offset) {
+        checkBounds(offset, 1);
+        return unsafe.getByte(address + offset);
+    }
+
+    public int getInt(long offset) {
+        checkBounds(offset, 4);
+        return unsafe.getInt(address + offset);
+    }
+
+    public long getLong(long offset) {
+        checkBounds(offset, 8);
+        return unsafe.getLong(address + offset);
+    }
+
+    public double getDouble(long offset) {
+        checkBounds(offset, 8);
+        return unsafe.getDouble(address + offset);
+    }
+
+    /**
+     * Copy the region of the mapping to an array
+     * @param offset byte offset in the mapping
+     * @param dest destination array
+     * @param destOffset offset in the array
+     * @param length byte length to copy
+     */
+    public void copyTo(long offset, byte[] dest, int destOffset, int length) {
+        checkBounds(offset, length);
+        NumaArray.checkArrayRange(dest.length, destOffset, length);
+        UnsafeAccess.copyMemory(null, address + offset, dest, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + destOffset, length);
+    }
+
+    /**
+     * Create a read-only ByteBuffer view of the region. The view becomes invalid after closing this mapping.
+     * @param offset byte offset
+     * @param length byte length
+     * @return ByteBuffer view in the native byte order
+     */
+    public ByteBuffer asByteBuffer(long offset, int length) {
+        checkBounds(offset, length);
+        return Numa.directBuffer(address + offset, length).asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Give a hint of the access pattern of the whole mapping
+     * @param advice
+     */
+    public void advise(Advice advice) {
+        advise(0, size, advice);
+    }
+
+    /**
+     * Give a hint of the access pattern of the region. The region is extended to the page boundaries.
+     * @param offset byte offset
+     * @param length byte length
+     * @param advice
+     */
+    public void advise(long offset, long length, Advice advice) {
+        checkBounds(offset, length);
+        long pageSize = Numa.pageSize();
+        long start = (address + offset) & ~(pageSize - 1);
+        Numa.madvise(start, address + offset + length - start, advice.value);
+    }
+
+    /**
+     * Read all pages of the mapping by the workers of the node of this mapping, or of all nodes if the mapping is not bound to a node
+     */
+    public void prefault() {
+        checkBounds(0, size);
+        NumaBulk.shared().prefaultReadOnly(address, size, node);
+    }
+
+    /**
+     * Copy the contents of the mapping into the memory of each node. The copies are independent of this mapping.
+     * @return the replicated contents
+     */
+    public NumaReplicated replicate() {
+        checkBounds(0, size);
+        return new NumaReplicated(address, size);
+    }
+
+    /**
+     * Unmap the file
+     */
+    public void close() {
+        if(closed)
+            return;
+        closed = true;
+        Numa.unmapFile(mapAddress, mapLength);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaMappedFile(%s, offset:%,d, size:%,d, node:%d)", file, offset, size, node);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.Map;
+
+/**
+ * JMX interface of the memory accounting of jnuma, registered as {@value NumaMemoryStats#OBJECT_NAME}
+ *
+ * @author Taro L. Saito
+ */
+public interface NumaMemoryMXBean {
+
+    /**
+     * @return the bytes currently allocated through jnuma
+     */
+    long getAllocatedBytes();
+
+    /**
+     * @return the peak of the allocated bytes
+     */
+    long getPeakBytes();
+
+    /**
+     * @return the number of live allocations
+     */
+    long getAllocationCount();
+
+    /**
+     * @return the bytes allocated on each node. The last element is the memory not bound to a node (interleaved or default policy).
+     */
+    long[] getBytesPerNode();
+
+    /**
+     * @return the peak bytes of each node
+     */
+    long[] getPeakBytesPerNode();
+
+    /**
+     * @return the free memory of each node, sampled by a running {@link NumaMemoryMonitor} if available
+     */
+    long[] getFreeBytesPerNode();
+
+    /**
+     * @return the bytes allocated by each allocation kind
+     */
+    Map<String, Long> getBytesPerKind();
+
+    boolean isLeakDetection();
+
+    /**
+     * Enable or disable recording the stack traces of allocations
+     */
+    void setLeakDetection(boolean enabled);
+
+    /**
+     * @return descriptions of the live allocations, including the stack traces if the leak detection is enabled
+     */
+    String[] getLiveAllocations();
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A background sampler of the free memory of each NUMA node. Reading the free memory of a node parses the files of sysfs,
+ * so schedulers and allocation policies should read the sampled values of this monitor instead of calling {@link Numa#freeSize(int)} repeatedly.
+ *
+ * While a monitor is running, the watermark checks of {@link AllocationPolicy} use its samples as long as they are not older than
+ * twice the sampling interval.
+ *
+ * <pre>
+ * NumaMemoryMonitor monitor = NumaMemoryMonitor.start(100, TimeUnit.MILLISECONDS);
+ * int node = monitor.mostFreeNode();
+ * ...
+ * monitor.close();
+ * </pre>
+ *
+ * @author Taro L. Saito
+ */
+public class NumaMemoryMonitor implements Closeable {
+
+    /**
+     * Receives the notification after each sampling. Called in the sampler thread, so the listener should return quickly.
+     */
+    public interface Listener {
+        void sampled(NumaMemoryMonitor monitor);
+    }
+
+    /**
+     * The most recently started monitor that is not closed yet
+     */
+    private static volatile NumaMemoryMonitor running;
+
+    private final long intervalNanos;
+    private final int numNodes;
+    private final AtomicLongArray free;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Thread sampler;
+    private volatile long sampledAt;
+    private volatile boolean closed = false;
+
+    private NumaMemoryMonitor(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+        this.numNodes = Numa.numNodes();
+        this.free = new AtomicLongArray(numNodes);
+        sample();
+        this.sampler = new Thread("jnuma-memory-monitor") {
+            @Override
+            public void run() {
+                while(!closed) {
+                    LockSupport.parkNanos(NumaMemoryMonitor.this.intervalNanos);
+                    if(!closed)
+                        sample();
+                }
+            }
+        };
+        sampler.setDaemon(true);
+    }
+
+    /**
+     * Start a new monitor that samples the free memory of all nodes at the given interval
+     * @param interval sampling interval
+     * @param unit time unit of the interval
+     * @return the started monitor. Release the sampler thread by {@link #close()}.
+     */
+    public static NumaMemoryMonitor start(long interval, TimeUnit unit) {
+        if(interval <= 0)
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        NumaMemoryMonitor m = new NumaMemoryMonitor(unit.toNanos(interval));
+        m.sampler.start();
+        synchronized(NumaMemoryMonitor.class) {
+            running = m;
+        }
+        return m;
+    }
+
+    /**
+     * Read the free memory of the node from a running monitor if its sample is fresh, otherwise from the system
+     */
+    static long currentFreeSize(int node) {
+        NumaMemoryMonitor m = running;
+        if(m != null && node >= 0 && node < m.numNodes && System.nanoTime() - m.sampledAt <= 2 * m.intervalNanos)
+            return m.free.get(node);
+        return Numa.freeSize(node);
+    }
+
+    /**
+     * Read the free memory of all nodes now, and notify the listeners
+     */
+    public void sample() {
+        for(int n=0; n<numNodes; ++n)
+            free.set(n, Numa.freeSize(n));
+        sampledAt = System.nanoTime();
+        for(Listener l : listeners) {
+            try {
+                l.sampled(this);
+            }
+            catch(Throwable e) {
+                // Keep sampling for the other listeners
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the sampling interval in nanoseconds
+     */
+    public long intervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} at the last sampling
+     */
+    public long sampledAtNanos() {
+        return sampledAt;
+    }
+
+    /**
+     * @return the number of numa nodes
+     */
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * @param node numa node
+     * @return the sampled free memory of the node in bytes
+     */
+    public long freeSize(int node) {
+        return free.get(node);
+    }
+
+    /**
+     * @param node numa node
+     * @return the ratio of the sampled free memory to the memory size of the node, in [0, 1]
+     */
+    public double freeRatio(int node) {
+        long size = Numa.topology().nodeSize(node);
+        return size > 0 ? Math.min(1.0, (double) free.get(node) / size) : 0.0;
+    }
+
+    /**
+     * @param node numa node
+     * @param watermark bytes
+     * @return true if the sampled free memory of the node is below the watermark
+     */
+    public boolean isBelow(int node, long watermark) {
+        return free.get(node) < watermark;
+    }
+
+    /**
+     * @return the node that has the largest free memory in the last sample
+     */
+    public int mostFreeNode() {
+        int best = 0;
+        for(int n=1; n<numNodes; ++n)
+            if(free.get(n) > free.get(best))
+                best = n;
+        return best;
+    }
+
+    /**
+     * @return a copy of the sampled free memory of all nodes
+     */
+    public long[] freeSizes() {
+        long[] result = new long[numNodes];
+        for(int n=0; n<numNodes; ++n)
+            result[n] = free.get(n);
+        return result;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stop the sampler thread
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(sampler);
+        synchronized(NumaMemoryMonitor.class) {
+            if(running == this)
+                running = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("NumaMemoryMonitor(");
+        for(int n=0; n<numNodes; ++n) {
+            if(n > 0)
+                s.append(", ");
+            s.append(String.format("node %d:%,d", n, free.get(n)));
+        }
+        return s.append(")").toString();
+    }
+}
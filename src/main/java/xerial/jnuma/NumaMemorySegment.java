@@ -0,0 +1,392 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A long-addressed off-heap memory region allocated on NUMA nodes. Unlike {@link java.nio.ByteBuffer}, the size of a segment
+ * can be larger than 2GB. Values are read and written in the native byte order.
+ *
+ * The get/put methods check the bounds of the given offset. The *Unchecked variants skip the check, so the caller is responsible
+ * for passing a valid offset.
+ *
+ * You must release the segment by {@link #free()} because the memory is out of the control of the GC.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaMemorySegment implements NumaResident {
+
+    /**
+     * Node number of interleaved segments
+     */
+    public static final int INTERLEAVED = -1;
+
+    private final long address;
+    private final long size;
+    private final int node;
+    private final long mappedSize;
+    private final int pageSize;
+    private final PageBacking backing;
+    private volatile boolean freed = false;
+
+    NumaMemorySegment(long address, long size, int node) {
+        this(address, size, node, size, 0, PageBacking.BASE_PAGES);
+    }
+
+    private NumaMemorySegment(long address, long size, int node, long mappedSize, int pageSize, PageBacking backing) {
+        this.address = address;
+        this.size = size;
+        this.node = node;
+        this.mappedSize = mappedSize;
+        this.pageSize = pageSize;
+        this.backing = backing;
+    }
+
+    private static void checkSize(long size) {
+        if(size < 0)
+            throw new IllegalArgumentException("negative size: " + size);
+    }
+
+    /**
+     * Allocate a new segment on the specified node. If the node cannot be used, {@link Numa#allocationPolicy()} decides
+     * the placement, and {@link #node()} reports the node where the segment is actually placed.
+     * @param size byte size
+     * @param node numa node
+     * @return new segment
+     */
+    public static NumaMemorySegment allocOnNode(long size, int node) {
+        return allocOnNode(size, node, Numa.allocationPolicy());
+    }
+
+    /**
+     * Allocate a new segment on the specified node
+     * @param size byte size
+     * @param node numa node
+     * @param policy what to do if the node cannot be used
+     * @return new segment
+     */
+    public static NumaMemorySegment allocOnNode(long size, int node, AllocationPolicy policy) {
+        checkSize(size);
+        int[] placed = new int[] { node };
+        long address = Numa.allocMemoryOnNode(size, node, policy, placed);
+        return new NumaMemorySegment(address, size, placed[0]);
+    }
+
+    /**
+     * Allocate a new segment interleaved on multiple NUMA nodes
+     * @param size byte size
+     * @return new segment
+     */
+    public static NumaMemorySegment allocInterleaved(long size) {
+        checkSize(size);
+        return new NumaMemorySegment(Numa.allocMemoryInterleaved(size), size, INTERLEAVED);
+    }
+
+    /**
+     * Allocate a new segment on the local node
+     * @param size byte size
+     * @return new segment
+     */
+    public static NumaMemorySegment allocLocal(long size) {
+        checkSize(size);
+        int node = Numa.currentNode();
+        return new NumaMemorySegment(Numa.allocMemoryLocal(size), size, node);
+    }
+
+    private static NumaMemorySegment allocHuge(long size, int node) {
+        checkSize(size);
+        long mappedSize = (size + Numa.HUGE_PAGE_SIZE - 1) / Numa.HUGE_PAGE_SIZE * Numa.HUGE_PAGE_SIZE;
+        int[] backing = new int[2];
+        long address = Numa.allocHugePages(mappedSize, node, backing);
+        return new NumaMemorySegment(address, size, node, mappedSize, backing[0], PageBacking.values()[backing[1]]);
+    }
+
+    /**
+     * Allocate a new segment backed by huge pages on the specified node. If huge pages are not available,
+     * the segment falls back to the base pages. Check {@link #backing()} and {@link #pageSize()} for the obtained pages.
+     * @param size byte size. The memory is reserved in the multiple of {@link Numa#HUGE_PAGE_SIZE}.
+     * @param node numa node
+     * @return new segment
+     */
+    public static NumaMemorySegment allocHugeOnNode(long size, int node) {
+        return allocHuge(size, node);
+    }
+
+    /**
+     * Allocate a new segment backed by huge pages interleaved on multiple NUMA nodes. If huge pages are not available,
+     * the segment falls back to the base pages.
+     * @param size byte size. The memory is reserved in the multiple of {@link Numa#HUGE_PAGE_SIZE}.
+     * @return new segment
+     */
+    public static NumaMemorySegment allocHugeInterleaved(long size) {
+        return allocHuge(size, INTERLEAVED);
+    }
+
+    /**
+     * @return the raw memory address of this segment
+     */
+    public long address() {
+        return address;
+    }
+
+    /**
+     * @return byte size of this segment
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the numa node of this segment, or {@link #INTERLEAVED}
+     */
+    public int node() {
+        return node;
+    }
+
+    /**
+     * @return the size of the pages backing this segment
+     */
+    public int pageSize() {
+        return pageSize > 0 ? pageSize : Numa.pageSize();
+    }
+
+    /**
+     * @return the kind of the pages backing this segment
+     */
+    public PageBacking backing() {
+        return backing;
+    }
+
+    /**
+     * Release the memory of this segment
+     */
+    public void free() {
+        if(freed)
+            throw new IllegalStateException("segment is already freed");
+        freed = true;
+        Numa.free(address, mappedSize);
+    }
+
+    private void checkBounds(long offset, long length) {
+        if(offset < 0 || length < 0 || offset > size - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d size:%d", offset, length, size));
+    }
+
+    public byte getByte(long offset) {
+        checkBounds(offset, 1);
+        return unsafe.getByte(address + offset);
+    }
+
+    public short getShort(long offset) {
+        checkBounds(offset, 2);
+        return unsafe.getShort(address + offset);
+    }
+
+    public char getChar(long offset) {
+        checkBounds(offset, 2);
+        return unsafe.getChar(address + offset);
+    }
+
+    public int getInt(long offset) {
+        checkBounds(offset, 4);
+        return unsafe.getInt(address + offset);
+    }
+
+    public long getLong(long offset) {
+        checkBounds(offset, 8);
+        return unsafe.getLong(address + offset);
+    }
+
+    public float getFloat(long offset) {
+        checkBounds(offset, 4);
+        return unsafe.getFloat(address + offset);
+    }
+
+    public double getDouble(long offset) {
+        checkBounds(offset, 8);
+        return unsafe.getDouble(address + offset);
+    }
+
+    public void putByte(long offset, byte v) {
+        checkBounds(offset, 1);
+        unsafe.putByte(address + offset, v);
+    }
+
+    public void putShort(long offset, short v) {
+        checkBounds(offset, 2);
+        unsafe.putShort(address + offset, v);
+    }
+
+    public void putChar(long offset, char v) {
+        checkBounds(offset, 2);
+        unsafe.putChar(address + offset, v);
+    }
+
+    public void putInt(long offset, int v) {
+        checkBounds(offset, 4);
+        unsafe.putInt(address + offset, v);
+    }
+
+    public void putLong(long offset, long v) {
+        checkBounds(offset, 8);
+        unsafe.putLong(address + offset, v);
+    }
+
+    public void putFloat(long offset, float v) {
+        checkBounds(offset, 4);
+        unsafe.putFloat(address + offset, v);
+    }
+
+    public void putDouble(long offset, double v) {
+        checkBounds(offset, 8);
+        unsafe.putDouble(address + offset, v);
+    }
+
+    public byte getByteUnchecked(long offset) {
+        return unsafe.getByte(address + offset);
+    }
+
+    public short getShortUnchecked(long offset) {
+        return unsafe.getShort(address + offset);
+    }
+
+    public char getCharUnchecked(long offset) {
+        return unsafe.getChar(address + offset);
+    }
+
+    public int getIntUnchecked(long offset) {
+        return unsafe.getInt(address + offset);
+    }
+
+    public long getLongUnchecked(long offset) {
+        return unsafe.getLong(address + offset);
+    }
+
+    public float getFloatUnchecked(long offset) {
+        return unsafe.getFloat(address + offset);
+    }
+
+    public double getDoubleUnchecked(long offset) {
+        return unsafe.getDouble(address + offset);
+    }
+
+    public void putByteUnchecked(long offset, byte v) {
+        unsafe.putByte(address + offset, v);
+    }
+
+    public void putShortUnchecked(long offset, short v) {
+        unsafe.putShort(address + offset, v);
+    }
+
+    public void putCharUnchecked(long offset, char v) {
+        unsafe.putChar(address + offset, v);
+    }
+
+    public void putIntUnchecked(long offset, int v) {
+        unsafe.putInt(address + offset, v);
+    }
+
+    public void putLongUnchecked(long offset, long v) {
+        unsafe.putLong(address + offset, v);
+    }
+
+    public void putFloatUnchecked(long offset, float v) {
+        unsafe.putFloat(address + offset, v);
+    }
+
+    public void putDoubleUnchecked(long offset, double v) {
+        unsafe.putDouble(address + offset, v);
+    }
+
+    /**
+     * Fill the region with the given byte value
+     * @param offset byte offset
+     * @param length byte length
+     * @param value
+     */
+    public void fill(long offset, long length, byte value) {
+        checkBounds(offset, length);
+        Numa.simulateAccess(address + offset, length);
+        unsafe.setMemory(address + offset, length, value);
+    }
+
+    /**
+     * Copy the region of this segment to another segment
+     * @param offset byte offset in this segment
+     * @param dest destination segment
+     * @param destOffset byte offset in the destination
+     * @param length byte length to copy
+     */
+    public void copyTo(long offset, NumaMemorySegment dest, long destOffset, long length) {
+        checkBounds(offset, length);
+        dest.checkBounds(destOffset, length);
+        Numa.simulateAccess(address + offset, length);
+        Numa.simulateAccess(dest.address + destOffset, length);
+        UnsafeAccess.copyMemory(null, address + offset, null, dest.address + destOffset, length);
+    }
+
+    /**
+     * Copy the region of this segment to an array
+     * @param offset byte offset in this segment
+     * @param dest destination array
+     * @param destOffset offset in the array
+     * @param length byte length to copy
+     */
+    public void copyTo(long offset, byte[] dest, int destOffset, int length) {
+        checkBounds(offset, length);
+        if(destOffset < 0 || length < 0 || destOffset > dest.length - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d array length:%d", destOffset, length, dest.length));
+        Numa.simulateAccess(address + offset, length);
+        UnsafeAccess.copyMemory(null, address + offset, dest, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + destOffset, length);
+    }
+
+    /**
+     * Copy the contents of an array to this segment
+     * @param src source array
+     * @param srcOffset offset in the array
+     * @param offset byte offset in this segment
+     * @param length byte length to copy
+     */
+    public void copyFrom(byte[] src, int srcOffset, long offset, int length) {
+        checkBounds(offset, length);
+        if(srcOffset < 0 || length < 0 || srcOffset > src.length - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d array length:%d", srcOffset, length, src.length));
+        Numa.simulateAccess(address + offset, length);
+        UnsafeAccess.copyMemory(src, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + srcOffset, null, address + offset, length);
+    }
+
+    /**
+     * Create a ByteBuffer view of the region. The byte order of the view is the native order.
+     * The view becomes invalid after releasing this segment.
+     * @param offset byte offset
+     * @param length byte length
+     * @return ByteBuffer view
+     */
+    public ByteBuffer asByteBuffer(long offset, int length) {
+        checkBounds(offset, length);
+        return Numa.directBuffer(address + offset, length).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaMemorySegment(address:0x%x, size:%,d, node:%d, pages:%s)", address, size, node, backing);
+    }
+}
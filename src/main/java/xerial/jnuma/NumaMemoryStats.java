@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the memory allocated through {@link Numa}. Take a snapshot with {@link Numa#memoryStats()}.
+ *
+ * Peaks are updated at allocations larger than 64KB and at snapshots, so short bursts of small allocations may not be reflected.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaMemoryStats {
+
+    /**
+     * The JMX object name of {@link NumaMemoryMXBean}
+     */
+    public static final String OBJECT_NAME = "xerial.jnuma:type=NumaMemory";
+
+    /**
+     * The allocation methods
+     */
+    public enum AllocationKind {
+        /** Allocated with the memory policy of the thread */
+        DEFAULT,
+        /** Allocated on the local node */
+        LOCAL,
+        /** Allocated on a specific node */
+        ON_NODE,
+        /** Interleaved on all nodes */
+        INTERLEAVED
+    }
+
+    /**
+     * A live allocation
+     */
+    public static class Allocation {
+        /**
+         * The address of the allocation, or 0 for a heap buffer allocated without libnuma
+         */
+        public final long address;
+        public final long size;
+        /**
+         * The node of the allocation, or -1 if the memory is not bound to a node
+         */
+        public final int node;
+        public final AllocationKind kind;
+        private final Throwable trace;
+
+        Allocation(long address, long size, int node, AllocationKind kind, Throwable trace) {
+            this.address = address;
+            this.size = size;
+            this.node = node;
+            this.kind = kind;
+            this.trace = trace;
+        }
+
+        /**
+         * @return the stack trace of the allocation, or an empty array if the leak detection was disabled at the allocation
+         */
+        public StackTraceElement[] stackTrace() {
+            return trace == null ? new StackTraceElement[0] : trace.getStackTrace();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("address:0x%x size:%,d node:%d kind:%s", address, size, node, kind));
+            for(StackTraceElement e : stackTrace())
+                s.append("\n\tat ").append(e);
+            return s.toString();
+        }
+    }
+
+    private final long[] bytesPerNode;
+    private final long[] countPerNode;
+    private final long[] peakPerNode;
+    private final long[] bytesPerKind;
+    private final long[] countPerKind;
+    private final long peakBytes;
+    private final long totalAllocations;
+    private final long totalFrees;
+    private final List<Allocation> liveAllocations;
+
+    NumaMemoryStats(long[] bytesPerNode, long[] countPerNode, long[] peakPerNode, long[] bytesPerKind, long[] countPerKind,
+                    long peakBytes, long totalAllocations, long totalFrees, List<Allocation> liveAllocations) {
+        this.bytesPerNode = bytesPerNode;
+        this.countPerNode = countPerNode;
+        this.peakPerNode = peakPerNode;
+        this.bytesPerKind = bytesPerKind;
+        this.countPerKind = countPerKind;
+        this.peakBytes = peakBytes;
+        this.totalAllocations = totalAllocations;
+        this.totalFrees = totalFrees;
+        this.liveAllocations = Collections.unmodifiableList(liveAllocations);
+    }
+
+    /**
+     * @return the number of nodes in this snapshot
+     */
+    public int numNodes() {
+        return bytesPerNode.length - 1;
+    }
+
+    /**
+     * @return the bytes currently allocated
+     */
+    public long allocatedBytes() {
+        long sum = 0;
+        for(long b : bytesPerKind)
+            sum += b;
+        return sum;
+    }
+
+    /**
+     * @return the number of live allocations
+     */
+    public long allocationCount() {
+        long sum = 0;
+        for(long c : countPerKind)
+            sum += c;
+        return sum;
+    }
+
+    /**
+     * @return the peak of the allocated bytes
+     */
+    public long peakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @param node numa node
+     * @return the bytes allocated on the node
+     */
+    public long bytes(int node) {
+        return bytesPerNode[node];
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of live allocations on the node
+     */
+    public long count(int node) {
+        return countPerNode[node];
+    }
+
+    /**
+     * @param node numa node
+     * @return the peak bytes of the node
+     */
+    public long peakBytes(int node) {
+        return peakPerNode[node];
+    }
+
+    /**
+     * @return the bytes not bound to a node, which are interleaved or allocated with the default policy
+     */
+    public long unboundBytes() {
+        return bytesPerNode[bytesPerNode.length - 1];
+    }
+
+    /**
+     * @param kind allocation kind
+     * @return the bytes allocated by the kind
+     */
+    public long bytes(AllocationKind kind) {
+        return bytesPerKind[kind.ordinal()];
+    }
+
+    /**
+     * @param kind allocation kind
+     * @return the number of live allocations of the kind
+     */
+    public long count(AllocationKind kind) {
+        return countPerKind[kind.ordinal()];
+    }
+
+    /**
+     * @return the number of allocations since the start
+     */
+    public long totalAllocations() {
+        return totalAllocations;
+    }
+
+    /**
+     * @return the number of releases since the start
+     */
+    public long totalFrees() {
+        return totalFrees;
+    }
+
+    /**
+     * @return the live allocations
+     */
+    public List<Allocation> liveAllocations() {
+        return liveAllocations;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("NumaMemoryStats(allocated:%,d, count:%,d, peak:%,d)", allocatedBytes(), allocationCount(), peakBytes));
+        for(int n=0; n<numNodes(); ++n)
+            s.append(String.format("\n node %d: allocated:%,d count:%,d peak:%,d", n, bytesPerNode[n], countPerNode[n], peakPerNode[n]));
+        s.append(String.format("\n unbound: allocated:%,d count:%,d", unboundBytes(), countPerNode[numNodes()]));
+        for(AllocationKind k : AllocationKind.values())
+            s.append(String.format("\n %s: allocated:%,d count:%,d", k, bytes(k), count(k)));
+        return s.toString();
+    }
+}
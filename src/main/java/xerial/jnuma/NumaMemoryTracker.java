@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import xerial.jnuma.NumaMemoryStats.Allocation;
+import xerial.jnuma.NumaMemoryStats.AllocationKind;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the memory allocated through {@link Numa}. The sizes of the allocations are recorded by address,
+ * so releasing memory uses the recorded size rather than the size given by the caller.
+ * Heap buffers allocated by the fallback without libnuma are recorded by identity, and their memory is released
+ * from the statistics when they are freed or collected by GC.
+ *
+ * Accounting is disabled by -Dxerial.jnuma.accounting=false, and the leak detection is enabled by -Dxerial.jnuma.leakDetection=true.
+ *
+ * @author Taro L. Saito
+ */
+final class NumaMemoryTracker implements NumaMemoryMXBean {
+
+    static final boolean enabled = Boolean.parseBoolean(System.getProperty("xerial.jnuma.accounting", "true"));
+
+    /**
+     * Allocations of this size or larger update the peaks
+     */
+    private static final long PEAK_SAMPLE_BYTES = 64 * 1024;
+
+    private static class Holder {
+        static final NumaMemoryTracker instance = new NumaMemoryTracker();
+    }
+
+    static NumaMemoryTracker get() {
+        return Holder.instance;
+    }
+
+    private static class Record {
+        final long size;
+        final int node;
+        final AllocationKind kind;
+        final Throwable trace;
+
+        Record(long size, int node, AllocationKind kind, Throwable trace) {
+            this.size = size;
+            this.node = node;
+            this.kind = kind;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Identifies a heap buffer without keeping it reachable
+     */
+    private static class HeapKey extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        HeapKey(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+            super(buf, queue);
+            this.hash = System.identityHashCode(buf);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o == this)
+                return true;
+            if(!(o instanceof HeapKey))
+                return false;
+            ByteBuffer buf = get();
+            return buf != null && buf == ((HeapKey) o).get();
+        }
+    }
+
+    private static final int NUM_KINDS = AllocationKind.values().length;
+
+    /**
+     * The number of node slots. The last slot is for the memory not bound to a node.
+     */
+    private final int numSlots;
+    private final int nodeCountBase;
+    private final int kindBytesBase;
+    private final int kindCountBase;
+    private final int allocsIndex;
+    private final int freesIndex;
+    private final StripedCounter counters;
+    /**
+     * Peak bytes of each node slot, and the peak of the total at the last
+     */
+    private final AtomicLongArray peaks;
+    private final ConcurrentHashMap<Long, Record> records = new ConcurrentHashMap<Long, Record>();
+    private final ConcurrentHashMap<HeapKey, Record> heapRecords = new ConcurrentHashMap<HeapKey, Record>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    private volatile boolean leakDetection = Boolean.parseBoolean(System.getProperty("xerial.jnuma.leakDetection", "false"));
+
+    private NumaMemoryTracker() {
+        this.numSlots = Numa.numNodes() + 1;
+        this.nodeCountBase = numSlots;
+        this.kindBytesBase = numSlots * 2;
+        this.kindCountBase = kindBytesBase + NUM_KINDS;
+        this.allocsIndex = kindCountBase + NUM_KINDS;
+        this.freesIndex = allocsIndex + 1;
+        this.counters = new StripedCounter(freesIndex + 1);
+        this.peaks = new AtomicLongArray(numSlots + 1);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NumaMemoryStats.OBJECT_NAME));
+        }
+        catch(Exception e) {
+            // Another class loader may have registered the bean
+        }
+    }
+
+    private int slot(int node) {
+        return node >= 0 && node < numSlots - 1 ? node : numSlots - 1;
+    }
+
+    void allocated(long address, long size, int node, AllocationKind kind) {
+        if(address == 0)
+            return;
+        Record r = newRecord(size, node, kind);
+        records.put(address, r);
+        add(r);
+    }
+
+    /**
+     * Record the allocation of a buffer. Heap buffers are recorded by identity.
+     */
+    void allocated(ByteBuffer buf, int node, AllocationKind kind) {
+        if(buf.isDirect()) {
+            allocated(UnsafeAccess.addressOf(buf), buf.capacity(), node, kind);
+            return;
+        }
+        expungeCollected();
+        Record r = newRecord(buf.capacity(), node, kind);
+        heapRecords.put(new HeapKey(buf, collected), r);
+        add(r);
+    }
+
+    /**
+     * Record the release of the memory
+     * @param address memory address
+     * @param capacity the size given by the caller
+     * @return the recorded size, or the given capacity if the memory was not allocated through {@link Numa}
+     */
+    long freed(long address, long capacity) {
+        Record r = records.remove(address);
+        if(r == null)
+            return capacity;
+        remove(r);
+        counters.add(freesIndex, 1);
+        return r.size;
+    }
+
+    /**
+     * Record the release of a buffer
+     */
+    void freed(ByteBuffer buf) {
+        if(buf.isDirect()) {
+            freed(UnsafeAccess.addressOf(buf), buf.capacity());
+            return;
+        }
+        expungeCollected();
+        Record r = heapRecords.remove(new HeapKey(buf, null));
+        if(r != null) {
+            remove(r);
+            counters.add(freesIndex, 1);
+        }
+    }
+
+    private Record newRecord(long size, int node, AllocationKind kind) {
+        return new Record(size, node, kind, leakDetection ? new Throwable("allocated here") : null);
+    }
+
+    private void add(Record r) {
+        int slot = slot(r.node);
+        counters.add(slot, r.size, nodeCountBase + slot, 1);
+        counters.add(kindBytesBase + r.kind.ordinal(), r.size, kindCountBase + r.kind.ordinal(), 1);
+        counters.add(allocsIndex, 1);
+        if(r.size >= PEAK_SAMPLE_BYTES)
+            updatePeak(slot);
+    }
+
+    private void remove(Record r) {
+        int slot = slot(r.node);
+        counters.add(slot, -r.size, nodeCountBase + slot, -1);
+        counters.add(kindBytesBase + r.kind.ordinal(), -r.size, kindCountBase + r.kind.ordinal(), -1);
+    }
+
+    /**
+     * Release the heap buffers collected by GC without being freed
+     */
+    private void expungeCollected() {
+        for(Object key; (key = collected.poll()) != null; ) {
+            Record r = heapRecords.remove(key);
+            if(r != null)
+                remove(r);
+        }
+    }
+
+    private static void updateMax(AtomicLongArray a, int i, long v) {
+        for(long current; (current = a.get(i)) < v; ) {
+            if(a.compareAndSet(i, current, v))
+                break;
+        }
+    }
+
+    private void updatePeak(int slot) {
+        updateMax(peaks, slot, counters.sum(slot));
+        long total = 0;
+        for(int i=0; i<numSlots; ++i)
+            total += counters.sum(i);
+        updateMax(peaks, numSlots, total);
+    }
+
+    /**
+     * Fold the current bytes into the peaks, which small allocations do not update
+     */
+    private void updatePeaks() {
+        long total = 0;
+        for(int i=0; i<numSlots; ++i) {
+            long bytes = counters.sum(i);
+            updateMax(peaks, i, bytes);
+            total += bytes;
+        }
+        updateMax(peaks, numSlots, total);
+    }
+
+    NumaMemoryStats snapshot() {
+        expungeCollected();
+        long[] bytesPerNode = new long[numSlots];
+        long[] countPerNode = new long[numSlots];
+        long[] peakPerNode = new long[numSlots];
+        long total = 0;
+        for(int i=0; i<numSlots; ++i) {
+            bytesPerNode[i] = counters.sum(i);
+            countPerNode[i] = counters.sum(nodeCountBase + i);
+            updateMax(peaks, i, bytesPerNode[i]);
+            peakPerNode[i] = peaks.get(i);
+            total += bytesPerNode[i];
+        }
+        updateMax(peaks, numSlots, total);
+        long[] bytesPerKind = new long[NUM_KINDS];
+        long[] countPerKind = new long[NUM_KINDS];
+        for(int k=0; k<NUM_KINDS; ++k) {
+            bytesPerKind[k] = counters.sum(kindBytesBase + k);
+            countPerKind[k] = counters.sum(kindCountBase + k);
+        }
+        return new NumaMemoryStats(bytesPerNode, countPerNode, peakPerNode, bytesPerKind, countPerKind,
+            peaks.get(numSlots), counters.sum(allocsIndex), counters.sum(freesIndex), liveAllocations());
+    }
+
+    private List<Allocation> liveAllocations() {
+        List<Allocation> result = new ArrayList<Allocation>();
+        for(Map.Entry<Long, Record> e : records.entrySet()) {
+            Record r = e.getValue();
+            result.add(new Allocation(e.getKey(), r.size, r.node, r.kind, r.trace));
+        }
+        for(Record r : heapRecords.values())
+            result.add(new Allocation(0, r.size, r.node, r.kind, r.trace));
+        return result;
+    }
+
+    public long getAllocatedBytes() {
+        expungeCollected();
+        long sum = 0;
+        for(int k=0; k<NUM_KINDS; ++k)
+            sum += counters.sum(kindBytesBase + k);
+        return sum;
+    }
+
+    public long getPeakBytes() {
+        expungeCollected();
+        updatePeaks();
+        return peaks.get(numSlots);
+    }
+
+    public long getAllocationCount() {
+        expungeCollected();
+        long sum = 0;
+        for(int k=0; k<NUM_KINDS; ++k)
+            sum += counters.sum(kindCountBase + k);
+        return sum;
+    }
+
+    public long[] getBytesPerNode() {
+        expungeCollected();
+        long[] result = new long[numSlots];
+        for(int i=0; i<numSlots; ++i)
+            result[i] = counters.sum(i);
+        return result;
+    }
+
+    public long[] getPeakBytesPerNode() {
+        expungeCollected();
+        updatePeaks();
+        long[] result = new long[numSlots];
+        for(int i=0; i<numSlots; ++i)
+            result[i] = peaks.get(i);
+        return result;
+    }
+
+    public long[] getFreeBytesPerNode() {
+        long[] result = new long[numSlots - 1];
+        for(int i=0; i<result.length; ++i)
+            result[i] = NumaMemoryMonitor.currentFreeSize(i);
+        return result;
+    }
+
+    public Map<String, Long> getBytesPerKind() {
+        expungeCollected();
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for(AllocationKind k : AllocationKind.values())
+            result.put(k.name(), counters.sum(kindBytesBase + k.ordinal()));
+        return result;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public void setLeakDetection(boolean enabled) {
+        this.leakDetection = enabled;
+    }
+
+    public String[] getLiveAllocations() {
+        expungeCollected();
+        List<Allocation> live = liveAllocations();
+        String[] result = new String[live.size()];
+        for(int i=0; i<result.length; ++i)
+            result[i] = live.get(i).toString();
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A multi-producer single-consumer ring of long values placed in NUMA memory. Producers claim a slot by CAS on the tail counter,
+ * and each slot has a sequence number that tells the consumer when the value is published, so the consumer does not read the tail.
+ *
+ * @author Taro L. Saito
+ */
+public final class NumaMpscRing extends NumaLongRing {
+
+    /**
+     * A slot is {sequence, value}
+     */
+    private static final int SLOT_BYTES = 16;
+
+    private NumaMpscRing(NumaMemorySegment segment, int capacity) {
+        super(segment, capacity);
+        for(long i=0; i<capacity; ++i)
+            unsafe.putLong(slot(i), i);
+    }
+
+    /**
+     * Allocate a new ring on the specified node, which should be the node of the consumer
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param node numa node
+     * @return new ring
+     */
+    public static NumaMpscRing allocOnNode(int capacity, int node) {
+        int c = ringCapacity(capacity);
+        return new NumaMpscRing(NumaMemorySegment.allocOnNode(segmentSize(c, SLOT_BYTES), node), c);
+    }
+
+    /**
+     * Allocate a new ring on the node of the current thread, which should be the consumer
+     * @param capacity the number of slots, rounded up to a power of two
+     * @return new ring
+     */
+    public static NumaMpscRing allocLocal(int capacity) {
+        int c = ringCapacity(capacity);
+        return new NumaMpscRing(NumaMemorySegment.allocLocal(segmentSize(c, SLOT_BYTES)), c);
+    }
+
+    private long slot(long sequence) {
+        return base + SLOTS + (sequence & mask) * SLOT_BYTES;
+    }
+
+    /**
+     * Insert the value if the ring has a free slot. Any thread can call this method.
+     * @param value
+     * @return false if the ring is full
+     */
+    public boolean offer(long value) {
+        for(;;) {
+            long tail = unsafe.getLongVolatile(null, base + TAIL);
+            long slot = slot(tail);
+            long diff = unsafe.getLongVolatile(null, slot) - tail;
+            if(diff == 0) {
+                if(unsafe.compareAndSwapLong(null, base + TAIL, tail, tail + 1)) {
+                    unsafe.putLong(slot + 8, value);
+                    unsafe.putOrderedLong(null, slot, tail + 1);
+                    return true;
+                }
+            }
+            else if(diff < 0) {
+                // The consumer has not released the slot of the previous round
+                return false;
+            }
+        }
+    }
+
+    public long poll(long ifEmpty) {
+        long head = unsafe.getLong(base + HEAD);
+        long slot = slot(head);
+        if(unsafe.getLongVolatile(null, slot) != head + 1)
+            return ifEmpty;
+        long value = unsafe.getLong(slot + 8);
+        unsafe.putOrderedLong(null, slot, head + capacity);
+        unsafe.putOrderedLong(null, base + HEAD, head + 1);
+        return value;
+    }
+
+    public int drainTo(long[] dest, int offset, int length) {
+        NumaArray.checkArrayRange(dest.length, offset, length);
+        long head = unsafe.getLong(base + HEAD);
+        int n = 0;
+        for(; n<length; ++n) {
+            long slot = slot(head + n);
+            if(unsafe.getLongVolatile(null, slot) != head + n + 1)
+                break;
+            dest[offset + n] = unsafe.getLong(slot + 8);
+            unsafe.putOrderedLong(null, slot, head + n + capacity);
+        }
+        if(n > 0)
+            unsafe.putOrderedLong(null, base + HEAD, head + n);
+        return n;
+    }
+}
@@ -15,10 +15,16 @@
  */
 #define _GNU_SOURCE
 #include <numa.h>
+#include <numaif.h>
 #include <sched.h>
+#include <sys/mman.h>
 #include <stdio.h>
+#include <stdlib.h>
 #include <stdint.h>
+#include <string.h>
 #include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
 #include "NumaNative.h"
 
 
@@ -91,15 +97,31 @@ JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_distance
 JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_nodeToCpus
   (JNIEnv *env, jobject obj, jint node, jlongArray array) {
 
-   unsigned long* buf = (unsigned long*) (*env)->GetPrimitiveArrayCritical(env, (jarray) array, 0);
-   int len = (int) (*env)->GetArrayLength(env, array);
-   int ret = numa_node_to_cpus((int) node, buf, len * 8);
-   (*env)->ReleasePrimitiveArrayCritical(env, (jarray) array, buf, 0);
-   if(ret != 0)
+   struct bitmask* mask = numa_allocate_cpumask();
+   jsize len = (*env)->GetArrayLength(env, array);
+   jsize words;
+   int ret = numa_node_to_cpus((int) node, mask);
+   if(ret != 0) {
+     numa_bitmask_free(mask);
      throwException(env, obj, errno);
+     return;
+   }
+   words = (jsize) ((mask->size + 63) / 64);
+   (*env)->SetLongArrayRegion(env, array, 0, len < words ? len : words, (jlong*) mask->maskp);
+   numa_bitmask_free(mask);
   }
 
 
+/*
+ * Wrap the allocated memory with a direct ByteBuffer. Returns NULL if the allocation failed,
+ * so that the caller can apply the fallback policy.
+ */
+static jobject newBuffer(JNIEnv *env, void* mem, jint capacity) {
+   if(mem == NULL)
+     return NULL;
+   return (*env)->NewDirectByteBuffer(env, mem, (jlong) capacity);
+}
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    alloc
@@ -107,47 +129,25 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_nodeToCpus
  */
 JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_alloc
   (JNIEnv *env, jobject obj, jint capacity) {
-   void* mem = numa_alloc((size_t) capacity);
-   //printf("allocate local memory\n");
-   if(mem == NULL)
-     printf("failed to allocate local memory\n");
-   return (*env)->NewDirectByteBuffer(env, mem, (jlong) capacity);
+   return newBuffer(env, numa_alloc((size_t) capacity), capacity);
   }
 
 
 JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_allocLocal
   (JNIEnv *env, jobject jobj, jint capacity)
 {
-   void* mem = numa_alloc_local((size_t) capacity);
-   //printf("allocate local memory\n");
-   if(mem == NULL)
-     printf("failed to allocate local memory\n");
-   return (*env)->NewDirectByteBuffer(env, mem, (jlong) capacity);
+   return newBuffer(env, numa_alloc_local((size_t) capacity), capacity);
 }
 
 JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_allocOnNode
   (JNIEnv *env, jobject jobj, jint capacity, jint node)
   {
-   jobject b;
-   void* mem = numa_alloc_onnode((size_t) capacity, (int) node);
-   if(mem == NULL)
-     printf("failed to allocate memory on node %d\n", (int) node);
-   b = (*env)->NewDirectByteBuffer(env, mem, (jlong) capacity);
-   return b;
+   return newBuffer(env, numa_alloc_onnode((size_t) capacity, (int) node), capacity);
   }
 
 JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_allocInterleaved
   (JNIEnv *env, jobject obj, jint capacity) {
-   jobject b;
-   void* mem = numa_alloc_interleaved((size_t) capacity);
-   if(mem == NULL) {
-     // failed to allocate interleaved memory
-     throwException(env, obj, 11);
-   }
-   else {
-     b = (*env)->NewDirectByteBuffer(env, mem, (jlong) capacity);
-     return b;
-   }
+   return newBuffer(env, numa_alloc_interleaved((size_t) capacity), capacity);
   }
 
 
@@ -164,12 +164,107 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_free__Ljava_nio_ByteBuffer_2
 
 JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemory
   (JNIEnv *env, jobject obj, jlong capacity) {
-   void* mem = numa_alloc((size_t) capacity);
-   if(mem == NULL)
-     printf("failed to allocate local memory\n");
+   // Returns 0 if the allocation failed
+   return (jlong) numa_alloc((size_t) capacity);
+}
+
+
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryLocal
+  (JNIEnv *env, jobject obj, jlong capacity) {
+   return (jlong) numa_alloc_local((size_t) capacity);
+}
+
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryOnNode
+  (JNIEnv *env, jobject obj, jlong capacity, jint node) {
+   return (jlong) numa_alloc_onnode((size_t) capacity, (int) node);
+}
+
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryInterleaved
+  (JNIEnv *env, jobject obj, jlong capacity) {
+   return (jlong) numa_alloc_interleaved((size_t) capacity);
+}
+
+/*
+ * Whether the kernel backs the regions advised with MADV_HUGEPAGE by transparent huge pages.
+ * madvise succeeds even if transparent huge pages are disabled.
+ */
+static int thpEnabled() {
+   char buf[64];
+   size_t n;
+   FILE* f = fopen("/sys/kernel/mm/transparent_hugepage/enabled", "r");
+   if(f == NULL)
+     return 0;
+   n = fread(buf, 1, sizeof(buf) - 1, f);
+   fclose(f);
+   buf[n] = '\0';
+   return strstr(buf, "[always]") != NULL || strstr(buf, "[madvise]") != NULL;
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    allocHugePages
+ * Signature: (JIJ[I)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocHugePages
+  (JNIEnv *env, jobject obj, jlong capacity, jint node, jlong hugePageSize, jintArray backing) {
+   size_t len = (size_t) capacity;
+   size_t huge = (size_t) hugePageSize;
+   jint result[2];
+   int flags = MAP_PRIVATE | MAP_ANONYMOUS;
+   char* mem;
+
+#ifdef MAP_HUGETLB
+   int hugeFlags = flags | MAP_HUGETLB;
+#ifdef MAP_HUGE_SHIFT
+   hugeFlags |= (__builtin_ctzl(huge) << MAP_HUGE_SHIFT);
+#endif
+   mem = (char*) mmap(NULL, len, PROT_READ | PROT_WRITE, hugeFlags, -1, 0);
+   if(mem != MAP_FAILED) {
+     result[0] = (jint) huge;
+     result[1] = 2;
+   }
+   else
+#endif
+   {
+     // Fall back to transparent huge pages. Map an extra huge page to align the start address
+     char* raw = (char*) mmap(NULL, len + huge, PROT_READ | PROT_WRITE, flags, -1, 0);
+     size_t head;
+     if(raw == MAP_FAILED)
+       return 0;
+     mem = (char*) (((uintptr_t) raw + huge - 1) & ~((uintptr_t) huge - 1));
+     head = (size_t) (mem - raw);
+     if((head > 0 && munmap(raw, head) != 0) || munmap(mem + len, huge - head) != 0) {
+       // Release the pages that are still mapped
+       munmap(raw, len + huge);
+       return 0;
+     }
+#ifdef MADV_HUGEPAGE
+     if(madvise(mem, len, MADV_HUGEPAGE) == 0 && thpEnabled()) {
+       result[0] = (jint) huge;
+       result[1] = 1;
+     }
+     else
+#endif
+     {
+       result[0] = (jint) numa_pagesize();
+       result[1] = 0;
+     }
+   }
+
+   // Pages are not touched yet, so the policy applies to all of the pages
+   if(node >= 0)
+     numa_tonode_memory(mem, len, (int) node);
+   else
+     numa_interleave_memory(mem, len, numa_all_nodes_ptr);
+
+   (*env)->SetIntArrayRegion(env, backing, 0, 2, result);
    return (jlong) mem;
 }
 
+JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_directBuffer
+  (JNIEnv *env, jobject obj, jlong address, jint capacity) {
+   return (*env)->NewDirectByteBuffer(env, (void*) address, (jlong) capacity);
+}
 
 
 JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_free__JJ
@@ -233,6 +328,17 @@ JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_preferredNode
      return (jint) numa_preferred();
   }
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    currentCpu
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_currentCpu
+  (JNIEnv *env, jobject obj) {
+     int cpu = sched_getcpu();
+     return (jint) (cpu < 0 ? 0 : cpu);
+  }
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    setLocalAlloc
@@ -279,3 +385,232 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_toNodeMemory
 
   (*env)->ReleasePrimitiveArrayCritical(env, (jarray) array, buf, (jint) 0);
 }
+
+/*
+ * Layout of the saved thread state: {saved flag, policy mode, node mask (NODE_MASK_WORDS), cpu mask (CPU_MASK_WORDS)}
+ */
+#define NODE_MASK_WORDS 16
+#define CPU_MASK_WORDS (sizeof(cpu_set_t) / sizeof(jlong))
+#define THREAD_STATE_WORDS (2 + NODE_MASK_WORDS + CPU_MASK_WORDS)
+
+static void toCpuSet(jlong* words, jsize len, cpu_set_t* mask) {
+  int i, b;
+  CPU_ZERO(mask);
+  for(i=0; i<len && i<(int) CPU_MASK_WORDS; ++i) {
+    if(words[i] == 0)
+      continue;
+    for(b=0; b<64; ++b)
+      if(words[i] & ((jlong) 1 << b))
+        CPU_SET(i * 64 + b, mask);
+  }
+}
+
+static void setPolicy(JNIEnv *env, jobject obj, int mode, jlong* nodeMask, jsize len) {
+  unsigned long mask[NODE_MASK_WORDS];
+  int i;
+  for(i=0; i<NODE_MASK_WORDS; ++i)
+    mask[i] = i < len ? (unsigned long) nodeMask[i] : 0;
+  if(set_mempolicy(mode, len > 0 ? mask : NULL, len > 0 ? NODE_MASK_WORDS * 64 + 1 : 0) != 0)
+    throwException(env, obj, errno);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    bindThread
+ * Signature: ([JI[J[J)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_bindThread
+  (JNIEnv *env, jobject obj, jlongArray cpuMask, jint mode, jlongArray nodeMask, jlongArray previous) {
+  jlong cpus[CPU_MASK_WORDS];
+  jlong nodes[NODE_MASK_WORDS];
+  jsize cpuLen = (*env)->GetArrayLength(env, cpuMask);
+  jsize nodeLen = (*env)->GetArrayLength(env, nodeMask);
+  cpu_set_t mask;
+
+  if(cpuLen > (jsize) CPU_MASK_WORDS)
+    cpuLen = CPU_MASK_WORDS;
+  if(nodeLen > NODE_MASK_WORDS)
+    nodeLen = NODE_MASK_WORDS;
+  (*env)->GetLongArrayRegion(env, cpuMask, 0, cpuLen, cpus);
+  (*env)->GetLongArrayRegion(env, nodeMask, 0, nodeLen, nodes);
+
+  if(previous != NULL) {
+    jlong state[THREAD_STATE_WORDS];
+    int prevMode = 0;
+    int i;
+    memset(state, 0, sizeof(state));
+    if(get_mempolicy(&prevMode, (unsigned long*) (state + 2), NODE_MASK_WORDS * 64, NULL, 0) != 0) {
+      throwException(env, obj, errno);
+      return;
+    }
+    CPU_ZERO(&mask);
+    if(sched_getaffinity(0, sizeof(mask), &mask) != 0) {
+      throwException(env, obj, errno);
+      return;
+    }
+    for(i=0; i<(int) (CPU_MASK_WORDS * 64); ++i)
+      if(CPU_ISSET(i, &mask))
+        state[2 + NODE_MASK_WORDS + i / 64] |= (jlong) 1 << (i % 64);
+    state[0] = 1;
+    state[1] = prevMode;
+    (*env)->SetLongArrayRegion(env, previous, 0, THREAD_STATE_WORDS, state);
+  }
+
+  toCpuSet(cpus, cpuLen, &mask);
+  if(sched_setaffinity(0, sizeof(mask), &mask) != 0) {
+    throwException(env, obj, errno);
+    return;
+  }
+  setPolicy(env, obj, (int) mode, nodes, nodeLen);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    restoreThread
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_restoreThread
+  (JNIEnv *env, jobject obj, jlongArray previous) {
+  jlong state[THREAD_STATE_WORDS];
+  cpu_set_t mask;
+  int mode;
+  (*env)->GetLongArrayRegion(env, previous, 0, THREAD_STATE_WORDS, state);
+  if(state[0] == 0)
+    return;
+
+  toCpuSet(state + 2 + NODE_MASK_WORDS, CPU_MASK_WORDS, &mask);
+  if(sched_setaffinity(0, sizeof(mask), &mask) != 0) {
+    throwException(env, obj, errno);
+    return;
+  }
+  mode = (int) state[1];
+  // MPOL_DEFAULT and MPOL_LOCAL take no node mask
+  setPolicy(env, obj, mode, state + 2, (mode == MPOL_DEFAULT || mode == MPOL_LOCAL) ? 0 : NODE_MASK_WORDS);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    pageSize
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_pageSize
+  (JNIEnv *env, jobject obj) {
+  return (jint) numa_pagesize();
+}
+
+#define PAGE_BATCH 1024
+
+/*
+ * Query or move pages by move_pages. If node < 0, only the current nodes of the pages are queried.
+ */
+static void pageStatus(JNIEnv *env, jobject obj, jlong address, jint node, jintArray status) {
+  jsize count = (*env)->GetArrayLength(env, status);
+  long pageSize = numa_pagesize();
+  void* pages[PAGE_BATCH];
+  int nodes[PAGE_BATCH];
+  int st[PAGE_BATCH];
+  jsize i, j;
+
+  for(i=0; i<count; i += PAGE_BATCH) {
+    jsize n = (count - i) < PAGE_BATCH ? (count - i) : PAGE_BATCH;
+    for(j=0; j<n; ++j) {
+      pages[j] = (void*) (intptr_t) (address + (jlong) (i + j) * pageSize);
+      nodes[j] = (int) node;
+    }
+    if(move_pages(0, (unsigned long) n, pages, node < 0 ? NULL : nodes, st, node < 0 ? 0 : MPOL_MF_MOVE) < 0) {
+      throwException(env, obj, errno);
+      return;
+    }
+    (*env)->SetIntArrayRegion(env, status, i, n, (jint*) st);
+  }
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    getPageNodes
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_getPageNodes
+  (JNIEnv *env, jobject obj, jlong address, jintArray status) {
+  pageStatus(env, obj, address, -1, status);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    movePages
+ * Signature: (JI[I)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_movePages
+  (JNIEnv *env, jobject obj, jlong address, jint node, jintArray status) {
+  pageStatus(env, obj, address, node, status);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    mbind
+ * Signature: (JJI[JI)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_mbind
+  (JNIEnv *env, jobject obj, jlong address, jlong length, jint mode, jlongArray nodeMask, jint flags) {
+  jsize len = (*env)->GetArrayLength(env, nodeMask);
+  unsigned long* mask = (unsigned long*) malloc(sizeof(unsigned long) * (len > 0 ? len : 1));
+  int ret;
+  if(mask == NULL) {
+    throwException(env, obj, ENOMEM);
+    return;
+  }
+  mask[0] = 0;
+  (*env)->GetLongArrayRegion(env, nodeMask, 0, len, (jlong*) mask);
+  ret = mbind((void*) (intptr_t) address, (unsigned long) length, (int) mode, len > 0 ? mask : NULL, (unsigned long) len * 64 + 1, (unsigned) flags);
+  free(mask);
+  if(ret != 0)
+    throwException(env, obj, errno);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    mapFile
+ * Signature: (Ljava/lang/String;JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_mapFile
+  (JNIEnv *env, jobject obj, jstring path, jlong offset, jlong length) {
+  const char* p = (*env)->GetStringUTFChars(env, path, NULL);
+  int fd;
+  void* mem;
+  if(p == NULL)
+    return 0;
+  fd = open(p, O_RDONLY);
+  (*env)->ReleaseStringUTFChars(env, path, p);
+  if(fd < 0)
+    return 0;
+  mem = mmap(NULL, (size_t) length, PROT_READ, MAP_SHARED, fd, (off_t) offset);
+  // The mapping keeps a reference to the file
+  if(close(fd) != 0) {
+    if(mem != MAP_FAILED)
+      munmap(mem, (size_t) length);
+    return 0;
+  }
+  return mem == MAP_FAILED ? 0 : (jlong) (intptr_t) mem;
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    unmapFile
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_unmapFile
+  (JNIEnv *env, jobject obj, jlong address, jlong length) {
+  if(address != 0 && munmap((void*) (intptr_t) address, (size_t) length) != 0)
+    throwException(env, obj, errno);
+}
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    madvise
+ * Signature: (JJI)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_madvise
+  (JNIEnv *env, jobject obj, jlong address, jlong length, jint advice) {
+  if(madvise((void*) (intptr_t) address, (size_t) length, (int) advice) != 0)
+    throwException(env, obj, errno);
+}
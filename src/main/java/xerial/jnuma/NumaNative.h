@@ -79,6 +79,14 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_setAffinity
 JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_preferredNode
   (JNIEnv *, jobject);
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    currentCpu
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_currentCpu
+  (JNIEnv *, jobject);
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    setLocalAlloc
@@ -103,6 +111,22 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_setPreferred
 JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_runOnNode
   (JNIEnv *, jobject, jint);
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    bindThread
+ * Signature: ([JI[J[J)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_bindThread
+  (JNIEnv *, jobject, jlongArray, jint, jlongArray, jlongArray);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    restoreThread
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_restoreThread
+  (JNIEnv *, jobject, jlongArray);
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    toNodeMemory
@@ -111,6 +135,38 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_runOnNode
 JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_toNodeMemory
   (JNIEnv *, jobject, jobject, jint, jint);
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    pageSize
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xerial_jnuma_NumaNative_pageSize
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    getPageNodes
+ * Signature: (J[I)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_getPageNodes
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    movePages
+ * Signature: (JI[I)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_movePages
+  (JNIEnv *, jobject, jlong, jint, jintArray);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    mbind
+ * Signature: (JJI[JI)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_mbind
+  (JNIEnv *, jobject, jlong, jlong, jint, jlongArray, jint);
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    alloc
@@ -159,6 +215,46 @@ JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_free__Ljava_nio_ByteBuffer_2
 JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemory
   (JNIEnv *, jobject, jlong);
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    allocMemoryLocal
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryLocal
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    allocMemoryOnNode
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryOnNode
+  (JNIEnv *, jobject, jlong, jint);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    allocMemoryInterleaved
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemoryInterleaved
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    allocHugePages
+ * Signature: (JIJ[I)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocHugePages
+  (JNIEnv *, jobject, jlong, jint, jlong, jintArray);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    directBuffer
+ * Signature: (JI)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_xerial_jnuma_NumaNative_directBuffer
+  (JNIEnv *, jobject, jlong, jint);
+
 /*
  * Class:     xerial_jnuma_NumaNative
  * Method:    free
@@ -167,6 +263,30 @@ JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_allocMemory
 JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_free__JJ
   (JNIEnv *, jobject, jlong, jlong);
 
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    mapFile
+ * Signature: (Ljava/lang/String;JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_xerial_jnuma_NumaNative_mapFile
+  (JNIEnv *, jobject, jstring, jlong, jlong);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    unmapFile
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_unmapFile
+  (JNIEnv *, jobject, jlong, jlong);
+
+/*
+ * Class:     xerial_jnuma_NumaNative
+ * Method:    madvise
+ * Signature: (JJI)V
+ */
+JNIEXPORT void JNICALL Java_xerial_jnuma_NumaNative_madvise
+  (JNIEnv *, jobject, jlong, jlong, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -19,8 +19,8 @@ package xerial.jnuma;
 import java.nio.ByteBuffer;
 
 /**
- * Native code interface. Do not describe this class name in an import statement or source codes, because it will break
- * the native code loading mechanism. Use static methods in {@link xerial.jnuma.Numa} to access NUMA.
+ * Native code interface. An instance is created by {@link xerial.jnuma.Numa} after loading the native library.
+ * Use static methods in {@link xerial.jnuma.Numa} to access NUMA.
  *
  * @author Taro L. Saito
  */
@@ -36,13 +36,21 @@ public class NumaNative implements NumaInterface {
     public native void setAffinity(int pid, long[] cpuBitMask, int numCPUs);
 
     public native int preferredNode();
+    public native int currentCpu();
     public native void setLocalAlloc();
 
     public native void setPreferred(int node);
     public native void runOnNode(int node);
+    public native void bindThread(long[] cpuMask, int mode, long[] nodeMask, long[] previous);
+    public native void restoreThread(long[] previous);
 
     public native void toNodeMemory(Object array, int length, int node);
 
+    public native int pageSize();
+    public native void getPageNodes(long address, int[] status);
+    public native void movePages(long address, int node, int[] status);
+    public native void mbind(long address, long length, int mode, long[] nodeMask, int flags);
+
     public native ByteBuffer alloc(int capacity);
     public native ByteBuffer allocLocal(int capacity);
     public native ByteBuffer allocOnNode(int capacity, int node);
@@ -51,11 +59,23 @@ public class NumaNative implements NumaInterface {
     public native void free(ByteBuffer buf);
 
     public native long allocMemory(long capacity);
+    public native long allocMemoryLocal(long capacity);
+    public native long allocMemoryOnNode(long capacity, int node);
+    public native long allocMemoryInterleaved(long capacity);
+    public native long allocHugePages(long capacity, int node, long hugePageSize, int[] backing);
+    public native ByteBuffer directBuffer(long address, int capacity);
     public native void free(long address, long capacity);
 
+    public native long mapFile(String path, long offset, long length);
+    public native void unmapFile(long address, long length);
+    public native void madvise(long address, long length, int advice);
+
 
-    private void throwError(int errorCode) throws Exception {
-        throw new Exception(String.format("NUMA error occurred %d", errorCode));
+    /**
+     * Called by the native code to report the errno of a failed call
+     */
+    private void throwError(int errorCode) {
+        throw new IllegalStateException(String.format("NUMA error occurred %d", errorCode));
     }
 
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+/**
+ * The number of pages placed on each NUMA node in a memory range
+ *
+ * @author Taro L. Saito
+ */
+public class NumaPageHistogram {
+
+    /**
+     * errno of the pages that are not allocated yet
+     */
+    private static final int ENOENT = 2;
+
+    private final long[] pages;
+    private final long absent;
+    private final long failed;
+
+    private NumaPageHistogram(long[] pages, long absent, long failed) {
+        this.pages = pages;
+        this.absent = absent;
+        this.failed = failed;
+    }
+
+    /**
+     * Create a histogram from the page status returned by move_pages
+     */
+    static NumaPageHistogram of(int[] status, int numNodes) {
+        long[] pages = new long[numNodes];
+        long absent = 0;
+        long failed = 0;
+        for(int s : status) {
+            if(s >= 0 && s < numNodes)
+                pages[s]++;
+            else if(s == -ENOENT)
+                absent++;
+            else
+                failed++;
+        }
+        return new NumaPageHistogram(pages, absent, failed);
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of pages on the node
+     */
+    public long pages(int node) {
+        return pages[node];
+    }
+
+    /**
+     * @return the number of nodes in this histogram
+     */
+    public int numNodes() {
+        return pages.length;
+    }
+
+    /**
+     * @return the number of pages that are not allocated yet
+     */
+    public long absentPages() {
+        return absent;
+    }
+
+    /**
+     * @return the number of pages whose status could not be obtained or that could not be moved
+     */
+    public long failedPages() {
+        return failed;
+    }
+
+    /**
+     * @return the total number of pages in the range
+     */
+    public long totalPages() {
+        long total = absent + failed;
+        for(long p : pages)
+            total += p;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for(int i=0; i<pages.length; ++i) {
+            if(i > 0)
+                s.append(" ");
+            s.append(String.format("node%d:%d", i, pages[i]));
+        }
+        s.append(String.format(" absent:%d failed:%d", absent, failed));
+        return s.toString();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A long array striped across NUMA nodes by range. The logical array is split into contiguous partitions, and
+ * each partition is allocated on a node that has CPUs. A thread running on a node can scan {@link #localRange(int)}
+ * to touch only the local memory.
+ *
+ * Partitions are made of power-of-two sized blocks, and an index is routed to the memory address of its block
+ * by a table lookup with a shift and a mask, without any branch.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaPartitionedLongArray {
+
+    /**
+     * A range of indexes [start, end)
+     */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long size() {
+            return end - start;
+        }
+
+        public boolean isEmpty() {
+            return start >= end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d)", start, end);
+        }
+    }
+
+    private static final Range EMPTY = new Range(0, 0);
+
+    /**
+     * The minimum number of blocks in a partition. More blocks reduce the imbalance of partition sizes.
+     */
+    private static final int BLOCKS_PER_PARTITION = 64;
+
+    private final long length;
+    private final int shift;
+    private final long mask;
+    private final long partitionLength;
+    private final NumaLongArray[] partitions;
+    private final int[] partitionNode;
+    private final long[] blockAddress;
+    private final int[] blockNode;
+
+    /**
+     * Allocate a new array striped across the nodes that have CPUs
+     * @param length the number of elements
+     */
+    public NumaPartitionedLongArray(long length) {
+        this(length, Numa.topology().nodesWithCPUs());
+    }
+
+    /**
+     * Allocate a new array striped across the given nodes
+     * @param length the number of elements
+     * @param nodes numa nodes to place the partitions. Partitions are assigned in the order of this array.
+     */
+    public NumaPartitionedLongArray(long length, int[] nodes) {
+        if(length < 0)
+            throw new IllegalArgumentException("negative length: " + length);
+        if(nodes.length == 0)
+            throw new IllegalArgumentException("no node is specified");
+        this.length = length;
+        long perNode = Math.max(1L, (length + nodes.length - 1) / nodes.length);
+        this.shift = 63 - Long.numberOfLeadingZeros(Math.max(1L, perNode / BLOCKS_PER_PARTITION));
+        this.mask = (1L << shift) - 1;
+        long blocksPerPartition = (perNode + mask) >>> shift;
+        this.partitionLength = blocksPerPartition << shift;
+        int numBlocks = (int) ((length + mask) >>> shift);
+        int numPartitions = (int) ((numBlocks + blocksPerPartition - 1) / blocksPerPartition);
+        this.partitions = new NumaLongArray[numPartitions];
+        this.partitionNode = new int[numPartitions];
+        this.blockAddress = new long[numBlocks];
+        this.blockNode = new int[numBlocks];
+        try {
+            for(int p=0; p<numPartitions; ++p) {
+                long start = p * partitionLength;
+                long size = Math.min(partitionLength, length - start);
+                partitions[p] = NumaLongArray.allocOnNode(size, nodes[p]);
+                partitionNode[p] = nodes[p];
+                for(long offset = 0; offset < size; offset += mask + 1) {
+                    int b = (int) ((start + offset) >>> shift);
+                    blockAddress[b] = partitions[p].address + (offset << 3);
+                    blockNode[b] = nodes[p];
+                }
+            }
+        }
+        catch(RuntimeException e) {
+            free();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public long length() {
+        return length;
+    }
+
+    public long get(long index) {
+        if(index < 0 || index >= length)
+            throw new IndexOutOfBoundsException(String.format("index:%d length:%d", index, length));
+        return unsafe.getLong(blockAddress[(int) (index >>> shift)] + ((index & mask) << 3));
+    }
+
+    public void set(long index, long value) {
+        if(index < 0 || index >= length)
+            throw new IndexOutOfBoundsException(String.format("index:%d length:%d", index, length));
+        unsafe.putLong(blockAddress[(int) (index >>> shift)] + ((index & mask) << 3), value);
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    public int numPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * @param p partition number
+     * @return the array of the partition. Index 0 of the array corresponds to {@link #partitionRange(int)}.start
+     */
+    public NumaLongArray partition(int p) {
+        return partitions[p];
+    }
+
+    /**
+     * @param p partition number
+     * @return numa node of the partition
+     */
+    public int partitionNode(int p) {
+        return partitionNode[p];
+    }
+
+    /**
+     * @param p partition number
+     * @return index range of the partition
+     */
+    public Range partitionRange(int p) {
+        long start = p * partitionLength;
+        return new Range(start, start + partitions[p].length());
+    }
+
+    /**
+     * @param index
+     * @return the numa node holding the element at the index
+     */
+    public int nodeOf(long index) {
+        return blockNode[(int) (index >>> shift)];
+    }
+
+    /**
+     * Return the index range placed on the given node. If the node holds multiple partitions, the range covers all of them
+     * since partitions on the same node are assigned contiguously.
+     * @param node numa node
+     * @return index range. Empty if the node has no partition.
+     */
+    public Range localRange(int node) {
+        int first = -1;
+        int last = -1;
+        for(int p=0; p<partitions.length; ++p) {
+            if(partitionNode[p] == node) {
+                if(first < 0)
+                    first = p;
+                else if(last != p - 1)
+                    break;
+                last = p;
+            }
+        }
+        if(first < 0)
+            return EMPTY;
+        return new Range(first * partitionLength, last * partitionLength + partitions[last].length());
+    }
+
+    /**
+     * Release the memory of all partitions
+     */
+    public void free() {
+        for(int p=0; p<partitions.length; ++p) {
+            if(partitions[p] != null) {
+                partitions[p].free();
+                partitions[p] = null;
+            }
+        }
+    }
+
+}
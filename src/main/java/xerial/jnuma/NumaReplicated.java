@@ -0,0 +1,382 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.io.Closeable;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Read-mostly data replicated to every NUMA node. The payload is copied to the memory of each node that has CPUs, and readers read the
+ * copy of the node they run on, found by {@link Numa#currentNode(long)}. Nodes without CPUs use the copy of the nearest node.
+ *
+ * {@link #update(byte[])} publishes a new version to all nodes. The old copies are released after the readers of the old version
+ * have finished, in the manner of RCU: readers register in a per-CPU counter of the current epoch, which is placed in the memory of the
+ * local node, and the writer flips the epoch and waits for the counters of the previous epoch to drain.
+ *
+ * <pre>
+ * NumaReplicated table = new NumaReplicated(bytes);
+ * // readers
+ * NumaReplicated.Snapshot s = table.acquire();
+ * try {
+ *     long v = s.getLong(offset);
+ * }
+ * finally {
+ *     s.close();
+ * }
+ * // writer
+ * table.update(newBytes);
+ * </pre>
+ *
+ * @author Taro L. Saito
+ */
+public class NumaReplicated implements Closeable {
+
+    /**
+     * A set of copies of a payload
+     */
+    private static class Version {
+        final long number;
+        final long size;
+        /**
+         * The copy read by the threads of each node
+         */
+        final NumaMemorySegment[] replicaOfNode;
+        final NumaMemorySegment[] copies;
+
+        Version(long number, long size, NumaMemorySegment[] replicaOfNode, NumaMemorySegment[] copies) {
+            this.number = number;
+            this.size = size;
+            this.replicaOfNode = replicaOfNode;
+            this.copies = copies;
+        }
+
+        void free() {
+            for(NumaMemorySegment s : copies)
+                if(s != null)
+                    s.free();
+        }
+    }
+
+    /**
+     * A read-only view of the local copy of a version. The copy is kept until the snapshot is closed.
+     */
+    public static class Snapshot implements NumaResident, Closeable {
+        private final NumaReplicated owner;
+        private final Version version;
+        private final NumaMemorySegment replica;
+        private final long counter;
+        private boolean closed = false;
+
+        private Snapshot(NumaReplicated owner, Version version, NumaMemorySegment replica, long counter) {
+            this.owner = owner;
+            this.version = version;
+            this.replica = replica;
+            this.counter = counter;
+        }
+
+        /**
+         * @return the version number, which starts from 1 and increases by {@link NumaReplicated#update(byte[])}
+         */
+        public long version() {
+            return version.number;
+        }
+
+        /**
+         * @return byte size of the payload
+         */
+        public long size() {
+            return version.size;
+        }
+
+        /**
+         * @return the node of the copy
+         */
+        public int node() {
+            return replica.node();
+        }
+
+        /**
+         * @return the memory address of the copy. The address is valid until this snapshot is closed.
+         */
+        public long address() {
+            return replica.address();
+        }
+
+        private void check(long offset, long length) {
+            if(closed)
+                throw new IllegalStateException("snapshot is already closed");
+            if(offset < 0 || length < 0 || offset > version.size - length)
+                throw new IndexOutOfBoundsException(String.format("offset:%d length:%d size:%d", offset, length, version.size));
+        }
+
+        public byte getByte(long offset) {
+            check(offset, 1);
+            return replica.getByteUnchecked(offset);
+        }
+
+        public int getInt(long offset) {
+            check(offset, 4);
+            return replica.getIntUnchecked(offset);
+        }
+
+        public long getLong(long offset) {
+            check(offset, 8);
+            return replica.getLongUnchecked(offset);
+        }
+
+        public double getDouble(long offset) {
+            check(offset, 8);
+            return replica.getDoubleUnchecked(offset);
+        }
+
+        /**
+         * Copy the region of the payload to an array
+         * @param offset byte offset in the payload
+         * @param dest destination array
+         * @param destOffset offset in the array
+         * @param length byte length to copy
+         */
+        public void copyTo(long offset, byte[] dest, int destOffset, int length) {
+            check(offset, length);
+            replica.copyTo(offset, dest, destOffset, length);
+        }
+
+        /**
+         * Release this snapshot so that the writer can reclaim the copy of the version
+         */
+        public void close() {
+            if(closed)
+                return;
+            closed = true;
+            NumaCells.addAt(counter, -1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Snapshot(version:%d, size:%,d, node:%d)", version.number, version.size, node());
+        }
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 10000;
+
+    /**
+     * Reader counters of the two epochs: {even, odd}
+     */
+    private final NumaCells readers;
+    private volatile long epoch = 0;
+    private volatile Version current;
+    private volatile boolean closed = false;
+
+    /**
+     * Replicate the payload to all nodes
+     * @param payload
+     */
+    public NumaReplicated(byte[] payload) {
+        this(payload, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET, payload.length);
+    }
+
+    /**
+     * Replicate the region of the segment to all nodes
+     * @param src source segment
+     * @param offset byte offset in the segment
+     * @param length byte length
+     */
+    public NumaReplicated(NumaMemorySegment src, long offset, long length) {
+        this((Object) null, regionAddress(src, offset, length), length);
+    }
+
+    /**
+     * Replicate the memory region to all nodes
+     */
+    NumaReplicated(long address, long length) {
+        this((Object) null, address, length);
+    }
+
+    private NumaReplicated(Object base, long offset, long size) {
+        Version v = newVersion(1, base, offset, size);
+        // Allocate the reader counters after the copies so that a failure of either does not leak the other
+        try {
+            this.readers = new NumaCells(16);
+        }
+        catch(RuntimeException e) {
+            v.free();
+            throw e;
+        }
+        this.current = v;
+    }
+
+    private static void checkRegion(NumaMemorySegment src, long offset, long length) {
+        if(offset < 0 || length < 0 || offset > src.size() - length)
+            throw new IndexOutOfBoundsException(String.format("offset:%d length:%d size:%d", offset, length, src.size()));
+    }
+
+    private static long regionAddress(NumaMemorySegment src, long offset, long length) {
+        checkRegion(src, offset, length);
+        return src.address() + offset;
+    }
+
+    private Version newVersion(long number, Object base, long offset, long size) {
+        NumaTopology t = Numa.topology();
+        int[] nodes = t.nodesWithCPUs();
+        NumaMemorySegment[] copies = new NumaMemorySegment[nodes.length];
+        NumaMemorySegment[] replicaOfNode = new NumaMemorySegment[t.numNodes()];
+        try {
+            for(int i=0; i<nodes.length; ++i) {
+                copies[i] = NumaMemorySegment.allocOnNode(Math.max(size, 8), nodes[i]);
+                // Large regions are copied by the CPUs of each node
+                if(base == null && size >= NumaBulk.PARALLEL_THRESHOLD)
+                    NumaBulk.shared().copy(offset, copies[i].address(), size, nodes[i]);
+                else
+                    UnsafeAccess.copyMemory(base, offset, null, copies[i].address(), size);
+                replicaOfNode[nodes[i]] = copies[i];
+            }
+        }
+        catch(RuntimeException e) {
+            new Version(number, size, replicaOfNode, copies).free();
+            throw e;
+        }
+        for(int n=0; n<replicaOfNode.length; ++n) {
+            for(int r=0; replicaOfNode[n] == null; ++r)
+                replicaOfNode[n] = replicaOfNode[t.nearestNode(n, r)];
+        }
+        return new Version(number, size, replicaOfNode, copies);
+    }
+
+    /**
+     * Acquire the local copy of the current version. Close the snapshot after use, otherwise updates wait forever.
+     * @return snapshot
+     * @throws IllegalStateException if this is already closed
+     */
+    public Snapshot acquire() {
+        // The reader counters are freed by close()
+        if(closed)
+            throw new IllegalStateException("already closed");
+        int cell = readers.index();
+        for(;;) {
+            long e = epoch;
+            long counter = readers.address(cell) + ((e & 1) << 3);
+            NumaCells.addAt(counter, 1);
+            // If the epoch has not changed, the writer will wait for this reader
+            if(epoch == e) {
+                Version v = current;
+                if(v == null) {
+                    NumaCells.addAt(counter, -1);
+                    throw new IllegalStateException("already closed");
+                }
+                return new Snapshot(this, v, v.replicaOfNode[Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS)], counter);
+            }
+            NumaCells.addAt(counter, -1);
+        }
+    }
+
+    /**
+     * @return the current version number
+     */
+    public long version() {
+        Version v = current;
+        return v == null ? 0 : v.number;
+    }
+
+    /**
+     * @return the byte size of the current payload
+     */
+    public long size() {
+        Version v = current;
+        return v == null ? 0 : v.size;
+    }
+
+    /**
+     * Publish a new payload to all nodes, and release the copies of the previous version after its readers close their snapshots.
+     * Updates are serialized, and this method blocks until the previous version is released.
+     * @param payload
+     */
+    public void update(byte[] payload) {
+        update(payload, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET, payload.length);
+    }
+
+    public void update(int[] payload) {
+        update(payload, sun.misc.Unsafe.ARRAY_INT_BASE_OFFSET, (long) payload.length << 2);
+    }
+
+    public void update(long[] payload) {
+        update(payload, sun.misc.Unsafe.ARRAY_LONG_BASE_OFFSET, (long) payload.length << 3);
+    }
+
+    public void update(double[] payload) {
+        update(payload, sun.misc.Unsafe.ARRAY_DOUBLE_BASE_OFFSET, (long) payload.length << 3);
+    }
+
+    /**
+     * Publish the region of the segment as a new payload
+     * @param src source segment
+     * @param offset byte offset in the segment
+     * @param length byte length
+     */
+    public void update(NumaMemorySegment src, long offset, long length) {
+        checkRegion(src, offset, length);
+        update(null, src.address() + offset, length);
+    }
+
+    private synchronized void update(Object base, long offset, long size) {
+        if(closed)
+            throw new IllegalStateException("already closed");
+        Version old = current;
+        current = newVersion(old.number + 1, base, offset, size);
+        synchronizeReaders();
+        old.free();
+    }
+
+    /**
+     * Flip the epoch and wait until the readers of the previous epoch have finished
+     */
+    private void synchronizeReaders() {
+        long prev = epoch;
+        epoch = prev + 1;
+        long offset = (prev & 1) << 3;
+        for(int tries=0; readers.sum(offset) != 0; ++tries) {
+            if(tries < SPIN_TRIES)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * Wait until all readers close their snapshots, and release the memory of the copies. Calls of {@link #acquire()} must not
+     * overlap with this method.
+     */
+    public synchronized void close() {
+        if(closed)
+            return;
+        closed = true;
+        Version v = current;
+        current = null;
+        // Readers that saw the last version are in either of the epochs
+        synchronizeReaders();
+        synchronizeReaders();
+        v.free();
+        readers.free();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaReplicated(version:%d, size:%,d)", version(), size());
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+/**
+ * Data placed on a NUMA node. {@link NumaExecutorService} uses this interface to run tasks where the data lives.
+ *
+ * @author Taro L. Saito
+ */
+public interface NumaResident {
+
+    /**
+     * @return the numa node where the data is placed, or a negative value if the data is not bound to a single node
+     */
+    public int node();
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.io.Closeable;
+
+/**
+ * A scope that binds the current thread to a NUMA node, and restores the previous CPU affinity and memory policy when closed.
+ * Binding and restoring take a single native call each. Scope objects are reused per thread, so entering a scope allocates nothing
+ * after the first use at each nesting depth.
+ *
+ * <pre>
+ * NumaScope scope = NumaScope.enter(node);
+ * try {
+ *     // runs on the CPUs of the node, and allocates memory on the node
+ * }
+ * finally {
+ *     scope.close();
+ * }
+ * </pre>
+ *
+ * Scopes can be nested, and must be closed in the reverse order of entering them on the same thread.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaScope implements Closeable {
+
+    private static class ScopeStack {
+        private final Thread thread = Thread.currentThread();
+        private NumaScope[] scopes = new NumaScope[4];
+        private int depth = 0;
+
+        NumaScope push() {
+            if(depth == scopes.length) {
+                NumaScope[] newScopes = new NumaScope[depth * 2];
+                System.arraycopy(scopes, 0, newScopes, 0, depth);
+                scopes = newScopes;
+            }
+            NumaScope s = scopes[depth];
+            if(s == null)
+                s = scopes[depth] = new NumaScope(this, depth);
+            depth++;
+            return s;
+        }
+
+        NumaScope top() {
+            return depth > 0 ? scopes[depth - 1] : null;
+        }
+    }
+
+    private static final ThreadLocal<ScopeStack> scopeStack = new ThreadLocal<ScopeStack>() {
+        @Override
+        protected ScopeStack initialValue() {
+            return new ScopeStack();
+        }
+    };
+
+    private final ScopeStack stack;
+    private final int depth;
+    private final long[] previous = Numa.newThreadState();
+    private int node;
+    private MemoryPolicy policy;
+    private boolean bound;
+    private boolean open;
+
+    private NumaScope(ScopeStack stack, int depth) {
+        this.stack = stack;
+        this.depth = depth;
+    }
+
+    /**
+     * Bind the current thread to the node, and prefer allocating memory on the node
+     * @param node numa node
+     * @return scope to close
+     */
+    public static NumaScope enter(int node) {
+        return enter(node, MemoryPolicy.PREFERRED);
+    }
+
+    /**
+     * Bind the current thread to the node with the specified memory policy
+     * @param node numa node
+     * @param policy memory policy of the thread
+     * @return scope to close
+     */
+    public static NumaScope enter(int node, MemoryPolicy policy) {
+        ScopeStack s = scopeStack.get();
+        NumaScope outer = s.top();
+        NumaScope scope = s.push();
+        // No need to bind the thread again if the enclosing scope has the same placement
+        boolean bind = outer == null || outer.node != node || outer.policy != policy;
+        boolean bound = false;
+        try {
+            if(bind)
+                Numa.bindCurrentThread(node, policy, scope.previous);
+            bound = true;
+        }
+        finally {
+            // Pop the scope for any failure so that the later scopes of this thread are not shifted
+            if(!bound)
+                s.depth--;
+        }
+        scope.node = node;
+        scope.policy = policy;
+        scope.bound = bind;
+        scope.open = true;
+        return scope;
+    }
+
+    /**
+     * @return the node of this scope
+     */
+    public int node() {
+        return node;
+    }
+
+    /**
+     * @return the memory policy of this scope
+     */
+    public MemoryPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Restore the placement of the thread before entering this scope. Closing an already closed scope has no effect.
+     */
+    public void close() {
+        if(!open)
+            return;
+        if(stack.thread != Thread.currentThread())
+            throw new IllegalStateException("scope must be closed by the thread that entered it");
+        if(stack.depth != depth + 1)
+            throw new IllegalStateException("nested scopes must be closed first");
+        open = false;
+        stack.depth--;
+        if(bound)
+            Numa.restoreCurrentThread(previous);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaScope(node:%d, policy:%s, depth:%d)", node, policy, depth);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Base class of the hash maps sharded over NUMA nodes. A key is routed to a shard by the high bits of its hash, and each shard is
+ * allocated on its node. A mutable map locks the shard on each operation; submit the operations to the workers of the owning node,
+ * e.g., by {@link NumaExecutorService#submit(java.util.concurrent.Callable, NumaResident)} with {@link #owner(long)}, so that
+ * the lock and the table stay in the local caches.
+ *
+ * A replicated map is read-only and has a copy of all shards on every node that has CPUs. Reads use the copy of the current node without locking.
+ *
+ * @author Taro L. Saito
+ */
+public abstract class NumaShardedMap<S extends NumaResident> {
+
+    /**
+     * The shards of a mutable map, or the shards of the first replica of a replicated map
+     */
+    final S[] shards;
+    /**
+     * The replica used by the threads of each node, or null if the map is mutable
+     */
+    final S[][] replicas;
+    private volatile boolean freed = false;
+
+    NumaShardedMap(S[] shards) {
+        this.shards = shards;
+        this.replicas = null;
+    }
+
+    NumaShardedMap(S[][] replicas, S[] first) {
+        this.shards = first;
+        this.replicas = replicas;
+    }
+
+    /**
+     * Default placement of the shards: one shard on each node that has CPUs
+     */
+    static int[] defaultNodes() {
+        return Numa.topology().nodesWithCPUs();
+    }
+
+    static int shardIndex(long hash, int numShards) {
+        return (int) (((hash >>> 32) * numShards) >>> 32);
+    }
+
+    /**
+     * @return the shard of the hash for the current thread
+     */
+    final S shard(long hash) {
+        if(replicas == null)
+            return shards[shardIndex(hash, shards.length)];
+        return replicas[Numa.currentNode(Numa.DEFAULT_STALENESS_NANOS)][shardIndex(hash, shards.length)];
+    }
+
+    /**
+     * Copy the shards to every node that has CPUs. Nodes without CPUs use the copy of the nearest node.
+     * @param result the array of the size {@link NumaTopology#numNodes()} to store the copies
+     * @param copies the array to store the copies on each node
+     */
+    final void replicateTo(S[][] result, S[][] copies) {
+        NumaTopology t = Numa.topology();
+        int[] nodes = t.nodesWithCPUs();
+        try {
+            for(int i=0; i<nodes.length; ++i) {
+                S[] c = copies[i];
+                for(int s=0; s<shards.length; ++s) {
+                    synchronized(shards[s]) {
+                        c[s] = copy(shards[s], nodes[i]);
+                    }
+                }
+                result[nodes[i]] = c;
+            }
+        }
+        catch(RuntimeException e) {
+            freeCopies(copies);
+            throw e;
+        }
+        for(int n=0; n<result.length; ++n) {
+            for(int r=0; result[n] == null; ++r)
+                result[n] = result[t.nearestNode(n, r)];
+        }
+    }
+
+    private void freeCopies(S[][] copies) {
+        for(S[] c : copies)
+            for(S s : c)
+                if(s != null)
+                    freeShard(s);
+    }
+
+    /**
+     * Copy the shard to the memory of the node
+     */
+    abstract S copy(S shard, int node);
+
+    abstract void freeShard(S shard);
+
+    final void checkWritable() {
+        if(replicas != null)
+            throw new UnsupportedOperationException("replicated map is read-only");
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int numShards() {
+        return shards.length;
+    }
+
+    /**
+     * @param key
+     * @return the shard number of the key
+     */
+    public int shardOf(long key) {
+        return shardIndex(LongHashTable.hash(key), shards.length);
+    }
+
+    /**
+     * @param key
+     * @return the node where the shard of the key is placed. For a replicated map, the node of the first replica.
+     */
+    public int nodeOf(long key) {
+        return shards[shardOf(key)].node();
+    }
+
+    /**
+     * @param key
+     * @return the shard of the key, which can be passed to {@link NumaExecutorService#submit(Runnable, NumaResident)} to run the task on the owning node
+     */
+    public NumaResident owner(long key) {
+        return shards[shardOf(key)];
+    }
+
+    /**
+     * @return true if this map is a read-only map that has a copy on each node
+     */
+    public boolean isReplicated() {
+        return replicas != null;
+    }
+
+    /**
+     * Release the memory of this map
+     */
+    public void free() {
+        if(freed)
+            throw new IllegalStateException("map is already freed");
+        freed = true;
+        if(replicas == null) {
+            for(S s : shards)
+                freeShard(s);
+        }
+        else {
+            // Nodes without CPUs share the copies of the other nodes
+            IdentityHashMap<S[], Boolean> released = new IdentityHashMap<S[], Boolean>();
+            for(S[] r : replicas) {
+                if(released.put(r, Boolean.TRUE) == null)
+                    for(S s : r)
+                        freeShard(s);
+            }
+        }
+    }
+}
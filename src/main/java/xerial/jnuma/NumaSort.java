@@ -0,0 +1,448 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * Parallel radix sort of the arrays in NUMA memory. The sort is stable, and can move a long payload (e.g., row indexes)
+ * together with each key. Doubles are ordered as {@link java.util.Arrays#sort(double[])}: -0.0 precedes 0.0 and NaN comes last.
+ *
+ * The workers of each node first partition the elements by the most significant bits of the keys. Each bucket range is
+ * owned by a worker, and the elements are scattered into scratch memory on the node of the owner. This scatter is the only
+ * pass that moves elements across nodes. Then each owner sorts its range by LSD radix sort within the node-local scratch memory,
+ * and writes the result back to the array.
+ *
+ * Do not call these methods from the tasks of the same executor, since the caller waits for the tasks of the workers.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaSort {
+
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+
+    /**
+     * Bits of a digit. 2^11 counters of a histogram fit in the L1 cache.
+     */
+    private static final int DIGIT_BITS = 11;
+    private static final int DIGIT_MASK = (1 << DIGIT_BITS) - 1;
+
+    /**
+     * Arrays smaller than this length per worker are sorted by fewer workers
+     */
+    static final long MIN_ELEMENTS_PER_TASK = 64 * 1024;
+
+    /**
+     * Buckets smaller than this length are sorted by insertion sort
+     */
+    private static final long INSERTION_SORT_THRESHOLD = 64;
+
+    private static class Holder {
+        static final NumaSort shared = new NumaSort(NumaBulk.sharedExecutor());
+    }
+
+    /**
+     * @return the instance that uses the shared executor of {@link NumaBulk#shared()}
+     */
+    public static NumaSort shared() {
+        return Holder.shared;
+    }
+
+    /**
+     * The work of a task in a phase
+     */
+    private static abstract class TaskBody {
+        abstract void run(int task);
+    }
+
+    private final NumaExecutorService executor;
+
+    /**
+     * @param executor the executor that runs the work on each node
+     */
+    public NumaSort(NumaExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public void sort(NumaIntArray a) {
+        sort(INT, a, null);
+    }
+
+    public void sort(NumaLongArray a) {
+        sort(LONG, a, null);
+    }
+
+    public void sort(NumaDoubleArray a) {
+        sort(DOUBLE, a, null);
+    }
+
+    /**
+     * Sort the keys, and reorder the payload in the same way
+     * @param keys
+     * @param payload an array of the same length as the keys
+     */
+    public void sort(NumaIntArray keys, NumaLongArray payload) {
+        sort(INT, keys, payload);
+    }
+
+    /**
+     * Sort the keys, and reorder the payload in the same way
+     * @param keys
+     * @param payload an array of the same length as the keys
+     */
+    public void sort(NumaLongArray keys, NumaLongArray payload) {
+        sort(LONG, keys, payload);
+    }
+
+    /**
+     * Sort the keys, and reorder the payload in the same way
+     * @param keys
+     * @param payload an array of the same length as the keys
+     */
+    public void sort(NumaDoubleArray keys, NumaLongArray payload) {
+        sort(DOUBLE, keys, payload);
+    }
+
+    private void sort(int kind, NumaArray keys, NumaLongArray payload) {
+        if(payload != null && payload.length() != keys.length())
+            throw new IllegalArgumentException(String.format("payload length %d differs from key length %d", payload.length(), keys.length()));
+        int width = kind == INT ? 4 : 8;
+        long payloadAddress = payload == null ? 0 : payload.address;
+        int[] taskNode = taskNodes(keys.length());
+        if(taskNode.length <= 1)
+            sortLocal(kind, width, keys.address, payloadAddress, keys.length());
+        else
+            sortParallel(kind, width, keys.address, payloadAddress, keys.length(), taskNode);
+    }
+
+    /**
+     * Key bits in the unsigned order
+     */
+    private static long key(int kind, long address) {
+        switch(kind) {
+            case INT:
+                return (unsafe.getInt(address) ^ 0x80000000) & 0xFFFFFFFFL;
+            case LONG:
+                return unsafe.getLong(address) ^ Long.MIN_VALUE;
+            default:
+                long bits = Double.doubleToLongBits(unsafe.getDouble(address));
+                return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+        }
+    }
+
+    private static void move(int width, long from, long to) {
+        if(width == 4)
+            unsafe.putInt(to, unsafe.getInt(from));
+        else
+            unsafe.putLong(to, unsafe.getLong(from));
+    }
+
+    /**
+     * Stable insertion sort of n elements at the address
+     */
+    private static void insertionSort(int kind, int width, long address, long payload, long n) {
+        for(long i=1; i<n; ++i) {
+            long k = key(kind, address + i * width);
+            // Compare the unsigned keys as signed values by flipping the sign bits
+            long j = i - 1;
+            while(j >= 0 && (key(kind, address + j * width) ^ Long.MIN_VALUE) > (k ^ Long.MIN_VALUE))
+                --j;
+            if(++j == i)
+                continue;
+            long v = width == 4 ? unsafe.getInt(address + i * width) : unsafe.getLong(address + i * width);
+            long pv = payload == 0 ? 0 : unsafe.getLong(payload + (i << 3));
+            unsafe.copyMemory(address + j * width, address + (j + 1) * width, (i - j) * width);
+            if(width == 4)
+                unsafe.putInt(address + j * width, (int) v);
+            else
+                unsafe.putLong(address + j * width, v);
+            if(payload != 0) {
+                unsafe.copyMemory(payload + (j << 3), payload + ((j + 1) << 3), (i - j) << 3);
+                unsafe.putLong(payload + (j << 3), pv);
+            }
+        }
+    }
+
+    /**
+     * LSD radix sort of n elements at src on the key bits [0, bits)
+     * @param buf scratch memory of n elements
+     * @param bufPayload scratch memory of n payloads, or 0 if there is no payload
+     * @param hist histograms of the digits, allocated by the calling thread and reused among the calls
+     * @return true if the result is in buf, false if in src
+     */
+    private static boolean lsd(int kind, int width, long src, long srcPayload, long buf, long bufPayload, long n, int bits, long[][] hist) {
+        if(n <= 1 || bits <= 0)
+            return false;
+        if(n < INSERTION_SORT_THRESHOLD) {
+            insertionSort(kind, width, src, srcPayload, n);
+            return false;
+        }
+        int passes = (bits + DIGIT_BITS - 1) / DIGIT_BITS;
+        for(int p=0; p<passes; ++p)
+            Arrays.fill(hist[p], 0L);
+        for(long i=0; i<n; ++i) {
+            long k = key(kind, src + i * width);
+            for(int p=0; p<passes; ++p)
+                hist[p][(int) (k >>> (p * DIGIT_BITS)) & DIGIT_MASK]++;
+        }
+        long a = src, ap = srcPayload, b = buf, bp = bufPayload;
+        boolean inBuf = false;
+        for(int p=0; p<passes; ++p) {
+            int shift = p * DIGIT_BITS;
+            long[] h = hist[p];
+            // Skip the pass if all elements have the same digit
+            if(h[(int) (key(kind, a) >>> shift) & DIGIT_MASK] == n)
+                continue;
+            long sum = 0;
+            for(int d=0; d<=DIGIT_MASK; ++d) {
+                long c = h[d];
+                h[d] = sum;
+                sum += c;
+            }
+            for(long i=0; i<n; ++i) {
+                long from = a + i * width;
+                long pos = h[(int) (key(kind, from) >>> shift) & DIGIT_MASK]++;
+                move(width, from, b + pos * width);
+                if(ap != 0)
+                    unsafe.putLong(bp + (pos << 3), unsafe.getLong(ap + (i << 3)));
+            }
+            long t = a; a = b; b = t;
+            t = ap; ap = bp; bp = t;
+            inBuf = !inBuf;
+        }
+        return inBuf;
+    }
+
+    private static long[][] newHistograms() {
+        return new long[(64 + DIGIT_BITS - 1) / DIGIT_BITS][DIGIT_MASK + 1];
+    }
+
+    private static NumaMemorySegment allocScratch(long bytes, int node) {
+        return node < 0 ? NumaMemorySegment.allocLocal(Math.max(8, bytes)) : NumaMemorySegment.allocOnNode(Math.max(8, bytes), node);
+    }
+
+    /**
+     * Sort the array by the current thread with scratch memory on the local node
+     */
+    private static void sortLocal(int kind, int width, long keys, long payload, long n) {
+        if(n <= 1)
+            return;
+        NumaMemorySegment buf = allocScratch(n * width, -1);
+        NumaMemorySegment bufPayload = payload == 0 ? null : allocScratch(n << 3, -1);
+        try {
+            if(lsd(kind, width, keys, payload, buf.address(), bufPayload == null ? 0 : bufPayload.address(), n, width * 8, newHistograms())) {
+                UnsafeAccess.copyMemory(null, buf.address(), null, keys, n * width);
+                if(payload != 0)
+                    UnsafeAccess.copyMemory(null, bufPayload.address(), null, payload, n << 3);
+            }
+        }
+        finally {
+            buf.free();
+            if(bufPayload != null)
+                bufPayload.free();
+        }
+    }
+
+    /**
+     * Nodes of the tasks, grouped by node. The CPUs of the nodes are used in a round-robin manner until each task has
+     * at least {@link #MIN_ELEMENTS_PER_TASK} elements.
+     */
+    private static int[] taskNodes(long n) {
+        NumaTopology t = Numa.topology();
+        int[] nodes = t.nodesWithCPUs();
+        int[] perNode = new int[nodes.length];
+        long maxTasks = n / MIN_ELEMENTS_PER_TASK;
+        int numTasks = 0;
+        for(boolean added = true; added && numTasks < maxTasks; ) {
+            added = false;
+            for(int i=0; i<nodes.length && numTasks < maxTasks; ++i) {
+                if(perNode[i] < Math.max(1, t.cpuCount(nodes[i]))) {
+                    perNode[i]++;
+                    numTasks++;
+                    added = true;
+                }
+            }
+        }
+        int[] taskNode = new int[numTasks];
+        for(int i=0, k=0; i<nodes.length; ++i)
+            for(int j=0; j<perNode[i]; ++j)
+                taskNode[k++] = nodes[i];
+        return taskNode;
+    }
+
+    private void runTasks(int[] taskNode, final TaskBody body) {
+        List<Future<?>> tasks = new ArrayList<Future<?>>(taskNode.length);
+        for(int i=0; i<taskNode.length; ++i) {
+            final int task = i;
+            tasks.add(executor.submit(new Runnable() {
+                public void run() {
+                    body.run(task);
+                }
+            }, taskNode[i]));
+        }
+        NumaBulk.await(tasks);
+    }
+
+    private void sortParallel(final int kind, final int width, final long keys, final long payload, final long n, final int[] taskNode) {
+        final int numTasks = taskNode.length;
+        final long[] inputStart = new long[numTasks + 1];
+        for(int t=0; t<=numTasks; ++t)
+            inputStart[t] = n * t / numTasks;
+
+        // Find the highest bit that differs among the keys
+        final long first = key(kind, keys);
+        final long[] diffs = new long[numTasks];
+        runTasks(taskNode, new TaskBody() {
+            void run(int task) {
+                long diff = 0;
+                for(long i=inputStart[task]; i<inputStart[task + 1]; ++i)
+                    diff |= key(kind, keys + i * width) ^ first;
+                diffs[task] = diff;
+            }
+        });
+        long diff = 0;
+        for(long d : diffs)
+            diff |= d;
+        if(diff == 0)
+            return;
+        int bits = 64 - Long.numberOfLeadingZeros(diff);
+        final int msdShift = Math.max(0, bits - DIGIT_BITS);
+        final int numBuckets = 1 << (bits - msdShift);
+        final int bucketMask = numBuckets - 1;
+
+        // Histograms of the most significant digit
+        final long[][] counts = new long[numTasks][];
+        runTasks(taskNode, new TaskBody() {
+            void run(int task) {
+                long[] c = new long[numBuckets];
+                for(long i=inputStart[task]; i<inputStart[task + 1]; ++i)
+                    c[(int) (key(kind, keys + i * width) >>> msdShift) & bucketMask]++;
+                counts[task] = c;
+            }
+        });
+
+        // Assign consecutive buckets to the owners so that each owner has about n / numTasks elements
+        final long[] bucketStart = new long[numBuckets + 1];
+        for(int b=0; b<numBuckets; ++b) {
+            long total = 0;
+            for(int t=0; t<numTasks; ++t)
+                total += counts[t][b];
+            bucketStart[b + 1] = bucketStart[b] + total;
+        }
+        final int[] ownerBucket = new int[numTasks + 1];
+        for(int j=1, b=0; j<numTasks; ++j) {
+            while(b < numBuckets && bucketStart[b] < n * j / numTasks)
+                ++b;
+            ownerBucket[j] = b;
+        }
+        ownerBucket[numTasks] = numBuckets;
+        final long[] ownerStart = new long[numTasks + 1];
+        for(int j=0; j<=numTasks; ++j)
+            ownerStart[j] = bucketStart[ownerBucket[j]];
+
+        // Scratch memory of the owners on each node. The owners of a node are consecutive.
+        final NumaMemorySegment[] scratch = new NumaMemorySegment[numTasks * 4];
+        try {
+            final long[] ownerScratch = new long[numTasks * 4];
+            for(int j=0; j<numTasks; ) {
+                int end = j;
+                while(end < numTasks && taskNode[end] == taskNode[j])
+                    ++end;
+                long len = ownerStart[end] - ownerStart[j];
+                for(int s=0; s<4; ++s) {
+                    if(s >= 2 && payload == 0)
+                        continue;
+                    long w = s < 2 ? width : 8;
+                    NumaMemorySegment seg = allocScratch(len * w, taskNode[j]);
+                    scratch[j * 4 + s] = seg;
+                    for(int o=j; o<end; ++o)
+                        ownerScratch[o * 4 + s] = seg.address() + (ownerStart[o] - ownerStart[j]) * w;
+                }
+                j = end;
+            }
+
+            // Scatter the elements to the scratch memory of the owners
+            final long[] bucketBase = new long[numBuckets];
+            final long[] bucketPayloadBase = new long[numBuckets];
+            for(int j=0; j<numTasks; ++j) {
+                for(int b=ownerBucket[j]; b<ownerBucket[j + 1]; ++b) {
+                    bucketBase[b] = ownerScratch[j * 4] - ownerStart[j] * width;
+                    bucketPayloadBase[b] = ownerScratch[j * 4 + 2] - (ownerStart[j] << 3);
+                }
+            }
+            runTasks(taskNode, new TaskBody() {
+                void run(int task) {
+                    long[] next = new long[numBuckets];
+                    for(int b=0; b<numBuckets; ++b) {
+                        long pos = bucketStart[b];
+                        for(int t=0; t<task; ++t)
+                            pos += counts[t][b];
+                        next[b] = pos;
+                    }
+                    for(long i=inputStart[task]; i<inputStart[task + 1]; ++i) {
+                        long from = keys + i * width;
+                        int b = (int) (key(kind, from) >>> msdShift) & bucketMask;
+                        long pos = next[b]++;
+                        move(width, from, bucketBase[b] + pos * width);
+                        if(payload != 0)
+                            unsafe.putLong(bucketPayloadBase[b] + (pos << 3), unsafe.getLong(payload + (i << 3)));
+                    }
+                }
+            });
+
+            // Sort the buckets of each owner in the local scratch memory, and write back the result
+            runTasks(taskNode, new TaskBody() {
+                void run(int owner) {
+                    long[][] hist = newHistograms();
+                    for(int b=ownerBucket[owner]; b<ownerBucket[owner + 1]; ++b) {
+                        long len = bucketStart[b + 1] - bucketStart[b];
+                        long offset = bucketStart[b] - ownerStart[owner];
+                        long s = ownerScratch[owner * 4] + offset * width;
+                        long sp = payload == 0 ? 0 : ownerScratch[owner * 4 + 2] + (offset << 3);
+                        long buf = ownerScratch[owner * 4 + 1] + offset * width;
+                        long bufPayload = payload == 0 ? 0 : ownerScratch[owner * 4 + 3] + (offset << 3);
+                        if(lsd(kind, width, s, sp, buf, bufPayload, len, msdShift, hist)) {
+                            s = buf;
+                            sp = bufPayload;
+                        }
+                        UnsafeAccess.copyMemory(null, s, null, keys + bucketStart[b] * width, len * width);
+                        if(payload != 0)
+                            UnsafeAccess.copyMemory(null, sp, null, payload + (bucketStart[b] << 3), len << 3);
+                    }
+                }
+            });
+        }
+        finally {
+            for(NumaMemorySegment s : scratch)
+                if(s != null)
+                    s.free();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NumaSort(workers:%d)", executor.numWorkers());
+    }
+}
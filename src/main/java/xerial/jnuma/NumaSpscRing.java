@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A single-producer single-consumer ring of long values placed in NUMA memory. Each side caches the counter of the other side,
+ * so the shared cache lines are read only when the ring looks full or empty.
+ *
+ * @author Taro L. Saito
+ */
+public final class NumaSpscRing extends NumaLongRing {
+
+    private NumaSpscRing(NumaMemorySegment segment, int capacity) {
+        super(segment, capacity);
+    }
+
+    /**
+     * Allocate a new ring on the specified node, which should be the node of the consumer
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param node numa node
+     * @return new ring
+     */
+    public static NumaSpscRing allocOnNode(int capacity, int node) {
+        int c = ringCapacity(capacity);
+        return new NumaSpscRing(NumaMemorySegment.allocOnNode(segmentSize(c, 8), node), c);
+    }
+
+    /**
+     * Allocate a new ring on the node of the current thread, which should be the consumer
+     * @param capacity the number of slots, rounded up to a power of two
+     * @return new ring
+     */
+    public static NumaSpscRing allocLocal(int capacity) {
+        int c = ringCapacity(capacity);
+        return new NumaSpscRing(NumaMemorySegment.allocLocal(segmentSize(c, 8)), c);
+    }
+
+    /**
+     * Insert the value if the ring has a free slot. Only the producer thread can call this method.
+     * @param value
+     * @return false if the ring is full
+     */
+    public boolean offer(long value) {
+        long tail = unsafe.getLong(base + TAIL);
+        long wrap = tail - capacity;
+        if(unsafe.getLong(base + HEAD_CACHE) <= wrap) {
+            long head = unsafe.getLongVolatile(null, base + HEAD);
+            unsafe.putLong(base + HEAD_CACHE, head);
+            if(head <= wrap)
+                return false;
+        }
+        unsafe.putLong(base + SLOTS + ((tail & mask) << 3), value);
+        unsafe.putOrderedLong(null, base + TAIL, tail + 1);
+        return true;
+    }
+
+    public long poll(long ifEmpty) {
+        long head = unsafe.getLong(base + HEAD);
+        if(head >= unsafe.getLong(base + TAIL_CACHE)) {
+            long tail = unsafe.getLongVolatile(null, base + TAIL);
+            unsafe.putLong(base + TAIL_CACHE, tail);
+            if(head >= tail)
+                return ifEmpty;
+        }
+        long value = unsafe.getLong(base + SLOTS + ((head & mask) << 3));
+        unsafe.putOrderedLong(null, base + HEAD, head + 1);
+        return value;
+    }
+
+    public int drainTo(long[] dest, int offset, int length) {
+        NumaArray.checkArrayRange(dest.length, offset, length);
+        long head = unsafe.getLong(base + HEAD);
+        long tail = unsafe.getLong(base + TAIL_CACHE);
+        if(tail - head < length) {
+            tail = unsafe.getLongVolatile(null, base + TAIL);
+            unsafe.putLong(base + TAIL_CACHE, tail);
+        }
+        int n = (int) Math.min(length, tail - head);
+        for(int i=0; i<n; ++i)
+            dest[offset + i] = unsafe.getLong(base + SLOTS + (((head + i) & mask) << 3));
+        if(n > 0)
+            unsafe.putOrderedLong(null, base + HEAD, head + n);
+        return n;
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reader of the NUMA statistics of the system and of this process. Each {@link #sample()} reads
+ * <ul>
+ * <li>/sys/devices/system/node/node*&#47;numastat: allocation counters of each node (numa_hit, numa_miss, etc.)</li>
+ * <li>/sys/devices/system/node/node*&#47;meminfo: memory usage of each node</li>
+ * <li>/proc/self/numa_maps: the pages of this process placed on each node</li>
+ * </ul>
+ * and keeps the values of the previous sample, so that the changes between the samples can be monitored, e.g., an increase of the
+ * allocations on remote nodes. The files are kept open and parsed into reused buffers, so sampling allocates no object in a steady state.
+ * Note that reading numa_maps walks the page tables of the process, whose cost grows with the mapped memory.
+ *
+ * <pre>
+ * NumaStat stat = new NumaStat();
+ * ...
+ * stat.sample();
+ * if(stat.remoteRatio() &gt; 0.1)
+ *     ...
+ * stat.close();
+ * </pre>
+ *
+ * The statistics are available only on Linux. Otherwise {@link #numNodes()} is 0. This class is not thread-safe.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaStat implements Closeable {
+
+    /**
+     * Counters of numastat. The counters are the number of pages allocated on the node since the boot.
+     */
+    public enum Counter {
+        /** Allocated on the intended node */
+        NUMA_HIT("numa_hit"),
+        /** Allocated on this node although another node was intended */
+        NUMA_MISS("numa_miss"),
+        /** Intended for this node but allocated on another node */
+        NUMA_FOREIGN("numa_foreign"),
+        /** Interleaved allocations placed on the intended node */
+        INTERLEAVE_HIT("interleave_hit"),
+        /** Allocated on this node by a process running on this node */
+        LOCAL_NODE("local_node"),
+        /** Allocated on this node by a process running on another node */
+        OTHER_NODE("other_node");
+
+        private final byte[] key;
+
+        private Counter(String key) {
+            this.key = key.getBytes(ASCII);
+        }
+    }
+
+    /**
+     * Entries of the per-node meminfo. Values are in bytes except for the number of huge pages.
+     */
+    public enum MemInfo {
+        MEM_TOTAL("MemTotal:"),
+        MEM_FREE("MemFree:"),
+        MEM_USED("MemUsed:"),
+        ACTIVE("Active:"),
+        INACTIVE("Inactive:"),
+        FILE_PAGES("FilePages:"),
+        ANON_PAGES("AnonPages:"),
+        SHMEM("Shmem:"),
+        SLAB("Slab:"),
+        ANON_HUGE_PAGES("AnonHugePages:"),
+        HUGE_PAGES_TOTAL("HugePages_Total:"),
+        HUGE_PAGES_FREE("HugePages_Free:");
+
+        private final byte[] key;
+
+        private MemInfo(String key) {
+            this.key = key.getBytes(ASCII);
+        }
+    }
+
+    /**
+     * A memory mapping of this process in numa_maps
+     */
+    public static class Mapping {
+        /**
+         * The start address of the mapping
+         */
+        public final long address;
+        /**
+         * The memory policy of the mapping, e.g., default, bind:0, interleave:0-3
+         */
+        public final String policy;
+        /**
+         * The mapped file, or null for anonymous memory
+         */
+        public final String file;
+        /**
+         * true if the mapping is the heap or a stack
+         */
+        public final boolean heapOrStack;
+        /**
+         * The size of the pages backing the mapping
+         */
+        public final long pageSize;
+        private final long[] pages;
+
+        Mapping(long address, String policy, String file, boolean heapOrStack, long pageSize, long[] pages) {
+            this.address = address;
+            this.policy = policy;
+            this.file = file;
+            this.heapOrStack = heapOrStack;
+            this.pageSize = pageSize;
+            this.pages = pages;
+        }
+
+        /**
+         * @param node numa node
+         * @return the number of pages of the mapping on the node
+         */
+        public long pages(int node) {
+            return node < pages.length ? pages[node] : 0;
+        }
+
+        /**
+         * @return the number of the resident pages of the mapping
+         */
+        public long totalPages() {
+            long total = 0;
+            for(long p : pages)
+                total += p;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(String.format("0x%x %s", address, policy));
+            if(file != null)
+                s.append(" file=").append(file);
+            for(int n=0; n<pages.length; ++n)
+                if(pages[n] > 0)
+                    s.append(String.format(" N%d=%d", n, pages[n]));
+            return s.toString();
+        }
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] KERNEL_PAGE_SIZE = "kernelpagesize_kB=".getBytes(ASCII);
+    private static final byte[] FILE = "file=".getBytes(ASCII);
+    private static final byte[] HEAP = "heap".getBytes(ASCII);
+    private static final byte[] STACK = "stack".getBytes(ASCII);
+    private static final byte[] PREFER = "prefer".getBytes(ASCII);
+    private static final byte[] WEIGHTED = "weighted".getBytes(ASCII);
+    private static final byte[] KB = "kB".getBytes(ASCII);
+    private static final long DEFAULT_PAGE_SIZE_KB = 4;
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final MemInfo[] MEM_INFO = MemInfo.values();
+
+    /**
+     * A file re-read from the beginning at every sample
+     */
+    private static class Source {
+        private final RandomAccessFile file;
+        byte[] buf = new byte[4096];
+        int length;
+
+        Source(File path) {
+            RandomAccessFile f = null;
+            try {
+                f = new RandomAccessFile(path, "r");
+            }
+            catch(IOException e) {
+                // The file is not available in this system
+            }
+            this.file = f;
+        }
+
+        /**
+         * Read the whole file into the buffer
+         * @return false if the file is not available
+         */
+        boolean read() {
+            length = 0;
+            if(file == null)
+                return false;
+            try {
+                file.seek(0);
+                for(;;) {
+                    if(length == buf.length) {
+                        byte[] b = new byte[buf.length * 2];
+                        System.arraycopy(buf, 0, b, 0, length);
+                        buf = b;
+                    }
+                    int n = file.read(buf, length, buf.length - length);
+                    if(n <= 0)
+                        break;
+                    length += n;
+                }
+                return true;
+            }
+            catch(IOException e) {
+                length = 0;
+                return false;
+            }
+        }
+
+        void close() {
+            if(file != null) {
+                try {
+                    file.close();
+                }
+                catch(IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private final int numNodes;
+    private final Source[] numastat;
+    private final Source[] meminfo;
+    private final Source numaMaps;
+
+    private long[][] counters;
+    private long[][] previousCounters;
+    private final long[][] memInfo;
+    private long[] processBytes;
+    private long[] previousProcessBytes;
+    private final long[] linePages;
+    private long sampledAt;
+    private long previousSampledAt;
+
+    /**
+     * Create a reader of the statistics of this system, and take the first sample
+     */
+    public NumaStat() {
+        this(new File("/sys/devices/system/node"), new File("/proc/self/numa_maps"));
+    }
+
+    NumaStat(File nodeDir, File numaMapsFile) {
+        this.numNodes = countNodes(nodeDir);
+        this.numastat = new Source[numNodes];
+        this.meminfo = new Source[numNodes];
+        for(int n=0; n<numNodes; ++n) {
+            File dir = new File(nodeDir, "node" + n);
+            numastat[n] = new Source(new File(dir, "numastat"));
+            meminfo[n] = new Source(new File(dir, "meminfo"));
+        }
+        this.numaMaps = new Source(numaMapsFile);
+        this.counters = new long[numNodes][COUNTERS.length];
+        this.previousCounters = new long[numNodes][COUNTERS.length];
+        this.memInfo = new long[numNodes][MEM_INFO.length];
+        this.processBytes = new long[numNodes];
+        this.previousProcessBytes = new long[numNodes];
+        this.linePages = new long[numNodes];
+        sample();
+    }
+
+    /**
+     * @return max node number + 1 of node* directories
+     */
+    private static int countNodes(File nodeDir) {
+        String[] names = nodeDir.list();
+        int max = -1;
+        if(names != null) {
+            for(String name : names) {
+                if(name.length() > 4 && name.startsWith("node")) {
+                    try {
+                        max = Math.max(max, Integer.parseInt(name.substring(4)));
+                    }
+                    catch(NumberFormatException e) {
+                        // not a node directory
+                    }
+                }
+            }
+        }
+        return max + 1;
+    }
+
+    /**
+     * Read the statistics. The values of the last sample become the base of the deltas.
+     */
+    public void sample() {
+        long[][] c = previousCounters;
+        previousCounters = counters;
+        counters = c;
+        long[] p = previousProcessBytes;
+        previousProcessBytes = processBytes;
+        processBytes = p;
+        previousSampledAt = sampledAt;
+        sampledAt = System.nanoTime();
+
+        for(int n=0; n<numNodes; ++n) {
+            Source s = numastat[n];
+            parseCounters(s.read() ? s : null, counters[n]);
+            s = meminfo[n];
+            parseMemInfo(s.read() ? s : null, memInfo[n]);
+        }
+        for(int n=0; n<numNodes; ++n)
+            processBytes[n] = 0;
+        if(numaMaps.read())
+            parseNumaMaps(numaMaps, processBytes, null);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean matches(byte[] buf, int pos, int end, byte[] key) {
+        if(end - pos < key.length)
+            return false;
+        for(int i=0; i<key.length; ++i)
+            if(buf[pos + i] != key[i])
+                return false;
+        return true;
+    }
+
+    private static int lineEnd(Source s, int pos) {
+        while(pos < s.length && s.buf[pos] != '\n')
+            ++pos;
+        return pos;
+    }
+
+    private static int skipSpaces(byte[] buf, int pos, int end) {
+        while(pos < end && isSpace(buf[pos]))
+            ++pos;
+        return pos;
+    }
+
+    private static int tokenEnd(byte[] buf, int pos, int end) {
+        while(pos < end && !isSpace(buf[pos]))
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Parse a decimal number starting at pos
+     */
+    private static long parseLong(byte[] buf, int pos, int end) {
+        long v = 0;
+        while(pos < end && buf[pos] >= '0' && buf[pos] <= '9')
+            v = v * 10 + (buf[pos++] - '0');
+        return v;
+    }
+
+    /**
+     * Parse the lines of "name value"
+     */
+    private static void parseCounters(Source s, long[] values) {
+        for(int i=0; i<values.length; ++i)
+            values[i] = 0;
+        if(s == null)
+            return;
+        Counter[] keys = COUNTERS;
+        for(int pos = 0; pos < s.length; ) {
+            int end = lineEnd(s, pos);
+            int nameEnd = tokenEnd(s.buf, pos, end);
+            for(int i=0; i<keys.length; ++i) {
+                if(nameEnd - pos == keys[i].key.length && matches(s.buf, pos, end, keys[i].key)) {
+                    values[i] = parseLong(s.buf, skipSpaces(s.buf, nameEnd, end), end);
+                    break;
+                }
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Parse the lines of "Node 0 MemTotal:  4947704 kB"
+     */
+    private static void parseMemInfo(Source s, long[] values) {
+        for(int i=0; i<values.length; ++i)
+            values[i] = 0;
+        if(s == null)
+            return;
+        MemInfo[] keys = MEM_INFO;
+        for(int pos = 0; pos < s.length; ) {
+            int end = lineEnd(s, pos);
+            // Skip "Node n"
+            int p = skipSpaces(s.buf, tokenEnd(s.buf, pos, end), end);
+            p = skipSpaces(s.buf, tokenEnd(s.buf, p, end), end);
+            int nameEnd = tokenEnd(s.buf, p, end);
+            for(int i=0; i<keys.length; ++i) {
+                if(nameEnd - p == keys[i].key.length && matches(s.buf, p, end, keys[i].key)) {
+                    int v = skipSpaces(s.buf, nameEnd, end);
+                    int unit = skipSpaces(s.buf, tokenEnd(s.buf, v, end), end);
+                    values[i] = parseLong(s.buf, v, end) * (matches(s.buf, unit, end, KB) ? 1024 : 1);
+                    break;
+                }
+            }
+            pos = end + 1;
+        }
+    }
+
+    private static long parseHex(byte[] buf, int pos, int end) {
+        long v = 0;
+        for(; pos < end; ++pos) {
+            int b = buf[pos];
+            int d = b >= '0' && b <= '9' ? b - '0' : b >= 'a' && b <= 'f' ? b - 'a' + 10 : b >= 'A' && b <= 'F' ? b - 'A' + 10 : -1;
+            if(d < 0)
+                break;
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+
+    /**
+     * Parse the lines of "address policy [file=path] [heap|stack] [key=value]... [Nn=pages]... [kernelpagesize_kB=size]".
+     * Sums the bytes of each node into totals, and adds the mappings to the list if given.
+     */
+    private void parseNumaMaps(Source s, long[] totals, List<Mapping> mappings) {
+        byte[] buf = s.buf;
+        for(int pos = 0; pos < s.length; ) {
+            int end = lineEnd(s, pos);
+            int p = tokenEnd(buf, pos, end);
+            long address = parseHex(buf, pos, p);
+            // The policy is the next token, except for "prefer (many)" and "weighted interleave", which have a space
+            int policyStart = skipSpaces(buf, p, end);
+            int policyEnd = tokenEnd(buf, policyStart, end);
+            if(policyEnd - policyStart == PREFER.length && matches(buf, policyStart, end, PREFER)
+                    || policyEnd - policyStart == WEIGHTED.length && matches(buf, policyStart, end, WEIGHTED))
+                policyEnd = tokenEnd(buf, skipSpaces(buf, policyEnd, end), end);
+            for(int n=0; n<numNodes; ++n)
+                linePages[n] = 0;
+            long pageSizeKB = DEFAULT_PAGE_SIZE_KB;
+            String file = null;
+            boolean heapOrStack = false;
+            for(p = skipSpaces(buf, policyEnd, end); p < end; p = skipSpaces(buf, p, end)) {
+                int t = tokenEnd(buf, p, end);
+                if(buf[p] == 'N' && p + 1 < t && buf[p + 1] >= '0' && buf[p + 1] <= '9') {
+                    int eq = p + 1;
+                    while(eq < t && buf[eq] != '=')
+                        ++eq;
+                    int node = (int) parseLong(buf, p + 1, eq);
+                    if(node < numNodes)
+                        linePages[node] += parseLong(buf, eq + 1, t);
+                }
+                else if(matches(buf, p, t, KERNEL_PAGE_SIZE))
+                    pageSizeKB = parseLong(buf, p + KERNEL_PAGE_SIZE.length, t);
+                else if(mappings != null) {
+                    if(matches(buf, p, t, FILE))
+                        file = new String(buf, p + FILE.length, t - p - FILE.length, UTF8);
+                    else if(t - p == HEAP.length && matches(buf, p, t, HEAP) || t - p == STACK.length && matches(buf, p, t, STACK))
+                        heapOrStack = true;
+                }
+                p = t;
+            }
+            for(int n=0; n<numNodes; ++n)
+                totals[n] += linePages[n] * pageSizeKB * 1024;
+            if(mappings != null && policyStart < end) {
+                String policy = new String(buf, policyStart, policyEnd - policyStart, ASCII);
+                mappings.add(new Mapping(address, policy, file, heapOrStack, pageSizeKB * 1024, linePages.clone()));
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * @return the number of numa nodes in the statistics
+     */
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} at the last sample
+     */
+    public long sampledAtNanos() {
+        return sampledAt;
+    }
+
+    /**
+     * @return the nanoseconds between the last two samples
+     */
+    public long intervalNanos() {
+        return sampledAt - previousSampledAt;
+    }
+
+    /**
+     * @param node numa node
+     * @param counter
+     * @return the value of the counter of the node at the last sample
+     */
+    public long counter(int node, Counter counter) {
+        return counters[node][counter.ordinal()];
+    }
+
+    /**
+     * @param node numa node
+     * @param counter
+     * @return the increase of the counter of the node between the last two samples
+     */
+    public long delta(int node, Counter counter) {
+        int i = counter.ordinal();
+        return counters[node][i] - previousCounters[node][i];
+    }
+
+    /**
+     * @param counter
+     * @return the increase of the counter of all nodes between the last two samples
+     */
+    public long delta(Counter counter) {
+        long sum = 0;
+        for(int n=0; n<numNodes; ++n)
+            sum += delta(n, counter);
+        return sum;
+    }
+
+    private static double ratio(long part, long total) {
+        return total > 0 ? (double) part / total : 0.0;
+    }
+
+    /**
+     * The ratio of the pages allocated on the node by processes running on other nodes, between the last two samples
+     * @param node numa node
+     * @return other_node / (local_node + other_node), or 0 if no page is allocated
+     */
+    public double remoteRatio(int node) {
+        long remote = delta(node, Counter.OTHER_NODE);
+        return ratio(remote, remote + delta(node, Counter.LOCAL_NODE));
+    }
+
+    /**
+     * The ratio of the pages allocated on remote nodes to all allocated pages, between the last two samples
+     * @return other_node / (local_node + other_node) of all nodes, or 0 if no page is allocated
+     */
+    public double remoteRatio() {
+        long remote = delta(Counter.OTHER_NODE);
+        return ratio(remote, remote + delta(Counter.LOCAL_NODE));
+    }
+
+    /**
+     * The ratio of the pages that could not be allocated on the intended node, between the last two samples
+     * @return numa_miss / (numa_hit + numa_miss) of all nodes, or 0 if no page is allocated
+     */
+    public double missRatio() {
+        long miss = delta(Counter.NUMA_MISS);
+        return ratio(miss, miss + delta(Counter.NUMA_HIT));
+    }
+
+    /**
+     * @param node numa node
+     * @param entry
+     * @return the value of the meminfo entry of the node at the last sample
+     */
+    public long memInfo(int node, MemInfo entry) {
+        return memInfo[node][entry.ordinal()];
+    }
+
+    /**
+     * @param node numa node
+     * @return the bytes of the pages of this process resident on the node at the last sample
+     */
+    public long processBytes(int node) {
+        return processBytes[node];
+    }
+
+    /**
+     * @param node numa node
+     * @return the change of the resident bytes of this process on the node between the last two samples
+     */
+    public long processBytesDelta(int node) {
+        return processBytes[node] - previousProcessBytes[node];
+    }
+
+    /**
+     * @return the bytes of the pages of this process resident on any node at the last sample
+     */
+    public long processBytes() {
+        long sum = 0;
+        for(long b : processBytes)
+            sum += b;
+        return sum;
+    }
+
+    /**
+     * Read the memory mappings of this process now. Unlike {@link #sample()}, this method creates an object for each mapping.
+     * @return the mappings in numa_maps
+     */
+    public List<Mapping> mappings() {
+        List<Mapping> result = new ArrayList<Mapping>();
+        if(numaMaps.read())
+            parseNumaMaps(numaMaps, new long[numNodes], result);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Close the files
+     */
+    public void close() {
+        for(int n=0; n<numNodes; ++n) {
+            numastat[n].close();
+            meminfo[n].close();
+        }
+        numaMaps.close();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(String.format("NumaStat(remote ratio:%.3f)", remoteRatio()));
+        for(int n=0; n<numNodes; ++n) {
+            s.append(String.format("\n node %d: hit:%d miss:%d foreign:%d local:%d other:%d free:%,d process:%,d",
+                n, delta(n, Counter.NUMA_HIT), delta(n, Counter.NUMA_MISS), delta(n, Counter.NUMA_FOREIGN),
+                delta(n, Counter.LOCAL_NODE), delta(n, Counter.OTHER_NODE), memInfo(n, MemInfo.MEM_FREE), processBytes[n]));
+        }
+        return s.toString();
+    }
+}
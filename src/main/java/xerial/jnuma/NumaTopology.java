@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the NUMA topology: nodes, distances between nodes, CPUs of each node and memory sizes.
+ * The snapshot is loaded once by {@link Numa#topology()}, so querying the topology does not cross JNI.
+ * Call {@link Numa#refreshTopology()} to reload the topology after CPU or memory hotplug.
+ *
+ * @author Taro L. Saito
+ */
+public class NumaTopology {
+
+    /**
+     * The number of 64-bit words of CPU bit masks returned by the native API
+     */
+    static final int CPU_MASK_WORDS = 512 / 8;
+
+    private final int numNodes;
+    private final int numCPUs;
+    private final int[][] distance;
+    private final long[][] nodeToCpus;
+    private final int[] cpuToNode;
+    private final long[] nodeSize;
+    private final int[][] nearestNodes;
+    private final int[] nodesWithCPUs;
+    private final int[] cpuCount;
+    private final long[] allCPUs;
+    private final long[][] runnableCpus;
+    private final long[][] nodeMasks;
+
+    private NumaTopology(int numNodes, int numCPUs, int[][] distance, long[][] nodeToCpus, long[] nodeSize) {
+        this.numNodes = numNodes;
+        this.distance = distance;
+        this.nodeToCpus = nodeToCpus;
+        this.nodeSize = nodeSize;
+
+        int maxCPU = numCPUs;
+        this.cpuCount = new int[numNodes];
+        for(int n=0; n<numNodes; ++n) {
+            long[] mask = nodeToCpus[n];
+            for(int w=0; w<mask.length; ++w) {
+                if(mask[w] != 0L) {
+                    cpuCount[n] += Long.bitCount(mask[w]);
+                    maxCPU = Math.max(maxCPU, w * 64 + 64 - Long.numberOfLeadingZeros(mask[w]));
+                }
+            }
+        }
+        this.numCPUs = maxCPU;
+        this.cpuToNode = new int[maxCPU];
+        for(int n=numNodes-1; n>=0; --n) {
+            long[] mask = nodeToCpus[n];
+            for(int cpu=0; cpu<maxCPU; ++cpu) {
+                if((mask[cpu / 64] & (1L << (cpu % 64))) != 0)
+                    cpuToNode[cpu] = n;
+            }
+        }
+
+        this.nearestNodes = new int[numNodes][];
+        for(int n=0; n<numNodes; ++n)
+            nearestNodes[n] = sortByDistance(n);
+
+        List<Integer> withCPUs = new ArrayList<Integer>();
+        for(int n=0; n<numNodes; ++n)
+            if(cpuCount[n] > 0)
+                withCPUs.add(n);
+        this.nodesWithCPUs = new int[withCPUs.isEmpty() ? numNodes : withCPUs.size()];
+        for(int i=0; i<nodesWithCPUs.length; ++i)
+            nodesWithCPUs[i] = withCPUs.isEmpty() ? i : withCPUs.get(i);
+
+        this.allCPUs = new long[(maxCPU + 64 - 1) / 64];
+        for(int i=0; i<allCPUs.length; ++i)
+            allCPUs[i] = (i + 1) * 64 <= maxCPU ? ~0L : ~(~0L << (maxCPU % 64));
+
+        this.runnableCpus = new long[numNodes][];
+        this.nodeMasks = new long[numNodes][];
+        for(int n=0; n<numNodes; ++n) {
+            // Use all CPUs if no CPU information is available
+            runnableCpus[n] = allCPUs;
+            for(int near : nearestNodes[n]) {
+                if(cpuCount[near] > 0) {
+                    runnableCpus[n] = nodeToCpus[near];
+                    break;
+                }
+            }
+            nodeMasks[n] = new long[(numNodes + 64 - 1) / 64];
+            nodeMasks[n][n / 64] |= 1L << (n % 64);
+        }
+    }
+
+    private int[] sortByDistance(final int from) {
+        Integer[] nodes = new Integer[numNodes];
+        for(int i=0; i<numNodes; ++i)
+            nodes[i] = i;
+        Arrays.sort(nodes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int da = a == from ? -1 : distance[from][a];
+                int db = b == from ? -1 : distance[from][b];
+                return da != db ? (da < db ? -1 : 1) : a - b;
+            }
+        });
+        int[] result = new int[numNodes];
+        for(int i=0; i<numNodes; ++i)
+            result[i] = nodes[i];
+        return result;
+    }
+
+    /**
+     * Load the current topology through the given NUMA implementation
+     */
+    static NumaTopology load(NumaInterface numa) {
+        int numNodes = numa.maxNode() + 1;
+        int[][] distance = new int[numNodes][numNodes];
+        long[][] nodeToCpus = new long[numNodes][];
+        long[] nodeSize = new long[numNodes];
+        for(int i=0; i<numNodes; ++i) {
+            for(int j=0; j<numNodes; ++j)
+                distance[i][j] = numa.distance(i, j);
+            nodeToCpus[i] = new long[CPU_MASK_WORDS];
+            numa.nodeToCpus(i, nodeToCpus[i]);
+            nodeSize[i] = numa.nodeSize(i);
+        }
+        return new NumaTopology(numNodes, Runtime.getRuntime().availableProcessors(), distance, nodeToCpus, nodeSize);
+    }
+
+    /**
+     * @return the number of numa nodes
+     */
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * @return the number of CPUs. CPU numbers are in [0, numCPUs)
+     */
+    public int numCPUs() {
+        return numCPUs;
+    }
+
+    /**
+     * @param node1
+     * @param node2
+     * @return the distance between the two nodes
+     */
+    public int distance(int node1, int node2) {
+        return distance[node1][node2];
+    }
+
+    /**
+     * @param node numa node
+     * @return the memory size of the node
+     */
+    public long nodeSize(int node) {
+        return nodeSize[node];
+    }
+
+    /**
+     * @param node numa node
+     * @return a copy of the CPU bit mask of the node. CPU0 corresponds to the LSB of the first element.
+     */
+    public long[] nodeToCpus(int node) {
+        return nodeToCpus[node].clone();
+    }
+
+    /**
+     * @param node numa node
+     * @param cpu cpu number
+     * @return true if the CPU belongs to the node
+     */
+    public boolean hasCpu(int node, int cpu) {
+        return cpu >= 0 && cpu < numCPUs && (nodeToCpus[node][cpu / 64] & (1L << (cpu % 64))) != 0;
+    }
+
+    /**
+     * @param node numa node
+     * @return the number of CPUs of the node
+     */
+    public int cpuCount(int node) {
+        return cpuCount[node];
+    }
+
+    /**
+     * @param cpu cpu number
+     * @return the numa node of the CPU. Returns 0 if the CPU is unknown.
+     */
+    public int cpuToNode(int cpu) {
+        return cpu >= 0 && cpu < cpuToNode.length ? cpuToNode[cpu] : 0;
+    }
+
+    /**
+     * Nodes ordered by the distance from the given node. The first node is the node itself.
+     * @param node numa node
+     * @param rank 0 for the node itself, 1 for the nearest node, and so on
+     * @return node number
+     */
+    public int nearestNode(int node, int rank) {
+        return nearestNodes[node][rank];
+    }
+
+    /**
+     * @param node numa node
+     * @return a copy of the node numbers ordered by the distance from the given node
+     */
+    public int[] nearestNodes(int node) {
+        return nearestNodes[node].clone();
+    }
+
+    /**
+     * @return a copy of the node numbers that have at least one CPU. If no CPU information is available, all nodes are returned.
+     */
+    public int[] nodesWithCPUs() {
+        return nodesWithCPUs.clone();
+    }
+
+    /**
+     * CPU bit mask of the node, or of the nearest node that has CPUs if the node has no CPU. If no node has CPU information, all CPUs are returned. Shared by the callers, so do not modify the returned array.
+     */
+    long[] runnableCpuMask(int node) {
+        return runnableCpus[node];
+    }
+
+    /**
+     * Node bit mask that has only the given node. Shared by the callers, so do not modify the returned array.
+     */
+    long[] nodeMask(int node) {
+        return nodeMasks[node];
+    }
+
+    /**
+     * CPU bit mask of all CPUs. Shared by the callers, so do not modify the returned array.
+     */
+    long[] allCPUsMask() {
+        return allCPUs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("NumaTopology(nodes:%d, cpus:%d)", numNodes, numCPUs));
+        for(int n=0; n<numNodes; ++n) {
+            s.append(String.format("\n node %d: cpus:%d size:%,d distance:%s", n, cpuCount[n], nodeSize[n], Arrays.toString(distance[n])));
+        }
+        return s.toString();
+    }
+}
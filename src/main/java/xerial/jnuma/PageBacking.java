@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+/**
+ * The kind of pages backing a memory segment
+ *
+ * @author Taro L. Saito
+ */
+public enum PageBacking {
+    /** Base pages of the system page size */
+    BASE_PAGES,
+    /**
+     * Transparent huge pages requested by madvise(MADV_HUGEPAGE). The kernel may still use base pages
+     * if it cannot find contiguous physical memory.
+     */
+    TRANSPARENT_HUGE_PAGES,
+    /** Huge pages reserved in the hugetlb pool of the system */
+    HUGETLB_PAGES
+}
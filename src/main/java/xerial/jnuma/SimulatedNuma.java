@@ -0,0 +1,763 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xerial.jnuma;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static xerial.jnuma.UnsafeAccess.unsafe;
+
+/**
+ * A NUMA implementation that simulates a multi-node machine, for testing and benchmarking placement logic on a single-node machine.
+ * Select it with -Dxerial.jnuma.backend=simulated. The topology is configured by the following system properties, or by the same keys
+ * without the prefix in a properties file given by xerial.jnuma.simulated.config. System properties take precedence over the file.
+ * <ul>
+ * <li>xerial.jnuma.simulated.nodes: the number of nodes (default 2)</li>
+ * <li>xerial.jnuma.simulated.cpusPerNode: the number of CPUs of each node, or a comma-separated list for each node.
+ * 0 makes a memory-only node. (default: available processors / nodes)</li>
+ * <li>xerial.jnuma.simulated.distance: distance matrix, rows separated by ';' and columns by ',' (default: 10 for local, 20 for remote)</li>
+ * <li>xerial.jnuma.simulated.nodeSize: memory size of each node with an optional k/m/g suffix, or a comma-separated list for each node (default 1g)</li>
+ * <li>xerial.jnuma.simulated.remotePenaltyNanos: busy-wait time charged for each page accessed by the bulk operations
+ * at the remote distance of 20. Scaled by the distance. (default 0)</li>
+ * </ul>
+ *
+ * CPUs are numbered consecutively by node. A thread runs on a fixed CPU chosen from its affinity mask by the thread id, so
+ * {@link Numa#currentNode()} is deterministic. Memory is allocated from the heap of the process, but each node accepts allocations
+ * only up to its size, and the nodes of the pages are tracked for {@link Numa#queryPages(long, long)} and {@link Numa#movePages(long, long, int)}.
+ *
+ * @author Taro L. Saito
+ */
+public class SimulatedNuma extends NoNuma {
+
+    static final String PREFIX = "xerial.jnuma.simulated.";
+
+    private static final int MPOL_DEFAULT = 0;
+    private static final int MPOL_PREFERRED = 1;
+    private static final int MPOL_BIND = 2;
+    private static final int MPOL_INTERLEAVE = 3;
+    private static final int MPOL_MF_MOVE = 1 << 1;
+    private static final int NODE_MASK_WORDS = 16;
+    private static final int ENOMEM = 12;
+    private static final int EFAULT = 14;
+    private static final int LOCAL_DISTANCE = 10;
+    private static final int REMOTE_DISTANCE = 20;
+
+    /**
+     * A memory region allocated by this implementation
+     */
+    private static class Allocation {
+        /**
+         * The address returned by Unsafe.allocateMemory, or 0 for direct buffers and mapped files, which are not freed by this class
+         */
+        final long raw;
+        /**
+         * Page-aligned address
+         */
+        final long address;
+        final long size;
+        /**
+         * The node of each page
+         */
+        final int[] pageNodes;
+
+        Allocation(long raw, long address, long size, int[] pageNodes) {
+            this.raw = raw;
+            this.address = address;
+            this.size = size;
+            this.pageNodes = pageNodes;
+        }
+    }
+
+    /**
+     * Placement of a thread
+     */
+    private static class ThreadState {
+        long[] cpuMask;
+        int mode = MPOL_DEFAULT;
+        long[] nodeMask = new long[0];
+        int cpu = -1;
+    }
+
+    private final int numNodes;
+    /**
+     * CPUs of node n are [cpuStart[n], cpuStart[n+1])
+     */
+    private final int[] cpuStart;
+    private final int[][] distance;
+    private final long[] nodeSize;
+    private final long remotePenaltyNanos;
+    private final int pageSize = unsafe.pageSize();
+
+    private final AtomicLong[] used;
+    private final ConcurrentSkipListMap<Long, Allocation> allocations = new ConcurrentSkipListMap<Long, Allocation>();
+    private final AtomicLong localPageAccesses = new AtomicLong();
+    private final AtomicLong remotePageAccesses = new AtomicLong();
+
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    /**
+     * Create a simulated machine configured by the system properties
+     */
+    SimulatedNuma() {
+        this(loadConfig());
+    }
+
+    /**
+     * Create a simulated machine
+     * @param config the configuration keys without the prefix
+     */
+    public SimulatedNuma(Properties config) {
+        this.numNodes = Integer.parseInt(config.getProperty("nodes", "2").trim());
+        if(numNodes <= 0 || numNodes > NODE_MASK_WORDS * 64)
+            throw new IllegalArgumentException("invalid number of nodes: " + numNodes);
+        String cpus = config.getProperty("cpusPerNode", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / numNodes)));
+        long[] cpuCount = parseList("cpusPerNode", cpus, numNodes);
+        this.cpuStart = new int[numNodes + 1];
+        for(int n=0; n<numNodes; ++n) {
+            if(cpuCount[n] < 0 || cpuStart[n] + cpuCount[n] > NumaTopology.CPU_MASK_WORDS * 64)
+                throw new IllegalArgumentException("invalid number of CPUs per node: " + cpus);
+            cpuStart[n + 1] = cpuStart[n] + (int) cpuCount[n];
+        }
+        if(cpuStart[numNodes] == 0)
+            throw new IllegalArgumentException("no CPU in the simulated nodes");
+        this.distance = parseDistance(config.getProperty("distance"), numNodes);
+        this.nodeSize = parseList("nodeSize", config.getProperty("nodeSize", "1g"), numNodes);
+        this.remotePenaltyNanos = Long.parseLong(config.getProperty("remotePenaltyNanos", "0").trim());
+        this.used = new AtomicLong[numNodes];
+        for(int i=0; i<numNodes; ++i)
+            used[i] = new AtomicLong();
+    }
+
+    private static Properties loadConfig() {
+        Properties config = new Properties();
+        String file = System.getProperty(PREFIX + "config");
+        if(file != null) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    config.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("failed to read the simulated topology " + file, e);
+            }
+        }
+        for(String key : System.getProperties().stringPropertyNames()) {
+            if(key.startsWith(PREFIX) && !key.equals(PREFIX + "config"))
+                config.setProperty(key.substring(PREFIX.length()), System.getProperty(key));
+        }
+        return config;
+    }
+
+    private static int[][] parseDistance(String value, int numNodes) {
+        int[][] d = new int[numNodes][numNodes];
+        if(value == null) {
+            for(int i=0; i<numNodes; ++i)
+                for(int j=0; j<numNodes; ++j)
+                    d[i][j] = i == j ? LOCAL_DISTANCE : REMOTE_DISTANCE;
+            return d;
+        }
+        String[] rows = value.trim().split("\\s*;\\s*");
+        if(rows.length != numNodes)
+            throw new IllegalArgumentException(String.format("distance matrix must have %d rows: %s", numNodes, value));
+        for(int i=0; i<numNodes; ++i) {
+            String[] cols = rows[i].split("\\s*,\\s*");
+            if(cols.length != numNodes)
+                throw new IllegalArgumentException(String.format("distance matrix must have %d columns: %s", numNodes, rows[i]));
+            for(int j=0; j<numNodes; ++j)
+                d[i][j] = Integer.parseInt(cols[j]);
+        }
+        return d;
+    }
+
+    /**
+     * Parse a single value for all nodes, or a comma-separated list of the values of each node
+     */
+    private static long[] parseList(String key, String value, int numNodes) {
+        String[] s = value.trim().split("\\s*,\\s*");
+        if(s.length != 1 && s.length != numNodes)
+            throw new IllegalArgumentException(String.format("%s must have 1 or %d values: %s", key, numNodes, value));
+        long[] v = new long[numNodes];
+        for(int i=0; i<numNodes; ++i)
+            v[i] = parseBytes(s[s.length == 1 ? 0 : i]);
+        return v;
+    }
+
+    private static long parseBytes(String value) {
+        String v = value.trim().toLowerCase();
+        long unit = 1;
+        switch(v.isEmpty() ? ' ' : v.charAt(v.length() - 1)) {
+            case 'k': unit = 1L << 10; break;
+            case 'm': unit = 1L << 20; break;
+            case 'g': unit = 1L << 30; break;
+            case 't': unit = 1L << 40; break;
+        }
+        return Long.parseLong(unit == 1 ? v : v.substring(0, v.length() - 1).trim()) * unit;
+    }
+
+    /**
+     * @return the simulated implementation in use, or null if another implementation is used
+     */
+    public static SimulatedNuma current() {
+        NumaInterface impl = Numa.implementation();
+        return impl instanceof SimulatedNuma ? (SimulatedNuma) impl : null;
+    }
+
+    /**
+     * @param node numa node
+     * @return the bytes allocated on the node
+     */
+    public long allocatedSize(int node) {
+        return used[node].get();
+    }
+
+    /**
+     * @return the number of pages on the local node accessed by the bulk operations
+     */
+    public long localPageAccesses() {
+        return localPageAccesses.get();
+    }
+
+    /**
+     * @return the number of pages on the remote nodes accessed by the bulk operations
+     */
+    public long remotePageAccesses() {
+        return remotePageAccesses.get();
+    }
+
+    public void resetAccessCounters() {
+        localPageAccesses.set(0);
+        remotePageAccesses.set(0);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public int maxNode() {
+        return numNodes - 1;
+    }
+
+    private boolean isValidNode(int node) {
+        return node >= 0 && node < numNodes;
+    }
+
+    @Override
+    public long nodeSize(int node) {
+        return isValidNode(node) ? nodeSize[node] : -1;
+    }
+
+    @Override
+    public long freeSize(int node) {
+        return isValidNode(node) ? nodeSize[node] - used[node].get() : -1;
+    }
+
+    @Override
+    public int distance(int node1, int node2) {
+        return isValidNode(node1) && isValidNode(node2) ? distance[node1][node2] : 0;
+    }
+
+    @Override
+    public void nodeToCpus(int node, long[] buffer) {
+        Arrays.fill(buffer, 0L);
+        if(!isValidNode(node))
+            return;
+        for(int cpu = cpuStart[node]; cpu < cpuStart[node + 1]; ++cpu)
+            buffer[cpu / 64] |= 1L << (cpu % 64);
+    }
+
+    private int numCPUs() {
+        return cpuStart[numNodes];
+    }
+
+    private int cpuToNode(int cpu) {
+        int n = 0;
+        while(n < numNodes - 1 && cpu >= cpuStart[n + 1])
+            ++n;
+        return n;
+    }
+
+    @Override
+    public void getAffinity(int pid, long[] cpuBitMask, int numCPUs) {
+        long[] mask = threadState.get().cpuMask;
+        Arrays.fill(cpuBitMask, 0L);
+        for(int cpu=0; cpu<numCPUs() && cpu / 64 < cpuBitMask.length; ++cpu)
+            if(mask == null || hasBit(mask, cpu))
+                cpuBitMask[cpu / 64] |= 1L << (cpu % 64);
+    }
+
+    @Override
+    public void setAffinity(int pid, long[] cpuBitMask, int numCPUs) {
+        setCpuMask(threadState.get(), cpuBitMask);
+    }
+
+    private static boolean hasBit(long[] mask, int i) {
+        return i / 64 < mask.length && (mask[i / 64] & (1L << (i % 64))) != 0;
+    }
+
+    private void setCpuMask(ThreadState s, long[] mask) {
+        boolean any = false;
+        for(int cpu=0; cpu<numCPUs() && !any; ++cpu)
+            any = hasBit(mask, cpu);
+        // Like sched_setaffinity, a mask without any valid CPU is rejected
+        if(!any)
+            throw new IllegalArgumentException("no valid CPU in the affinity mask");
+        s.cpuMask = mask.clone();
+        s.cpu = -1;
+    }
+
+    @Override
+    public int currentCpu() {
+        ThreadState s = threadState.get();
+        if(s.cpu < 0) {
+            // Choose a CPU from the affinity mask by the thread id
+            int count = 0;
+            for(int cpu=0; cpu<numCPUs(); ++cpu)
+                if(s.cpuMask == null || hasBit(s.cpuMask, cpu))
+                    ++count;
+            long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            int k = count == 0 ? 0 : (int) ((h >>> 33) % count);
+            s.cpu = 0;
+            for(int cpu=0; cpu<numCPUs(); ++cpu) {
+                if((s.cpuMask == null || hasBit(s.cpuMask, cpu)) && k-- == 0) {
+                    s.cpu = cpu;
+                    break;
+                }
+            }
+        }
+        return s.cpu;
+    }
+
+    private int currentNode() {
+        return cpuToNode(currentCpu());
+    }
+
+    @Override
+    public int preferredNode() {
+        ThreadState s = threadState.get();
+        if(s.mode == MPOL_PREFERRED || s.mode == MPOL_BIND) {
+            for(int n=0; n<numNodes; ++n)
+                if(hasBit(s.nodeMask, n))
+                    return n;
+        }
+        return currentNode();
+    }
+
+    @Override
+    public void setLocalAlloc() {
+        ThreadState s = threadState.get();
+        s.mode = MPOL_DEFAULT;
+        s.nodeMask = new long[0];
+    }
+
+    @Override
+    public void setPreferred(int node) {
+        if(node < 0) {
+            setLocalAlloc();
+            return;
+        }
+        ThreadState s = threadState.get();
+        s.mode = MPOL_PREFERRED;
+        s.nodeMask = new long[node / 64 + 1];
+        s.nodeMask[node / 64] = 1L << (node % 64);
+    }
+
+    @Override
+    public void runOnNode(int node) {
+        ThreadState s = threadState.get();
+        if(node < 0) {
+            s.cpuMask = null;
+            s.cpu = -1;
+            return;
+        }
+        long[] mask = new long[NumaTopology.CPU_MASK_WORDS];
+        nodeToCpus(node, mask);
+        setCpuMask(s, mask);
+    }
+
+    @Override
+    public void bindThread(long[] cpuMask, int mode, long[] nodeMask, long[] previous) {
+        ThreadState s = threadState.get();
+        if(previous != null) {
+            Arrays.fill(previous, 0L);
+            previous[0] = 1;
+            previous[1] = s.mode;
+            System.arraycopy(s.nodeMask, 0, previous, 2, Math.min(s.nodeMask.length, NODE_MASK_WORDS));
+            long[] cpus = new long[NumaTopology.CPU_MASK_WORDS];
+            getAffinity(0, cpus, numCPUs());
+            System.arraycopy(cpus, 0, previous, 2 + NODE_MASK_WORDS, Math.min(cpus.length, previous.length - 2 - NODE_MASK_WORDS));
+        }
+        setCpuMask(s, cpuMask);
+        s.mode = mode;
+        s.nodeMask = nodeMask.clone();
+    }
+
+    @Override
+    public void restoreThread(long[] previous) {
+        if(previous[0] == 0)
+            return;
+        ThreadState s = threadState.get();
+        setCpuMask(s, Arrays.copyOfRange(previous, 2 + NODE_MASK_WORDS, previous.length));
+        s.mode = (int) previous[1];
+        s.nodeMask = Arrays.copyOfRange(previous, 2, 2 + NODE_MASK_WORDS);
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    private long numPages(long size) {
+        return (size + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Reserve the pages on the nodes. If any node has no room, nothing is reserved.
+     */
+    private boolean reserve(int[] pageNodes) {
+        long[] pages = new long[numNodes];
+        for(int n : pageNodes)
+            pages[n]++;
+        for(int n=0; n<numNodes; ++n) {
+            if(pages[n] > 0 && used[n].addAndGet(pages[n] * pageSize) > nodeSize[n]) {
+                for(int m=0; m<=n; ++m)
+                    used[m].addAndGet(-pages[m] * pageSize);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocate the memory whose pages are placed on the nodes in a round-robin manner
+     * @param buffer if not null, the memory is allocated as a direct buffer, which is set to buffer[0]
+     * @return the address, or 0 if the nodes have no room
+     */
+    private long allocate(long capacity, int[] nodes, ByteBuffer[] buffer) {
+        if(capacity < 0 || nodes.length == 0 || (buffer != null && capacity > Integer.MAX_VALUE - pageSize))
+            return 0;
+        long pages = numPages(capacity);
+        if(pages > Integer.MAX_VALUE)
+            return 0;
+        int[] pageNodes = new int[(int) pages];
+        for(int i=0; i<pageNodes.length; ++i)
+            pageNodes[i] = nodes[i % nodes.length];
+        if(!reserve(pageNodes))
+            return 0;
+        // Align the memory to the pages as numa_alloc does
+        long raw = 0;
+        long address;
+        try {
+            if(buffer == null) {
+                raw = unsafe.allocateMemory(capacity + pageSize);
+                address = align(raw);
+            }
+            else {
+                // The GC releases the memory of the buffer after it is freed by this class and becomes unreachable
+                ByteBuffer b = ByteBuffer.allocateDirect((int) capacity + pageSize);
+                long base = UnsafeAccess.addressOf(b);
+                int offset = (int) (align(base) - base);
+                b.position(offset);
+                b.limit(offset + (int) capacity);
+                buffer[0] = b.slice();
+                address = base + offset;
+            }
+        }
+        catch(OutOfMemoryError e) {
+            release(pageNodes);
+            return 0;
+        }
+        allocations.put(address, new Allocation(raw, address, capacity, pageNodes));
+        return address;
+    }
+
+    private long align(long address) {
+        return (address + pageSize - 1) & ~((long) pageSize - 1);
+    }
+
+    private void release(int[] pageNodes) {
+        for(int n : pageNodes)
+            used[n].addAndGet(-pageSize);
+    }
+
+    private int[] allNodes() {
+        int[] nodes = new int[numNodes];
+        for(int i=0; i<numNodes; ++i)
+            nodes[i] = i;
+        return nodes;
+    }
+
+    private int[] nodesOf(long[] mask) {
+        int count = 0;
+        for(int n=0; n<numNodes; ++n)
+            if(hasBit(mask, n))
+                ++count;
+        int[] nodes = new int[count];
+        for(int n=0, i=0; n<numNodes; ++n)
+            if(hasBit(mask, n))
+                nodes[i++] = n;
+        return nodes;
+    }
+
+    /**
+     * Allocate the memory following the memory policy of the current thread
+     */
+    private long allocateWithPolicy(long capacity, ByteBuffer[] buffer) {
+        ThreadState s = threadState.get();
+        if(s.mode == MPOL_INTERLEAVE)
+            return allocate(capacity, nodesOf(s.nodeMask), buffer);
+        long address = allocate(capacity, new int[] { preferredNode() }, buffer);
+        // The preferred policy falls back to the other nodes
+        if(address == 0 && s.mode != MPOL_BIND) {
+            for(int n=0; n<numNodes && address == 0; ++n)
+                address = allocate(capacity, new int[] { n }, buffer);
+        }
+        return address;
+    }
+
+    private long allocateOnNode(long capacity, int node, ByteBuffer[] buffer) {
+        return isValidNode(node) ? allocate(capacity, new int[] { node }, buffer) : 0;
+    }
+
+    @Override
+    public long allocMemory(long capacity) {
+        return allocateWithPolicy(capacity, null);
+    }
+
+    @Override
+    public long allocMemoryLocal(long capacity) {
+        return allocate(capacity, new int[] { currentNode() }, null);
+    }
+
+    @Override
+    public long allocMemoryOnNode(long capacity, int node) {
+        return allocateOnNode(capacity, node, null);
+    }
+
+    @Override
+    public long allocMemoryInterleaved(long capacity) {
+        return allocate(capacity, allNodes(), null);
+    }
+
+    @Override
+    public long allocHugePages(long capacity, int node, long hugePageSize, int[] backing) {
+        backing[0] = pageSize;
+        backing[1] = 0;
+        return node >= 0 ? allocMemoryOnNode(capacity, node) : allocMemoryInterleaved(capacity);
+    }
+
+    @Override
+    public ByteBuffer alloc(int capacity) {
+        ByteBuffer[] buffer = new ByteBuffer[1];
+        allocateWithPolicy(capacity, buffer);
+        return buffer[0];
+    }
+
+    @Override
+    public ByteBuffer allocLocal(int capacity) {
+        ByteBuffer[] buffer = new ByteBuffer[1];
+        allocate(capacity, new int[] { currentNode() }, buffer);
+        return buffer[0];
+    }
+
+    @Override
+    public ByteBuffer allocOnNode(int capacity, int node) {
+        ByteBuffer[] buffer = new ByteBuffer[1];
+        allocateOnNode(capacity, node, buffer);
+        return buffer[0];
+    }
+
+    @Override
+    public ByteBuffer allocInterleaved(int capacity) {
+        ByteBuffer[] buffer = new ByteBuffer[1];
+        allocate(capacity, allNodes(), buffer);
+        return buffer[0];
+    }
+
+    @Override
+    public void free(long address, long capacity) {
+        Allocation a = allocations.remove(address);
+        if(a == null)
+            return;
+        synchronized(a) {
+            release(a.pageNodes);
+        }
+        if(a.raw != 0)
+            unsafe.freeMemory(a.raw);
+    }
+
+    @Override
+    public void free(ByteBuffer buf) {
+        free(UnsafeAccess.addressOf(buf), buf.capacity());
+    }
+
+    @Override
+    public long mapFile(String path, long offset, long length) {
+        long address = super.mapFile(path, offset, length);
+        if(address == 0)
+            return 0;
+        // The page cache of the mapped file is placed on the local node
+        int[] pageNodes = new int[(int) numPages(length)];
+        Arrays.fill(pageNodes, currentNode());
+        if(!reserve(pageNodes)) {
+            super.unmapFile(address, length);
+            return 0;
+        }
+        allocations.put(address, new Allocation(0, address, length, pageNodes));
+        return address;
+    }
+
+    @Override
+    public void unmapFile(long address, long length) {
+        Allocation a = allocations.remove(address);
+        if(a != null) {
+            synchronized(a) {
+                release(a.pageNodes);
+            }
+        }
+        super.unmapFile(address, length);
+    }
+
+    private Allocation allocationOf(long address) {
+        Map.Entry<Long, Allocation> e = allocations.floorEntry(address);
+        if(e == null)
+            return null;
+        Allocation a = e.getValue();
+        return address < a.address + numPages(a.size) * pageSize ? a : null;
+    }
+
+    /**
+     * Move the pages to the nodes. Pages of unknown addresses are reported as -EFAULT, and pages that do not fit in the node as -ENOMEM.
+     * @param target the node of each page in the range
+     */
+    private void place(long address, int numPages, int[] target, int[] status) {
+        long start = address & ~((long) pageSize - 1);
+        for(int i=0; i<numPages; ++i) {
+            long page = start + (long) i * pageSize;
+            Allocation a = allocationOf(page);
+            int result;
+            if(a == null)
+                result = -EFAULT;
+            else {
+                int p = (int) ((page - a.address) / pageSize);
+                synchronized(a) {
+                    int node = a.pageNodes[p];
+                    int to = target == null ? node : target[i];
+                    if(to != node) {
+                        if(used[to].addAndGet(pageSize) > nodeSize[to]) {
+                            used[to].addAndGet(-pageSize);
+                            to = -ENOMEM;
+                        }
+                        else {
+                            used[node].addAndGet(-pageSize);
+                            a.pageNodes[p] = to;
+                        }
+                    }
+                    result = to;
+                }
+            }
+            if(status != null)
+                status[i] = result;
+        }
+    }
+
+    @Override
+    public void getPageNodes(long address, int[] status) {
+        place(address, status.length, null, status);
+    }
+
+    @Override
+    public void movePages(long address, int node, int[] status) {
+        int[] target = new int[status.length];
+        Arrays.fill(target, node);
+        place(address, status.length, target, status);
+    }
+
+    @Override
+    public void mbind(long address, long length, int mode, long[] nodeMask, int flags) {
+        // Pages are placed at the allocation, so only the policy with MPOL_MF_MOVE affects the pages
+        if((flags & MPOL_MF_MOVE) == 0)
+            return;
+        int[] nodes = mode == MPOL_DEFAULT || nodeMask.length == 0 ? new int[] { currentNode() } : nodesOf(nodeMask);
+        if(nodes.length == 0)
+            throw new IllegalArgumentException("empty node mask");
+        long pages = numPages(address + length - (address & ~((long) pageSize - 1)));
+        int[] target = new int[(int) pages];
+        for(int i=0; i<target.length; ++i)
+            target[i] = mode == MPOL_INTERLEAVE ? nodes[i % nodes.length] : nodes[0];
+        place(address, target.length, target, null);
+    }
+
+    /**
+     * Count the pages of the range accessed by the current thread, and wait for the remote access penalty
+     */
+    void access(long address, long length) {
+        if(length <= 0)
+            return;
+        int node = currentNode();
+        long local = 0, remote = 0, extraDistance = 0;
+        long start = address & ~((long) pageSize - 1);
+        for(long page = start; page < address + length; page += pageSize) {
+            Allocation a = allocationOf(page);
+            if(a == null)
+                continue;
+            int p = (int) ((page - a.address) / pageSize);
+            int pageNode = a.pageNodes[p];
+            if(pageNode == node)
+                ++local;
+            else {
+                ++remote;
+                extraDistance += distance[node][pageNode] - distance[node][node];
+            }
+        }
+        localPageAccesses.addAndGet(local);
+        remotePageAccesses.addAndGet(remote);
+        if(remotePenaltyNanos > 0 && extraDistance > 0) {
+            long wait = remotePenaltyNanos * extraDistance / (REMOTE_DISTANCE - LOCAL_DISTANCE);
+            long deadline = System.nanoTime() + wait;
+            while(System.nanoTime() < deadline) {
+                // busy wait to simulate the slower memory access
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        int[] cpus = new int[numNodes];
+        for(int n=0; n<numNodes; ++n)
+            cpus[n] = cpuStart[n + 1] - cpuStart[n];
+        return String.format("SimulatedNuma(nodes:%d, cpus:%s, node size:%s)", numNodes, Arrays.toString(cpus), Arrays.toString(nodeSize));
+    }
+}
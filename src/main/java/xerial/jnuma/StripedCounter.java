@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters striped over cache lines, so that threads updating the counters do not contend on the same cache line.
+ * Reading a counter sums up all stripes, so reads are slower than updates.
+ *
+ * @author Taro L. Saito
+ */
+final class StripedCounter {
+
+    /**
+     * The number of longs in a cache line
+     */
+    private static final int PAD = 8;
+    private static final int MAX_STRIPES = 64;
+
+    private final int numCounters;
+    private final int stride;
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    /**
+     * @param numCounters the number of counters
+     */
+    StripedCounter(int numCounters) {
+        this.numCounters = numCounters;
+        int stripes = 1;
+        while(stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES)
+            stripes <<= 1;
+        this.mask = stripes - 1;
+        // Round up the counters of a stripe to cache lines, and leave a cache line between stripes
+        this.stride = (numCounters + PAD - 1) / PAD * PAD + PAD;
+        this.cells = new AtomicLongArray(stride * stripes);
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    /**
+     * @return the number of counters
+     */
+    int size() {
+        return numCounters;
+    }
+
+    void add(int counter, long delta) {
+        cells.getAndAdd(stripe() * stride + counter, delta);
+    }
+
+    /**
+     * Add the deltas to two counters of the same stripe
+     */
+    void add(int counter1, long delta1, int counter2, long delta2) {
+        int base = stripe() * stride;
+        cells.getAndAdd(base + counter1, delta1);
+        cells.getAndAdd(base + counter2, delta2);
+    }
+
+    long sum(int counter) {
+        long sum = 0;
+        for(int i=counter; i<cells.length(); i += stride)
+            sum += cells.get(i);
+        return sum;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xerial.jnuma;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Holder of sun.misc.Unsafe for accessing raw memory addresses
+ *
+ * @author Taro L. Saito
+ */
+final class UnsafeAccess {
+
+    static final sun.misc.Unsafe unsafe = getUnsafe();
+
+    private static final long bufferAddressOffset = getBufferFieldOffset("address");
+    private static final long bufferCapacityOffset = getBufferFieldOffset("capacity");
+    private static final long bufferLimitOffset = getBufferFieldOffset("limit");
+
+    /**
+     * A direct buffer duplicated to create the views of raw addresses
+     */
+    private static final ByteBuffer directBufferTemplate = ByteBuffer.allocateDirect(0);
+
+    /**
+     * Copying a large memory region at once prevents the JVM from reaching a safepoint
+     */
+    static final long COPY_THRESHOLD = 1024L * 1024;
+
+    private UnsafeAccess() {}
+
+    private static sun.misc.Unsafe getUnsafe() {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return (sun.misc.Unsafe) f.get(null);
+        }
+        catch(Exception e) {
+            throw new IllegalStateException("sun.misc.Unsafe is not available", e);
+        }
+    }
+
+    private static long getBufferFieldOffset(String name) {
+        try {
+            return unsafe.objectFieldOffset(Buffer.class.getDeclaredField(name));
+        }
+        catch(Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the memory address of a direct buffer
+     * @param buf direct buffer
+     * @return memory address
+     */
+    static long addressOf(ByteBuffer buf) {
+        if(!buf.isDirect())
+            throw new IllegalArgumentException("not a direct buffer");
+        if(bufferAddressOffset < 0)
+            throw new UnsupportedOperationException("cannot access the address of direct buffers");
+        return unsafe.getLong(buf, bufferAddressOffset);
+    }
+
+    /**
+     * Create a direct buffer of a raw address without the private constructor of DirectByteBuffer, which cannot be made
+     * accessible since JDK 16. The memory is not released by the GC.
+     * @param address memory address
+     * @param capacity byte size
+     * @return direct buffer in the big endian order
+     * @throws UnsupportedOperationException if the fields of the buffers cannot be accessed
+     */
+    static ByteBuffer wrapAddress(long address, int capacity) {
+        if(bufferAddressOffset < 0 || bufferCapacityOffset < 0 || bufferLimitOffset < 0)
+            throw new UnsupportedOperationException("cannot create a direct buffer for a raw address in this JVM");
+        if(capacity < 0)
+            throw new IllegalArgumentException("negative capacity: " + capacity);
+        ByteBuffer buf = directBufferTemplate.duplicate();
+        unsafe.putLong(buf, bufferAddressOffset, address);
+        unsafe.putInt(buf, bufferCapacityOffset, capacity);
+        unsafe.putInt(buf, bufferLimitOffset, capacity);
+        return buf;
+    }
+
+    /**
+     * Copy memory between arrays and raw addresses. Pass null to the base object when using raw addresses.
+     */
+    static void copyMemory(Object srcBase, long srcOffset, Object destBase, long destOffset, long length) {
+        while(length > 0) {
+            long size = length > COPY_THRESHOLD ? COPY_THRESHOLD : length;
+            unsafe.copyMemory(srcBase, srcOffset, destBase, destOffset, size);
+            length -= size;
+            srcOffset += size;
+            destOffset += size;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaArenaTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.lang.ref.WeakReference
+import java.util.concurrent.Executors
+
+/**
+ * @author leo
+ */
+class NumaArenaTest extends MySpec {
+
+  "NumaArena" should {
+
+    "allocate blocks of size classes" in {
+      val arena = new NumaArena(1024 * 1024, 4096, 65536, 8)
+      try {
+        for (node <- 0 until Numa.numNodes()) {
+          val b1 = arena.allocate(100, node)
+          b1.capacity() should be (4096)
+          b1.node() should be (node)
+          val b2 = arena.allocate(5000, node)
+          b2.capacity() should be (8192)
+          val b3 = arena.allocate(65536, node)
+          b3.capacity() should be (65536)
+          b3.buffer().putLong(0, 1L)
+          b3.buffer().getLong(0) should be (1L)
+          arena.free(b1)
+          arena.free(b2)
+          arena.free(b3)
+        }
+      }
+      finally
+        arena.close()
+    }
+
+    "reuse freed blocks" in {
+      val arena = new NumaArena(1024 * 1024, 4096, 65536, 8)
+      try {
+        val blocks = for (i <- 0 until 100) yield arena.allocate(4096, 0)
+        val carved = arena.stats(0).carvedBytes
+        blocks.foreach(arena.free(_))
+        for (i <- 0 until 100)
+          arena.free(arena.allocate(4096, 0))
+        arena.stats(0).carvedBytes should be (carved)
+        debug(arena.stats().mkString("\n"))
+      }
+      finally
+        arena.close()
+    }
+
+    "allocate large blocks directly" in {
+      val arena = new NumaArena()
+      try {
+        val b = arena.allocate(1024 * 1024, 0)
+        b.capacity() should be (1024 * 1024)
+        arena.stats(0).largeBytes should be (1024 * 1024)
+        arena.free(b)
+        arena.stats(0).largeBytes should be (0)
+      }
+      finally
+        arena.close()
+    }
+
+    "reject double free" in {
+      val arena = new NumaArena()
+      try {
+        val b = arena.allocateLocal(1024)
+        arena.free(b)
+        intercept[IllegalStateException] {
+          arena.free(b)
+        }
+      }
+      finally
+        arena.close()
+    }
+
+    "allocate blocks in parallel" in {
+      val arena = new NumaArena()
+      try {
+        val M = Numa.numNodes()
+        (0 until Numa.numCPUs()).par.foreach { cpu =>
+          for (i <- 0 until 10000) {
+            val b = arena.allocate(4096 << (i % 5), (cpu + i) % M)
+            b.buffer().putInt(0, i)
+            arena.free(b)
+          }
+        }
+      }
+      finally
+        arena.close()
+    }
+
+    "reject non-positive sizes" in {
+      val arena = new NumaArena()
+      try {
+        intercept[IllegalArgumentException] {
+          arena.allocate(0, 0)
+        }
+        intercept[IllegalArgumentException] {
+          arena.allocate(-1, 0)
+        }
+      }
+      finally
+        arena.close()
+    }
+
+    "not keep closed arenas reachable from the thread caches" in {
+      val pool = Executors.newSingleThreadExecutor()
+      def use(): WeakReference[NumaArena] = {
+        val arena = new NumaArena()
+        pool.submit(new Runnable {
+          def run() {
+            arena.free(arena.allocate(4096, 0))
+          }
+        }).get()
+        arena.close()
+        new WeakReference(arena)
+      }
+      try {
+        // The pooled thread keeps its cache after the arena is closed
+        val ref = use()
+        for (i <- 0 until 10; if ref.get != null) {
+          System.gc()
+          Thread.sleep(10)
+        }
+        ref.get should be (null)
+      }
+      finally
+        pool.shutdown()
+    }
+  }
+}
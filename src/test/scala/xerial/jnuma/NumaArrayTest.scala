@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaArrayTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import util.Random
+
+/**
+ * @author leo
+ */
+class NumaArrayTest extends MySpec {
+
+  "NumaLongArray" should {
+    "read and write elements" in {
+      val a = NumaLongArray.allocOnNode(1000, 0)
+      try {
+        a.node() should be (0)
+        a.length() should be (1000)
+        for (i <- 0 until 1000)
+          a.set(i, i * 2L)
+        a.get(999) should be (1998L)
+        a.binarySearch(500L) should be (250L)
+        a.binarySearch(501L) should be (-252L)
+        intercept[IndexOutOfBoundsException] {
+          a.get(1000)
+        }
+        var sum = 0L
+        val c = a.cursor(0, 10)
+        while (c.hasNext)
+          sum += c.next()
+        sum should be (90L)
+      }
+      finally
+        a.free()
+    }
+
+    "copy elements" in {
+      val a = NumaLongArray.allocInterleaved(100)
+      val b = NumaLongArray.allocLocal(100)
+      try {
+        a.fill(7L)
+        a.copyTo(0, b, 50, 50)
+        b.get(50) should be (7L)
+        val arr = new Array[Long](10)
+        b.copyTo(90, arr, 0, 10)
+        arr.forall(_ == 7L) should be (true)
+      }
+      finally {
+        a.free()
+        b.free()
+      }
+    }
+  }
+
+  "NumaIntArray" should {
+    "fill and copy" in {
+      val a = NumaIntArray.allocOnNode(10, 0)
+      try {
+        a.fill(0)
+        a.copyFrom(Array(5, 6, 7), 0, 2, 3)
+        a.get(4) should be (7)
+        a.get(1) should be (0)
+      }
+      finally
+        a.free()
+    }
+  }
+
+  "NumaDoubleArray" should {
+    "search sorted values" in {
+      val N = 10000
+      val v = Array.fill(N)(Random.nextDouble()).sorted
+      val a = NumaDoubleArray.allocOnNode(N, 0)
+      try {
+        a.copyFrom(v, 0, 0, N)
+        for (i <- 0 until N by 97)
+          a.binarySearch(v(i)) should be (i.toLong)
+      }
+      finally
+        a.free()
+    }
+  }
+
+  "NumaPartitionedLongArray" should {
+    "route indexes to partitions" in {
+      val N = 100000L
+      val a = new NumaPartitionedLongArray(N)
+      try {
+        for (i <- 0L until N)
+          a.set(i, i)
+        for (i <- 0L until N by 113)
+          a.get(i) should be (i)
+        val total = (0 until Numa.numNodes()).map(a.localRange(_).size()).sum
+        total should be (N)
+        for (p <- 0 until a.numPartitions()) {
+          val r = a.partitionRange(p)
+          a.nodeOf(r.start) should be (a.partitionNode(p))
+          a.partition(p).get(0) should be (r.start)
+        }
+      }
+      finally
+        a.free()
+    }
+
+    "balance partitions across nodes" in {
+      val a = new NumaPartitionedLongArray(1000, Array(0, 0, 0))
+      try {
+        a.numPartitions() should be (3)
+        a.partitionRange(2).end should be (1000L)
+      }
+      finally
+        a.free()
+    }
+  }
+}
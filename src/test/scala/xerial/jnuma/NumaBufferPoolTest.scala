@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaBufferPoolTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaBufferPoolTest extends MySpec {
+
+  "NumaBufferPool" should {
+
+    "reuse released buffers" in {
+      val pool = new NumaBufferPool()
+      try {
+        val b = pool.allocate(1000, 0)
+        b.capacity() should be (1000)
+        b.node() should be (0)
+        b.release() should be (true)
+        pool.pooledBytes(0) should be (1024)
+        val b2 = pool.allocate(1024, 0)
+        pool.reusedCount(0) should be (1)
+        pool.allocatedCount(0) should be (1)
+        b2.release()
+      }
+      finally
+        pool.close()
+    }
+
+    "count references" in {
+      val pool = new NumaBufferPool()
+      try {
+        val b = pool.allocateInterleaved(4096)
+        b.retain()
+        b.refCount() should be (2)
+        b.release() should be (false)
+        b.release() should be (true)
+        intercept[IllegalStateException] {
+          b.release()
+        }
+        pool.pooledInterleavedBytes() should be (4096)
+      }
+      finally
+        pool.close()
+    }
+
+    "enforce the high-water mark" in {
+      val pool = new NumaBufferPool(8192)
+      try {
+        val bufs = for (i <- 0 until 4) yield pool.allocate(4096, 0)
+        bufs.foreach(_.release())
+        pool.pooledBytes(0) should be (8192)
+      }
+      finally
+        pool.close()
+    }
+
+    "enforce the high-water mark for concurrent releases" in {
+      val pool = new NumaBufferPool(8192)
+      val bufs = for (i <- 0 until 64) yield pool.allocate(4096, 0)
+      val threads = for (t <- 0 until 8) yield new Thread {
+        override def run() {
+          for (i <- t until bufs.length by 8)
+            bufs(i).release()
+        }
+      }
+      threads.foreach(_.start())
+      pool.pooledBytes(0) should be <= (8192L)
+      threads.foreach(_.join())
+      pool.pooledBytes(0) should be (8192)
+      pool.close()
+      pool.pooledBytes(0) should be (0)
+    }
+
+    "reclaim unreachable buffers" in {
+      val pool = new NumaBufferPool()
+      try {
+        for (i <- 0 until 100)
+          pool.allocateLocal(4096)
+        var reclaimed = 0
+        for (i <- 0 until 10; if reclaimed < 100) {
+          System.gc()
+          Thread.sleep(10)
+          reclaimed += pool.reclaim()
+        }
+        debug("reclaimed %d buffers", reclaimed)
+        reclaimed should be > (0)
+      }
+      finally
+        pool.close()
+    }
+  }
+}
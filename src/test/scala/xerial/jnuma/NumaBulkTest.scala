@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaBulkTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaBulkTest extends MySpec {
+
+  val size = 32L * 1024 * 1024
+
+  "NumaBulk" should {
+
+    "fill and copy segments in parallel" in {
+      val bulk = NumaBulk.shared()
+      val src = NumaMemorySegment.allocOnNode(size, 0)
+      val dest = NumaMemorySegment.allocOnNode(size + 3, Numa.numNodes() - 1)
+      try {
+        bulk.prefault(src)
+        bulk.fill(src, 1, size - 1, 5.toByte)
+        src.putByte(0, 1.toByte)
+        bulk.copy(src, 0, dest, 3, size)
+        dest.getByte(3) should be (1.toByte)
+        for (i <- 1L until size by 4099)
+          dest.getByte(i + 3) should be (5.toByte)
+        dest.getByte(size + 2) should be (5.toByte)
+        intercept[IndexOutOfBoundsException] {
+          bulk.copy(src, 1, dest, 0, size)
+        }
+        intercept[IllegalArgumentException] {
+          bulk.copy(src.address(), src.address() + 1, 100, 0)
+        }
+      }
+      finally {
+        src.free()
+        dest.free()
+      }
+    }
+
+    "keep the contents when prefaulting" in {
+      val bulk = NumaBulk.shared()
+      val s = NumaMemorySegment.allocInterleaved(size + 5)
+      try {
+        for (i <- 0L until s.size() by 4096)
+          s.putByte(i, 3.toByte)
+        bulk.prefault(s.address() + 1, s.size() - 1, NumaMemorySegment.INTERLEAVED)
+        for (i <- 0L until s.size() by 4096)
+          s.getByte(i) should be (3.toByte)
+      }
+      finally
+        s.free()
+    }
+
+    "fill a first-touch buffer faster than a single thread" taggedAs ("bench") in {
+      val bulk = NumaBulk.shared()
+      val len = 1024L * 1024 * 1024
+      time("fill", repeat = 3) {
+        block("single thread") {
+          val a = Numa.allocMemory(len)
+          UnsafeAccess.unsafe.setMemory(a, len, 1.toByte)
+          Numa.free(a, len)
+        }
+        block("NumaBulk") {
+          val a = Numa.allocMemory(len)
+          bulk.fill(a, len, 1.toByte, NumaMemorySegment.INTERLEAVED)
+          Numa.free(a, len)
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaCounterTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaCounterTest extends MySpec {
+
+  def runThreads(numThreads: Int)(f: Int => Unit) {
+    val threads = (0 until numThreads).map { t =>
+      new Thread {
+        override def run() { f(t) }
+      }
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+  }
+
+  "NumaCounter" should {
+
+    "sum up the updates of all threads" in {
+      val c = new NumaCounter
+      try {
+        runThreads(8) { t =>
+          for (i <- 0 until 100000)
+            c.increment()
+        }
+        c.sum() should be (800000L)
+        (0 until Numa.numNodes()).map(c.sum(_)).sum should be (800000L)
+        c.add(-800000L)
+        c.sum() should be (0L)
+        c.increment()
+        c.reset()
+        c.sum() should be (0L)
+      }
+      finally
+        c.free()
+    }
+  }
+
+  "NumaAccumulator" should {
+
+    "combine the values" in {
+      val max = NumaAccumulator.max()
+      val min = NumaAccumulator.min()
+      try {
+        max.get() should be (Long.MinValue)
+        runThreads(4) { t =>
+          for (i <- 0 until 10000) {
+            max.accumulate(t * 10000L + i)
+            min.accumulate(t * 10000L + i)
+          }
+        }
+        max.get() should be (39999L)
+        min.get() should be (0L)
+        max.reset()
+        max.get() should be (Long.MinValue)
+      }
+      finally {
+        max.free()
+        min.free()
+      }
+    }
+  }
+
+  "NumaHistogram" should {
+
+    "map values to log-linear buckets" in {
+      val h = new NumaHistogram(3)
+      try {
+        for (b <- 0 until h.numBuckets() - 1) {
+          h.bucket(h.lowerBound(b)) should be (b)
+          h.upperBound(b) + 1 should be (h.lowerBound(b + 1))
+        }
+        h.bucket(Long.MaxValue) should be (h.numBuckets() - 1)
+        h.bucket(-1) should be (0)
+      }
+      finally
+        h.free()
+    }
+
+    "record values from multiple threads" in {
+      val h = new NumaHistogram
+      try {
+        runThreads(4) { t =>
+          for (i <- 1 to 1000)
+            h.record(i)
+        }
+        debug(h)
+        h.count() should be (4000L)
+        h.sum() should be (4L * 1000 * 1001 / 2)
+        h.percentile(1.0) should be >= (1000L)
+        val median = h.percentile(0.5)
+        median should (be >= (500L) and be <= (500L + 500L / 8 + 1))
+        h.counts().sum should be (4000L)
+        h.reset()
+        h.count() should be (0L)
+      }
+      finally
+        h.free()
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaExecutorServiceTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.concurrent.{TimeUnit, Callable}
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @author leo
+ */
+class NumaExecutorServiceTest extends MySpec {
+
+  def callable[A](f: => A) = new Callable[A] {
+    def call() = f
+  }
+
+  def runnable(f: => Unit) = new Runnable {
+    def run() { f }
+  }
+
+  "NumaExecutorService" should {
+
+    "run tasks on each node" in {
+      val e = new NumaExecutorService(2)
+      try {
+        for (node <- 0 until Numa.numNodes()) {
+          val name = e.submit(callable(Thread.currentThread().getName), node).get()
+          debug("node %d: %s", node, name)
+        }
+      }
+      finally {
+        e.shutdown()
+        e.awaitTermination(10, TimeUnit.SECONDS) should be (true)
+      }
+    }
+
+    "run tasks where the data lives" in {
+      val e = new NumaExecutorService(1)
+      val a = NumaLongArray.allocOnNode(1024, 0)
+      try {
+        e.submit(callable {
+          a.fill(1L)
+          a.get(1023)
+        }, a).get() should be (1L)
+      }
+      finally {
+        a.free()
+        e.shutdown()
+      }
+    }
+
+    "run all submitted tasks before termination" in {
+      val e = new NumaExecutorService()
+      val counter = new AtomicInteger()
+      for (i <- 0 until 10000)
+        e.execute(runnable { counter.incrementAndGet() }, i % Numa.numNodes())
+      e.shutdown()
+      e.awaitTermination(30, TimeUnit.SECONDS) should be (true)
+      counter.get() should be (10000)
+      intercept[java.util.concurrent.RejectedExecutionException] {
+        e.execute(runnable {})
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaMappedFileTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.io.{BufferedOutputStream, DataOutputStream, File, FileOutputStream}
+
+/**
+ * @author leo
+ */
+class NumaMappedFileTest extends MySpec {
+
+  val numLongs = 1024 * 1024
+
+  /**
+   * Create a file of longs in the native byte order, where the i-th long is i
+   */
+  def withFile[U](f: File => U): U = {
+    val file = File.createTempFile("jnuma-mapped", ".dat")
+    try {
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+      val bigEndian = java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.BIG_ENDIAN
+      try {
+        for (i <- 0L until numLongs)
+          out.writeLong(if (bigEndian) i else java.lang.Long.reverseBytes(i))
+      }
+      finally
+        out.close()
+      f(file)
+    }
+    finally
+      file.delete()
+  }
+
+  "NumaMappedFile" should {
+
+    "map a file range on a node" in {
+      withFile { file =>
+        val m = NumaMappedFile.mapOnNode(file, 8 * 1000, 8L * 5000, 0)
+        try {
+          m.node() should be (0)
+          m.size() should be (8L * 5000)
+          m.getLong(0) should be (1000L)
+          m.getLong(8L * 4999) should be (5999L)
+          m.asByteBuffer(8, 8).getLong(0) should be (1001L)
+          m.advise(NumaMappedFile.Advice.RANDOM)
+          intercept[IndexOutOfBoundsException] {
+            m.getLong(8L * 5000)
+          }
+          debug("pages: %s", Numa.queryPages(m.address(), m.size()))
+        }
+        finally
+          m.close()
+        intercept[IllegalStateException] {
+          m.getLong(0)
+        }
+      }
+    }
+
+    "interleave a file over the nodes" in {
+      withFile { file =>
+        val m = NumaMappedFile.mapInterleaved(file, 0, file.length())
+        try {
+          m.node() should be (NumaMemorySegment.INTERLEAVED)
+          for (i <- 0L until numLongs by 4099)
+            m.getLong(i * 8) should be (i)
+          debug("pages: %s", Numa.queryPages(m.address(), m.size()))
+        }
+        finally
+          m.close()
+      }
+    }
+
+    "replicate a file to each node" in {
+      withFile { file =>
+        val r = NumaMappedFile.replicate(file, 8, 8L * 100)
+        try {
+          val s = r.acquire()
+          try {
+            s.getLong(0) should be (1L)
+            s.getLong(8 * 99) should be (100L)
+          }
+          finally
+            s.close()
+        }
+        finally
+          r.close()
+      }
+    }
+
+    "reject a range beyond the end of the file" in {
+      withFile { file =>
+        intercept[IllegalArgumentException] {
+          NumaMappedFile.map(file, 8, file.length())
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaMemoryMonitorTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+/**
+ * @author leo
+ */
+class NumaMemoryMonitorTest extends MySpec {
+
+  def withPolicy[U](policy: AllocationPolicy, watermark: Long)(f: => U): U = {
+    val prevPolicy = Numa.allocationPolicy()
+    val prevWatermark = Numa.freeWatermark()
+    Numa.setAllocationPolicy(policy, watermark)
+    try
+      f
+    finally
+      Numa.setAllocationPolicy(prevPolicy, prevWatermark)
+  }
+
+  "AllocationPolicy" should {
+
+    "throw a typed exception when the allocation fails" in {
+      val e = intercept[NumaAllocationException] {
+        Numa.allocMemory(Long.MaxValue / 4)
+      }
+      debug(e.getMessage)
+      e.capacity() should be (Long.MaxValue / 4)
+    }
+
+    "skip nodes below the watermark" in {
+      withPolicy(AllocationPolicy.NEAREST, Long.MaxValue / 2) {
+        val e = intercept[NumaAllocationException] {
+          Numa.allocOnNode(1024 * 1024, 0)
+        }
+        e.node() should be (0)
+        e.policy() should be (AllocationPolicy.NEAREST)
+      }
+    }
+
+    "fall back to interleaved memory" in {
+      withPolicy(AllocationPolicy.INTERLEAVE, Long.MaxValue / 2) {
+        val s = NumaMemorySegment.allocOnNode(1024 * 1024, 0)
+        try {
+          s.node() should be (NumaMemorySegment.INTERLEAVED)
+          s.putLong(0, 1L)
+          s.getLong(0) should be (1L)
+        }
+        finally
+          s.free()
+      }
+    }
+  }
+
+  "NumaMemoryMonitor" should {
+
+    "sample the free memory of each node" in {
+      val m = NumaMemoryMonitor.start(10, TimeUnit.MILLISECONDS)
+      try {
+        val latch = new CountDownLatch(3)
+        m.addListener(new NumaMemoryMonitor.Listener {
+          def sampled(monitor: NumaMemoryMonitor) { latch.countDown() }
+        })
+        latch.await(10, TimeUnit.SECONDS) should be (true)
+        debug(m)
+        m.numNodes() should be (Numa.numNodes())
+        m.freeSize(m.mostFreeNode()) should be > (0L)
+        m.freeRatio(0) should (be >= (0.0) and be <= (1.0))
+      }
+      finally
+        m.close()
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaMemorySegmentTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaMemorySegmentTest extends MySpec {
+
+  "NumaMemorySegment" should {
+
+    "read and write primitives" in {
+      val s = NumaMemorySegment.allocOnNode(1024, 0)
+      try {
+        s.node() should be (0)
+        s.putInt(0, 10)
+        s.putLong(8, 20L)
+        s.putDouble(16, 1.5)
+        s.getInt(0) should be (10)
+        s.getLong(8) should be (20L)
+        s.getDouble(16) should be (1.5)
+        s.getLongUnchecked(8) should be (20L)
+        intercept[IndexOutOfBoundsException] {
+          s.getLong(1020)
+        }
+      }
+      finally
+        s.free()
+    }
+
+    "fall back to available pages when allocating huge pages" in {
+      val size = 3 * 1024 * 1024 + 100
+      for (s <- Seq(NumaMemorySegment.allocHugeOnNode(size, 0), NumaMemorySegment.allocHugeInterleaved(size))) {
+        try {
+          debug("%s page size:%,d", s, s.pageSize())
+          s.size() should be (size)
+          if (s.backing() == PageBacking.BASE_PAGES)
+            s.pageSize() should be (Numa.pageSize())
+          else
+            s.pageSize() should be (Numa.HUGE_PAGE_SIZE)
+          s.putLong(size - 8, 1L)
+          s.getLong(size - 8) should be (1L)
+        }
+        finally
+          s.free()
+      }
+    }
+
+    "copy and slice" in {
+      val s1 = NumaMemorySegment.allocInterleaved(4096)
+      val s2 = NumaMemorySegment.allocLocal(4096)
+      try {
+        val a = Array.tabulate[Byte](100)(_.toByte)
+        s1.copyFrom(a, 0, 10, 100)
+        s1.copyTo(10, s2, 0, 100)
+        val b = new Array[Byte](100)
+        s2.copyTo(0, b, 0, 100)
+        b.toSeq should be (a.toSeq)
+        s1.fill(0, 10, 3.toByte)
+        val view = s1.asByteBuffer(0, 20)
+        view.get(0) should be (3.toByte)
+        view.get(15) should be (5.toByte)
+      }
+      finally {
+        s1.free()
+        s2.free()
+      }
+    }
+
+    "allocate more than 2GB" taggedAs ("large") in {
+      val size = 3L * 1024 * 1024 * 1024
+      val s = NumaMemorySegment.allocOnNode(size, 0)
+      try {
+        s.putLong(size - 8, 1L)
+        s.getLong(size - 8) should be (1L)
+        s.asByteBuffer(size - 1024, 1024).getLong(1016) should be (1L)
+      }
+      finally
+        s.free()
+    }
+  }
+}
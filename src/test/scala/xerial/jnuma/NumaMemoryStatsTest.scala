@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaMemoryStatsTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import xerial.jnuma.NumaMemoryStats.AllocationKind
+
+/**
+ * @author leo
+ */
+class NumaMemoryStatsTest extends MySpec {
+
+  "NumaMemoryStats" should {
+
+    "count allocations per node and kind" in {
+      val before = Numa.memoryStats()
+      val size = 1024 * 1024
+      val a = Numa.allocMemoryOnNode(size, 0)
+      val b = Numa.allocMemoryInterleaved(size)
+      val s = Numa.memoryStats()
+      debug(s)
+      s.bytes(0) - before.bytes(0) should be (size)
+      s.bytes(AllocationKind.INTERLEAVED) - before.bytes(AllocationKind.INTERLEAVED) should be (size)
+      s.peakBytes() should be >= (s.allocatedBytes())
+
+      // The recorded size is used regardless of the given capacity
+      Numa.free(a, 1)
+      Numa.free(b, size)
+      val after = Numa.memoryStats()
+      after.allocatedBytes() should be (before.allocatedBytes())
+      after.totalFrees() - before.totalFrees() should be (2)
+    }
+
+    "count buffers with or without libnuma" in {
+      val before = Numa.memoryStats()
+      val buf = Numa.allocInterleaved(4096)
+      val s = Numa.memoryStats()
+      s.bytes(AllocationKind.INTERLEAVED) - before.bytes(AllocationKind.INTERLEAVED) should be (4096)
+      Numa.free(buf)
+      val after = Numa.memoryStats()
+      after.allocatedBytes() should be (before.allocatedBytes())
+      after.totalFrees() - before.totalFrees() should be (1)
+    }
+
+    "expose the statistics through JMX" in {
+      val a = Numa.allocMemory(100)
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = new ObjectName(NumaMemoryStats.OBJECT_NAME)
+      server.getAttribute(name, "AllocatedBytes").asInstanceOf[Long] should be >= (100L)
+      server.setAttribute(name, new javax.management.Attribute("LeakDetection", true))
+      val b = Numa.allocMemory(200)
+      val live = server.getAttribute(name, "LiveAllocations").asInstanceOf[Array[String]]
+      live.exists(l => l.contains("size:200") && l.contains("at ")) should be (true)
+      server.setAttribute(name, new javax.management.Attribute("LeakDetection", false))
+      Numa.free(a, 100)
+      Numa.free(b, 200)
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaReplicatedTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+/**
+ * @author leo
+ */
+class NumaReplicatedTest extends MySpec {
+
+  "NumaReplicated" should {
+
+    "read the payload from the local copy" in {
+      val r = new NumaReplicated(Array.tabulate[Byte](100)(_.toByte))
+      try {
+        val s = r.acquire()
+        try {
+          s.version() should be (1L)
+          s.size() should be (100L)
+          s.node() should be >= (0)
+          for (i <- 0 until 100)
+            s.getByte(i) should be (i.toByte)
+          val b = new Array[Byte](10)
+          s.copyTo(90, b, 0, 10)
+          b should be ((90 until 100).map(_.toByte).toArray)
+          intercept[IndexOutOfBoundsException] {
+            s.getLong(96)
+          }
+        }
+        finally
+          s.close()
+        intercept[IllegalStateException] {
+          s.getByte(0)
+        }
+      }
+      finally
+        r.close()
+    }
+
+    "publish a new version while threads are reading" in {
+      val r = new NumaReplicated(new Array[Byte](8))
+      r.update(Array.fill[Long](512)(1L))
+      val stop = new AtomicBoolean(false)
+      val errors = new AtomicLong(0)
+      val readers = (0 until 4).map { t =>
+        new Thread {
+          override def run() {
+            while (!stop.get) {
+              val s = r.acquire()
+              try {
+                val v = s.getLong(0)
+                if (v + 1 != s.version())
+                  errors.incrementAndGet()
+                for (i <- 0 until 512)
+                  if (s.getLong(i * 8) != v)
+                    errors.incrementAndGet()
+              }
+              finally
+                s.close()
+            }
+          }
+        }
+      }
+      readers.foreach(_.start())
+      try {
+        for (v <- 2 to 100)
+          r.update(Array.fill[Long](512)(v))
+      }
+      finally {
+        stop.set(true)
+        readers.foreach(_.join())
+      }
+      errors.get should be (0L)
+      r.version() should be (101L)
+      r.close()
+      intercept[IllegalStateException] {
+        r.acquire()
+      }
+    }
+
+    "wait for the readers of the old version" in {
+      val r = new NumaReplicated(Array[Byte](1))
+      val s = r.acquire()
+      val updated = new AtomicBoolean(false)
+      val writer = new Thread {
+        override def run() {
+          r.update(Array[Byte](2))
+          updated.set(true)
+        }
+      }
+      writer.start()
+      Thread.sleep(100)
+      updated.get should be (false)
+      s.getByte(0) should be (1.toByte)
+      s.close()
+      writer.join()
+      updated.get should be (true)
+      val s2 = r.acquire()
+      s2.getByte(0) should be (2.toByte)
+      s2.close()
+      r.close()
+    }
+
+    "reject acquire after close" in {
+      val r = new NumaReplicated(Array[Byte](1))
+      r.close()
+      intercept[IllegalStateException] {
+        r.acquire()
+      }
+      val src = NumaMemorySegment.allocLocal(8)
+      try {
+        intercept[IndexOutOfBoundsException] {
+          new NumaReplicated(src, 4, 8)
+        }
+      }
+      finally
+        src.free()
+    }
+  }
+}
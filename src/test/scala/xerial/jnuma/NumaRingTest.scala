@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaRingTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaRingTest extends MySpec {
+
+  def transfer(ring: NumaLongRing, numProducers: Int, n: Int): Seq[Long] = {
+    val producers = (0 until numProducers).map { p =>
+      new Thread {
+        override def run() {
+          var i = p.toLong
+          while (i < n) {
+            ring.put(i)
+            i += numProducers
+          }
+        }
+      }
+    }
+    producers.foreach(_.start())
+    val result = (0 until n).map(i => ring.take())
+    producers.foreach(_.join())
+    result
+  }
+
+  "NumaSpscRing" should {
+
+    "keep the order of values" in {
+      val ring = NumaSpscRing.allocOnNode(1000, 0)
+      try {
+        ring.capacity() should be (1024)
+        for (i <- 0 until 1024)
+          ring.offer(i) should be (true)
+        ring.offer(-1) should be (false)
+        ring.size() should be (1024)
+        val buf = new Array[Long](2048)
+        ring.drainTo(buf, 0, buf.length) should be (1024)
+        buf.take(1024).toSeq should be ((0L until 1024L).toSeq)
+        ring.poll(-1) should be (-1)
+        ring.isEmpty should be (true)
+
+        transfer(ring, 1, 100000) should be ((0L until 100000L).toSeq)
+      }
+      finally
+        ring.free()
+    }
+  }
+
+  "NumaMpscRing" should {
+
+    "receive values from multiple producers" in {
+      val ring = NumaMpscRing.allocOnNode(64, Numa.numNodes() - 1)
+      try {
+        debug(ring)
+        val n = 100000
+        transfer(ring, 4, n).sorted should be ((0L until n.toLong).toSeq)
+        ring.poll(-1) should be (-1)
+      }
+      finally
+        ring.free()
+    }
+  }
+
+  "NumaFanInQueue" should {
+
+    "gather values from every node" in {
+      val numNodes = Numa.numNodes()
+      val q = new NumaFanInQueue(16, 0)
+      try {
+        for (node <- 0 until numNodes; i <- 0 until 10)
+          q.offer(node * 100 + i, node) should be (true)
+        q.offer(-1) should be (true)
+        q.size() should be (numNodes * 10 + 1)
+        val buf = new Array[Long](1024)
+        val n = q.drainTo(buf, 0, buf.length)
+        n should be (numNodes * 10 + 1)
+        buf.take(n).filter(_ >= 0).sorted.toSeq should be (for (node <- 0 until numNodes; i <- 0 until 10) yield (node * 100 + i).toLong)
+        q.poll(-2) should be (-2)
+      }
+      finally
+        q.free()
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaScopeTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+/**
+ * @author leo
+ */
+class NumaScopeTest extends MySpec {
+
+  "NumaScope" should {
+
+    "bind and restore the current thread" in {
+      val before = Numa.getAffinity().toSeq
+      val last = Numa.numNodes() - 1
+      val outer = NumaScope.enter(0)
+      try {
+        val inner = NumaScope.enter(last, MemoryPolicy.BIND)
+        try {
+          inner.node() should be (last)
+          intercept[IllegalStateException] {
+            outer.close()
+          }
+        }
+        finally
+          inner.close()
+        // closing twice has no effect
+        inner.close()
+      }
+      finally
+        outer.close()
+      Numa.getAffinity().toSeq should be (before)
+    }
+
+    "pop the scope when binding fails" in {
+      val outer = NumaScope.enter(0)
+      intercept[RuntimeException] {
+        NumaScope.enter(Numa.numNodes(), MemoryPolicy.BIND)
+      }
+      // The failed scope must not remain on top of the outer scope
+      outer.close()
+    }
+
+    "reuse scope objects" in {
+      val s1 = NumaScope.enter(0)
+      s1.close()
+      val s2 = NumaScope.enter(0)
+      s2.close()
+      s1 should be theSameInstanceAs (s2)
+    }
+
+    "bind threads with a single call" taggedAs ("bind") in {
+      val N = 10000
+      val state = Numa.newThreadState()
+      time("thread binding", repeat = 3) {
+        block("setAffinity + setPreferred") {
+          for (i <- 0 until N) {
+            Numa.setAffinity(Numa.nodeToCpus(0))
+            Numa.setPreferred(0)
+            Numa.resetAffinity()
+            Numa.setLocalAlloc()
+          }
+        }
+        block("bindCurrentThread") {
+          for (i <- 0 until N) {
+            Numa.bindCurrentThread(0, MemoryPolicy.PREFERRED, state)
+            Numa.restoreCurrentThread(state)
+          }
+        }
+        block("NumaScope") {
+          for (i <- 0 until N) {
+            val s = NumaScope.enter(0)
+            s.close()
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaShardedMapTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.concurrent.Callable
+import scala.util.Random
+
+/**
+ * @author leo
+ */
+class NumaShardedMapTest extends MySpec {
+
+  "NumaLongLongMap" should {
+
+    "put, get and remove entries" in {
+      val m = new NumaLongLongMap(16, Array(0, Numa.numNodes() - 1))
+      try {
+        val ref = scala.collection.mutable.Map[Long, Long]()
+        val r = new Random(0)
+        for (i <- 0 until 100000) {
+          val k = r.nextInt(10000) - 5000L
+          if (r.nextInt(3) < 2) {
+            val v = r.nextLong()
+            m.put(k, v, -1) should be (ref.put(k, v).getOrElse(-1L))
+          }
+          else
+            m.remove(k, -1) should be (ref.remove(k).getOrElse(-1L))
+        }
+        m.size() should be (ref.size)
+        for (k <- -5000L until 5000L)
+          m.get(k, -1) should be (ref.getOrElse(k, -1L))
+        m.containsKey(0) should be (ref.contains(0))
+      }
+      finally
+        m.free()
+    }
+
+    "dispatch operations to the owning node" in {
+      val m = new NumaLongLongMap(1000)
+      val executor = new NumaExecutorService(1)
+      try {
+        val futures = for (k <- 0L until 1000L) yield
+          executor.submit(new Callable[Long] {
+            def call() = m.put(k, k * 2, -1)
+          }, m.owner(k))
+        futures.foreach(_.get() should be (-1L))
+        m.size() should be (1000)
+        for (k <- 0L until 1000L) {
+          m.get(k, -1) should be (k * 2)
+          m.nodeOf(k) should be (m.owner(k).node())
+        }
+      }
+      finally {
+        executor.shutdown()
+        m.free()
+      }
+    }
+
+    "replicate the table to each node" in {
+      val m = new NumaLongLongMap(100)
+      for (k <- 0L until 100L)
+        m.put(k, k + 1, -1)
+      val rep = m.replicate()
+      m.free()
+      try {
+        rep.isReplicated should be (true)
+        for (k <- 0L until 100L)
+          rep.get(k, -1) should be (k + 1)
+        intercept[UnsupportedOperationException] {
+          rep.put(1, 1, -1)
+        }
+      }
+      finally
+        rep.free()
+    }
+  }
+
+  "NumaLongBytesMap" should {
+
+    "store byte arrays" in {
+      val m = new NumaLongBytesMap(16, 64)
+      try {
+        val ref = scala.collection.mutable.Map[Long, Array[Byte]]()
+        val r = new Random(0)
+        for (i <- 0 until 50000) {
+          val k = r.nextInt(1000).toLong
+          if (r.nextInt(4) < 3) {
+            val v = new Array[Byte](r.nextInt(64))
+            r.nextBytes(v)
+            m.put(k, v) should be (ref.put(k, v).isDefined)
+          }
+          else
+            m.remove(k) should be (ref.remove(k).isDefined)
+        }
+        m.size() should be (ref.size)
+        val buf = new Array[Byte](64)
+        for (k <- 0L until 1000L) {
+          ref.get(k) match {
+            case Some(v) =>
+              m.valueLength(k) should be (v.length)
+              m.get(k, buf, 0) should be (v.length)
+              buf.take(v.length).toSeq should be (v.toSeq)
+            case None =>
+              m.get(k, buf, 0) should be (-1)
+              m.get(k) should be (null)
+          }
+        }
+
+        val rep = m.replicate()
+        try {
+          for ((k, v) <- ref)
+            rep.get(k).toSeq should be (v.toSeq)
+        }
+        finally
+          rep.free()
+      }
+      finally
+        m.free()
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//--------------------------------------
+//
+// NumaSortTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.Random
+
+/**
+ * @author leo
+ */
+class NumaSortTest extends MySpec {
+
+  val sizes = Seq(1, 10, 1000, 300000)
+
+  "NumaSort" should {
+
+    "sort long arrays with payloads" in {
+      val r = new Random(0)
+      for (n <- sizes; range <- Seq(Long.MaxValue, 1000L)) {
+        val input = Array.fill(n)(r.nextLong() % range)
+        val keys = NumaLongArray.allocLocal(n)
+        val payload = NumaLongArray.allocLocal(n)
+        try {
+          for (i <- 0 until n) {
+            keys.set(i, input(i))
+            payload.set(i, i)
+          }
+          NumaSort.shared().sort(keys, payload)
+          val expected = input.zipWithIndex.sortBy(_._1)
+          for (i <- 0 until n) {
+            keys.get(i) should be (expected(i)._1)
+            // The sort is stable
+            payload.get(i) should be (expected(i)._2.toLong)
+          }
+        }
+        finally {
+          keys.free()
+          payload.free()
+        }
+      }
+    }
+
+    "sort int arrays" in {
+      val r = new Random(0)
+      for (n <- sizes) {
+        val input = Array.fill(n)(r.nextInt())
+        val a = NumaIntArray.allocInterleaved(n)
+        try {
+          for (i <- 0 until n)
+            a.set(i, input(i))
+          NumaSort.shared().sort(a)
+          val expected = input.sorted
+          for (i <- 0 until n)
+            a.get(i) should be (expected(i))
+        }
+        finally
+          a.free()
+      }
+    }
+
+    "sort double arrays in the order of Arrays.sort" in {
+      val r = new Random(0)
+      val special = Array(Double.NaN, -0.0, 0.0, Double.NegativeInfinity, Double.PositiveInfinity, Double.MinPositiveValue)
+      for (n <- sizes) {
+        val input = Array.tabulate(n)(i => if (i % 10 == 0) special(r.nextInt(special.length)) else r.nextGaussian() * 1e6)
+        val a = NumaDoubleArray.allocLocal(n)
+        try {
+          for (i <- 0 until n)
+            a.set(i, input(i))
+          NumaSort.shared().sort(a)
+          val expected = input.clone
+          java.util.Arrays.sort(expected)
+          for (i <- 0 until n)
+            java.lang.Double.doubleToLongBits(a.get(i)) should be (java.lang.Double.doubleToLongBits(expected(i)))
+        }
+        finally
+          a.free()
+      }
+    }
+
+    "reject a payload of a different length" in {
+      val keys = NumaLongArray.allocLocal(10)
+      val payload = NumaLongArray.allocLocal(5)
+      try {
+        intercept[IllegalArgumentException] {
+          NumaSort.shared().sort(keys, payload)
+        }
+      }
+      finally {
+        keys.free()
+        payload.free()
+      }
+    }
+  }
+}
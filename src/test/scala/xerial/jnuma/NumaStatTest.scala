@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// NumaStatTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.io.{File, FileWriter}
+import NumaStat.{Counter, MemInfo}
+
+/**
+ * @author leo
+ */
+class NumaStatTest extends MySpec {
+
+  def write(file: File, content: String) {
+    file.getParentFile.mkdirs()
+    val w = new FileWriter(file)
+    try
+      w.write(content)
+    finally
+      w.close()
+  }
+
+  def numastat(hit: Long, local: Long, other: Long) =
+    "numa_hit %d\nnuma_miss 0\nnuma_foreign 0\ninterleave_hit 5\nlocal_node %d\nother_node %d\n".format(hit, local, other)
+
+  def meminfo(node: Int, free: Long) =
+    "Node %d MemTotal:        4947704 kB\nNode %d MemFree:         %d kB\nNode %d HugePages_Total:     8\n".format(node, node, free, node)
+
+  def withFakeSystem[U](f: (File, File) => U): U = {
+    val root = File.createTempFile("jnuma-stat", "")
+    root.delete()
+    val nodeDir = new File(root, "node")
+    val numaMaps = new File(root, "numa_maps")
+    try {
+      for (n <- 0 until 2) {
+        write(new File(nodeDir, "node%d/numastat".format(n)), numastat(100, 90, 10))
+        write(new File(nodeDir, "node%d/meminfo".format(n)), meminfo(n, 1000))
+      }
+      write(new File(nodeDir, "online"), "0-1\n")
+      write(numaMaps,
+        "7f0000000000 default file=/usr/lib/libc.so mapped=10 N0=10 kernelpagesize_kB=4\n" +
+        "7f0000100000 interleave:0-1 anon=6 dirty=6 N0=3 N1=3 kernelpagesize_kB=4\n" +
+        "7f0000200000 prefer (many):0-1 heap anon=2 dirty=2 N1=2 kernelpagesize_kB=2048\n" +
+        "7ffd00000000 default stack anon=1 dirty=1 N0=1 kernelpagesize_kB=4\n")
+      f(nodeDir, numaMaps)
+    }
+    finally {
+      for (d <- Seq(new File(nodeDir, "node0"), new File(nodeDir, "node1"))) {
+        d.listFiles.foreach(_.delete())
+        d.delete()
+      }
+      new File(nodeDir, "online").delete()
+      nodeDir.delete()
+      numaMaps.delete()
+      root.delete()
+    }
+  }
+
+  "NumaStat" should {
+
+    "read the counters and deltas" in {
+      withFakeSystem { (nodeDir, numaMaps) =>
+        val stat = new NumaStat(nodeDir, numaMaps)
+        try {
+          stat.numNodes should be (2)
+          stat.counter(1, Counter.NUMA_HIT) should be (100L)
+          stat.counter(1, Counter.INTERLEAVE_HIT) should be (5L)
+          stat.memInfo(0, MemInfo.MEM_TOTAL) should be (4947704L * 1024)
+          stat.memInfo(1, MemInfo.MEM_FREE) should be (1000L * 1024)
+          stat.memInfo(1, MemInfo.HUGE_PAGES_TOTAL) should be (8L)
+          stat.remoteRatio() should be (0.0)
+
+          write(new File(nodeDir, "node0/numastat"), numastat(200, 150, 50))
+          write(new File(nodeDir, "node1/numastat"), numastat(150, 130, 30))
+          write(new File(nodeDir, "node1/meminfo"), meminfo(1, 10))
+          stat.sample()
+          stat.delta(0, Counter.NUMA_HIT) should be (100L)
+          stat.delta(Counter.NUMA_HIT) should be (150L)
+          stat.delta(1, Counter.OTHER_NODE) should be (20L)
+          stat.remoteRatio(0) should be (0.4)
+          stat.remoteRatio() should be (0.375)
+          stat.missRatio() should be (0.0)
+          stat.memInfo(1, MemInfo.MEM_FREE) should be (10L * 1024)
+
+          stat.sample()
+          stat.delta(0, Counter.NUMA_HIT) should be (0L)
+          stat.counter(0, Counter.NUMA_HIT) should be (200L)
+        }
+        finally
+          stat.close()
+      }
+    }
+
+    "read the pages of the process" in {
+      withFakeSystem { (nodeDir, numaMaps) =>
+        val stat = new NumaStat(nodeDir, numaMaps)
+        try {
+          stat.processBytes(0) should be (14L * 4096)
+          stat.processBytes(1) should be (3L * 4096 + 2L * 2048 * 1024)
+          stat.processBytes() should be (17L * 4096 + 2L * 2048 * 1024)
+
+          write(numaMaps, "7f0000000000 bind:1 anon=4 N1=4 kernelpagesize_kB=4\n")
+          stat.sample()
+          stat.processBytesDelta(0) should be (-14L * 4096)
+          stat.processBytesDelta(1) should be (4L * 4096 - 3L * 4096 - 2L * 2048 * 1024)
+        }
+        finally
+          stat.close()
+      }
+    }
+
+    "list the mappings" in {
+      withFakeSystem { (nodeDir, numaMaps) =>
+        val stat = new NumaStat(nodeDir, numaMaps)
+        try {
+          val m = stat.mappings()
+          m.size should be (4)
+          m.get(0).address should be (0x7f0000000000L)
+          m.get(0).file should be ("/usr/lib/libc.so")
+          m.get(0).pages(0) should be (10L)
+          m.get(1).policy should be ("interleave:0-1")
+          m.get(1).file should be (null)
+          m.get(1).totalPages should be (6L)
+          m.get(2).policy should be ("prefer (many):0-1")
+          m.get(2).heapOrStack should be (true)
+          m.get(2).pageSize should be (2048L * 1024)
+          m.get(3).heapOrStack should be (true)
+        }
+        finally
+          stat.close()
+      }
+    }
+
+    "read the statistics of this system" in {
+      val stat = new NumaStat
+      try {
+        stat.sample()
+        debug(stat)
+        if (new File("/proc/self/numa_maps").exists) {
+          stat.numNodes should be > (0)
+          stat.processBytes() should be > (0L)
+          stat.mappings().size should be > (0)
+        }
+      }
+      finally
+        stat.close()
+    }
+  }
+}
@@ -105,6 +105,66 @@ class NumaTest extends MySpec {
 
     }
 
+    "report the initialization time" in {
+      Numa.numNodes()
+      Numa.isInitialized() should be (true)
+      debug("init time: %,d ns", Numa.initTimeNanos())
+      Numa.initTimeNanos() should be >= (0L)
+    }
+
+    "provide cached topology" in {
+      val t = Numa.topology()
+      debug(t)
+      t.numNodes() should be (Numa.numNodes())
+      for (n <- 0 until t.numNodes()) {
+        t.nearestNode(n, 0) should be (n)
+        for (cpu <- 0 until t.numCPUs(); if t.hasCpu(n, cpu))
+          t.cpuToNode(cpu) should be (n)
+      }
+      Numa.refreshTopology().numNodes() should be (t.numNodes())
+    }
+
+    "report the current cpu and node" taggedAs ("cpu") in {
+      val cpu = Numa.currentCpu()
+      val node = Numa.currentNode()
+      debug("current cpu:%d node:%d", cpu, node)
+      node should be (Numa.topology().cpuToNode(cpu))
+      Numa.setAffinity(0)
+      Numa.currentCpu(Long.MaxValue) should be (0)
+      Numa.resetAffinity()
+
+      val N = 1000000
+      time("current cpu", repeat = 3) {
+        block("affinity mask") {
+          for (i <- 0 until N) Numa.getAffinity()
+        }
+        block("currentCpu") {
+          for (i <- 0 until N) Numa.currentCpu()
+        }
+        block("currentCpu(1ms)") {
+          for (i <- 0 until N) Numa.currentCpu(1000000L)
+        }
+      }
+    }
+
+    "query and move pages" in {
+      val size = 4 * 1024 * 1024
+      val b = Numa.allocOnNode(size, 0)
+      for (i <- 0 until size by Numa.pageSize()) b.put(i, 1.toByte)
+      val h = Numa.queryPages(b)
+      debug("pages: %s", h)
+      h.totalPages() should be >= (size / Numa.pageSize().toLong)
+
+      val last = Numa.numNodes() - 1
+      val moved = Numa.movePages(b, last)
+      debug("moved pages: %s", moved)
+      moved.totalPages() should be (h.totalPages())
+
+      Numa.mbind(b, MemoryPolicy.INTERLEAVE, Numa.newNodeMask((0 until Numa.numNodes()): _*), true)
+      debug("interleaved pages: %s", Numa.queryPages(b))
+      Numa.free(b)
+    }
+
     "allocate local buffer" in {
       for (i <- 0 until 3) {
         val local = Numa.allocLocal(1024)
@@ -164,6 +224,43 @@ class NumaTest extends MySpec {
       Numa.free(bi)
     }
 
+    "compare random access with base and huge pages" taggedAs ("hugepage") in {
+      val N = 1000000
+      val size = 256 * 1024 * 1024
+
+      def access(b: ByteBuffer) {
+        val r = new Random(0)
+        val numPages = b.capacity() / 4096
+        var i = 0
+        var sum = 0L
+        while (i < N) {
+          sum += b.getLong(r.nextInt(numPages) * 4096)
+          i += 1
+        }
+      }
+
+      val nodes = 0 until Numa.numNodes()
+      val base = nodes.map(n => NumaMemorySegment.allocOnNode(size, n))
+      val huge = nodes.map(n => NumaMemorySegment.allocHugeOnNode(size, n))
+      for (s <- base ++ huge) {
+        s.fill(0, s.size(), 1.toByte)
+        debug(s)
+      }
+      huge.foreach(s => s.pageSize() should be >= (Numa.pageSize()))
+
+      time("random page read", repeat = 5) {
+        for (n <- nodes) {
+          block("node%d-base".format(n)) {
+            access(base(n).asByteBuffer(0, size))
+          }
+          block("node%d-huge(%dk)".format(n, huge(n).pageSize() / 1024)) {
+            access(huge(n).asByteBuffer(0, size))
+          }
+        }
+      }
+      (base ++ huge).foreach(_.free())
+    }
+
     def radixSort8(buf: ByteBuffer) = {
       val K = 256
       val N = buf.capacity()
@@ -666,6 +763,23 @@ class NumaTest extends MySpec {
       }
     }
 
+    "create direct buffers of raw addresses without the native library" in {
+      val numa = new NoNuma
+      val addr = numa.allocMemory(64)
+      try {
+        val b = numa.directBuffer(addr, 64)
+        b.isDirect should be (true)
+        b.capacity should be (64)
+        b.limit should be (64)
+        UnsafeAccess.addressOf(b) should be (addr)
+        b.order(java.nio.ByteOrder.nativeOrder).putInt(8, 123)
+        UnsafeAccess.unsafe.getInt(addr + 8) should be (123)
+        b.slice().capacity should be (64)
+      }
+      finally
+        numa.free(addr, 64)
+    }
+
     "allocate memory" in {
       val size = 1L * 1024 * 1024
       var addr : Long = 0L
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012 Taro L. Saito
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------
+//
+// SimulatedNumaTest.scala
+//
+//--------------------------------------
+
+package xerial.jnuma
+
+import java.util.Properties
+
+/**
+ * @author leo
+ */
+class SimulatedNumaTest extends MySpec {
+
+  def simulated(config: (String, String)*): SimulatedNuma = {
+    val p = new Properties
+    for ((k, v) <- config)
+      p.setProperty(k, v)
+    new SimulatedNuma(p)
+  }
+
+  def fourNodes = simulated("nodes" -> "4", "cpusPerNode" -> "2,2,2,0", "nodeSize" -> "16m,1m,16m,16m",
+    "distance" -> "10,20,30,20; 20,10,20,30; 30,20,10,20; 20,30,20,10")
+
+  def cpuMask(cpus: Int*): Array[Long] = {
+    val mask = new Array[Long](NumaTopology.CPU_MASK_WORDS)
+    for (c <- cpus)
+      mask(c / 64) |= 1L << (c % 64)
+    mask
+  }
+
+  "SimulatedNuma" should {
+
+    "report the configured topology" in {
+      val t = NumaTopology.load(fourNodes)
+      debug(t)
+      t.numNodes should be (4)
+      t.distance(0, 2) should be (30)
+      t.distance(3, 1) should be (30)
+      t.nodeSize(1) should be (1L << 20)
+      (0 until 4).map(t.cpuCount(_)) should be (Seq(2, 2, 2, 0))
+      t.nodesWithCPUs() should be (Array(0, 1, 2))
+      t.cpuToNode(5) should be (2)
+      t.nearestNode(0, 1) should be (1)
+    }
+
+    "use the default topology" in {
+      val numa = simulated()
+      numa.isAvailable should be (true)
+      numa.maxNode() should be (1)
+      numa.distance(0, 1) should be (20)
+      numa.nodeSize(0) should be (1L << 30)
+    }
+
+    "reject an invalid configuration" in {
+      intercept[IllegalArgumentException] {
+        simulated("nodes" -> "2", "distance" -> "10,20")
+      }
+      intercept[IllegalArgumentException] {
+        simulated("nodes" -> "2", "nodeSize" -> "1m,1m,1m")
+      }
+      intercept[IllegalArgumentException] {
+        simulated("nodes" -> "2", "cpusPerNode" -> "0")
+      }
+    }
+
+    "account allocations of each node" in {
+      val numa = fourNodes
+      val page = numa.pageSize()
+      val a = numa.allocMemoryOnNode(512 * 1024, 1)
+      a should not be (0L)
+      numa.allocatedSize(1) should be (512L * 1024)
+      numa.freeSize(1) should be (512L * 1024)
+      // The node has no room
+      numa.allocMemoryOnNode(600 * 1024, 1) should be (0L)
+      numa.allocMemoryOnNode(600 * 1024, 0) should not be (0L)
+
+      val status = new Array[Int](512 * 1024 / page)
+      numa.getPageNodes(a, status)
+      status.forall(_ == 1) should be (true)
+      numa.movePages(a, 2, status)
+      status.forall(_ == 2) should be (true)
+      numa.allocatedSize(1) should be (0L)
+      numa.allocatedSize(2) should be (512L * 1024)
+      numa.free(a, 512 * 1024)
+      numa.allocatedSize(2) should be (0L)
+
+      val i = numa.allocMemoryInterleaved(8 * page)
+      val s = new Array[Int](8)
+      numa.getPageNodes(i, s)
+      s should be (Array(0, 1, 2, 3, 0, 1, 2, 3))
+      numa.free(i, 8 * page)
+    }
+
+    "allocate direct buffers on the nodes" in {
+      val numa = fourNodes
+      val b = numa.allocOnNode(4096, 1)
+      b.isDirect should be (true)
+      b.capacity should be (4096)
+      numa.allocatedSize(1) should be (4096L)
+      val status = new Array[Int](1)
+      numa.getPageNodes(UnsafeAccess.addressOf(b), status)
+      status(0) should be (1)
+      b.putLong(0, 42L)
+      b.getLong(0) should be (42L)
+      numa.free(b)
+      numa.allocatedSize(1) should be (0L)
+
+      // A failed allocation leaves no reservation
+      numa.allocOnNode(2 * 1024 * 1024, 1) should be (null)
+      numa.allocatedSize(1) should be (0L)
+
+      val i = numa.allocInterleaved(4 * numa.pageSize())
+      val s = new Array[Int](4)
+      numa.getPageNodes(UnsafeAccess.addressOf(i), s)
+      s should be (Array(0, 1, 2, 3))
+      numa.free(i)
+    }
+
+    "report unknown pages" in {
+      val numa = fourNodes
+      val status = new Array[Int](1)
+      numa.getPageNodes(numa.pageSize() * 16L, status)
+      status(0) should be (-14)
+    }
+
+    "place the thread on the CPUs of a node" in {
+      val numa = fourNodes
+      numa.runOnNode(1)
+      Seq(2, 3) should contain (numa.currentCpu())
+      numa.preferredNode() should be (1)
+      val a = numa.allocMemoryLocal(4096)
+      val status = new Array[Int](1)
+      numa.getPageNodes(a, status)
+      status(0) should be (1)
+      numa.free(a, 4096)
+
+      numa.setAffinity(0, cpuMask(5), 6)
+      numa.currentCpu() should be (5)
+      val mask = new Array[Long](NumaTopology.CPU_MASK_WORDS)
+      numa.getAffinity(0, mask, 6)
+      mask(0) should be (1L << 5)
+      intercept[IllegalArgumentException] {
+        numa.setAffinity(0, cpuMask(7), 6)
+      }
+    }
+
+    "save and restore the thread state" in {
+      val numa = fourNodes
+      numa.setPreferred(2)
+      val previous = new Array[Long](Numa.THREAD_STATE_WORDS)
+      numa.bindThread(cpuMask(0, 1), 3, Array(0xAL), previous)
+      numa.currentCpu() should be < (2)
+      val a = numa.allocMemory(4 * numa.pageSize())
+      val status = new Array[Int](4)
+      numa.getPageNodes(a, status)
+      status should be (Array(1, 3, 1, 3))
+      numa.free(a, 4 * numa.pageSize())
+
+      numa.restoreThread(previous)
+      numa.preferredNode() should be (2)
+      val mask = new Array[Long](NumaTopology.CPU_MASK_WORDS)
+      numa.getAffinity(0, mask, 6)
+      mask(0) should be (0x3FL)
+    }
+
+    "count remote page accesses" in {
+      val numa = fourNodes
+      val page = numa.pageSize()
+      numa.runOnNode(0)
+      val local = numa.allocMemoryOnNode(4 * page, 0)
+      val remote = numa.allocMemoryOnNode(2 * page, 2)
+      numa.access(local, 4 * page)
+      numa.access(remote + 1, page)
+      numa.localPageAccesses() should be (4L)
+      numa.remotePageAccesses() should be (2L)
+      numa.resetAccessCounters()
+      numa.remotePageAccesses() should be (0L)
+      numa.free(local, 4 * page)
+      numa.free(remote, 2 * page)
+    }
+  }
+}